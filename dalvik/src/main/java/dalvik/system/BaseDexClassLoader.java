@@ -25,6 +25,8 @@ import java.util.Enumeration;
  * {@link ClassLoader} implementations.
  */
 public class BaseDexClassLoader extends ClassLoader {
+    private static volatile LoadReporter loadReporter;
+
     /** originally specified path (just used for {@code toString()}) */
     private final String originalPath;
 
@@ -125,6 +127,45 @@ public class BaseDexClassLoader extends ClassLoader {
         return null;
     }
 
+    /**
+     * Sets the reporter that receives the time taken to open each file of
+     * every dex path, or null to stop reporting.
+     *
+     * @hide
+     */
+    public static void setLoadReporter(LoadReporter reporter) {
+        loadReporter = reporter;
+    }
+
+    /**
+     * Returns the current load reporter, or null if there is none.
+     *
+     * @hide
+     */
+    public static LoadReporter getLoadReporter() {
+        return loadReporter;
+    }
+
+    /**
+     * Receives the time taken to open each file of a dex path, to see
+     * where startup time goes.
+     *
+     * @hide
+     */
+    public static interface LoadReporter {
+        /**
+         * Called once each file of a dex path has been opened, on the
+         * thread that opened it. When files are opened concurrently this
+         * may be called concurrently.
+         *
+         * @param elapsedNanos the time taken to open the file, including
+         * optimizing its dex file if necessary
+         * @param loaded true if the file was opened as a dex or zip file,
+         * false if it was skipped
+         */
+        public void reportLoad(File file, long elapsedNanos, boolean loaded);
+    }
+
     @Override
     public String toString() {
         return getClass().getName()
@@ -23,7 +23,14 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
@@ -45,6 +52,20 @@ import java.util.zip.ZipFile;
     private static final String ZIP_SUFFIX = ".zip";
     private static final String APK_SUFFIX = ".apk";
 
+    /**
+     * Class and resource lookups are indexed when there are at least this
+     * many dex or zip files to search. With fewer, a lookup costs the same
+     * either way and the index would only cost memory.
+     */
+    private static final int MIN_INDEXED_ELEMENTS = 2;
+
+    /**
+     * The system property holding the maximum number of threads used to
+     * open the files of a dex path. The default is 1, which opens them
+     * one at a time on the calling thread.
+     */
+    private static final String THREADS_PROPERTY = "dalvik.system.dexpath.threads";
+
     /** class definition context */
     private final ClassLoader definingContext;
 
@@ -54,6 +75,24 @@ import java.util.zip.ZipFile;
     /** list of native library directory elements */
     private final File[] nativeLibraryDirectories;
 
+    /** whether class and resource lookups use an index */
+    private final boolean indexClasses;
+    private final boolean indexResources;
+
+    /**
+     * Maps each class name to the first element whose dex file defines it.
+     * Built on first use, or never if there are too few dex files.
+     */
+    private volatile HashMap<String, Element> classIndex;
+
+    /**
+     * Maps each resource name to the first element whose zip file contains
+     * it. Directory entries are also mapped without their trailing slash,
+     * as {@link ZipFile#getEntry} finds them that way. Built on first use,
+     * or never if there are too few zip files.
+     */
+    private volatile HashMap<String, Element> resourceIndex;
+
     /**
      * Constructs an instance.
      *
@@ -96,6 +135,19 @@ import java.util.zip.ZipFile;
         this.dexElements =
             makeDexElements(splitDexPath(dexPath), optimizedDirectory);
         this.nativeLibraryDirectories = splitLibraryPath(libraryPath);
+
+        int dexCount = 0;
+        int zipCount = 0;
+        for (Element element : dexElements) {
+            if (element.dexFile != null) {
+                dexCount++;
+            }
+            if (element.zipFile != null) {
+                zipCount++;
+            }
+        }
+        this.indexClasses = dexCount >= MIN_INDEXED_ELEMENTS;
+        this.indexResources = zipCount >= MIN_INDEXED_ELEMENTS;
     }
 
     /**
@@ -192,62 +244,127 @@ import java.util.zip.ZipFile;
      * the given array.
      */
     private static Element[] makeDexElements(ArrayList<File> files,
-            File optimizedDirectory) {
+            final File optimizedDirectory) {
         ArrayList<Element> elements = new ArrayList<Element>();
 
         /*
          * Open all files and load the (direct or contained) dex files
-         * up front.
+         * up front. Loading a dex file may mean optimizing it, which
+         * can take a while, so optionally do that concurrently.
          */
-        for (File file : files) {
-            ZipFile zip = null;
-            DexFile dex = null;
-            String name = file.getName();
-
-            if (name.endsWith(DEX_SUFFIX)) {
-                // Raw dex file (not inside a zip/jar).
-                try {
-                    dex = loadDexFile(file, optimizedDirectory);
-                } catch (IOException ex) {
-                    System.logE("Unable to load dex file: " + file, ex);
-                }
-            } else if (name.endsWith(APK_SUFFIX) || name.endsWith(JAR_SUFFIX)
-                    || name.endsWith(ZIP_SUFFIX)) {
-                try {
-                    zip = new ZipFile(file);
-                } catch (IOException ex) {
-                    /*
-                     * Note: ZipException (a subclass of IOException)
-                     * might get thrown by the ZipFile constructor
-                     * (e.g. if the file isn't actually a zip/jar
-                     * file).
-                     */
-                    System.logE("Unable to open zip file: " + file, ex);
+        int threadCount = Math.min(files.size(), Integer.getInteger(THREADS_PROPERTY, 1));
+        if (threadCount <= 1) {
+            for (File file : files) {
+                Element element = makeDexElement(file, optimizedDirectory);
+                if (element != null) {
+                    elements.add(element);
                 }
+            }
+            return elements.toArray(new Element[elements.size()]);
+        }
 
-                try {
-                    dex = loadDexFile(file, optimizedDirectory);
-                } catch (IOException ignored) {
-                    /*
-                     * IOException might get thrown "legitimately" by
-                     * the DexFile constructor if the zip file turns
-                     * out to be resource-only (that is, no
-                     * classes.dex file in it). Safe to just ignore
-                     * the exception here, and let dex == null.
-                     */
-                }
-            } else {
-                System.logW("Unknown file type for: " + file);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            ArrayList<Future<Element>> futures = new ArrayList<Future<Element>>();
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Element>() {
+                    public Element call() {
+                        return makeDexElement(file, optimizedDirectory);
+                    }
+                }));
             }
 
-            if ((zip != null) || (dex != null)) {
-                elements.add(new Element(file, zip, dex));
+            // collect in class path order, which is the search order
+            boolean interrupted = false;
+            for (Future<Element> future : futures) {
+                while (true) {
+                    try {
+                        Element element = future.get();
+                        if (element != null) {
+                            elements.add(element);
+                        }
+                        break;
+                    } catch (InterruptedException e) {
+                        // like the serial path, finish loading regardless
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw new AssertionError(cause);
+                    }
+                }
             }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executor.shutdown();
         }
 
         return elements.toArray(new Element[elements.size()]);
     }
 
+    /**
+     * Makes the dex/resource path element for {@code file}, or returns
+     * null if the file is neither a dex file nor a zip file. Reports how
+     * long that took to the {@link BaseDexClassLoader.LoadReporter}, if
+     * there is one.
+     */
+    private static Element makeDexElement(File file, File optimizedDirectory) {
+        long start = System.nanoTime();
+        ZipFile zip = null;
+        DexFile dex = null;
+        String name = file.getName();
+
+        if (name.endsWith(DEX_SUFFIX)) {
+            // Raw dex file (not inside a zip/jar).
+            try {
+                dex = loadDexFile(file, optimizedDirectory);
+            } catch (IOException ex) {
+                System.logE("Unable to load dex file: " + file, ex);
+            }
+        } else if (name.endsWith(APK_SUFFIX) || name.endsWith(JAR_SUFFIX)
+                || name.endsWith(ZIP_SUFFIX)) {
+            try {
+                zip = new ZipFile(file);
+            } catch (IOException ex) {
+                /*
+                 * Note: ZipException (a subclass of IOException)
+                 * might get thrown by the ZipFile constructor
+                 * (e.g. if the file isn't actually a zip/jar
+                 * file).
+                 */
+                System.logE("Unable to open zip file: " + file, ex);
+            }
+
+            try {
+                dex = loadDexFile(file, optimizedDirectory);
+            } catch (IOException ignored) {
+                /*
+                 * IOException might get thrown "legitimately" by
+                 * the DexFile constructor if the zip file turns
+                 * out to be resource-only (that is, no
+                 * classes.dex file in it). Safe to just ignore
+                 * the exception here, and let dex == null.
+                 */
+            }
+        } else {
+            System.logW("Unknown file type for: " + file);
+        }
+
+        Element result = ((zip != null) || (dex != null)) ? new Element(file, zip, dex) : null;
+
+        BaseDexClassLoader.LoadReporter reporter = BaseDexClassLoader.getLoadReporter();
+        if (reporter != null) {
+            reporter.reportLoad(file, System.nanoTime() - start, result != null);
+        }
+        return result;
+    }
+
     /**
      * Constructs a {@code DexFile} instance, as appropriate depending
      * on whether {@code optimizedDirectory} is {@code null}.
@@ -308,6 +425,19 @@ import java.util.zip.ZipFile;
      * found in any of the dex files
      */
     public Class findClass(String name) {
+        HashMap<String, Element> index = getClassIndex();
+        if (index != null) {
+            Element element = index.get(name);
+            if (element == null) {
+                return null; // no dex file defines this class
+            }
+            Class clazz = element.dexFile.loadClassBinaryName(name, definingContext);
+            if (clazz != null) {
+                return clazz;
+            }
+            // the class failed to load from its first dex file; try the others
+        }
+
         for (Element element : dexElements) {
             DexFile dex = element.dexFile;
 
@@ -331,6 +461,12 @@ import java.util.zip.ZipFile;
      * resource is not found in any of the zip/jar files
      */
     public URL findResource(String name) {
+        HashMap<String, Element> index = getResourceIndex();
+        if (index != null) {
+            Element element = index.get(name);
+            return (element != null) ? element.findResource(name) : null;
+        }
+
         for (Element element : dexElements) {
             URL url = element.findResource(name);
             if (url != null) {
@@ -341,6 +477,66 @@ import java.util.zip.ZipFile;
         return null;
     }
 
+    /**
+     * Returns the class index, building it if necessary, or null if the
+     * class lookups of this instance aren't indexed.
+     */
+    private HashMap<String, Element> getClassIndex() {
+        HashMap<String, Element> result = classIndex;
+        if (result != null || !indexClasses) {
+            return result;
+        }
+
+        // racing threads may build duplicate indices; any of them will do
+        result = new HashMap<String, Element>();
+        for (Element element : dexElements) {
+            if (element.dexFile == null) {
+                continue;
+            }
+            for (Enumeration<String> e = element.dexFile.entries(); e.hasMoreElements(); ) {
+                String className = e.nextElement();
+                if (!result.containsKey(className)) {
+                    result.put(className, element);
+                }
+            }
+        }
+        classIndex = result;
+        return result;
+    }
+
+    /**
+     * Returns the resource index, building it if necessary, or null if the
+     * resource lookups of this instance aren't indexed.
+     */
+    private HashMap<String, Element> getResourceIndex() {
+        HashMap<String, Element> result = resourceIndex;
+        if (result != null || !indexResources) {
+            return result;
+        }
+
+        result = new HashMap<String, Element>();
+        for (Element element : dexElements) {
+            if (element.zipFile == null) {
+                continue;
+            }
+            for (Enumeration<? extends ZipEntry> e = element.zipFile.entries();
+                    e.hasMoreElements(); ) {
+                String entryName = e.nextElement().getName();
+                if (!result.containsKey(entryName)) {
+                    result.put(entryName, element);
+                }
+                if (entryName.endsWith("/")) {
+                    String directoryName = entryName.substring(0, entryName.length() - 1);
+                    if (!result.containsKey(directoryName)) {
+                        result.put(directoryName, element);
+                    }
+                }
+            }
+        }
+        resourceIndex = result;
+        return result;
+    }
+
     /**
      * Finds all the resources with the given name, returning an
      * enumeration of them. If there are no resources with the given
@@ -23,11 +23,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * AsciiHprofWriter produces hprof compatible text output for use with
  * third party tools such as PerfAnal.
+ * <p>
+ * Samples of threads that were not running, when their state is
+ * known, are left out of the {@code CPU SAMPLES} section and ranked in
+ * a section of their own for each state, such as {@code BLOCKED
+ * SAMPLES}, that follows it.
  */
 public final class AsciiHprofWriter {
 
@@ -54,22 +61,56 @@ public final class AsciiHprofWriter {
         List<HprofData.Sample> samples
                 = new ArrayList<HprofData.Sample>(data.getSamples());
         Collections.sort(samples, SAMPLE_COMPARATOR);
-        int total = 0;
+        // samples of running threads, or of threads in an unknown
+        // state, are CPU samples as in the RI's hprof output. the
+        // others are listed separately for each state.
+        List<HprofData.Sample> cpuSamples = new ArrayList<HprofData.Sample>();
+        Map<Thread.State, List<HprofData.Sample>> stateSamples
+                = new EnumMap<Thread.State, List<HprofData.Sample>>(Thread.State.class);
         for (HprofData.Sample sample : samples) {
             HprofData.StackTrace stackTrace = sample.stackTrace;
-            int count = sample.count;
-            total += count;
-            out.printf("TRACE %d: (thread=%d)\n",
-                       stackTrace.stackTraceId,
-                       stackTrace.threadId);
+            Thread.State state = stackTrace.state;
+            if (state == null || state == Thread.State.RUNNABLE) {
+                out.printf("TRACE %d: (thread=%d)\n",
+                           stackTrace.stackTraceId,
+                           stackTrace.threadId);
+                cpuSamples.add(sample);
+            } else {
+                out.printf("TRACE %d: (thread=%d, state=%s)\n",
+                           stackTrace.stackTraceId,
+                           stackTrace.threadId,
+                           state);
+                List<HprofData.Sample> list = stateSamples.get(state);
+                if (list == null) {
+                    list = new ArrayList<HprofData.Sample>();
+                    stateSamples.put(state, list);
+                }
+                list.add(sample);
+            }
             for (StackTraceElement e : stackTrace.stackFrames) {
                 out.printf("\t%s\n", e);
             }
         }
+        writeSamples("CPU", cpuSamples);
+        for (Map.Entry<Thread.State, List<HprofData.Sample>> e : stateSamples.entrySet()) {
+            writeSamples(e.getKey().toString(), e.getValue());
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a ranking of the specified samples, which are sorted by
+     * decreasing count, in a section named by {@code kind}.
+     */
+    private void writeSamples(String kind, List<HprofData.Sample> samples) {
+        int total = 0;
+        for (HprofData.Sample sample : samples) {
+            total += sample.count;
+        }
         Date now = new Date(data.getStartMillis());
         // "CPU SAMPLES BEGIN (total = 826) Wed Jul 21 12:03:46 2010"
-        out.printf("CPU SAMPLES BEGIN (total = %d) %ta %tb %td %tT %tY\n",
-                   total, now, now, now, now, now);
+        out.printf("%s SAMPLES BEGIN (total = %d) %ta %tb %td %tT %tY\n",
+                   kind, total, now, now, now, now, now);
         out.printf("rank   self  accum   count trace method\n");
         int rank = 0;
         double accum = 0;
@@ -86,8 +127,7 @@ public final class AsciiHprofWriter {
                        stackTrace.stackFrames[0].getClassName(),
                        stackTrace.stackFrames[0].getMethodName());
         }
-        out.printf("CPU SAMPLES END\n");
-        out.flush();
+        out.printf("%s SAMPLES END\n", kind);
     }
 
     private static final Comparator<HprofData.Sample> SAMPLE_COMPARATOR
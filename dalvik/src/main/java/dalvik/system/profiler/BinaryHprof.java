@@ -59,6 +59,37 @@ public final class BinaryHprof {
         }
     }
 
+    /**
+     * Class name of the frames that record thread states in files
+     * with {@link ControlSettings#THREAD_STATES} set. The stack trace
+     * of a thread that was not {@code RUNNABLE} starts with a frame of
+     * this class whose method name is the name of the state. This
+     * keeps states visible to tools that do not know about them.
+     */
+    static final String STATE_CLASS_NAME = Thread.State.class.getName();
+
+    /**
+     * Returns the frame that records {@code state}.
+     */
+    static StackTraceElement stateFrame(Thread.State state) {
+        return new StackTraceElement(STATE_CLASS_NAME, state.name(), null, -1);
+    }
+
+    /**
+     * Returns the state recorded by {@code frame}, or null if it is an
+     * ordinary frame.
+     */
+    static Thread.State parseStateFrame(StackTraceElement frame) {
+        if (!frame.getClassName().equals(STATE_CLASS_NAME)) {
+            return null;
+        }
+        try {
+            return Thread.State.valueOf(frame.getMethodName());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     public static enum Tag {
 
         STRING_IN_UTF8(0x01, -ID_SIZE),
@@ -136,7 +167,12 @@ public final class BinaryHprof {
 
     public static enum ControlSettings {
         ALLOC_TRACES(0x01),
-        CPU_SAMPLING(0x02);
+        CPU_SAMPLING(0x02),
+        /**
+         * Not part of the RI format: stack traces record the state of
+         * their thread when it was sampled. See {@link #STATE_CLASS_NAME}.
+         */
+        THREAD_STATES(0x04);
 
         public final int bitmask;
 
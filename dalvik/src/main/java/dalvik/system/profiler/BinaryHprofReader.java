@@ -21,6 +21,7 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -401,8 +402,18 @@ public final class BinaryHprofReader {
             stackFrames[i] = stackFrame;
         }
 
+        Thread.State state = null;
+        if ((hprofData.getFlags() & BinaryHprof.ControlSettings.THREAD_STATES.bitmask) != 0) {
+            state = (frames > 0) ? BinaryHprof.parseStateFrame(stackFrames[0]) : null;
+            if (state != null) {
+                stackFrames = Arrays.copyOfRange(stackFrames, 1, frames);
+            } else {
+                state = Thread.State.RUNNABLE;
+            }
+        }
+
         HprofData.StackTrace stackTrace
-                = new HprofData.StackTrace(stackTraceId, threadId, stackFrames);
+                = new HprofData.StackTrace(stackTraceId, threadId, stackFrames, state);
         if (strict) {
             hprofData.addStackTrace(stackTrace, new int[1]);
         } else {
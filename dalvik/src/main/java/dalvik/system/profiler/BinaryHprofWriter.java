@@ -27,6 +27,13 @@ import java.util.Set;
  * BinaryHprofWriter produces hprof compatible binary output for use
  * with third party tools. Such files can be converted to text with
  * with {@link HprofBinaryToAscii} or read back in with {@link BinaryHprofReader}.
+ * <p>
+ * Besides writing a complete {@link HprofData} at once, a writer can
+ * be {@link #open opened} on a stream and have records appended to it
+ * as they become available, which is how the {@link SamplingProfiler}
+ * streams its continuous mode output. Such a stream contains one
+ * {@code CPU_SAMPLES} record per flush and so must be read back with
+ * a non-strict {@link BinaryHprofReader}.
  */
 public final class BinaryHprofWriter {
 
@@ -41,6 +48,12 @@ public final class BinaryHprofWriter {
     private final HprofData data;
     private final DataOutputStream out;
 
+    /**
+     * The {@link BinaryHprof.ControlSettings} flags written to the
+     * stream.
+     */
+    private int flags;
+
     /**
      * Writes the provided data to the specified stream.
      */
@@ -53,6 +66,23 @@ public final class BinaryHprofWriter {
         this.out = new DataOutputStream(outputStream);
     }
 
+    /**
+     * Returns a writer that appends records to the specified stream,
+     * after writing the header and control settings. Strings, classes
+     * and stack frames are only written the first time they are
+     * referenced, so the writer retains an entry for each distinct
+     * frame written.
+     */
+    static BinaryHprofWriter open(OutputStream outputStream,
+                                  long startMillis,
+                                  int flags,
+                                  int depth) throws IOException {
+        BinaryHprofWriter writer = new BinaryHprofWriter(null, outputStream);
+        writer.writeHeader(startMillis);
+        writer.writeControlSettings(flags, depth);
+        return writer;
+    }
+
     private void write() throws IOException {
         try {
             writeHeader(data.getStartMillis());
@@ -91,11 +121,12 @@ public final class BinaryHprofWriter {
         writeRecordHeader(BinaryHprof.Tag.CONTROL_SETTINGS,
                           0,
                           BinaryHprof.Tag.CONTROL_SETTINGS.maximumSize);
+        this.flags = flags;
         out.writeInt(flags);
         out.writeShort((short) depth);
     }
 
-    private void writeThreadEvent(HprofData.ThreadEvent e) throws IOException {
+    void writeThreadEvent(HprofData.ThreadEvent e) throws IOException {
         switch (e.type) {
             case START:
                 writeStartThread(e);
@@ -174,6 +205,34 @@ public final class BinaryHprofWriter {
         return id;
     }
 
+    /**
+     * Writes a {@code CPU_SAMPLES} record for the first {@code
+     * samplesCount} stack trace ids and their sample counts. The
+     * stack traces must already have been written with {@link
+     * #writeStackTrace writeStackTrace}.
+     */
+    void writeCpuSamples(int[] stackTraceIds, int[] counts, int samplesCount)
+            throws IOException {
+        if (samplesCount == 0) {
+            return;
+        }
+        int total = 0;
+        for (int i = 0; i < samplesCount; i++) {
+            total += counts[i];
+        }
+        writeRecordHeader(BinaryHprof.Tag.CPU_SAMPLES, 0, 4 + 4 + (samplesCount * (4 + 4)));
+        out.writeInt(total);
+        out.writeInt(samplesCount);
+        for (int i = 0; i < samplesCount; i++) {
+            out.writeInt(counts[i]);
+            out.writeInt(stackTraceIds[i]);
+        }
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
     private void writeCpuSamples(int totalSamples, Set<HprofData.Sample> samples)
             throws IOException {
         int samplesCount = samples.size();
@@ -189,11 +248,27 @@ public final class BinaryHprofWriter {
         }
     }
 
-    private void writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
-        int frames = stackTrace.stackFrames.length;
+    /**
+     * Writes a stack trace. If the {@link
+     * BinaryHprof.ControlSettings#THREAD_STATES} flag was written,
+     * the stack trace of a thread that was not {@code RUNNABLE} starts
+     * with a {@link BinaryHprof#stateFrame state frame}.
+     */
+    void writeStackTrace(HprofData.StackTrace stackTrace) throws IOException {
+        StackTraceElement[] stackFrames = stackTrace.stackFrames;
+        Thread.State state = stackTrace.state;
+        if ((flags & BinaryHprof.ControlSettings.THREAD_STATES.bitmask) != 0
+                && state != null
+                && state != Thread.State.RUNNABLE) {
+            StackTraceElement[] withState = new StackTraceElement[stackFrames.length + 1];
+            withState[0] = BinaryHprof.stateFrame(state);
+            System.arraycopy(stackFrames, 0, withState, 1, stackFrames.length);
+            stackFrames = withState;
+        }
+        int frames = stackFrames.length;
         int[] stackFrameIds = new int[frames];
         for (int i = 0; i < frames; i++) {
-            stackFrameIds[i] = writeStackFrame(stackTrace.stackFrames[i]);
+            stackFrameIds[i] = writeStackFrame(stackFrames[i]);
         }
         writeRecordHeader(BinaryHprof.Tag.STACK_TRACE,
                           0,
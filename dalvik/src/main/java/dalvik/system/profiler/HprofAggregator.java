@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Merges binary hprof files, such as those of several processes, and
+ * prints the methods and stacks with the most samples.
+ * <p>
+ * Files are read one at a time and merged with an {@link
+ * HprofMerger}, so only the merged data and one file's distinct stacks
+ * are ever in memory. Rankings are computed with a bounded heap rather
+ * than by sorting every method and stack.
+ *
+ * Run on device with:
+ * adb shell dalvikvm 'dalvik.system.profiler.HprofAggregator'
+ *
+ * Run on host with:
+ * java -classpath out/target/common/obj/JAVA_LIBRARIES/core_intermediates/classes.jar
+ */
+public final class HprofAggregator {
+
+    private static final int DEFAULT_TOP = 20;
+
+    /**
+     * Main entry point for HprofAggregator command line tool
+     */
+    public static void main(String[] args) {
+        System.exit(aggregate(args) ? 0 : 1);
+    }
+
+    /**
+     * Parses options, merges each file argument and writes the
+     * summary and, if requested, the merged binary hprof file.
+     */
+    private static boolean aggregate(String[] args) {
+        int top = DEFAULT_TOP;
+        File output = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (!args[i].equals("-n") && !args[i].equals("-o")) {
+                usage("unknown option " + args[i]);
+                return false;
+            }
+            if (i + 1 == args.length) {
+                usage("option " + args[i] + " requires an argument");
+                return false;
+            }
+            if (args[i].equals("-n")) {
+                try {
+                    top = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage("invalid count " + args[i]);
+                    return false;
+                }
+                if (top < 1) {
+                    usage("count must be positive: " + top);
+                    return false;
+                }
+            } else {
+                output = new File(args[++i]);
+            }
+        }
+        if (i == args.length) {
+            usage("binary hprof file arguments expected");
+            return false;
+        }
+
+        HprofMerger merger = new HprofMerger();
+        for (; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (!file.exists()) {
+                usage("file " + file + " does not exist");
+                return false;
+            }
+            try {
+                merger.add(HprofBinaryToAscii.readFile(file));
+            } catch (IOException e) {
+                System.out.println("Problem reading binary hprof data from "
+                                   + file + ": " + e.getMessage());
+                return false;
+            }
+        }
+        HprofData hprofData = merger.getHprofData();
+
+        if (output != null) {
+            OutputStream outputStream = null;
+            try {
+                outputStream = new BufferedOutputStream(new FileOutputStream(output));
+                BinaryHprofWriter.write(hprofData, outputStream);
+            } catch (IOException e) {
+                System.out.println("Problem writing binary hprof data to "
+                                   + output + ": " + e.getMessage());
+                return false;
+            } finally {
+                HprofBinaryToAscii.closeQuietly(outputStream);
+            }
+        }
+
+        write(hprofData, top, System.out);
+        return true;
+    }
+
+    /**
+     * Writes the {@code top} methods by self and by total samples and
+     * the {@code top} stacks, merged across threads, to the specified
+     * stream.
+     * <p>
+     * Only samples of running threads, or of threads in an unknown
+     * state, count towards methods, as in the {@code CPU SAMPLES} of
+     * {@link AsciiHprofWriter}. Stacks of other states are ranked
+     * with them, marked with their state.
+     */
+    static void write(HprofData data, int top, OutputStream outputStream) {
+        Map<String, int[]> selfCounts = new HashMap<String, int[]>();
+        Map<String, int[]> totalCounts = new HashMap<String, int[]>();
+        Map<HprofData.StackTrace, int[]> stackCounts = new HashMap<HprofData.StackTrace, int[]>();
+        int cpuTotal = 0;
+        int total = 0;
+        for (HprofData.Sample sample : data.getSamples()) {
+            HprofData.StackTrace stackTrace = sample.stackTrace;
+            int count = sample.count;
+            total += count;
+            // thread id zero so that equal stacks of all threads meet
+            increment(stackCounts,
+                      new HprofData.StackTrace(0, 0, stackTrace.stackFrames, stackTrace.state),
+                      count);
+
+            Thread.State state = stackTrace.state;
+            StackTraceElement[] frames = stackTrace.stackFrames;
+            if ((state != null && state != Thread.State.RUNNABLE) || frames.length == 0) {
+                continue;
+            }
+            cpuTotal += count;
+            String[] methods = new String[frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                methods[i] = frames[i].getClassName() + "." + frames[i].getMethodName();
+            }
+            increment(selfCounts, methods[0], count);
+            // count recursive methods once per stack
+            outer:
+            for (int i = 0; i < methods.length; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (methods[j].equals(methods[i])) {
+                        continue outer;
+                    }
+                }
+                increment(totalCounts, methods[i], count);
+            }
+        }
+
+        PrintWriter out = new PrintWriter(outputStream);
+        // "SELF BEGIN (total = 826)"
+        out.printf("SELF BEGIN (total = %d)\n", cpuTotal);
+        out.printf("rank   self  accum   count method\n");
+        int rank = 0;
+        double accum = 0;
+        for (Map.Entry<String, int[]> e : top(selfCounts, top)) {
+            rank++;
+            int count = e.getValue()[0];
+            double self = (double)count/(double)cpuTotal;
+            accum += self;
+            out.printf("% 4d% 6.2f%%% 6.2f%% % 7d %s\n",
+                       rank, self*100, accum*100, count, e.getKey());
+        }
+        out.printf("SELF END\n");
+
+        // totals overlap, so there is no accumulated percentage
+        out.printf("TOTAL BEGIN (total = %d)\n", cpuTotal);
+        out.printf("rank  total   count method\n");
+        rank = 0;
+        for (Map.Entry<String, int[]> e : top(totalCounts, top)) {
+            rank++;
+            int count = e.getValue()[0];
+            out.printf("% 4d% 6.2f%% % 7d %s\n",
+                       rank, (double)count/(double)cpuTotal*100, count, e.getKey());
+        }
+        out.printf("TOTAL END\n");
+
+        out.printf("STACKS BEGIN (total = %d)\n", total);
+        out.printf("rank   self  accum   count state\n");
+        rank = 0;
+        accum = 0;
+        for (Map.Entry<HprofData.StackTrace, int[]> e : top(stackCounts, top)) {
+            rank++;
+            HprofData.StackTrace stackTrace = e.getKey();
+            int count = e.getValue()[0];
+            double self = (double)count/(double)total;
+            accum += self;
+            out.printf("% 4d% 6.2f%%% 6.2f%% % 7d %s\n",
+                       rank, self*100, accum*100, count,
+                       stackTrace.state != null ? stackTrace.state : "");
+            for (StackTraceElement frame : stackTrace.stackFrames) {
+                out.printf("\t%s\n", frame);
+            }
+        }
+        out.printf("STACKS END\n");
+        out.flush();
+    }
+
+    private static <K> void increment(Map<K, int[]> counts, K key, int count) {
+        int[] countCell = counts.get(key);
+        if (countCell == null) {
+            countCell = new int[1];
+            counts.put(key, countCell);
+        }
+        countCell[0] += count;
+    }
+
+    /**
+     * Returns the {@code n} entries of {@code counts} with the highest
+     * counts, by decreasing count.
+     */
+    private static <K> List<Map.Entry<K, int[]>> top(Map<K, int[]> counts, int n) {
+        Comparator<Map.Entry<K, int[]>> comparator = new Comparator<Map.Entry<K, int[]>>() {
+            public int compare(Map.Entry<K, int[]> e1, Map.Entry<K, int[]> e2) {
+                return e1.getValue()[0] - e2.getValue()[0];
+            }
+        };
+        // a heap of the n highest counts seen, lowest first
+        PriorityQueue<Map.Entry<K, int[]>> heap
+                = new PriorityQueue<Map.Entry<K, int[]>>(n + 1, comparator);
+        for (Map.Entry<K, int[]> e : counts.entrySet()) {
+            if (heap.size() < n) {
+                heap.add(e);
+            } else if (comparator.compare(e, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        List<Map.Entry<K, int[]>> result = new ArrayList<Map.Entry<K, int[]>>(heap);
+        Collections.sort(result, Collections.reverseOrder(comparator));
+        return result;
+    }
+
+    /**
+     * Prints usage error but does not exit.
+     */
+    private static void usage(String error) {
+        System.out.print("ERROR: ");
+        System.out.println(error);
+        System.out.println();
+        System.out.println("usage: HprofAggregator [-n <count>] [-o <merged-hprof-file>]"
+                           + " <binary-hprof-file>...");
+        System.out.println();
+        System.out.println("Merges binary hprof files, optionally writing the result as a");
+        System.out.println("binary hprof file, and prints the <count> methods with the most");
+        System.out.println("self and total samples and the <count> most sampled stacks.");
+        System.out.println("<count> defaults to " + DEFAULT_TOP + ".");
+    }
+}
@@ -80,6 +80,14 @@ public final class HprofBinaryToAscii {
         return write(hprofData);
     }
 
+    /**
+     * Reads {@code file} as either a binary hprof file or a version
+     * with a text header.
+     */
+    static HprofData readFile(File file) throws IOException {
+        return startsWithMagic(file) ? readHprof(file) : readSnapshot(file);
+    }
+
     /**
      * Probe the start of file to see if it starts with a plausible
      * binary hprof magic value. If so, it is returned. On any other
@@ -145,7 +153,7 @@ public final class HprofBinaryToAscii {
      * From IoUtils.closeQuietly but replicated for open source
      * version.
      */
-    private static void closeQuietly(Closeable c) {
+    static void closeQuietly(Closeable c) {
         if (c != null) {
             try {
                 c.close();
@@ -133,25 +133,38 @@ public final class HprofData {
     }
 
     /**
-     * A unique stack trace for a specific thread.
+     * A unique stack trace for a specific thread, optionally with the
+     * state the thread was in when the stack was sampled.
      */
     public static final class StackTrace {
 
         public final int stackTraceId;
         int threadId;
         StackTraceElement[] stackFrames;
+        final Thread.State state;
 
         StackTrace() {
             this.stackTraceId = -1;
+            this.state = null;
         }
 
         public StackTrace(int stackTraceId, int threadId, StackTraceElement[] stackFrames) {
+            this(stackTraceId, threadId, stackFrames, null);
+        }
+
+        /**
+         * @param state The state of the thread when sampled, or null
+         * if unknown.
+         */
+        public StackTrace(int stackTraceId, int threadId, StackTraceElement[] stackFrames,
+                          Thread.State state) {
             if (stackFrames == null) {
                 throw new NullPointerException("stackFrames == null");
             }
             this.stackTraceId = stackTraceId;
             this.threadId = threadId;
             this.stackFrames = stackFrames;
+            this.state = state;
         }
 
         public int getThreadId() {
@@ -162,10 +175,19 @@ public final class HprofData {
             return stackFrames;
         }
 
+        /**
+         * Returns the state of the thread when the stack was sampled,
+         * or null if it is not known.
+         */
+        public Thread.State getState() {
+            return state;
+        }
+
         @Override public int hashCode() {
             int result = 17;
             result = 31 * result + threadId;
             result = 31 * result + Arrays.hashCode(stackFrames);
+            result = 31 * result + (state == null ? 0 : state.hashCode());
             return result;
         }
 
@@ -174,7 +196,9 @@ public final class HprofData {
                 return false;
             }
             StackTrace s = (StackTrace) o;
-            return threadId == s.threadId && Arrays.equals(stackFrames, s.stackFrames);
+            return (threadId == s.threadId
+                    && state == s.state
+                    && Arrays.equals(stackFrames, s.stackFrames));
         }
 
         @Override public String toString() {
@@ -191,6 +215,7 @@ public final class HprofData {
             }
             return "StackTrace[stackTraceId=" + stackTraceId
                     + ", threadId=" + threadId
+                    + ", state=" + state
                     + ", frames=" + frames + "]";
 
         }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges {@link HprofData} from several profiles, such as those of
+ * different processes, into a single {@code HprofData}.
+ * <p>
+ * Thread, thread object and stack trace ids are only unique within a
+ * profile, so each profile's ids are mapped to new ones as it is
+ * added. Every thread of every profile is kept distinct, and the
+ * counts of equal stacks of the same thread are summed. Frames have
+ * no ids in {@code HprofData}; they are numbered again when the
+ * result is written with {@link BinaryHprofWriter}.
+ * <p>
+ * Profiles are added one at a time, so only the merged data and the
+ * profile being added need to be in memory.
+ *
+ * <pre> {@code
+ * HprofMerger merger = new HprofMerger();
+ * for (File file : files) {
+ *     merger.add(read(file));
+ * }
+ * BinaryHprofWriter.write(merger.getHprofData(), out);
+ * }</pre>
+ */
+public final class HprofMerger {
+
+    /*
+     * Start numbering where the SamplingProfiler does, so merged
+     * output resembles the profiles it came from.
+     */
+    private int nextThreadId = 200001;
+    private int nextStackTraceId = 300001;
+    private int nextObjectId = 1;
+
+    private final Map<HprofData.StackTrace, int[]> stackTraces
+            = new HashMap<HprofData.StackTrace, int[]>();
+
+    private final HprofData hprofData = new HprofData(stackTraces);
+
+    /**
+     * True until the first profile is added, which initializes the
+     * flags and start time.
+     */
+    private boolean empty = true;
+
+    /**
+     * Adds the threads and samples of {@code data} to the merged
+     * data. The merged start time is the earliest start time, and its
+     * stack depth the greatest depth. Thread states are only kept if
+     * every profile records them.
+     */
+    public void add(HprofData data) {
+        if (data == null) {
+            throw new NullPointerException("data == null");
+        }
+        mergeSettings(data);
+
+        // map each thread id of data to a new one on first sight
+        Map<Integer, Integer> threadIds = new HashMap<Integer, Integer>();
+        for (HprofData.ThreadEvent event : data.getThreadHistory()) {
+            Integer threadId = threadIds.get(event.threadId);
+            if (threadId == null) {
+                threadId = nextThreadId++;
+                threadIds.put(event.threadId, threadId);
+            }
+            switch (event.type) {
+                case START:
+                    hprofData.addThreadEvent(
+                            HprofData.ThreadEvent.start(nextObjectId++, threadId,
+                                                        event.threadName,
+                                                        event.groupName,
+                                                        event.parentGroupName));
+                    break;
+                case END:
+                    hprofData.addThreadEvent(HprofData.ThreadEvent.end(threadId));
+                    break;
+            }
+        }
+
+        for (HprofData.Sample sample : data.getSamples()) {
+            HprofData.StackTrace stackTrace = sample.stackTrace;
+            // every sampled thread has a start event, which HprofData checks
+            int threadId = threadIds.get(stackTrace.threadId);
+            HprofData.StackTrace merged
+                    = new HprofData.StackTrace(nextStackTraceId, threadId,
+                                               stackTrace.stackFrames, stackTrace.state);
+            int[] countCell = stackTraces.get(merged);
+            if (countCell == null) {
+                countCell = new int[1];
+                nextStackTraceId++;
+                hprofData.addStackTrace(merged, countCell);
+            }
+            countCell[0] += sample.count;
+        }
+    }
+
+    private void mergeSettings(HprofData data) {
+        int threadStates = BinaryHprof.ControlSettings.THREAD_STATES.bitmask;
+        if (empty) {
+            hprofData.setFlags(data.getFlags());
+            hprofData.setStartMillis(data.getStartMillis());
+            empty = false;
+        } else {
+            int flags = hprofData.getFlags() | data.getFlags();
+            if ((hprofData.getFlags() & data.getFlags() & threadStates) == 0) {
+                flags &= ~threadStates;
+            }
+            hprofData.setFlags(flags);
+            long startMillis = data.getStartMillis();
+            if (startMillis != 0
+                    && (hprofData.getStartMillis() == 0
+                        || startMillis < hprofData.getStartMillis())) {
+                hprofData.setStartMillis(startMillis);
+            }
+        }
+        hprofData.setDepth(Math.max(hprofData.getDepth(), data.getDepth()));
+    }
+
+    /**
+     * Returns the merged data. Adding more profiles updates it.
+     */
+    public HprofData getHprofData() {
+        return hprofData;
+    }
+}
@@ -16,8 +16,6 @@
 
 package dalvik.system.profiler;
 
-import java.util.Arrays;
-
 /**
  * ThreadSampler implementation that only uses Thread.getStackTrace()
  * and therefore is portable.
@@ -35,9 +33,7 @@ class PortableThreadSampler implements ThreadSampler {
         if (stackFrames.length == 0) {
             return null;
         }
-        if (stackFrames.length > depth) {
-            stackFrames = Arrays.copyOfRange(stackFrames, 0, depth);
-        }
+        // the profiler ignores frames past the depth, so don't copy
         return stackFrames;
     }
 }
@@ -16,9 +16,16 @@
 
 package dalvik.system.profiler;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
@@ -53,6 +60,36 @@ import java.util.TimerTask;
  * profiler.shutdown();
  * AsciiHprofWriter.write(profiler.getHprofData(), System.out);
  * }</pre>
+ *
+ * <h3>Continuous Mode</h3>
+ *
+ * Accumulating every distinct stack for the whole run is fine for a
+ * benchmark but not for a profiler that is always on. In continuous
+ * mode, started with {@link #startContinuous startContinuous}, samples
+ * are instead counted in a fixed size ring of time windows. When a
+ * window ends it is optionally appended to a binary hprof stream, and
+ * the oldest window is recycled, so memory use is bounded by the
+ * number of distinct stacks seen in the ring rather than by the
+ * length of the run. {@link #getContinuousHprofData} returns the data
+ * for the windows currently in the ring, even while sampling.
+ *
+ * <pre> {@code
+ * SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+ * // ten second windows, keeping the last minute in memory
+ * profiler.startContinuous(10, 10000, 6, new BufferedOutputStream(out));
+ * }</pre>
+ *
+ * The cost of sampling can be checked at runtime with {@link
+ * #getSampleCount} and {@link #getSampleNanos}.
+ *
+ * <h3>Thread States</h3>
+ *
+ * Each sample records the {@code Thread.State} of its thread, so that
+ * stacks that were using the CPU can be told apart from stacks that
+ * were blocked on a monitor or waiting. By default every thread in
+ * the thread set is sampled on each tick whatever its state, which
+ * shows where wall clock time goes. {@link #setClock
+ * setClock(Clock.CPU)} samples only the threads that are running.
  */
 public final class SamplingProfiler {
 
@@ -90,6 +127,11 @@ public final class SamplingProfiler {
      */
     private final ThreadSet threadSet;
 
+    /**
+     * Which of the threads in the thread set are sampled.
+     */
+    private Clock clock = Clock.WALL;
+
     /*
      *  Real hprof output examples don't start the thread and trace
      *  identifiers at one but seem to start at these arbitrary
@@ -97,7 +139,7 @@ public final class SamplingProfiler {
      *  identifers when manual searching hprof output.
      */
     private int nextThreadId = 200001;
-    private int nextStackTraceId = 300001;
+    private final StackTable stackTable = new StackTable(300001);
     private int nextObjectId = 1;
 
     /**
@@ -114,18 +156,83 @@ public final class SamplingProfiler {
     private final Map<Thread, Integer> threadIds = new HashMap<Thread, Integer>();
 
     /**
-     * Mutable {@code StackTrace} that is used for probing the {@link
-     * #stackTraces stackTraces} map without allocating a {@code
-     * StackTrace}. If {@link #addStackTrace addStackTrace} needs to
-     * be thread safe, have a single mutable instance would need to be
-     * reconsidered.
+     * Sample count of each {@link #stackTable} slot in the default
+     * mode, and the count cell registered with {@link #hprofData} for
+     * each slot reported so far. The cells are brought up to date by
+     * {@link #getHprofData} so that sampling only increments an int.
+     */
+    private int[] stackCounts = new int[0];
+    private int[][] countCells = new int[0][];
+
+    /**
+     * True once the profiler has been started, and whether it was
+     * started in continuous mode. A profiler may not switch modes
+     * because the thread history of each is kept separately.
      */
-    private final HprofData.StackTrace mutableStackTrace = new HprofData.StackTrace();
+    private boolean started;
+    private boolean continuous;
+
+    /**
+     * Guards the continuous mode state below so that {@link
+     * #getContinuousHprofData} may be called while sampling.
+     */
+    private final Object ringLock = new Object();
+
+    /**
+     * The ring of time windows used in continuous mode. The window
+     * being filled is at {@link #currentWindow}, and the oldest one
+     * follows it.
+     */
+    private SampleWindow[] windows;
+    private int currentWindow;
+    private int windowMillis;
+
+    /**
+     * Number of windows of the ring counting each {@link #stackTable}
+     * slot. A stack is removed from the table when the last window
+     * counting it is recycled, and is given a new id if it is sampled
+     * again.
+     */
+    private int[] stackWindows = new int[0];
+
+    /**
+     * Start events of the threads that are alive or that still have
+     * samples in the ring, in the order the threads were noticed,
+     * and the subset of those that have ended.
+     */
+    private final Map<Integer, HprofData.ThreadEvent> threadStarts
+            = new LinkedHashMap<Integer, HprofData.ThreadEvent>();
+    private final Set<Integer> endedThreadIds = new LinkedHashSet<Integer>();
+
+    /**
+     * Writer for the continuous mode output stream, or null if
+     * windows are not streamed, and the thread events and stack
+     * table slots it has not been sent yet.
+     */
+    private BinaryHprofWriter streamWriter;
+    private final List<HprofData.ThreadEvent> unwrittenThreadEvents
+            = new ArrayList<HprofData.ThreadEvent>();
+    private int[] unwrittenStacks = new int[0];
+    private int unwrittenStackCount;
+    private IOException streamException;
+
+    /**
+     * Reusable stack trace ids and counts of a window being streamed.
+     */
+    private int[] flushStackTraceIds = new int[0];
+    private int[] flushCounts = new int[0];
+
+    /**
+     * Number of stacks sampled, and the time the timer thread spent
+     * taking and recording them. Only written by the timer thread.
+     */
+    private volatile long sampleCount;
+    private volatile long sampleNanos;
 
     /**
      * The {@code ThreadSampler} is used to produce a {@code
-     * StackTraceElement} array for a given thread. The array is
-     * expected to be {@link #depth depth} or less in length.
+     * StackTraceElement} array for a given thread. Only the first
+     * {@link #depth depth} elements of the array are used.
      */
     private final ThreadSampler threadSampler;
 
@@ -157,7 +264,8 @@ public final class SamplingProfiler {
         this.threadSet = threadSet;
         this.threadSampler = findDefaultThreadSampler();
         threadSampler.setDepth(depth);
-        hprofData.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask);
+        hprofData.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask
+                           | BinaryHprof.ControlSettings.THREAD_STATES.bitmask);
         hprofData.setDepth(depth);
     }
 
@@ -173,6 +281,46 @@ public final class SamplingProfiler {
         return new PortableThreadSampler();
     }
 
+    /**
+     * Specifies which of the threads in the thread set are sampled
+     * on each tick.
+     */
+    public static enum Clock {
+        /**
+         * Samples every thread, whatever its state. Time spent
+         * blocked, waiting and sleeping is included, in proportion to
+         * wall clock time.
+         */
+        WALL,
+
+        /**
+         * Samples only threads that are {@code RUNNABLE}, like the RI
+         * hprof's CPU sampling. Blocked, waiting and sleeping threads
+         * are skipped without taking their stacks. A thread in a
+         * blocking native call, such as a socket read, is still
+         * {@code RUNNABLE} and so is still sampled.
+         */
+        CPU
+    }
+
+    /**
+     * Sets which threads are sampled. May only be called while the
+     * profiler is not sampling.
+     */
+    public void setClock(Clock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock == null");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("cannot change clock while sampling");
+        }
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
     /**
      * A ThreadSet specifies the set of threads to sample.
      */
@@ -280,11 +428,87 @@ public final class SamplingProfiler {
         if (sampler != null) {
             throw new IllegalStateException("profiling already started");
         }
+        if (continuous) {
+            throw new IllegalStateException("profiler was started in continuous mode");
+        }
+        started = true;
         sampler = new Sampler();
         hprofData.setStartMillis(System.currentTimeMillis());
         timer.scheduleAtFixedRate(sampler, 0, interval);
     }
 
+    /**
+     * Starts profiler sampling in continuous mode. Samples are counted
+     * in a ring of {@code windowCount} windows of {@code windowMillis}
+     * each. Every time a window ends, and when sampling is stopped,
+     * the window is written to {@code out} as binary hprof records,
+     * unless {@code out} is null. The stream is flushed but not closed
+     * by the profiler.
+     *
+     * <p>Each call starts a new ring and, if {@code out} is not null,
+     * a new hprof stream beginning with the threads currently alive.
+     * A profiler started with {@link #start(int)} cannot be used in
+     * continuous mode, and vice versa.
+     *
+     * @param interval The number of milliseconds between samples
+     * @param windowMillis The number of milliseconds of samples in
+     * each window
+     * @param windowCount The number of windows kept in memory
+     * @param out The stream to write binary hprof output to, or null
+     */
+    public void startContinuous(int interval, int windowMillis, int windowCount,
+                                OutputStream out) throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval < 1");
+        }
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("windowMillis < 1");
+        }
+        if (windowCount < 1) {
+            throw new IllegalArgumentException("windowCount < 1");
+        }
+        if (sampler != null) {
+            throw new IllegalStateException("profiling already started");
+        }
+        if (started && !continuous) {
+            throw new IllegalStateException("profiler was not started in continuous mode");
+        }
+        long now = System.currentTimeMillis();
+        synchronized (ringLock) {
+            windows = new SampleWindow[windowCount];
+            for (int i = 0; i < windowCount; i++) {
+                windows[i] = new SampleWindow();
+            }
+            currentWindow = 0;
+            windows[currentWindow].startMillis = now;
+            this.windowMillis = windowMillis;
+            stackTable.clear();
+            // the new windows have no slots yet, so neither may this
+            stackWindows = new int[0];
+            for (Integer threadId : endedThreadIds) {
+                threadStarts.remove(threadId);
+            }
+            endedThreadIds.clear();
+            unwrittenThreadEvents.clear();
+            unwrittenStackCount = 0;
+            streamException = null;
+            streamWriter = null;
+            if (out != null) {
+                BinaryHprofWriter writer = BinaryHprofWriter.open(out, now,
+                                                                  hprofData.getFlags(), depth);
+                for (HprofData.ThreadEvent event : threadStarts.values()) {
+                    writer.writeThreadEvent(event);
+                }
+                writer.flush();
+                streamWriter = writer;
+            }
+        }
+        started = true;
+        continuous = true;
+        sampler = new Sampler();
+        timer.scheduleAtFixedRate(sampler, 0, interval);
+    }
+
     /**
      * Stops profiler sampling. It can be restarted with {@link
      * #start(int)} to continue sampling.
@@ -303,6 +527,12 @@ public final class SamplingProfiler {
             }
         }
         sampler = null;
+        if (continuous) {
+            synchronized (ringLock) {
+                flushWindow(windows[currentWindow]);
+                streamWriter = null;
+            }
+        }
     }
 
     /**
@@ -321,14 +551,220 @@ public final class SamplingProfiler {
      * created. The profiler needs to be stopped, but not necessarily
      * shut down, in order to access the data. If the profiler is
      * restarted, there is no thread safe way to access the data.
+     * Samples taken in continuous mode are not included; see {@link
+     * #getContinuousHprofData}.
      */
     public HprofData getHprofData() {
         if (sampler != null) {
             throw new IllegalStateException("cannot access hprof data while sampling");
         }
+        if (!continuous) {
+            for (int slot = 0, slots = stackTable.slotCount(); slot < slots; slot++) {
+                int[] countCell = countCells[slot];
+                if (countCell == null) {
+                    countCell = new int[1];
+                    countCells[slot] = countCell;
+                    hprofData.addStackTrace(stackTable.getStackTrace(slot), countCell);
+                }
+                countCell[0] = stackCounts[slot];
+            }
+        }
         return hprofData;
     }
 
+    /**
+     * Returns a new {@code HprofData} with the samples of the windows
+     * currently in the continuous mode ring. Unlike {@link
+     * #getHprofData}, this may be called while sampling.
+     */
+    public HprofData getContinuousHprofData() {
+        synchronized (ringLock) {
+            if (windows == null) {
+                throw new IllegalStateException("profiler was not started in continuous mode");
+            }
+            HprofData data = new HprofData(new HashMap<HprofData.StackTrace, int[]>());
+            data.setFlags(hprofData.getFlags());
+            data.setDepth(depth);
+            for (HprofData.ThreadEvent event : threadStarts.values()) {
+                data.addThreadEvent(event);
+            }
+            for (Integer threadId : endedThreadIds) {
+                data.addThreadEvent(HprofData.ThreadEvent.end(threadId));
+            }
+            int[] totals = new int[stackTable.slotCount()];
+            for (int i = 1; i <= windows.length; i++) {
+                SampleWindow window = windows[(currentWindow + i) % windows.length];
+                if (window.startMillis == 0) {
+                    // not used since the ring was started
+                    continue;
+                }
+                if (data.getStartMillis() == 0) {
+                    data.setStartMillis(window.startMillis);
+                }
+                for (int j = 0; j < window.size; j++) {
+                    int slot = window.stacks[j];
+                    totals[slot] += window.counts[slot];
+                }
+            }
+            for (int slot = 0; slot < totals.length; slot++) {
+                if (totals[slot] != 0) {
+                    data.addStackTrace(stackTable.getStackTrace(slot), new int[] { totals[slot] });
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Returns the exception that stopped the continuous mode output
+     * stream, or null if it has not failed since continuous mode was
+     * last started. Sampling continues after the stream fails.
+     */
+    public IOException getStreamException() {
+        synchronized (ringLock) {
+            return streamException;
+        }
+    }
+
+    /**
+     * Returns the number of thread stacks sampled since the profiler
+     * was created.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the total time in nanoseconds the profiler's timer
+     * thread has spent taking and recording samples, including
+     * continuous mode output. Divided by {@link #getSampleCount} this
+     * gives the mean cost of a sample.
+     */
+    public long getSampleNanos() {
+        return sampleNanos;
+    }
+
+    /**
+     * Sample counts for one time window of continuous mode.
+     */
+    private static final class SampleWindow {
+        /** Start of the window, or 0 if the window is unused. */
+        long startMillis;
+        /** Sample count by stack table slot. */
+        int[] counts = new int[0];
+        /** The slots with a non-zero count. */
+        int[] stacks = new int[0];
+        int size;
+    }
+
+    /**
+     * Grows the arrays indexed by stack table slot in continuous mode
+     * to hold at least {@code slotCount} slots.
+     */
+    private void ensureWindowSlots(int slotCount) {
+        if (slotCount <= stackWindows.length) {
+            return;
+        }
+        int length = Math.max(slotCount, stackWindows.length * 2);
+        stackWindows = Arrays.copyOf(stackWindows, length);
+        for (SampleWindow window : windows) {
+            window.counts = Arrays.copyOf(window.counts, length);
+            window.stacks = Arrays.copyOf(window.stacks, length);
+        }
+    }
+
+    /**
+     * Ends the current window and recycles the oldest one to collect
+     * the samples starting at {@code now}.
+     */
+    private void advanceWindow(long now) {
+        flushWindow(windows[currentWindow]);
+        currentWindow = (currentWindow + 1) % windows.length;
+        SampleWindow window = windows[currentWindow];
+        for (int i = 0; i < window.size; i++) {
+            int slot = window.stacks[i];
+            window.counts[slot] = 0;
+            if (--stackWindows[slot] == 0) {
+                stackTable.remove(slot);
+            }
+        }
+        window.size = 0;
+        window.startMillis = now;
+
+        // forget ended threads once none of their samples remain
+        if (!endedThreadIds.isEmpty()) {
+            Set<Integer> sampledThreadIds = new HashSet<Integer>();
+            for (SampleWindow w : windows) {
+                for (int i = 0; i < w.size; i++) {
+                    sampledThreadIds.add(stackTable.getThreadId(w.stacks[i]));
+                }
+            }
+            for (Iterator<Integer> i = endedThreadIds.iterator(); i.hasNext(); ) {
+                Integer threadId = i.next();
+                if (!sampledThreadIds.contains(threadId)) {
+                    i.remove();
+                    threadStarts.remove(threadId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the thread events and stack traces not yet streamed,
+     * followed by the sample counts of the specified window. On
+     * failure, streaming stops but sampling continues.
+     */
+    private void flushWindow(SampleWindow window) {
+        if (streamWriter == null) {
+            return;
+        }
+        try {
+            for (HprofData.ThreadEvent event : unwrittenThreadEvents) {
+                streamWriter.writeThreadEvent(event);
+            }
+            for (int i = 0; i < unwrittenStackCount; i++) {
+                streamWriter.writeStackTrace(stackTable.getStackTrace(unwrittenStacks[i]));
+            }
+            if (flushCounts.length < window.size) {
+                flushStackTraceIds = new int[window.stacks.length];
+                flushCounts = new int[window.stacks.length];
+            }
+            for (int i = 0; i < window.size; i++) {
+                int slot = window.stacks[i];
+                flushStackTraceIds[i] = stackTable.getStackTraceId(slot);
+                flushCounts[i] = window.counts[slot];
+            }
+            streamWriter.writeCpuSamples(flushStackTraceIds, flushCounts, window.size);
+            streamWriter.flush();
+        } catch (IOException e) {
+            streamException = e;
+            streamWriter = null;
+        } finally {
+            unwrittenThreadEvents.clear();
+            unwrittenStackCount = 0;
+        }
+    }
+
+    /**
+     * Records a thread event in the history of the current mode.
+     */
+    private void addThreadEvent(HprofData.ThreadEvent event) {
+        if (!continuous) {
+            hprofData.addThreadEvent(event);
+            return;
+        }
+        synchronized (ringLock) {
+            if (event.type == HprofData.ThreadEventType.START) {
+                threadStarts.put(event.threadId, event);
+            } else {
+                endedThreadIds.add(event.threadId);
+            }
+            if (streamWriter != null) {
+                unwrittenThreadEvents.add(event);
+            }
+        }
+    }
+
     /**
      * The Sampler does the real work of the profiler.
      *
@@ -361,6 +797,17 @@ public final class SamplingProfiler {
             if (timerThread == null) {
                 timerThread = Thread.currentThread();
             }
+            long start = System.nanoTime();
+            int samples = 0;
+
+            if (continuous) {
+                long now = System.currentTimeMillis();
+                synchronized (ringLock) {
+                    if (now - windows[currentWindow].startMillis >= windowMillis) {
+                        advanceWindow(now);
+                    }
+                }
+            }
 
             // process thread creation and death first so that we
             // assign thread ids to any new threads before allocating
@@ -379,36 +826,76 @@ public final class SamplingProfiler {
                     continue;
                 }
 
+                // the state is read first so that it is never newer
+                // than the stack, although the thread may have moved
+                // on by the time the stack is taken
+                Thread.State state = thread.getState();
+                if (clock == Clock.CPU && state != Thread.State.RUNNABLE) {
+                    continue;
+                }
                 StackTraceElement[] stackFrames = threadSampler.getStackTrace(thread);
                 if (stackFrames == null) {
                     continue;
                 }
-                recordStackTrace(thread, stackFrames);
+                recordStackTrace(thread, state, stackFrames);
+                samples++;
             }
+            sampleCount += samples;
+            sampleNanos += System.nanoTime() - start;
         }
 
         /**
          * Record a new stack trace. The thread should have been
          * previously registered with addStartThread.
          */
-        private void recordStackTrace(Thread thread, StackTraceElement[] stackFrames) {
+        private void recordStackTrace(Thread thread, Thread.State state,
+                                      StackTraceElement[] stackFrames) {
             Integer threadId = threadIds.get(thread);
             if (threadId == null) {
                 throw new IllegalArgumentException("Unknown thread " + thread);
             }
-            mutableStackTrace.threadId = threadId;
-            mutableStackTrace.stackFrames = stackFrames;
+            if (continuous) {
+                synchronized (ringLock) {
+                    recordWindowSample(threadId, state, stackFrames);
+                }
+                return;
+            }
 
-            int[] countCell = stackTraces.get(mutableStackTrace);
-            if (countCell == null) {
-                countCell = new int[1];
-                // cloned because the ThreadSampler may reuse the array
-                StackTraceElement[] stackFramesCopy = stackFrames.clone();
-                HprofData.StackTrace stackTrace
-                        = new HprofData.StackTrace(nextStackTraceId++, threadId, stackFramesCopy);
-                hprofData.addStackTrace(stackTrace, countCell);
+            int slot = stackTable.find(threadId, state, stackFrames, depth);
+            if (slot == -1) {
+                slot = stackTable.add(threadId, state, stackFrames, depth);
+                if (slot == stackCounts.length) {
+                    int length = Math.max(16, slot * 2);
+                    stackCounts = Arrays.copyOf(stackCounts, length);
+                    countCells = Arrays.copyOf(countCells, length);
+                }
+            }
+            stackCounts[slot]++;
+        }
+
+        /**
+         * Count a sample in the current window of the ring, adding its
+         * stack to the stack table if no window holds it yet.
+         */
+        private void recordWindowSample(int threadId, Thread.State state,
+                                        StackTraceElement[] stackFrames) {
+            int slot = stackTable.find(threadId, state, stackFrames, depth);
+            if (slot == -1) {
+                slot = stackTable.add(threadId, state, stackFrames, depth);
+                ensureWindowSlots(stackTable.slotCount());
+                if (streamWriter != null) {
+                    if (unwrittenStackCount == unwrittenStacks.length) {
+                        unwrittenStacks = Arrays.copyOf(unwrittenStacks,
+                                                        Math.max(16, unwrittenStackCount * 2));
+                    }
+                    unwrittenStacks[unwrittenStackCount++] = slot;
+                }
+            }
+            SampleWindow window = windows[currentWindow];
+            if (window.counts[slot]++ == 0) {
+                window.stacks[window.size++] = slot;
+                stackWindows[slot]++;
             }
-            countCell[0]++;
         }
 
         private void updateThreadHistory(Thread[] oldThreads, Thread[] newThreads) {
@@ -469,7 +956,7 @@ public final class SamplingProfiler {
             HprofData.ThreadEvent event
                     = HprofData.ThreadEvent.start(nextObjectId++, threadId,
                                                   threadName, groupName, parentGroupName);
-            hprofData.addThreadEvent(event);
+            addThreadEvent(event);
         }
 
         /**
@@ -484,7 +971,7 @@ public final class SamplingProfiler {
                 throw new IllegalArgumentException("Unknown thread " + thread);
             }
             HprofData.ThreadEvent event = HprofData.ThreadEvent.end(threadId);
-            hprofData.addThreadEvent(event);
+            addThreadEvent(event);
         }
     }
 }
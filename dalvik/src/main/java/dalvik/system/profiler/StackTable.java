@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dalvik.system.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Interns sampled stacks as arrays of small integers so that a sample
+ * of a stack that has been seen before can be found without
+ * allocating.
+ * <p>
+ * Each distinct method (class, method and file name) is given a
+ * method id, and each distinct frame (method id and line number) a
+ * frame id. A stack is a thread id, a thread state and an array of
+ * frame ids, kept in a numbered slot. Methods, frames and stacks are each found through
+ * an open-addressed table of {@code 1 + id}, with zero marking an
+ * empty entry. {@code StackTraceElement}s are only created again when
+ * a stack is reported.
+ * <p>
+ * Methods and frames are retained for the life of the table since
+ * they are bounded by the code being run. Stacks may be removed, in
+ * which case their slot is reused.
+ */
+final class StackTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int methodCount;
+    private String[] classNames = new String[MIN_CAPACITY];
+    private String[] methodNames = new String[MIN_CAPACITY];
+    private String[] fileNames = new String[MIN_CAPACITY];
+    private int[] methodTable = new int[MIN_CAPACITY * 2];
+
+    private int frameCount;
+    private int[] frameMethods = new int[MIN_CAPACITY];
+    private int[] frameLines = new int[MIN_CAPACITY];
+    private int[] frameTable = new int[MIN_CAPACITY * 2];
+
+    /**
+     * Stacks by slot. A slot below {@link #slotCount} is free if its
+     * frames are null.
+     */
+    private int stackCount;
+    private int slotCount;
+    private int[] stackThreadIds = new int[MIN_CAPACITY];
+    private Thread.State[] stackStates = new Thread.State[MIN_CAPACITY];
+    private int[] stackTraceIds = new int[MIN_CAPACITY];
+    private int[][] stackFrames = new int[MIN_CAPACITY][];
+    private int[] stackTable = new int[MIN_CAPACITY * 2];
+
+    /** Slots freed by {@link #remove}, reused before new ones. */
+    private int[] freeSlots = new int[MIN_CAPACITY];
+    private int freeCount;
+
+    private int nextStackTraceId;
+
+    /** Frame ids of the stack being looked up. */
+    private int[] frameIds = new int[MIN_CAPACITY];
+
+    /**
+     * Creates a table that numbers stack traces starting at {@code
+     * firstStackTraceId}.
+     */
+    public StackTable(int firstStackTraceId) {
+        this.nextStackTraceId = firstStackTraceId;
+    }
+
+    /**
+     * Returns the slot of the stack of the first {@code depth}
+     * elements of {@code frames} for {@code threadId} in {@code
+     * state}, or -1 if it has not been added. Never allocates.
+     */
+    public int find(int threadId, Thread.State state, StackTraceElement[] frames, int depth) {
+        int length = Math.min(frames.length, depth);
+        if (length > frameIds.length) {
+            // a stack deeper than any added cannot be in the table
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            int frameId = findFrame(frames[i]);
+            if (frameId == -1) {
+                return -1;
+            }
+            frameIds[i] = frameId;
+        }
+        return findStack(threadId, state, length);
+    }
+
+    /**
+     * Adds the stack of the first {@code depth} elements of {@code
+     * frames} for {@code threadId} in {@code state}, which must not
+     * be in the table, and returns its slot. The stack is given the
+     * next stack trace id.
+     */
+    public int add(int threadId, Thread.State state, StackTraceElement[] frames, int depth) {
+        int length = Math.min(frames.length, depth);
+        if (length > frameIds.length) {
+            frameIds = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            frameIds[i] = addFrame(frames[i]);
+        }
+
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == stackFrames.length) {
+                int capacity = slotCount * 2;
+                stackThreadIds = Arrays.copyOf(stackThreadIds, capacity);
+                stackStates = Arrays.copyOf(stackStates, capacity);
+                stackTraceIds = Arrays.copyOf(stackTraceIds, capacity);
+                stackFrames = Arrays.copyOf(stackFrames, capacity);
+            }
+            slot = slotCount++;
+        }
+        stackThreadIds[slot] = threadId;
+        stackStates[slot] = state;
+        stackTraceIds[slot] = nextStackTraceId++;
+        stackFrames[slot] = Arrays.copyOf(frameIds, length);
+        stackCount++;
+        if (stackCount * 2 > stackTable.length) {
+            stackTable = new int[stackTable.length * 2];
+            for (int i = 0; i < slotCount; i++) {
+                if (stackFrames[i] != null) {
+                    insert(stackTable, stackHash(i), i);
+                }
+            }
+        } else {
+            insert(stackTable, stackHash(slot), slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Removes the stack in {@code slot}, making the slot available
+     * for reuse.
+     */
+    public void remove(int slot) {
+        int mask = stackTable.length - 1;
+        int i = stackHash(slot) & mask;
+        while (stackTable[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        // shift back later entries of the probe sequence into the
+        // hole so that lookups never stop short of them
+        int hole = i;
+        for (i = (i + 1) & mask; stackTable[i] != 0; i = (i + 1) & mask) {
+            int home = stackHash(stackTable[i] - 1) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                stackTable[hole] = stackTable[i];
+                hole = i;
+            }
+        }
+        stackTable[hole] = 0;
+
+        stackFrames[slot] = null;
+        stackCount--;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Removes every stack. Methods, frames and the stack trace id
+     * sequence are kept.
+     */
+    public void clear() {
+        Arrays.fill(stackFrames, 0, slotCount, null);
+        Arrays.fill(stackTable, 0);
+        stackCount = 0;
+        slotCount = 0;
+        freeCount = 0;
+    }
+
+    /**
+     * Returns an upper bound on the slots in use. Arrays indexed by
+     * slot need to be at least this long.
+     */
+    public int slotCount() {
+        return slotCount;
+    }
+
+    public boolean contains(int slot) {
+        return slot < slotCount && stackFrames[slot] != null;
+    }
+
+    public int getThreadId(int slot) {
+        return stackThreadIds[slot];
+    }
+
+    public Thread.State getState(int slot) {
+        return stackStates[slot];
+    }
+
+    public int getStackTraceId(int slot) {
+        return stackTraceIds[slot];
+    }
+
+    /**
+     * Returns a new array of the frames of the stack in {@code slot}.
+     */
+    public StackTraceElement[] getStackFrames(int slot) {
+        int[] frames = stackFrames[slot];
+        StackTraceElement[] result = new StackTraceElement[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            int frameId = frames[i];
+            int methodId = frameMethods[frameId];
+            result[i] = new StackTraceElement(classNames[methodId],
+                                              methodNames[methodId],
+                                              fileNames[methodId],
+                                              frameLines[frameId]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new {@code HprofData.StackTrace} for the stack in
+     * {@code slot}.
+     */
+    public HprofData.StackTrace getStackTrace(int slot) {
+        return new HprofData.StackTrace(stackTraceIds[slot], stackThreadIds[slot],
+                                        getStackFrames(slot), stackStates[slot]);
+    }
+
+    private int findStack(int threadId, Thread.State state, int length) {
+        int mask = stackTable.length - 1;
+        for (int i = stackHash(threadId, state, frameIds, length) & mask; ; i = (i + 1) & mask) {
+            int entry = stackTable[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (stackThreadIds[slot] == threadId
+                    && stackStates[slot] == state
+                    && equal(stackFrames[slot], frameIds, length)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean equal(int[] frames, int[] frameIds, int length) {
+        if (frames.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (frames[i] != frameIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int stackHash(int slot) {
+        int[] frames = stackFrames[slot];
+        return stackHash(stackThreadIds[slot], stackStates[slot], frames, frames.length);
+    }
+
+    private static int stackHash(int threadId, Thread.State state, int[] frames, int length) {
+        int h = 31 * threadId + (state == null ? 0 : state.ordinal() + 1);
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + frames[i];
+        }
+        return mix(h);
+    }
+
+    private int findFrame(StackTraceElement frame) {
+        int methodId = findMethod(frame);
+        if (methodId == -1) {
+            return -1;
+        }
+        int line = frame.getLineNumber();
+        int mask = frameTable.length - 1;
+        for (int i = frameHash(methodId, line) & mask; ; i = (i + 1) & mask) {
+            int entry = frameTable[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int frameId = entry - 1;
+            if (frameMethods[frameId] == methodId && frameLines[frameId] == line) {
+                return frameId;
+            }
+        }
+    }
+
+    private int addFrame(StackTraceElement frame) {
+        int frameId = findFrame(frame);
+        if (frameId != -1) {
+            return frameId;
+        }
+        int methodId = addMethod(frame);
+        frameId = frameCount++;
+        if (frameId == frameMethods.length) {
+            frameMethods = Arrays.copyOf(frameMethods, frameId * 2);
+            frameLines = Arrays.copyOf(frameLines, frameId * 2);
+        }
+        frameMethods[frameId] = methodId;
+        frameLines[frameId] = frame.getLineNumber();
+        if (frameCount * 2 > frameTable.length) {
+            frameTable = new int[frameTable.length * 2];
+            for (int i = 0; i < frameCount; i++) {
+                insert(frameTable, frameHash(frameMethods[i], frameLines[i]), i);
+            }
+        } else {
+            insert(frameTable, frameHash(methodId, frameLines[frameId]), frameId);
+        }
+        return frameId;
+    }
+
+    private static int frameHash(int methodId, int line) {
+        return mix(31 * methodId + line);
+    }
+
+    private int findMethod(StackTraceElement frame) {
+        String className = frame.getClassName();
+        String methodName = frame.getMethodName();
+        String fileName = frame.getFileName();
+        int mask = methodTable.length - 1;
+        for (int i = methodHash(className, methodName, fileName) & mask; ; i = (i + 1) & mask) {
+            int entry = methodTable[i];
+            if (entry == 0) {
+                return -1;
+            }
+            int methodId = entry - 1;
+            if (classNames[methodId].equals(className)
+                    && methodNames[methodId].equals(methodName)
+                    && equal(fileNames[methodId], fileName)) {
+                return methodId;
+            }
+        }
+    }
+
+    private int addMethod(StackTraceElement frame) {
+        int methodId = findMethod(frame);
+        if (methodId != -1) {
+            return methodId;
+        }
+        methodId = methodCount++;
+        if (methodId == classNames.length) {
+            classNames = Arrays.copyOf(classNames, methodId * 2);
+            methodNames = Arrays.copyOf(methodNames, methodId * 2);
+            fileNames = Arrays.copyOf(fileNames, methodId * 2);
+        }
+        classNames[methodId] = frame.getClassName();
+        methodNames[methodId] = frame.getMethodName();
+        fileNames[methodId] = frame.getFileName();
+        if (methodCount * 2 > methodTable.length) {
+            methodTable = new int[methodTable.length * 2];
+            for (int i = 0; i < methodCount; i++) {
+                insert(methodTable, methodHash(classNames[i], methodNames[i], fileNames[i]), i);
+            }
+        } else {
+            insert(methodTable, methodHash(classNames[methodId], methodNames[methodId],
+                                           fileNames[methodId]), methodId);
+        }
+        return methodId;
+    }
+
+    private static int methodHash(String className, String methodName, String fileName) {
+        int h = className.hashCode();
+        h = 31 * h + methodName.hashCode();
+        h = 31 * h + (fileName == null ? 0 : fileName.hashCode());
+        return mix(h);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    /**
+     * Stores {@code 1 + id} in the first free entry of the probe
+     * sequence for {@code hash}.
+     */
+    private static void insert(int[] table, int hash, int id) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = id + 1;
+    }
+
+    /**
+     * Spreads the bits of {@code h} so that hashes of nearby ids do
+     * not cluster in the low bits used to index the tables.
+     */
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -32,7 +32,9 @@ public interface ThreadSampler {
 
     /**
      * Return a stack trace for the current thread limited by the
-     * maximum depth specified by {@link #setDepth setDepth}. May
+     * maximum depth specified by {@link #setDepth setDepth}. The
+     * array may be longer than the depth, in which case frames beyond
+     * the depth are ignored by the profiler. May
      * return null if no sample is availble for the thread, which may
      * happen in cases such as thread termination. The resulting array
      * should be copied before the next call to {@code getStackTrace}
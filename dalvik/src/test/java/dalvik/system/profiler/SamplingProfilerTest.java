@@ -33,12 +33,15 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import javax.crypto.spec.DHParameterSpec;
 import junit.framework.TestCase;
 
@@ -58,6 +61,386 @@ public class SamplingProfilerTest extends TestCase {
         test_HprofData(profiler.getHprofData(), true);
     }
 
+    /**
+     * The cost of taking and recording a sample of one waiting thread
+     * that continuous mode aims for: a tenth of the shortest sampling
+     * interval of 1 ms.
+     */
+    private static final long TARGET_NANOS_PER_SAMPLE = 100 * 1000;
+
+    /**
+     * How far the measured cost may exceed the target before the test
+     * fails, to allow for slow devices and busy machines.
+     */
+    private static final int TARGET_MULTIPLE = 5;
+
+    /**
+     * Run the SamplingProfiler in continuous mode with windows much
+     * shorter than the computation, so that the ring wraps around
+     * several times, and check both the ring and the stream.
+     */
+    public void test_SamplingProfiler_continuous() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        profiler.startContinuous(5, 50, 3, out);
+        toBeMeasured();
+        profiler.stop();
+        profiler.shutdown();
+        assertNull(profiler.getStreamException());
+
+        HprofData recent = profiler.getContinuousHprofData();
+        test_HprofData(recent, true);
+        assertTrue(recent.getStartMillis() >= start);
+        int recentCount = 0;
+        for (Sample sample : recent.getSamples()) {
+            recentCount += sample.count;
+        }
+        assertTrue(recentCount > 0);
+        assertTrue(recentCount <= profiler.getSampleCount());
+
+        // every sample is streamed, whether or not it is still in the ring
+        BinaryHprofReader reader = new BinaryHprofReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setStrict(false);
+        reader.read();
+        HprofData streamed = reader.getHprofData();
+        assertHprofData(streamed, true);
+        assertEquals(start, streamed.getStartMillis(), 1000);
+        int streamedCount = 0;
+        for (Sample sample : streamed.getSamples()) {
+            streamedCount += sample.count;
+        }
+        assertEquals(profiler.getSampleCount(), streamedCount);
+        assertEquals(recent.getThreadHistory(), streamed.getThreadHistory());
+    }
+
+    /**
+     * Check that sampling stays within its overhead target. The
+     * timer thread records the time it spends sampling, including
+     * streaming the windows. A waiting thread is sampled so that the
+     * measurement is of the profiler rather than of how long the VM
+     * takes to suspend a running thread. The mean cost is measured
+     * over many short intervals and the median is checked, so that
+     * a GC or descheduling during one interval can't fail the test.
+     */
+    public void test_SamplingProfiler_continuousOverhead() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override public void run() {
+                try {
+                    done.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        waiting.start();
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(waiting);
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        profiler.startContinuous(1, 100, 4, new ByteArrayOutputStream());
+        List<Long> nanosPerSample = new ArrayList<Long>();
+        long lastCount = profiler.getSampleCount();
+        long lastNanos = profiler.getSampleNanos();
+        for (int i = 0; i < 21; i++) {
+            Thread.sleep(50);
+            long count = profiler.getSampleCount();
+            long nanos = profiler.getSampleNanos();
+            if (count > lastCount) {
+                nanosPerSample.add((nanos - lastNanos) / (count - lastCount));
+            }
+            lastCount = count;
+            lastNanos = nanos;
+        }
+        profiler.stop();
+        profiler.shutdown();
+        done.countDown();
+        waiting.join();
+
+        assertTrue(nanosPerSample.size() > 10);
+        Collections.sort(nanosPerSample);
+        long median = nanosPerSample.get(nanosPerSample.size() / 2);
+        assertTrue(median + " ns per sample", median < TARGET_NANOS_PER_SAMPLE * TARGET_MULTIPLE);
+    }
+
+    public void test_SamplingProfiler_modes() throws Exception {
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(Thread.currentThread());
+        SamplingProfiler profiler = new SamplingProfiler(12, threadSet);
+        try {
+            profiler.getContinuousHprofData();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.start(100);
+        profiler.stop();
+        try {
+            profiler.startContinuous(100, 1000, 2, null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        profiler.shutdown();
+
+        profiler = new SamplingProfiler(12, threadSet);
+        profiler.startContinuous(100, 1000, 2, null);
+        profiler.stop();
+        try {
+            profiler.start(100);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // restarting continuous mode starts over with new windows
+        profiler.startContinuous(1, 1000, 2, null);
+        Thread.sleep(50);
+        profiler.stop();
+        profiler.startContinuous(1, 1000, 2, null);
+        Thread.sleep(50);
+        profiler.stop();
+        profiler.shutdown();
+        assertHprofData(profiler.getContinuousHprofData(), true);
+    }
+
+    /**
+     * Sample a thread blocked on a monitor and a thread waiting on a
+     * latch. With the wall clock their samples are recorded with
+     * their states, and with the CPU clock they are not sampled.
+     */
+    public void test_SamplingProfiler_threadStates() throws Exception {
+        final Object monitor = new Object();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread blocked = new Thread("blocked") {
+            @Override public void run() {
+                synchronized (monitor) {
+                }
+            }
+        };
+        Thread waiting = new Thread("waiting") {
+            @Override public void run() {
+                try {
+                    done.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        ThreadSet threadSet = SamplingProfiler.newArrayThreadSet(blocked, waiting);
+        synchronized (monitor) {
+            blocked.start();
+            waiting.start();
+            while (blocked.getState() != Thread.State.BLOCKED
+                    || waiting.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+
+            SamplingProfiler cpu = new SamplingProfiler(12, threadSet);
+            cpu.setClock(SamplingProfiler.Clock.CPU);
+            assertEquals(SamplingProfiler.Clock.CPU, cpu.getClock());
+            cpu.start(10);
+            Thread.sleep(200);
+            cpu.stop();
+            cpu.shutdown();
+            assertEquals(0, cpu.getSampleCount());
+            assertEquals(0, cpu.getHprofData().getSamples().size());
+
+            SamplingProfiler wall = new SamplingProfiler(12, threadSet);
+            assertEquals(SamplingProfiler.Clock.WALL, wall.getClock());
+            wall.start(10);
+            Thread.sleep(200);
+            wall.stop();
+            wall.shutdown();
+            HprofData hprofData = wall.getHprofData();
+            Set<Thread.State> states = new HashSet<Thread.State>();
+            for (Sample sample : hprofData.getSamples()) {
+                states.add(sample.stackTrace.getState());
+            }
+            assertEquals(new HashSet<Thread.State>(Arrays.asList(Thread.State.BLOCKED,
+                                                                 Thread.State.WAITING)),
+                         states);
+            test_HprofData(hprofData, true);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AsciiHprofWriter.write(hprofData, out);
+            String ascii = out.toString("UTF-8");
+            assertTrue(ascii, ascii.contains("CPU SAMPLES BEGIN (total = 0)"));
+            assertTrue(ascii, ascii.contains("BLOCKED SAMPLES BEGIN"));
+            assertTrue(ascii, ascii.contains("WAITING SAMPLES BEGIN"));
+        }
+        done.countDown();
+        blocked.join();
+        waiting.join();
+    }
+
+    public void test_StackTable() throws Exception {
+        StackTable table = new StackTable(300001);
+        StackTraceElement[] stackFrames = new Throwable().getStackTrace();
+        int depth = Math.min(stackFrames.length, 4);
+        assertEquals(-1, table.find(1, Thread.State.RUNNABLE, stackFrames, depth));
+        int slot = table.add(1, Thread.State.RUNNABLE, stackFrames, depth);
+        assertTrue(table.contains(slot));
+        assertEquals(slot, table.find(1, Thread.State.RUNNABLE, stackFrames.clone(), depth));
+        assertEquals(-1, table.find(2, Thread.State.RUNNABLE, stackFrames, depth));
+        assertEquals(-1, table.find(1, Thread.State.RUNNABLE, stackFrames, depth - 1));
+        assertEquals(-1, table.find(1, Thread.State.BLOCKED, stackFrames, depth));
+        assertEquals(1, table.getThreadId(slot));
+        assertEquals(300001, table.getStackTraceId(slot));
+        assertEquals(Thread.State.RUNNABLE, table.getState(slot));
+
+        StackTraceElement[] interned = table.getStackFrames(slot);
+        assertEquals(depth, interned.length);
+        for (int i = 0; i < depth; i++) {
+            assertEquals(stackFrames[i].getClassName(), interned[i].getClassName());
+            assertEquals(stackFrames[i].getMethodName(), interned[i].getMethodName());
+            assertEquals(stackFrames[i].getFileName(), interned[i].getFileName());
+            assertEquals(stackFrames[i].getLineNumber(), interned[i].getLineNumber());
+        }
+    }
+
+    public void test_StackTable_remove() throws Exception {
+        StackTable table = new StackTable(1);
+        int count = 1000;
+        StackTraceElement[][] stacks = new StackTraceElement[count][];
+        int[] slots = new int[count];
+        for (int i = 0; i < count; i++) {
+            stacks[i] = new StackTraceElement[] {
+                new StackTraceElement("Class" + (i % 7), "method" + (i / 7), "Class.java", i % 13),
+                new StackTraceElement("Main", "main", null, -2),
+            };
+            slots[i] = table.add(i % 3, null, stacks[i], 12);
+        }
+        assertEquals(count, table.slotCount());
+
+        for (int i = 0; i < count; i += 2) {
+            table.remove(slots[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            int expected = (i % 2 == 0) ? -1 : slots[i];
+            assertEquals(expected, table.find(i % 3, null, stacks[i], 12));
+        }
+
+        // removed slots are reused, with new stack trace ids
+        for (int i = 0; i < count; i += 2) {
+            int slot = table.add(i % 3, null, stacks[i], 12);
+            assertTrue(table.getStackTraceId(slot) > count);
+            assertEquals(slot, table.find(i % 3, null, stacks[i], 12));
+        }
+        assertEquals(count, table.slotCount());
+
+        table.clear();
+        assertEquals(0, table.slotCount());
+        assertEquals(-1, table.find(1, null, stacks[1], 12));
+    }
+
+    /**
+     * Returns a profile with one thread per name in {@code
+     * threadNames}, each with the same two stacks, sampled {@code
+     * count} and {@code 2 * count} times.
+     */
+    private static HprofData newProfile(int count, String... threadNames) {
+        HprofData hprofData = new HprofData(new HashMap<StackTrace, int[]>());
+        hprofData.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask
+                           | BinaryHprof.ControlSettings.THREAD_STATES.bitmask);
+        hprofData.setDepth(2);
+        StackTraceElement main = new StackTraceElement("Main", "main", "Main.java", 1);
+        StackTraceElement parse = new StackTraceElement("Parser", "parse", "Parser.java", 2);
+        StackTraceElement wait = new StackTraceElement("Object", "wait", null, -2);
+        int threadId = 200001;
+        int stackTraceId = 300001;
+        for (String threadName : threadNames) {
+            hprofData.addThreadEvent(ThreadEvent.start(threadId, threadId, threadName,
+                                                       "main", "system"));
+            hprofData.addStackTrace(new StackTrace(stackTraceId++, threadId,
+                                                   new StackTraceElement[] { parse, main },
+                                                   Thread.State.RUNNABLE),
+                                    new int[] { 2 * count });
+            hprofData.addStackTrace(new StackTrace(stackTraceId++, threadId,
+                                                   new StackTraceElement[] { wait, main },
+                                                   Thread.State.WAITING),
+                                    new int[] { count });
+            threadId++;
+        }
+        return hprofData;
+    }
+
+    public void test_HprofMerger() throws Exception {
+        HprofData first = newProfile(1, "a", "b");
+        first.setStartMillis(2000);
+        HprofData second = newProfile(10, "a");
+        second.setStartMillis(1000);
+        second.setDepth(4);
+
+        HprofMerger merger = new HprofMerger();
+        merger.add(first);
+        merger.add(second);
+        try {
+            merger.add(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        HprofData merged = merger.getHprofData();
+        assertEquals(1000, merged.getStartMillis());
+        assertEquals(4, merged.getDepth());
+        assertEquals(first.getFlags(), merged.getFlags());
+
+        // the two "a" threads share an id in their own profiles but
+        // stay distinct, as do their stacks
+        List<ThreadEvent> threadHistory = merged.getThreadHistory();
+        assertEquals(3, threadHistory.size());
+        Set<Integer> threadIds = new HashSet<Integer>();
+        Set<Integer> objectIds = new HashSet<Integer>();
+        for (ThreadEvent event : threadHistory) {
+            assertTrue(threadIds.add(event.threadId));
+            assertTrue(objectIds.add(event.objectId));
+        }
+        Set<Sample> samples = merged.getSamples();
+        assertEquals(6, samples.size());
+        Set<Integer> stackTraceIds = new HashSet<Integer>();
+        int total = 0;
+        for (Sample sample : samples) {
+            assertTrue(stackTraceIds.add(sample.stackTrace.stackTraceId));
+            total += sample.count;
+        }
+        assertEquals(2 * 3 + 30, total);
+        test_HprofData(merged, true);
+
+        // adding a profile again sums the counts of its stacks, since
+        // only the thread ids are new
+        HprofMerger twice = new HprofMerger();
+        HprofData single = newProfile(1, "a");
+        twice.add(single);
+        twice.add(single);
+        assertEquals(2, twice.getHprofData().getThreadHistory().size());
+        assertEquals(4, twice.getHprofData().getSamples().size());
+
+        // thread states are only kept if every profile has them
+        HprofData stateless = newProfile(1, "c");
+        stateless.setFlags(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask);
+        merger.add(stateless);
+        assertEquals(BinaryHprof.ControlSettings.CPU_SAMPLING.bitmask,
+                     merged.getFlags());
+    }
+
+    public void test_HprofAggregator() throws Exception {
+        HprofMerger merger = new HprofMerger();
+        merger.add(newProfile(1, "a", "b"));
+        merger.add(newProfile(10, "a"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HprofAggregator.write(merger.getHprofData(), 1, out);
+        String summary = out.toString("UTF-8");
+        // only the running stacks count towards methods
+        assertTrue(summary, summary.contains("SELF BEGIN (total = 24)\n"
+                                             + "rank   self  accum   count method\n"
+                                             + "   1 100.00% 100.00%      24 Parser.parse\n"
+                                             + "SELF END\n"));
+        assertTrue(summary, summary.contains("TOTAL BEGIN (total = 24)\n"
+                                             + "rank  total   count method\n"
+                                             + "   1 100.00%      24 "));
+        // stacks are merged across threads and processes
+        assertTrue(summary, summary.contains("STACKS BEGIN (total = 36)\n"
+                                             + "rank   self  accum   count state\n"
+                                             + "   1 66.67% 66.67%      24 RUNNABLE\n"
+                                             + "\tParser.parse(Parser.java:2)\n"
+                                             + "\tMain.main(Main.java:1)\n"
+                                             + "STACKS END\n"));
+    }
+
     private static final String P_STR =
             "9494fec095f3b85ee286542b3836fc81a5dd0a0349b4c239dd38744d488cf8e3"
             + "1db8bcb7d33b41abb9e5a33cca9144b1cef332c94bf0573bf047a3aca98cdf3b";
@@ -27,6 +27,92 @@ class JSON {
         return d;
     }
 
+    /**
+     * Returns true if {@code c} ends an unquoted literal such as a number,
+     * {@code true} or an unquoted string.
+     */
+    static boolean isLiteralDelimiter(int c) {
+        switch (c) {
+            case '{':
+            case '}':
+            case '[':
+            case ']':
+            case '/':
+            case '\\':
+            case ':':
+            case ',':
+            case '=':
+            case ';':
+            case '#':
+            case ' ':
+            case '\t':
+            case '\f':
+            case '\r':
+            case '\n':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parses an integral literal. Literals that start with "0x" are parsed as
+     * hexadecimal, and other literals that start with "0" are parsed as octal.
+     *
+     * @throws NumberFormatException if {@code literal} isn't a long in its base.
+     */
+    static long parseIntegral(String literal) {
+        if (literal.startsWith("0x") || literal.startsWith("0X")) {
+            return Long.parseLong(literal.substring(2), 16);
+        } else if (literal.startsWith("0") && literal.length() > 1) {
+            return Long.parseLong(literal.substring(1), 8);
+        } else {
+            return Long.parseLong(literal, 10);
+        }
+    }
+
+    /**
+     * Returns the value of the nonempty unquoted literal {@code literal}: one
+     * of {@link JSONObject#NULL}, a boolean, an integer, a long, a double or
+     * the unquoted string itself.
+     */
+    static Object literalValue(String literal) {
+        if ("null".equalsIgnoreCase(literal)) {
+            return JSONObject.NULL;
+        } else if ("true".equalsIgnoreCase(literal)) {
+            return Boolean.TRUE;
+        } else if ("false".equalsIgnoreCase(literal)) {
+            return Boolean.FALSE;
+        }
+
+        /* try to parse as an integral type... */
+        if (literal.indexOf('.') == -1) {
+            try {
+                long longValue = parseIntegral(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                } else {
+                    return longValue;
+                }
+            } catch (NumberFormatException e) {
+                /*
+                 * This only happens for integral numbers greater than
+                 * Long.MAX_VALUE, numbers in exponential form (5e-10) and
+                 * unquoted strings. Fall through to try floating point.
+                 */
+            }
+        }
+
+        /* ...next try to parse as a floating point... */
+        try {
+            return Double.valueOf(literal);
+        } catch (NumberFormatException ignored) {
+        }
+
+        /* ... finally give up. We have an unquoted string */
+        return new String(literal); // a new string avoids leaking memory
+    }
+
     static Boolean toBoolean(Object value) {
         if (value instanceof Boolean) {
             return (Boolean) value;
@@ -16,9 +16,8 @@
 
 package org.json;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collection;
-import java.util.List;
 
 // Note: this class was written without inspecting the non-free org.json sourcecode.
 
@@ -46,13 +45,13 @@ import java.util.List;
  */
 public class JSONArray {
 
-    private final List<Object> values;
+    private final ValueList values;
 
     /**
      * Creates a {@code JSONArray} with no values.
      */
     public JSONArray() {
-        values = new ArrayList<Object>();
+        values = new ValueList();
     }
 
     /**
@@ -67,7 +66,9 @@ public class JSONArray {
     public JSONArray(Collection copyFrom) {
         this();
         Collection<?> copyFromTyped = (Collection<?>) copyFrom;
-        values.addAll(copyFromTyped);
+        for (Object value : copyFromTyped) {
+            values.add(value);
+        }
     }
 
     /**
@@ -568,12 +569,20 @@ public class JSONArray {
 
     void writeTo(JSONStringer stringer) throws JSONException {
         stringer.array();
-        for (Object value : values) {
-            stringer.value(value);
+        for (int i = 0, size = values.size(); i < size; i++) {
+            stringer.value(values.get(i));
         }
         stringer.endArray();
     }
 
+    void writeTo(JSONWriter writer) throws IOException, JSONException {
+        writer.array();
+        for (int i = 0, size = values.size(); i < size; i++) {
+            writer.value(values.get(i));
+        }
+        writer.endArray();
+    }
+
     @Override public boolean equals(Object o) {
         return o instanceof JSONArray && ((JSONArray) o).values.equals(values);
     }
@@ -16,8 +16,7 @@
 
 package org.json;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -103,13 +102,13 @@ public class JSONObject {
         }
     };
 
-    private final Map<String, Object> nameValuePairs;
+    private final NameValueList nameValuePairs;
 
     /**
      * Creates a {@code JSONObject} with no name/value mappings.
      */
     public JSONObject() {
-        nameValuePairs = new HashMap<String, Object>();
+        nameValuePairs = new NameValueList();
     }
 
     /**
@@ -340,7 +339,7 @@ public class JSONObject {
      * may be {@link #NULL}.
      */
     public boolean has(String name) {
-        return nameValuePairs.containsKey(name);
+        return nameValuePairs.indexOf(name) != -1;
     }
 
     /**
@@ -613,7 +612,7 @@ public class JSONObject {
      */
     /* Return a raw type for API compatibility */
     public Iterator keys() {
-        return nameValuePairs.keySet().iterator();
+        return nameValuePairs.nameIterator();
     }
 
     /**
@@ -621,9 +620,9 @@ public class JSONObject {
      * returns null if this object contains no mappings.
      */
     public JSONArray names() {
-        return nameValuePairs.isEmpty()
+        return nameValuePairs.size() == 0
                 ? null
-                : new JSONArray(new ArrayList<String>(nameValuePairs.keySet()));
+                : new JSONArray(nameValuePairs.names());
     }
 
     /**
@@ -663,12 +662,20 @@ public class JSONObject {
 
     void writeTo(JSONStringer stringer) throws JSONException {
         stringer.object();
-        for (Map.Entry<String, Object> entry : nameValuePairs.entrySet()) {
-            stringer.key(entry.getKey()).value(entry.getValue());
+        for (int i = 0, size = nameValuePairs.size(); i < size; i++) {
+            stringer.key(nameValuePairs.nameAt(i)).value(nameValuePairs.get(i));
         }
         stringer.endObject();
     }
 
+    void writeTo(JSONWriter writer) throws IOException, JSONException {
+        writer.object();
+        for (int i = 0, size = nameValuePairs.size(); i < size; i++) {
+            writer.key(nameValuePairs.nameAt(i)).value(nameValuePairs.get(i));
+        }
+        writer.endObject();
+    }
+
     /**
      * Encodes the number as a JSON string.
      *
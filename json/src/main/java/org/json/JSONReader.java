@@ -0,0 +1,818 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a JSON encoded value as a stream of tokens. Unlike {@link JSONTokener},
+ * which needs the whole document in memory as a string and returns it as a tree
+ * of {@link JSONObject} and {@link JSONArray} instances, this reader consumes
+ * its input incrementally and only materializes the values that the caller
+ * asks for. For example:<pre>
+ * JSONReader reader = new JSONReader(inputStream);
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     String name = reader.nextName();
+ *     if (name.equals("id")) {
+ *         id = reader.nextLong();
+ *     } else if (name.equals("tags")) {
+ *         tags = (JSONArray) reader.nextValue();
+ *     } else {
+ *         reader.skipValue();
+ *     }
+ * }
+ * reader.endObject();</pre>
+ *
+ * <p>This reader accepts the same lenient syntax as {@link JSONTokener}: end of
+ * line comments ({@code //} and {@code #}), C-style comments, single-quoted and
+ * unquoted strings, hexadecimal and octal integers, {@code =} and {@code =>} as
+ * name separators, {@code ;} as a value separator, and omitted array elements,
+ * which are read as nulls. Input that follows the top-level value is ignored.
+ *
+ * <p>Each reader may be used to read a single top level value. Instances of
+ * this class are not thread safe.
+ *
+ * @hide
+ */
+public final class JSONReader implements Closeable {
+
+    /**
+     * The kinds of tokens returned by {@link #peek}.
+     */
+    public enum Token {
+        BEGIN_ARRAY,
+        END_ARRAY,
+        BEGIN_OBJECT,
+        END_OBJECT,
+
+        /** A property name, as returned by {@link #nextName}. */
+        NAME,
+
+        /** A quoted string, or an unquoted literal that isn't a number. */
+        STRING,
+
+        /** A number in decimal, hexadecimal, octal or exponential form. */
+        NUMBER,
+
+        BOOLEAN,
+
+        /** A literal {@code null}, or an omitted array element. */
+        NULL,
+
+        /** The end of the top-level value. */
+        END_DOCUMENT,
+    }
+
+    /**
+     * Lexical scoping elements within this reader, necessary to expect the
+     * appropriate separator characters.
+     */
+    private enum Scope {
+        EMPTY_DOCUMENT,
+        NONEMPTY_DOCUMENT,
+        EMPTY_ARRAY,
+        NONEMPTY_ARRAY,
+        EMPTY_OBJECT,
+
+        /** An object whose most recent element is a name. */
+        DANGLING_NAME,
+
+        NONEMPTY_OBJECT,
+        CLOSED,
+    }
+
+    private final Reader in;
+
+    /**
+     * Input characters in {@code [pos, limit)} have been read from {@code in}
+     * but not yet consumed. The character before {@code pos} is always kept,
+     * so the lexer can put back one character after peeking at it.
+     */
+    private final char[] buffer = new char[1024];
+    private int pos;
+    private int limit;
+
+    /** The number of characters discarded from the front of the buffer. */
+    private int bufferOffset;
+
+    private final List<Scope> stack = new ArrayList<Scope>();
+
+    /** The peeked token, or null if the next token hasn't been read yet. */
+    private Token token;
+
+    /**
+     * The text of a peeked name, string or literal; or null for an omitted
+     * array element.
+     */
+    private String value;
+
+    /** The value of a peeked number that is integral and fits in a long. */
+    private long peekedLong;
+    private boolean peekedIsLong;
+
+    public JSONReader(Reader in) {
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        this.in = in;
+        stack.add(Scope.EMPTY_DOCUMENT);
+    }
+
+    /**
+     * Creates a reader that decodes {@code in} as UTF-8.
+     */
+    public JSONReader(InputStream in) {
+        this(new InputStreamReader(in, Charsets.UTF_8));
+    }
+
+    public JSONReader(String in) {
+        this(new StringReader(in));
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     */
+    public Token peek() throws IOException, JSONException {
+        if (token != null) {
+            return token;
+        }
+
+        switch (peekScope()) {
+            case EMPTY_DOCUMENT:
+                replaceTop(Scope.NONEMPTY_DOCUMENT);
+                // consume an optional byte order mark (BOM) if it exists
+                if (fillBuffer(1) && buffer[pos] == '\ufeff') {
+                    pos++;
+                }
+                return readValue(nextCleanInternal());
+
+            case NONEMPTY_DOCUMENT:
+                return token = Token.END_DOCUMENT;
+
+            case EMPTY_ARRAY:
+            case NONEMPTY_ARRAY:
+                return readArrayElement();
+
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                return readName();
+
+            case DANGLING_NAME:
+                int separator = nextCleanInternal();
+                if (separator != ':' && separator != '=') {
+                    throw syntaxError("Expected ':' after " + value);
+                }
+                if (fillBuffer(1) && buffer[pos] == '>') {
+                    pos++;
+                }
+                replaceTop(Scope.NONEMPTY_OBJECT);
+                return readValue(nextCleanInternal());
+
+            case CLOSED:
+                throw new IllegalStateException("JSONReader is closed");
+
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    /**
+     * Returns true if the current array or object has another element.
+     */
+    public boolean hasNext() throws IOException, JSONException {
+        Token peeked = peek();
+        return peeked != Token.END_ARRAY
+                && peeked != Token.END_OBJECT
+                && peeked != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the beginning of an array. Each call to this method must be
+     * paired with a call to {@link #endArray}.
+     */
+    public void beginArray() throws IOException, JSONException {
+        expect(Token.BEGIN_ARRAY);
+    }
+
+    public void endArray() throws IOException, JSONException {
+        expect(Token.END_ARRAY);
+        stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * Consumes the beginning of an object. Each call to this method must be
+     * paired with a call to {@link #endObject}.
+     */
+    public void beginObject() throws IOException, JSONException {
+        expect(Token.BEGIN_OBJECT);
+    }
+
+    public void endObject() throws IOException, JSONException {
+        expect(Token.END_OBJECT);
+        stack.remove(stack.size() - 1);
+    }
+
+    public String nextName() throws IOException, JSONException {
+        expect(Token.NAME);
+        return value;
+    }
+
+    /**
+     * Returns the next string. Numbers are returned as they appear in the
+     * input, so {@code 0x1F} is returned as "0x1F".
+     */
+    public String nextString() throws IOException, JSONException {
+        Token peeked = peek();
+        if (peeked != Token.STRING && peeked != Token.NUMBER) {
+            throw mismatch("a string");
+        }
+        token = null;
+        return value;
+    }
+
+    /**
+     * Returns the next boolean. Strings equal to "true" or "false", ignoring
+     * case, are coerced.
+     */
+    public boolean nextBoolean() throws IOException, JSONException {
+        Token peeked = peek();
+        Boolean result = (peeked == Token.BOOLEAN || peeked == Token.STRING)
+                ? JSON.toBoolean(value)
+                : null;
+        if (result == null) {
+            throw mismatch("boolean");
+        }
+        token = null;
+        return result;
+    }
+
+    /**
+     * Consumes a literal {@code null} or an omitted array element.
+     */
+    public void nextNull() throws IOException, JSONException {
+        expect(Token.NULL);
+    }
+
+    /**
+     * Returns the next double. Strings that can be parsed as doubles are
+     * coerced.
+     */
+    public double nextDouble() throws IOException, JSONException {
+        Token peeked = peek();
+        double result;
+        if (peeked == Token.NUMBER) {
+            result = peekedIsLong ? peekedLong : Double.parseDouble(value);
+        } else if (peeked == Token.STRING) {
+            Double coerced = JSON.toDouble(value);
+            if (coerced == null) {
+                throw mismatch("double");
+            }
+            result = coerced;
+        } else {
+            throw mismatch("double");
+        }
+        token = null;
+        return result;
+    }
+
+    /**
+     * Returns the next long. Doubles are truncated, and strings that can be
+     * parsed as numbers are coerced, like {@link JSONObject#getLong}.
+     */
+    public long nextLong() throws IOException, JSONException {
+        Token peeked = peek();
+        long result;
+        if (peeked == Token.NUMBER) {
+            result = peekedIsLong ? peekedLong : (long) Double.parseDouble(value);
+        } else if (peeked == Token.STRING) {
+            Long coerced = JSON.toLong(value);
+            if (coerced == null) {
+                throw mismatch("long");
+            }
+            result = coerced;
+        } else {
+            throw mismatch("long");
+        }
+        token = null;
+        return result;
+    }
+
+    /**
+     * Returns the next int. Doubles and longs are truncated, and strings that
+     * can be parsed as numbers are coerced, like {@link JSONObject#getInt}.
+     */
+    public int nextInt() throws IOException, JSONException {
+        Token peeked = peek();
+        int result;
+        if (peeked == Token.NUMBER) {
+            result = peekedIsLong ? (int) peekedLong : (int) Double.parseDouble(value);
+        } else if (peeked == Token.STRING) {
+            Integer coerced = JSON.toInteger(value);
+            if (coerced == null) {
+                throw mismatch("int");
+            }
+            result = coerced;
+        } else {
+            throw mismatch("int");
+        }
+        token = null;
+        return result;
+    }
+
+    /**
+     * Returns the next value as a tree. The returned value is one of the types
+     * returned by {@link JSONTokener#nextValue}: a JSONObject, JSONArray,
+     * String, Boolean, Integer, Long, Double or {@link JSONObject#NULL}; or
+     * null for an omitted array element.
+     */
+    public Object nextValue() throws IOException, JSONException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                JSONObject object = new JSONObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    object.put(name, nextValue());
+                }
+                endObject();
+                return object;
+
+            case BEGIN_ARRAY:
+                beginArray();
+                JSONArray array = new JSONArray();
+                while (hasNext()) {
+                    array.put(nextValue());
+                }
+                endArray();
+                return array;
+
+            case STRING:
+                token = null;
+                return value;
+
+            case NUMBER:
+                token = null;
+                if (!peekedIsLong) {
+                    return Double.valueOf(value);
+                } else if (peekedLong <= Integer.MAX_VALUE && peekedLong >= Integer.MIN_VALUE) {
+                    return (int) peekedLong;
+                } else {
+                    return peekedLong;
+                }
+
+            case BOOLEAN:
+                token = null;
+                return JSON.toBoolean(value);
+
+            case NULL:
+                token = null;
+                return value == null ? null : JSONObject.NULL;
+
+            default:
+                throw mismatch("a value");
+        }
+    }
+
+    /**
+     * Skips the next value, including any nested arrays and objects. If the
+     * next token is a name, only the name is skipped.
+     */
+    public void skipValue() throws IOException, JSONException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_ARRAY:
+                case BEGIN_OBJECT:
+                    token = null;
+                    depth++;
+                    break;
+
+                case END_ARRAY:
+                case END_OBJECT:
+                    if (depth == 0) {
+                        throw mismatch("a value");
+                    }
+                    token = null;
+                    stack.remove(stack.size() - 1);
+                    depth--;
+                    break;
+
+                case END_DOCUMENT:
+                    throw syntaxError("End of input");
+
+                default:
+                    token = null;
+                    break;
+            }
+        } while (depth != 0);
+    }
+
+    /**
+     * Closes the underlying reader.
+     */
+    public void close() throws IOException {
+        token = null;
+        stack.clear();
+        stack.add(Scope.CLOSED);
+        in.close();
+    }
+
+    private Scope peekScope() {
+        return stack.get(stack.size() - 1);
+    }
+
+    private void replaceTop(Scope topOfStack) {
+        stack.set(stack.size() - 1, topOfStack);
+    }
+
+    private void expect(Token expected) throws IOException, JSONException {
+        if (peek() != expected) {
+            throw mismatch(expected.toString());
+        }
+        token = null;
+    }
+
+    private JSONException mismatch(String expected) {
+        return syntaxError("Expected " + expected + " but was " + token);
+    }
+
+    private Token readArrayElement() throws IOException, JSONException {
+        boolean empty = peekScope() == Scope.EMPTY_ARRAY;
+        replaceTop(Scope.NONEMPTY_ARRAY);
+
+        int c = nextCleanInternal();
+        if (c == ']') {
+            return token = Token.END_ARRAY;
+        }
+        if (!empty) {
+            if (c != ',' && c != ';') {
+                throw syntaxError("Unterminated array");
+            }
+            c = nextCleanInternal();
+            if (c == ']') {
+                /* A trailing separator means "null". */
+                pos--;
+                return readOmittedElement();
+            }
+        }
+        if (c == ',' || c == ';') {
+            /* A separator without a value first means "null". */
+            pos--;
+            return readOmittedElement();
+        }
+        if (c == -1) {
+            throw syntaxError("Unterminated array");
+        }
+        return readValue(c);
+    }
+
+    private Token readOmittedElement() {
+        value = null;
+        return token = Token.NULL;
+    }
+
+    private Token readName() throws IOException, JSONException {
+        boolean empty = peekScope() == Scope.EMPTY_OBJECT;
+
+        int c = nextCleanInternal();
+        if (c == '}') {
+            return token = Token.END_OBJECT;
+        }
+        if (!empty) {
+            if (c != ',' && c != ';') {
+                throw syntaxError("Unterminated object");
+            }
+            c = nextCleanInternal();
+        }
+
+        switch (c) {
+            case -1:
+                throw syntaxError("End of input");
+
+            case '\'':
+            case '"':
+                value = readString((char) c);
+                break;
+
+            case '{':
+            case '[':
+                throw syntaxError("Names must be strings, but found " + (char) c);
+
+            default:
+                pos--;
+                Object name = JSON.literalValue(readLiteral());
+                if (!(name instanceof String)) {
+                    throw syntaxError("Names must be strings, but " + name
+                            + " is of type " + name.getClass().getName());
+                }
+                value = (String) name;
+                break;
+        }
+        replaceTop(Scope.DANGLING_NAME);
+        return token = Token.NAME;
+    }
+
+    /**
+     * Reads the token of the value that starts with {@code c}.
+     */
+    private Token readValue(int c) throws IOException, JSONException {
+        switch (c) {
+            case -1:
+                throw syntaxError("End of input");
+
+            case '{':
+                stack.add(Scope.EMPTY_OBJECT);
+                return token = Token.BEGIN_OBJECT;
+
+            case '[':
+                stack.add(Scope.EMPTY_ARRAY);
+                return token = Token.BEGIN_ARRAY;
+
+            case '\'':
+            case '"':
+                value = readString((char) c);
+                return token = Token.STRING;
+
+            default:
+                pos--;
+                String literal = readLiteral();
+                value = literal;
+                if ("null".equalsIgnoreCase(literal)) {
+                    return token = Token.NULL;
+                } else if ("true".equalsIgnoreCase(literal)
+                        || "false".equalsIgnoreCase(literal)) {
+                    return token = Token.BOOLEAN;
+                } else if (parseNumber(literal)) {
+                    return token = Token.NUMBER;
+                } else {
+                    return token = Token.STRING;
+                }
+        }
+    }
+
+    /**
+     * Returns true if {@code literal} is a number as {@link JSONTokener}
+     * parses it, storing its value if it is integral.
+     */
+    private boolean parseNumber(String literal) {
+        if (literal.indexOf('.') == -1) {
+            try {
+                peekedLong = JSON.parseIntegral(literal);
+                peekedIsLong = true;
+                return true;
+            } catch (NumberFormatException e) {
+                // fall through to try floating point
+            }
+        }
+        peekedIsLong = false;
+        try {
+            Double.parseDouble(literal);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true once the buffer has at least {@code minimum} unconsumed
+     * characters, or false if the input ends first.
+     */
+    private boolean fillBuffer(int minimum) throws IOException {
+        if (limit - pos >= minimum) {
+            return true;
+        }
+
+        // keep the most recently consumed character so it can be put back
+        int keep = pos > 0 ? pos - 1 : 0;
+        System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+        bufferOffset += keep;
+        limit -= keep;
+        pos -= keep;
+
+        int count;
+        while ((count = in.read(buffer, limit, buffer.length - limit)) != -1) {
+            limit += count;
+            if (limit - pos >= minimum) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int nextCleanInternal() throws IOException, JSONException {
+        while (pos < limit || fillBuffer(1)) {
+            int c = buffer[pos++];
+            switch (c) {
+                case '\t':
+                case ' ':
+                case '\n':
+                case '\r':
+                    continue;
+
+                case '/':
+                    if (!fillBuffer(1)) {
+                        return c;
+                    }
+
+                    char peek = buffer[pos];
+                    switch (peek) {
+                        case '*':
+                            // skip a /* c-style comment */
+                            pos++;
+                            skipComment();
+                            continue;
+
+                        case '/':
+                            // skip a // end-of-line comment
+                            pos++;
+                            skipToEndOfLine();
+                            continue;
+
+                        default:
+                            return c;
+                    }
+
+                case '#':
+                    /*
+                     * Skip a # hash end-of-line comment. The JSON RFC doesn't
+                     * specify this behavior, but it's required to parse
+                     * existing documents. See http://b/2571423.
+                     */
+                    skipToEndOfLine();
+                    continue;
+
+                default:
+                    return c;
+            }
+        }
+
+        return -1;
+    }
+
+    private void skipComment() throws IOException, JSONException {
+        while (fillBuffer(2)) {
+            if (buffer[pos] == '*' && buffer[pos + 1] == '/') {
+                pos += 2;
+                return;
+            }
+            pos++;
+        }
+        throw syntaxError("Unterminated comment");
+    }
+
+    private void skipToEndOfLine() throws IOException {
+        while (pos < limit || fillBuffer(1)) {
+            char c = buffer[pos++];
+            if (c == '\r' || c == '\n') {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the string up to but not including {@code quote}, unescaping any
+     * character escape sequences encountered along the way. The opening quote
+     * should have already been read. This consumes the closing quote.
+     */
+    private String readString(char quote) throws IOException, JSONException {
+        StringBuilder builder = null;
+        do {
+            /* the index of the first character not yet appended to the builder. */
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == quote) {
+                    if (builder == null) {
+                        return new String(buffer, start, pos - start - 1);
+                    } else {
+                        builder.append(buffer, start, pos - start - 1);
+                        return builder.toString();
+                    }
+                }
+
+                if (c == '\\') {
+                    if (builder == null) {
+                        builder = new StringBuilder();
+                    }
+                    builder.append(buffer, start, pos - start - 1);
+                    builder.append(readEscapeCharacter());
+                    start = pos;
+                }
+            }
+
+            if (builder == null) {
+                builder = new StringBuilder();
+            }
+            builder.append(buffer, start, pos - start);
+        } while (fillBuffer(1));
+
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Unescapes the character identified by the character or characters that
+     * immediately follow a backslash. The backslash '\' should have already
+     * been read.
+     */
+    private char readEscapeCharacter() throws IOException, JSONException {
+        if (!fillBuffer(1)) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        char escaped = buffer[pos++];
+        switch (escaped) {
+            case 'u':
+                if (!fillBuffer(4)) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                String hex = new String(buffer, pos, 4);
+                pos += 4;
+                return (char) Integer.parseInt(hex, 16);
+
+            case 't':
+                return '\t';
+
+            case 'b':
+                return '\b';
+
+            case 'n':
+                return '\n';
+
+            case 'r':
+                return '\r';
+
+            case 'f':
+                return '\f';
+
+            case '\'':
+            case '"':
+            case '\\':
+            default:
+                return escaped;
+        }
+    }
+
+    /**
+     * Reads an unquoted literal up to but not including the next delimiter.
+     * Throws if the literal is empty.
+     */
+    private String readLiteral() throws IOException, JSONException {
+        StringBuilder builder = null;
+        do {
+            int start = pos;
+            while (pos < limit) {
+                if (JSON.isLiteralDelimiter(buffer[pos])) {
+                    if (builder == null) {
+                        if (pos == start) {
+                            throw syntaxError("Expected literal value");
+                        }
+                        return new String(buffer, start, pos - start);
+                    }
+                    builder.append(buffer, start, pos - start);
+                    return builder.toString();
+                }
+                pos++;
+            }
+
+            if (builder == null) {
+                builder = new StringBuilder();
+            }
+            builder.append(buffer, start, pos - start);
+        } while (fillBuffer(1));
+
+        if (builder.length() == 0) {
+            throw syntaxError("Expected literal value");
+        }
+        return builder.toString();
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + this);
+    }
+
+    @Override public String toString() {
+        return " at character " + (bufferOffset + pos);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a JSON encoded value to a stream, one token at a time. This produces
+ * the same output as {@link JSONStringer}, but it doesn't accumulate the
+ * document in memory: output is written through a small buffer as it is
+ * produced, so the first bytes reach the stream before the document is
+ * complete. For example:<pre>
+ * JSONWriter writer = new JSONWriter(socket.getOutputStream());
+ * writer.object()
+ *         .key("query").value("Pizza")
+ *         .key("locations").value(locationsArray)
+ *         .endObject();
+ * writer.flush();</pre>
+ *
+ * <p>{@link JSONObject} and {@link JSONArray} values are written directly to
+ * the stream without first being converted to strings.
+ *
+ * <p>Like {@link JSONStringer}, this writer only encodes well-formed JSON: it
+ * must have exactly one top-level array or object, scopes must be balanced,
+ * and objects must alternate names and values. Calls that would result in
+ * malformed JSON fail with a {@link JSONException}.
+ *
+ * <p>Each writer may be used to write a single top level value. Instances of
+ * this class are not thread safe.
+ *
+ * @hide
+ */
+public final class JSONWriter implements Closeable, Flushable {
+
+    private final Writer out;
+
+    /** Output that hasn't been written to {@code out} yet. */
+    private final char[] buffer = new char[8192];
+    private int count;
+
+    private final List<JSONStringer.Scope> stack = new ArrayList<JSONStringer.Scope>();
+
+    /** True once the top-level value has been started. */
+    private boolean hasRoot;
+
+    public JSONWriter(Writer out) {
+        if (out == null) {
+            throw new NullPointerException("out == null");
+        }
+        this.out = out;
+    }
+
+    /**
+     * Creates a writer that encodes its output to {@code out} as UTF-8.
+     */
+    public JSONWriter(OutputStream out) {
+        this(new OutputStreamWriter(out, Charsets.UTF_8));
+    }
+
+    /**
+     * Begins encoding a new array. Each call to this method must be paired with
+     * a call to {@link #endArray}.
+     *
+     * @return this writer.
+     */
+    public JSONWriter array() throws IOException, JSONException {
+        return open(JSONStringer.Scope.EMPTY_ARRAY, '[');
+    }
+
+    /**
+     * Ends encoding the current array.
+     *
+     * @return this writer.
+     */
+    public JSONWriter endArray() throws IOException, JSONException {
+        return close(JSONStringer.Scope.EMPTY_ARRAY, JSONStringer.Scope.NONEMPTY_ARRAY, ']');
+    }
+
+    /**
+     * Begins encoding a new object. Each call to this method must be paired
+     * with a call to {@link #endObject}.
+     *
+     * @return this writer.
+     */
+    public JSONWriter object() throws IOException, JSONException {
+        return open(JSONStringer.Scope.EMPTY_OBJECT, '{');
+    }
+
+    /**
+     * Ends encoding the current object.
+     *
+     * @return this writer.
+     */
+    public JSONWriter endObject() throws IOException, JSONException {
+        return close(JSONStringer.Scope.EMPTY_OBJECT, JSONStringer.Scope.NONEMPTY_OBJECT, '}');
+    }
+
+    private JSONWriter open(JSONStringer.Scope empty, char openBracket)
+            throws IOException, JSONException {
+        if (stack.isEmpty()) {
+            if (hasRoot) {
+                throw new JSONException("Nesting problem: multiple top-level roots");
+            }
+            hasRoot = true;
+        } else {
+            beforeValue();
+        }
+        stack.add(empty);
+        write(openBracket);
+        return this;
+    }
+
+    private JSONWriter close(JSONStringer.Scope empty, JSONStringer.Scope nonempty,
+            char closeBracket) throws IOException, JSONException {
+        JSONStringer.Scope context = peek();
+        if (context != nonempty && context != empty) {
+            throw new JSONException("Nesting problem");
+        }
+        stack.remove(stack.size() - 1);
+        write(closeBracket);
+        return this;
+    }
+
+    private JSONStringer.Scope peek() throws JSONException {
+        if (stack.isEmpty()) {
+            throw new JSONException("Nesting problem");
+        }
+        return stack.get(stack.size() - 1);
+    }
+
+    private void replaceTop(JSONStringer.Scope topOfStack) {
+        stack.set(stack.size() - 1, topOfStack);
+    }
+
+    /**
+     * Encodes {@code value}.
+     *
+     * @param value a {@link JSONObject}, {@link JSONArray}, String, Boolean,
+     *     Integer, Long, Double or null. May not be {@link Double#isNaN() NaNs}
+     *     or {@link Double#isInfinite() infinities}.
+     * @return this writer.
+     */
+    public JSONWriter value(Object value) throws IOException, JSONException {
+        if (value instanceof JSONArray) {
+            ((JSONArray) value).writeTo(this);
+            return this;
+
+        } else if (value instanceof JSONObject) {
+            ((JSONObject) value).writeTo(this);
+            return this;
+        }
+
+        beforeValue();
+
+        if (value == null
+                || value instanceof Boolean
+                || value == JSONObject.NULL) {
+            write(String.valueOf(value));
+
+        } else if (value instanceof Number) {
+            write(JSONObject.numberToString((Number) value));
+
+        } else {
+            string(value.toString());
+        }
+
+        return this;
+    }
+
+    /**
+     * Encodes {@code value} to this writer.
+     *
+     * @return this writer.
+     */
+    public JSONWriter value(boolean value) throws IOException, JSONException {
+        beforeValue();
+        write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Encodes {@code value} to this writer.
+     *
+     * @param value a finite value. May not be {@link Double#isNaN() NaNs} or
+     *     {@link Double#isInfinite() infinities}.
+     * @return this writer.
+     */
+    public JSONWriter value(double value) throws IOException, JSONException {
+        beforeValue();
+        write(JSONObject.numberToString(value));
+        return this;
+    }
+
+    /**
+     * Encodes {@code value} to this writer.
+     *
+     * @return this writer.
+     */
+    public JSONWriter value(long value) throws IOException, JSONException {
+        beforeValue();
+        write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Encodes the key (property name) to this writer.
+     *
+     * @param name the name of the forthcoming value. May not be null.
+     * @return this writer.
+     */
+    public JSONWriter key(String name) throws IOException, JSONException {
+        if (name == null) {
+            throw new JSONException("Names must be non-null");
+        }
+        JSONStringer.Scope context = peek();
+        if (context == JSONStringer.Scope.NONEMPTY_OBJECT) {
+            write(',');
+        } else if (context != JSONStringer.Scope.EMPTY_OBJECT) {
+            throw new JSONException("Nesting problem");
+        }
+        replaceTop(JSONStringer.Scope.DANGLING_KEY);
+        string(name);
+        return this;
+    }
+
+    /**
+     * Inserts any necessary separators before a literal value, inline array,
+     * or inline object. Also adjusts the stack to expect either a closing
+     * bracket or another element.
+     */
+    private void beforeValue() throws IOException, JSONException {
+        JSONStringer.Scope context = peek();
+        if (context == JSONStringer.Scope.EMPTY_ARRAY) {
+            replaceTop(JSONStringer.Scope.NONEMPTY_ARRAY);
+        } else if (context == JSONStringer.Scope.NONEMPTY_ARRAY) {
+            write(',');
+        } else if (context == JSONStringer.Scope.DANGLING_KEY) {
+            write(':');
+            replaceTop(JSONStringer.Scope.NONEMPTY_OBJECT);
+        } else {
+            throw new JSONException("Nesting problem");
+        }
+    }
+
+    /**
+     * Writes {@code value} as a quoted string, escaping the characters that
+     * {@link JSONStringer} escapes. Runs of characters that need no escaping
+     * are copied in bulk.
+     */
+    private void string(String value) throws IOException {
+        write('"');
+        int start = 0;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '"':
+                    replacement = "\\\"";
+                    break;
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '/':
+                    replacement = "\\/";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\b':
+                    replacement = "\\b";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                case '\f':
+                    replacement = "\\f";
+                    break;
+                default:
+                    if (c > 0x1F) {
+                        continue;
+                    }
+                    replacement = String.format("\\u%04x", (int) c);
+                    break;
+            }
+            write(value, start, i);
+            write(replacement);
+            start = i + 1;
+        }
+        write(value, start, value.length());
+        write('"');
+    }
+
+    private void write(char c) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = c;
+    }
+
+    private void write(String s) throws IOException {
+        write(s, 0, s.length());
+    }
+
+    /**
+     * Writes the characters of {@code s} in {@code [start, end)}.
+     */
+    private void write(String s, int start, int end) throws IOException {
+        while (start < end) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            int chunk = Math.min(end - start, buffer.length - count);
+            s.getChars(start, start + chunk, buffer, count);
+            count += chunk;
+            start += chunk;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Writes any buffered output to the underlying stream and flushes it.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream.
+     *
+     * @throws IOException if the stream couldn't be closed, or if the written
+     *     document is incomplete.
+     */
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+        if (!stack.isEmpty()) {
+            throw new IOException("Incomplete document");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The name/value mappings of a JSON object, in insertion order. Names are held
+ * in an array parallel to the values. Small objects, which are the common
+ * case, are searched linearly; larger ones also get an open-addressed table
+ * of indices so lookups stay constant time. Unlike a HashMap this allocates no
+ * entry per mapping, and primitive values are stored unboxed.
+ */
+final class NameValueList extends ValueList {
+
+    /** Objects with more mappings than this are indexed by a hash table. */
+    private static final int MAX_LINEAR_SIZE = 8;
+
+    private static final String[] EMPTY_NAMES = new String[0];
+
+    private String[] names = EMPTY_NAMES;
+
+    /**
+     * An open-addressed table of {@code 1 + index} of each mapping, keyed by
+     * name hash, with zero for empty slots. Null if this is small enough to
+     * search linearly.
+     */
+    private int[] table;
+
+    /**
+     * Returns the index of the mapping for {@code name}, or -1 if there is
+     * none.
+     */
+    public int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        if (table == null) {
+            for (int i = 0, size = size(); i < size; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            } else if (names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    public String nameAt(int index) {
+        return names[index];
+    }
+
+    public Object get(String name) {
+        int index = indexOf(name);
+        return index != -1 ? get(index) : null;
+    }
+
+    public void put(String name, Object value) {
+        set(indexFor(name), value);
+    }
+
+    public void put(String name, boolean value) {
+        set(indexFor(name), value);
+    }
+
+    public void put(String name, int value) {
+        set(indexFor(name), value);
+    }
+
+    public void put(String name, long value) {
+        set(indexFor(name), value);
+    }
+
+    public void put(String name, double value) {
+        set(indexFor(name), value);
+    }
+
+    public Object remove(String name) {
+        int index = indexOf(name);
+        return index != -1 ? remove(index) : null;
+    }
+
+    @Override public Object remove(int index) {
+        Object result = super.remove(index);
+        int size = size();
+        System.arraycopy(names, index + 1, names, index, size - index);
+        names[size] = null;
+        // removals are rare, so just reindex every mapping that moved
+        rebuildTable();
+        return result;
+    }
+
+    @Override void resize(int capacity) {
+        super.resize(capacity);
+        names = Arrays.copyOf(names, capacity);
+    }
+
+    public List<String> names() {
+        return Arrays.asList(names).subList(0, size());
+    }
+
+    /**
+     * Returns an iterator over the names of this list. Its {@code remove}
+     * method removes the mapping.
+     */
+    public Iterator<String> nameIterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+            private int last = -1;
+
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            public String next() {
+                if (next >= size()) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return names[last];
+            }
+
+            public void remove() {
+                if (last == -1) {
+                    throw new IllegalStateException();
+                }
+                NameValueList.this.remove(last);
+                next = last;
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * Returns the index of the mapping for {@code name}, appending a mapping
+     * to null if there is none.
+     */
+    private int indexFor(String name) {
+        int index = indexOf(name);
+        if (index != -1) {
+            return index;
+        }
+        index = size();
+        add((Object) null);
+        names[index] = name;
+        if (table != null && table.length >= 2 * size()) {
+            insert(index);
+        } else {
+            rebuildTable();
+        }
+        return index;
+    }
+
+    private void rebuildTable() {
+        int size = size();
+        if (size <= MAX_LINEAR_SIZE) {
+            table = null;
+            return;
+        }
+        // keep the table at most half full
+        int capacity = Integer.highestOneBit(size) * 4;
+        if (table == null || table.length != capacity) {
+            table = new int[capacity];
+        } else {
+            Arrays.fill(table, 0);
+        }
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = hash(names[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
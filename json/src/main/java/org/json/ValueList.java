@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.util.Arrays;
+
+/**
+ * A compact list of JSON values. Booleans, integers, longs and doubles are
+ * stored unboxed in a parallel {@code long[]} and boxed again only when they
+ * are read; all other values are stored as references. The primitive columns
+ * aren't allocated until the first primitive is stored, so lists of strings
+ * and nested values cost no more than an {@code Object[]}.
+ *
+ * <p>Values read back are equal to the values stored, but boxed values may
+ * not be the same instances.
+ */
+class ValueList {
+    private static final byte OBJECT = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+
+    /** Most JSON objects have a handful of members, so start with room for a few. */
+    private static final int MIN_CAPACITY = 8;
+
+    private static final Object[] EMPTY_OBJECTS = new Object[0];
+
+    private Object[] objects = EMPTY_OBJECTS;
+
+    /** The kind of each value, or null if every value is an object. */
+    private byte[] kinds;
+
+    /** The bits of each primitive value, or null if every value is an object. */
+    private long[] primitives;
+
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(int index) {
+        checkIndex(index);
+        if (kinds == null) {
+            return objects[index];
+        }
+        long bits = primitives[index];
+        switch (kinds[index]) {
+            case BOOLEAN:
+                return bits != 0;
+            case INT:
+                return (int) bits;
+            case LONG:
+                return bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return objects[index];
+        }
+    }
+
+    public void add(Object value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    public void add(boolean value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    public void add(long value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    public void add(double value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    /**
+     * Replaces the value at {@code index}. Boxed primitives are unboxed.
+     */
+    public void set(int index, Object value) {
+        if (value instanceof Integer) {
+            set(index, ((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            set(index, ((Long) value).longValue());
+        } else if (value instanceof Double) {
+            set(index, ((Double) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            set(index, ((Boolean) value).booleanValue());
+        } else {
+            checkIndex(index);
+            objects[index] = value;
+            if (kinds != null) {
+                kinds[index] = OBJECT;
+            }
+        }
+    }
+
+    public void set(int index, boolean value) {
+        setPrimitive(index, BOOLEAN, value ? 1 : 0);
+    }
+
+    public void set(int index, int value) {
+        setPrimitive(index, INT, value);
+    }
+
+    public void set(int index, long value) {
+        setPrimitive(index, LONG, value);
+    }
+
+    public void set(int index, double value) {
+        setPrimitive(index, DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    private void setPrimitive(int index, byte kind, long bits) {
+        checkIndex(index);
+        if (kinds == null) {
+            kinds = new byte[objects.length];
+            primitives = new long[objects.length];
+        }
+        objects[index] = null;
+        kinds[index] = kind;
+        primitives[index] = bits;
+    }
+
+    /**
+     * Removes the value at {@code index}, shifting the values after it.
+     *
+     * @return the removed value.
+     */
+    public Object remove(int index) {
+        Object result = get(index);
+        int moved = size - index - 1;
+        System.arraycopy(objects, index + 1, objects, index, moved);
+        if (kinds != null) {
+            System.arraycopy(kinds, index + 1, kinds, index, moved);
+            System.arraycopy(primitives, index + 1, primitives, index, moved);
+        }
+        objects[--size] = null;
+        return result;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = objects.length;
+        if (capacity < minCapacity) {
+            resize(Math.max(minCapacity, capacity < MIN_CAPACITY ? MIN_CAPACITY : capacity * 2));
+        }
+    }
+
+    /**
+     * Grows this list's columns to {@code capacity}. Subclasses that store
+     * more columns should grow them too.
+     */
+    void resize(int capacity) {
+        objects = Arrays.copyOf(objects, capacity);
+        if (kinds != null) {
+            kinds = Arrays.copyOf(kinds, capacity);
+            primitives = Arrays.copyOf(primitives, capacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size);
+        }
+    }
+
+    /**
+     * Returns true if {@code o} is a list with equal values in the same order,
+     * using the same rules as {@link java.util.List#equals}.
+     */
+    @Override public boolean equals(Object o) {
+        if (!(o instanceof ValueList)) {
+            return false;
+        }
+        ValueList other = (ValueList) o;
+        if (other.size != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            Object value = get(i);
+            Object otherValue = other.get(i);
+            if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the same hash code as {@link java.util.List#hashCode} would for
+     * this list's values.
+     */
+    @Override public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            Object value = get(i);
+            result = 31 * result + (value == null ? 0 : value.hashCode());
+        }
+        return result;
+    }
+}
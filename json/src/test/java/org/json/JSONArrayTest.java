@@ -538,4 +538,31 @@ public class JSONArrayTest extends TestCase {
         } catch (JSONException e) {
         }
     }
+
+    public void testPrimitiveValuesKeepTheirTypes() throws JSONException {
+        JSONArray array = new JSONArray();
+        array.put(true);
+        array.put(5);
+        array.put(5L);
+        array.put(5.0);
+        array.put(Integer.valueOf(6));
+        array.put("5");
+        array.put(8, 7);
+        assertEquals(Boolean.TRUE, array.get(0));
+        assertEquals(Integer.valueOf(5), array.get(1));
+        assertEquals(Long.valueOf(5), array.get(2));
+        assertEquals(Double.valueOf(5.0), array.get(3));
+        assertEquals(Integer.valueOf(6), array.get(4));
+        assertEquals("5", array.get(5));
+        assertTrue(array.isNull(6));
+        assertTrue(array.isNull(7));
+        assertEquals(Integer.valueOf(7), array.get(8));
+        assertEquals("[true,5,5,5,6,\"5\",null,null,7]", array.toString());
+
+        JSONArray equal = new JSONArray(Arrays.asList(true, 5, 5L, 5.0, 6, "5", null, null, 7));
+        assertEquals(equal, array);
+        assertEquals(equal.hashCode(), array.hashCode());
+        assertEquals(Arrays.asList(true, 5, 5L, 5.0, 6, "5", null, null, 7).hashCode(),
+                array.hashCode());
+    }
 }
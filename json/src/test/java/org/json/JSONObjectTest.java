@@ -961,4 +961,51 @@ public class JSONObjectTest extends TestCase {
         } catch (JSONException e) {
         }
     }
+
+    public void testManyNames() throws JSONException {
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < 1000; i++) {
+            object.put("name" + i, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(i, object.remove("name" + i));
+        }
+        assertEquals(500, object.length());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1, object.has("name" + i));
+            assertEquals(i % 2 == 1 ? i : 0, object.optInt("name" + i));
+        }
+        object.put("name1", "replaced");
+        assertEquals(500, object.length());
+        assertEquals("replaced", object.get("name1"));
+
+        Iterator keys = object.keys();
+        while (keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+        assertEquals(0, object.length());
+        assertFalse(object.has("name1"));
+    }
+
+    public void testPrimitiveValuesKeepTheirTypes() throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("boolean", true);
+        object.put("int", 5);
+        object.put("long", 5L);
+        object.put("double", 5.0);
+        object.put("negativeZero", -0.0d);
+        object.put("string", "5");
+        assertEquals(Boolean.TRUE, object.get("boolean"));
+        assertEquals(Integer.valueOf(5), object.get("int"));
+        assertEquals(Long.valueOf(5), object.get("long"));
+        assertEquals(Double.valueOf(5.0), object.get("double"));
+        assertEquals(Double.valueOf(-0.0d), object.get("negativeZero"));
+        assertEquals("5", object.get("string"));
+
+        object.put("int", "now a string");
+        assertEquals("now a string", object.get("int"));
+        object.put("string", 6L);
+        assertEquals(Long.valueOf(6), object.get("string"));
+    }
 }
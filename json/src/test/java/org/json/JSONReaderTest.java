@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import junit.framework.TestCase;
+
+public class JSONReaderTest extends TestCase {
+
+    public void testPullObject() throws Exception {
+        JSONReader reader = new JSONReader(
+                "{\"id\": 5000000000, \"name\": \"foo\", \"ok\": true, \"ratio\": 0.5,"
+                + " \"skipped\": {\"a\": [1, [2], {}]}, \"none\": null}");
+        assertEquals(JSONReader.Token.BEGIN_OBJECT, reader.peek());
+        reader.beginObject();
+        assertEquals("id", reader.nextName());
+        assertEquals(JSONReader.Token.NUMBER, reader.peek());
+        assertEquals(5000000000L, reader.nextLong());
+        assertEquals("name", reader.nextName());
+        assertEquals("foo", reader.nextString());
+        assertEquals("ok", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("ratio", reader.nextName());
+        assertEquals(0.5, reader.nextDouble());
+        assertEquals("skipped", reader.nextName());
+        reader.skipValue();
+        assertEquals("none", reader.nextName());
+        reader.nextNull();
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        assertEquals(JSONReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    public void testPullArray() throws Exception {
+        JSONReader reader = new JSONReader("[1, \"2\", 3.9, 0x10, 010]");
+        reader.beginArray();
+        assertEquals(1, reader.nextInt());
+        assertEquals(2, reader.nextInt());
+        assertEquals(3, reader.nextInt());
+        assertEquals(16, reader.nextInt());
+        assertEquals("010", reader.nextString());
+        reader.endArray();
+        assertFalse(reader.hasNext());
+    }
+
+    public void testOmittedArrayElements() throws Exception {
+        JSONReader reader = new JSONReader("[,1,,]");
+        reader.beginArray();
+        reader.nextNull();
+        assertEquals(1, reader.nextInt());
+        reader.nextNull();
+        reader.nextNull();
+        reader.endArray();
+    }
+
+    public void testMismatchedToken() throws Exception {
+        JSONReader reader = new JSONReader("{\"a\": \"b\"}");
+        try {
+            reader.beginArray();
+            fail();
+        } catch (JSONException expected) {
+        }
+        reader.beginObject();
+        reader.nextName();
+        try {
+            reader.nextLong();
+            fail();
+        } catch (JSONException expected) {
+        }
+        assertEquals("b", reader.nextString());
+    }
+
+    public void testSyntaxErrors() throws Exception {
+        assertSyntaxError("");
+        assertSyntaxError("[1 2]");
+        assertSyntaxError("{\"a\" 1}");
+        assertSyntaxError("{\"a\": 1,}");
+        assertSyntaxError("{5: 1}");
+        assertSyntaxError("{\"a\": 1");
+        assertSyntaxError("[\"a");
+        assertSyntaxError("[/* a");
+        assertSyntaxError("[\"\\u00");
+    }
+
+    private void assertSyntaxError(String json) throws IOException {
+        try {
+            new JSONReader(json).skipValue();
+            fail(json);
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testMatchesTokener() throws Exception {
+        String[] inputs = {
+            "{\"foo\": [true, false, null, 1, -2, 5000000000, 1.5e3, \"bar\"]}",
+            "\ufeff[1]",
+            "{'a' = 1; b => 'c', \"d\": {}}",
+            "[a, b, 'd\\'e', \"\\u0041\\n\\t\\\\\"]",
+            "// comment\n[1, # comment\n 2 /* comment */, 3]",
+            "[,, 1, ;]",
+            "[0xFF, 0777, 1e400, 9223372036854775808, NaN]",
+            "{\"a\": [[], [[]], {\"b\": {}}]} trailing garbage",
+            "\"top-level string\"",
+            "true",
+        };
+        for (String input : inputs) {
+            Object expected = new JSONTokener(input).nextValue();
+            assertEquals(input, String.valueOf(expected),
+                    String.valueOf(new JSONReader(input).nextValue()));
+            assertEquals(input, String.valueOf(expected),
+                    String.valueOf(new JSONReader(new TrickleReader(input)).nextValue()));
+        }
+    }
+
+    public void testLongStringsSpanBuffers() throws Exception {
+        StringBuilder name = new StringBuilder();
+        StringBuilder escaped = new StringBuilder();
+        StringBuilder unescaped = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            name.append((char) ('a' + i % 26));
+            escaped.append("\\u0041\\\"");
+            unescaped.append("A\"");
+        }
+        JSONReader reader = new JSONReader("{" + name + ": \"" + escaped + "\"}");
+        reader.beginObject();
+        assertEquals(name.toString(), reader.nextName());
+        assertEquals(unescaped.toString(), reader.nextString());
+        reader.endObject();
+    }
+
+    public void testInputStreamIsUtf8() throws Exception {
+        byte[] bytes = "[\"\u00e9\u4e2d\"]".getBytes("UTF-8");
+        JSONReader reader = new JSONReader(new ByteArrayInputStream(bytes));
+        reader.beginArray();
+        assertEquals("\u00e9\u4e2d", reader.nextString());
+        reader.endArray();
+    }
+
+    public void testErrorPosition() throws Exception {
+        try {
+            new JSONReader("[1, 2 3]").nextValue();
+            fail();
+        } catch (JSONException e) {
+            assertEquals("Unterminated array at character 7", e.getMessage());
+        }
+    }
+
+    public void testClose() throws Exception {
+        JSONReader reader = new JSONReader("[1]");
+        reader.beginArray();
+        reader.close();
+        try {
+            reader.peek();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Returns one character per read, so every token spans buffer refills.
+     */
+    static class TrickleReader extends Reader {
+        private final StringReader delegate;
+
+        TrickleReader(String s) {
+            delegate = new StringReader(s);
+        }
+
+        @Override public int read(char[] buffer, int offset, int count) throws IOException {
+            return delegate.read(buffer, offset, Math.min(count, 1));
+        }
+
+        @Override public void close() {
+            delegate.close();
+        }
+    }
+}
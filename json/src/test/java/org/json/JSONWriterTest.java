@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class JSONWriterTest extends TestCase {
+
+    public void testMatchesStringer() throws Exception {
+        StringWriter out = new StringWriter();
+        new JSONWriter(out)
+                .object()
+                .key("a").value("\"\\/\t\b\n\r\f\u0001 \u00e9")
+                .key("b").value(5)
+                .key("c").value(-0.0)
+                .key("d").value(true)
+                .key("e").value(null)
+                .key("f").value(JSONObject.NULL)
+                .key("g").array().endArray()
+                .key("h").value(new JSONArray(Arrays.asList(1.5, "x", new JSONObject())))
+                .endObject()
+                .flush();
+
+        JSONStringer stringer = new JSONStringer()
+                .object()
+                .key("a").value("\"\\/\t\b\n\r\f\u0001 \u00e9")
+                .key("b").value(5)
+                .key("c").value(-0.0)
+                .key("d").value(true)
+                .key("e").value(null)
+                .key("f").value(JSONObject.NULL)
+                .key("g").array().endArray()
+                .key("h").value(new JSONArray(Arrays.asList(1.5, "x", new JSONObject())))
+                .endObject();
+        assertEquals(stringer.toString(), out.toString());
+    }
+
+    public void testWriteTree() throws Exception {
+        JSONObject object = new JSONObject(
+                "{\"a\": [1, 2, {\"b\": null}], \"c\": \"d\", \"e\": 5000000000}");
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.value(object);
+        writer.flush();
+        assertEquals(object.toString(), out.toString());
+    }
+
+    public void testLargeDocumentSpansBuffers() throws Exception {
+        JSONArray array = new JSONArray();
+        char[] chars = new char[10000];
+        Arrays.fill(chars, '\n');
+        array.put(new String(chars));
+        for (int i = 0; i < 10000; i++) {
+            array.put("value " + i);
+        }
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.value(array);
+        writer.close();
+        assertEquals(array.toString(), out.toString());
+    }
+
+    public void testOutputStreamIsUtf8() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONWriter writer = new JSONWriter(out);
+        writer.array().value("\u00e9\u4e2d\ud83d\ude00").endArray();
+        writer.flush();
+        assertEquals("[\"\u00e9\u4e2d\ud83d\ude00\"]", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    public void testNestingProblems() throws Exception {
+        JSONWriter writer = new JSONWriter(new StringWriter());
+        try {
+            writer.value(5);
+            fail();
+        } catch (JSONException expected) {
+        }
+        try {
+            writer.key("a");
+            fail();
+        } catch (JSONException expected) {
+        }
+
+        writer.array();
+        try {
+            writer.key("a");
+            fail();
+        } catch (JSONException expected) {
+        }
+        try {
+            writer.endObject();
+            fail();
+        } catch (JSONException expected) {
+        }
+        writer.endArray();
+
+        try {
+            writer.object();
+            fail();
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testForbiddenNumbers() throws Exception {
+        JSONWriter writer = new JSONWriter(new StringWriter()).array();
+        try {
+            writer.value(Double.NaN);
+            fail();
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testCloseIncompleteDocument() throws Exception {
+        JSONWriter writer = new JSONWriter(new StringWriter()).array();
+        try {
+            writer.close();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
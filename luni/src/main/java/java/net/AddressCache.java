@@ -16,29 +16,79 @@
 
 package java.net;
 
-import libcore.util.BasicLruCache;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements caching for {@code InetAddress}. We use a unified cache for both positive and negative
- * cache entries.
+ * cache entries. This class exposes its tuning parameters as system properties:
+ * <ul>
+ *   <li>{@code networkaddress.cache.size} maximum number of host names to cache. When exceeded,
+ *       the least recently used entry is dropped. Default is 16.
+ *   <li>{@code networkaddress.cache.ttl} time in seconds to cache a successful lookup, or -1 to
+ *       cache it forever. Default is 2.
+ *   <li>{@code networkaddress.cache.negative.ttl} time in seconds to cache a failed lookup, or -1
+ *       to cache it forever. Default is 2.
+ *   <li>{@code networkaddress.cache.stale.ttl} time in seconds past its TTL that a successful
+ *       lookup may still be returned while it is refreshed on a background thread. Default is 0,
+ *       which never returns stale addresses.
+ * </ul>
+ *
+ * <p>Lookups of different host names don't contend with each other. Concurrent lookups of the
+ * same uncached host name share a single call to the resolver.
  *
  * TODO: benchmark and optimize InetAddress until we get to the point where we can just rely on
  * the C library level caching. The main thing caching at this level buys us is avoiding repeated
  * conversions from 'struct sockaddr's to InetAddress[].
  */
 class AddressCache {
+    private static final int DEFAULT_MAX_ENTRIES = 16;
+
+    // The default TTL for the Java-level cache is short, just 2s.
+    private static final long DEFAULT_TTL_SECONDS = 2;
+
     /**
-     * When the cache contains more entries than this, we start dropping the oldest ones.
-     * This should be a power of two to avoid wasted space in our custom map.
+     * Resolves host names that are not cached.
      */
-    private static final int MAX_ENTRIES = 16;
+    interface Resolver {
+        /**
+         * Returns the addresses of {@code hostname}.
+         *
+         * @throws UnknownHostException if {@code hostname} is known not to exist. This is cached
+         *     as a negative entry; other exceptions are not cached.
+         */
+        InetAddress[] resolve(String hostname) throws UnknownHostException;
+    }
 
-    // The TTL for the Java-level cache is short, just 2s.
-    private static final long TTL_NANOS = 2 * 1000000000L;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long staleNanos;
 
     // The actual cache.
-    private final BasicLruCache<String, AddressCacheEntry> cache
-            = new BasicLruCache<String, AddressCacheEntry>(MAX_ENTRIES);
+    private final ConcurrentHashMap<String, AddressCacheEntry> cache
+            = new ConcurrentHashMap<String, AddressCacheEntry>();
+
+    /** Lookups in progress, by host name. */
+    private final ConcurrentHashMap<String, Lookup> lookups
+            = new ConcurrentHashMap<String, Lookup>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+
+    /** Runs refreshes of stale entries. Created when first needed. */
+    private ThreadPoolExecutor refreshExecutor;
 
     static class AddressCacheEntry {
         // Either an InetAddress[] for a positive entry,
@@ -48,22 +98,108 @@ class AddressCache {
         /**
          * The absolute expiry time in nanoseconds. Nanoseconds from System.nanoTime is ideal
          * because -- unlike System.currentTimeMillis -- it can never go backwards.
-         *
-         * We don't need to worry about overflow with a TTL_NANOS of 2s.
          */
         final long expiryNanos;
 
-        AddressCacheEntry(Object value) {
+        /** When this entry was created or last returned, for LRU eviction. */
+        volatile long lastUsedNanos;
+
+        AddressCacheEntry(Object value, long nowNanos, long ttlNanos) {
             this.value = value;
-            this.expiryNanos = System.nanoTime() + TTL_NANOS;
+            this.expiryNanos = nowNanos + ttlNanos;
+            this.lastUsedNanos = nowNanos;
+        }
+    }
+
+    /**
+     * A resolution in progress. Threads that look up the same host name wait for its result
+     * rather than resolving it again.
+     */
+    private static final class Lookup {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** The addresses found, or null if the lookup failed. */
+        InetAddress[] addresses;
+
+        /** The failure, or null if the lookup succeeded. */
+        Throwable failure;
+    }
+
+    AddressCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_SECONDS * 1000, DEFAULT_TTL_SECONDS * 1000, 0);
+    }
+
+    /**
+     * @param ttlMillis how long to cache successful lookups, or -1 to cache them forever.
+     * @param negativeTtlMillis how long to cache failed lookups, or -1 to cache them forever.
+     * @param staleMillis how long past its TTL a successful lookup may be returned while it is
+     *     refreshed in the background.
+     */
+    AddressCache(int maxEntries, long ttlMillis, long negativeTtlMillis, long staleMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = toNanos(ttlMillis);
+        this.negativeTtlNanos = toNanos(negativeTtlMillis);
+        this.staleNanos = Math.max(0, TimeUnit.MILLISECONDS.toNanos(staleMillis));
+    }
+
+    /**
+     * Returns the nanoseconds of a TTL in milliseconds, capped so that adding it to a
+     * System.nanoTime value doesn't overflow for a few centuries.
+     */
+    private static long toNanos(long ttlMillis) {
+        long max = Long.MAX_VALUE / 4;
+        return ttlMillis < 0 ? max : Math.min(max, TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+    }
+
+    /**
+     * Returns a cache configured by the {@code networkaddress.cache.*} system properties. Values
+     * that are malformed or out of range are logged and replaced by the defaults, as the RI does:
+     * this runs while InetAddress is initialized, and throwing would make networking unusable.
+     */
+    static AddressCache newFromSystemProperties() {
+        int maxEntries = (int) getLongProperty("networkaddress.cache.size",
+                DEFAULT_MAX_ENTRIES, 1, Integer.MAX_VALUE);
+        long ttlSeconds = getLongProperty("networkaddress.cache.ttl",
+                DEFAULT_TTL_SECONDS, Long.MIN_VALUE, Long.MAX_VALUE);
+        long negativeTtlSeconds = getLongProperty("networkaddress.cache.negative.ttl",
+                DEFAULT_TTL_SECONDS, Long.MIN_VALUE, Long.MAX_VALUE);
+        long staleSeconds = getLongProperty("networkaddress.cache.stale.ttl",
+                0, 0, Long.MAX_VALUE);
+
+        return new AddressCache(maxEntries,
+                ttlSeconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(ttlSeconds),
+                negativeTtlSeconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(negativeTtlSeconds),
+                TimeUnit.SECONDS.toMillis(staleSeconds));
+    }
+
+    /**
+     * Returns the value of the system property {@code name}, or {@code defaultValue} if it is
+     * unset, malformed or outside of {@code [min, max]}.
+     */
+    static long getLongProperty(String name, long defaultValue, long min, long max) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result >= min && result <= max) {
+                return result;
+            }
+        } catch (NumberFormatException ignored) {
         }
+        System.logW("Ignoring bad value for " + name + ": " + value);
+        return defaultValue;
     }
 
     /**
      * Removes all entries from the cache.
      */
     public void clear() {
-        cache.evictAll();
+        cache.clear();
     }
 
     /**
@@ -73,8 +209,10 @@ class AddressCache {
      */
     public Object get(String hostname) {
         AddressCacheEntry entry = cache.get(hostname);
+        long now = System.nanoTime();
         // Do we have a valid cache entry?
-        if (entry != null && entry.expiryNanos >= System.nanoTime()) {
+        if (entry != null && entry.expiryNanos - now >= 0) {
+            entry.lastUsedNanos = now;
             return entry.value;
         }
         // Either we didn't find anything, or it had expired.
@@ -87,7 +225,7 @@ class AddressCache {
      * certain length of time.
      */
     public void put(String hostname, InetAddress[] addresses) {
-        cache.put(hostname, new AddressCacheEntry(addresses));
+        put(hostname, new AddressCacheEntry(addresses, System.nanoTime(), ttlNanos));
     }
 
     /**
@@ -95,6 +233,241 @@ class AddressCache {
      * negative cache entry.)
      */
     public void putUnknownHost(String hostname, String detailMessage) {
-        cache.put(hostname, new AddressCacheEntry(detailMessage));
+        put(hostname, new AddressCacheEntry(detailMessage, System.nanoTime(), negativeTtlNanos));
+    }
+
+    private void put(String hostname, AddressCacheEntry entry) {
+        if (cache.put(hostname, entry) == null && cache.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Drops the least recently used entries until the cache is no larger than its maximum size.
+     * The cache is small, so this simply scans it.
+     */
+    private synchronized void evict() {
+        while (cache.size() > maxEntries) {
+            String eldestHostname = null;
+            AddressCacheEntry eldest = null;
+            for (Map.Entry<String, AddressCacheEntry> e : cache.entrySet()) {
+                AddressCacheEntry entry = e.getValue();
+                // compare differences, since nanoTime may wrap
+                if (eldest == null || entry.lastUsedNanos - eldest.lastUsedNanos < 0) {
+                    eldestHostname = e.getKey();
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            cache.remove(eldestHostname, eldest);
+        }
+    }
+
+    /**
+     * Returns the addresses of 'hostname', from the cache if possible and from 'resolver'
+     * otherwise. Concurrent calls for the same uncached host name share one call to 'resolver'.
+     * If stale addresses are allowed and the cached ones have just expired, they are returned
+     * and 'resolver' is called on a background thread to refresh them.
+     *
+     * @throws UnknownHostException if 'hostname' is known not to exist.
+     */
+    public InetAddress[] lookup(String hostname, Resolver resolver) throws UnknownHostException {
+        AddressCacheEntry entry = cache.get(hostname);
+        long now = System.nanoTime();
+        if (entry != null) {
+            long age = now - entry.expiryNanos;
+            if (age <= 0) {
+                hitCount.incrementAndGet();
+                entry.lastUsedNanos = now;
+                return valueOf(entry);
+            }
+            if (age <= staleNanos && entry.value instanceof InetAddress[]) {
+                staleHitCount.incrementAndGet();
+                entry.lastUsedNanos = now;
+                refreshInBackground(hostname, resolver);
+                return (InetAddress[]) entry.value;
+            }
+        }
+
+        Lookup lookup = new Lookup();
+        Lookup existing = lookups.putIfAbsent(hostname, lookup);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return await(existing);
+        }
+        missCount.incrementAndGet();
+        resolve(hostname, resolver, lookup, true);
+        return await(lookup);
+    }
+
+    private static InetAddress[] valueOf(AddressCacheEntry entry) throws UnknownHostException {
+        if (entry.value instanceof InetAddress[]) {
+            // A cached positive result.
+            return (InetAddress[]) entry.value;
+        } else {
+            // A cached negative result.
+            throw new UnknownHostException((String) entry.value);
+        }
+    }
+
+    /**
+     * Calls 'resolver' for 'lookup', which this thread has registered, caches the result and
+     * publishes it to threads waiting on the lookup.
+     *
+     * @param cacheUnknownHost true to insert a negative entry if 'hostname' doesn't exist.
+     */
+    private void resolve(String hostname, Resolver resolver, Lookup lookup,
+            boolean cacheUnknownHost) {
+        long start = System.nanoTime();
+        try {
+            lookup.addresses = resolver.resolve(hostname);
+            put(hostname, lookup.addresses);
+        } catch (UnknownHostException e) {
+            if (cacheUnknownHost) {
+                putUnknownHost(hostname, e.getMessage());
+            }
+            lookup.failure = e;
+        } catch (Throwable t) {
+            lookup.failure = t;
+        } finally {
+            lookupCount.incrementAndGet();
+            lookupNanos.addAndGet(System.nanoTime() - start);
+            lookups.remove(hostname, lookup);
+            lookup.done.countDown();
+        }
+    }
+
+    /**
+     * Waits for 'lookup' to complete and returns its addresses, or throws its failure. Callers
+     * that share a lookup see the same exception; an UnknownHostException is copied so each
+     * caller gets its own stack trace.
+     */
+    private static InetAddress[] await(Lookup lookup) throws UnknownHostException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                lookup.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable failure = lookup.failure;
+        if (failure == null) {
+            return lookup.addresses;
+        } else if (failure instanceof UnknownHostException) {
+            UnknownHostException copy = new UnknownHostException(failure.getMessage());
+            copy.initCause(failure.getCause());
+            throw copy;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            throw new AssertionError(failure);
+        }
+    }
+
+    /**
+     * Refreshes the stale entry for 'hostname' on the refresh thread, unless a lookup is already
+     * in progress. A failed refresh leaves the stale entry in place until it can no longer be
+     * returned.
+     */
+    private void refreshInBackground(final String hostname, final Resolver resolver) {
+        final Lookup lookup = new Lookup();
+        if (lookups.putIfAbsent(hostname, lookup) != null) {
+            return;
+        }
+        Runnable refresh = new Runnable() {
+            public void run() {
+                resolve(hostname, resolver, lookup, false);
+            }
+        };
+        try {
+            refreshExecutor().execute(refresh);
+        } catch (RejectedExecutionException e) {
+            lookup.failure = e;
+            lookups.remove(hostname, lookup);
+            lookup.done.countDown();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor refreshExecutor() {
+        if (refreshExecutor == null) {
+            // a single thread that exits when it has been idle for a while
+            refreshExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "AddressCache refresh");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            refreshExecutor.allowCoreThreadTimeOut(true);
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Returns the number of lookups answered by a fresh cache entry.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups answered by a stale entry while it was refreshed.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups that had to call the resolver.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of lookups that waited for another thread's call to the resolver rather
+     * than making their own.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of calls to the resolver, including background refreshes.
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * Returns the total time spent in the resolver, in nanoseconds.
+     */
+    public long getLookupNanos() {
+        return lookupNanos.get();
+    }
+
+    @Override public String toString() {
+        long lookups = lookupCount.get();
+        return "AddressCache[size=" + cache.size()
+                + ",maxEntries=" + maxEntries
+                + ",hits=" + hitCount.get()
+                + ",staleHits=" + staleHitCount.get()
+                + ",misses=" + missCount.get()
+                + ",coalesced=" + coalescedCount.get()
+                + ",lookups=" + lookups
+                + ",meanLookupMillis="
+                + (lookups != 0 ? TimeUnit.NANOSECONDS.toMillis(lookupNanos.get() / lookups) : 0)
+                + "]";
     }
 }
@@ -20,31 +20,96 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An in-memory cookie store.
+ *
+ * <p>Cookies are indexed both by the URI they were added for and by their
+ * lower-case domain, so {@link #get} only examines cookies whose domain could
+ * match the URI's host: the host itself and its dot-prefixed suffixes. Lookups
+ * share a read lock and may run concurrently.
+ *
+ * <p>The store holds at most {@code maxSize} cookies. Each lookup stamps the
+ * cookies it returns, and adding a cookie to a full store evicts the least
+ * recently used one. Expired cookies are removed when a lookup or eviction
+ * comes across them.
  */
 final class CookieStoreImpl implements CookieStore {
 
-    /** this map may have null keys! */
-    private final Map<URI, List<HttpCookie>> map = new HashMap<URI, List<HttpCookie>>();
+    /** The minimum number of cookies RFC 6265 asks user agents to store. */
+    static final int DEFAULT_MAX_SIZE = 3000;
+
+    private static final String LOCAL_DOMAIN = ".local";
+
+    private static final class Entry {
+        final URI uri;
+        final HttpCookie cookie;
+
+        /** The cookie's lower-case domain when it was added, or null if it had none. */
+        final String domain;
+
+        /** When this cookie was added or last returned by {@code get}. */
+        volatile long lastUsedNanos = System.nanoTime();
+
+        Entry(URI uri, HttpCookie cookie) {
+            this.uri = uri;
+            this.cookie = cookie;
+            String domain = cookie.getDomain();
+            this.domain = domain != null ? domain.toLowerCase(Locale.US) : null;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final int maxSize;
+
+    /** Entries by the URI they were added for, in insertion order. This map may have null keys! */
+    private final Map<URI, List<Entry>> uriToEntries = new LinkedHashMap<URI, List<Entry>>();
+
+    /** Entries by domain. Cookies without a domain are not indexed here. */
+    private final Map<String, List<Entry>> domainToEntries = new HashMap<String, List<Entry>>();
+
+    private int size;
+
+    CookieStoreImpl() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    CookieStoreImpl(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
 
-    public synchronized void add(URI uri, HttpCookie cookie) {
+    public void add(URI uri, HttpCookie cookie) {
         if (cookie == null) {
             throw new NullPointerException("cookie == null");
         }
 
         uri = cookiesUri(uri);
-        List<HttpCookie> cookies = map.get(uri);
-        if (cookies == null) {
-            cookies = new ArrayList<HttpCookie>();
-            map.put(uri, cookies);
-        } else {
-            cookies.remove(cookie);
+        lock.writeLock().lock();
+        try {
+            removeEntry(uri, cookie);
+            Entry entry = new Entry(uri, cookie);
+            put(uriToEntries, uri, entry);
+            if (entry.domain != null) {
+                put(domainToEntries, entry.domain, entry);
+            }
+            if (++size > maxSize) {
+                evict();
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        cookies.add(cookie);
     }
 
     private URI cookiesUri(URI uri) {
@@ -58,86 +123,249 @@ final class CookieStoreImpl implements CookieStore {
         }
     }
 
-    public synchronized List<HttpCookie> get(URI uri) {
+    public List<HttpCookie> get(URI uri) {
         if (uri == null) {
             throw new NullPointerException("uri == null");
         }
 
-        List<HttpCookie> result = new ArrayList<HttpCookie>();
+        Set<HttpCookie> result = new LinkedHashSet<HttpCookie>();
+        List<Entry> expired = null;
+        long now = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            // get cookies associated with given URI. If none, returns an empty list
+            List<Entry> entriesForUri = uriToEntries.get(uri);
+            if (entriesForUri != null) {
+                for (Entry entry : entriesForUri) {
+                    if (entry.cookie.hasExpired()) {
+                        expired = addTo(expired, entry);
+                    } else {
+                        result.add(entry.cookie);
+                        entry.lastUsedNanos = now;
+                    }
+                }
+            }
 
-        // get cookies associated with given URI. If none, returns an empty list
-        List<HttpCookie> cookiesForUri = map.get(uri);
-        if (cookiesForUri != null) {
-            for (Iterator<HttpCookie> i = cookiesForUri.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
-                } else {
-                    result.add(cookie);
+            // get all cookies that domain matches the URI
+            String host = uri.getHost();
+            if (host != null) {
+                for (String domain : candidateDomains(host.toLowerCase(Locale.US))) {
+                    List<Entry> entries = domainToEntries.get(domain);
+                    if (entries == null) {
+                        continue;
+                    }
+                    for (Entry entry : entries) {
+                        if (uri.equals(entry.uri)
+                                || !HttpCookie.domainMatches(entry.cookie.getDomain(), host)) {
+                            continue;
+                        }
+                        if (entry.cookie.hasExpired()) {
+                            expired = addTo(expired, entry);
+                        } else {
+                            result.add(entry.cookie);
+                            entry.lastUsedNanos = now;
+                        }
+                    }
                 }
             }
+        } finally {
+            lock.readLock().unlock();
         }
 
-        // get all cookies that domain matches the URI
-        for (Map.Entry<URI, List<HttpCookie>> entry : map.entrySet()) {
-            if (uri.equals(entry.getKey())) {
-                continue; // skip the given URI; we've already handled it
-            }
+        removeExpired(expired);
+        return Collections.unmodifiableList(new ArrayList<HttpCookie>(result));
+    }
 
-            List<HttpCookie> entryCookies = entry.getValue();
-            for (Iterator<HttpCookie> i = entryCookies.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (!HttpCookie.domainMatches(cookie.getDomain(), uri.getHost())) {
-                    continue;
-                }
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
-                } else if (!result.contains(cookie)) {
-                    result.add(cookie);
+    /**
+     * Returns the cookie domains that may match {@code host}, which is lower
+     * case: the host itself, the host with a leading dot, each suffix of the
+     * host that starts with a dot, and {@code .local}. See {@link
+     * HttpCookie#domainMatches}.
+     */
+    private static List<String> candidateDomains(String host) {
+        List<String> result = new ArrayList<String>();
+        result.add(host);
+        result.add("." + host);
+        for (int i = host.indexOf('.', 1); i != -1; i = host.indexOf('.', i + 1)) {
+            result.add(host.substring(i));
+        }
+        if (!host.endsWith(LOCAL_DOMAIN)) {
+            result.add(LOCAL_DOMAIN);
+        }
+        return result;
+    }
+
+    public List<HttpCookie> getCookies() {
+        Set<HttpCookie> result = new LinkedHashSet<HttpCookie>();
+        List<Entry> expired = null;
+        lock.readLock().lock();
+        try {
+            for (List<Entry> entries : uriToEntries.values()) {
+                for (Entry entry : entries) {
+                    if (entry.cookie.hasExpired()) {
+                        expired = addTo(expired, entry);
+                    } else {
+                        result.add(entry.cookie);
+                    }
                 }
             }
+        } finally {
+            lock.readLock().unlock();
         }
 
-        return Collections.unmodifiableList(result);
+        removeExpired(expired);
+        return Collections.unmodifiableList(new ArrayList<HttpCookie>(result));
     }
 
-    public synchronized List<HttpCookie> getCookies() {
-        List<HttpCookie> result = new ArrayList<HttpCookie>();
-        for (List<HttpCookie> list : map.values()) {
-            for (Iterator<HttpCookie> i = list.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
-                } else if (!result.contains(cookie)) {
-                    result.add(cookie);
+    public List<URI> getURIs() {
+        lock.readLock().lock();
+        try {
+            List<URI> result = new ArrayList<URI>(uriToEntries.keySet());
+            result.remove(null); // sigh
+            return Collections.unmodifiableList(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(URI uri, HttpCookie cookie) {
+        if (cookie == null) {
+            throw new NullPointerException("cookie == null");
+        }
+
+        lock.writeLock().lock();
+        try {
+            return removeEntry(cookiesUri(uri), cookie) != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean removeAll() {
+        lock.writeLock().lock();
+        try {
+            boolean result = size != 0;
+            uriToEntries.clear();
+            domainToEntries.clear();
+            size = 0;
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for a cookie equal to {@code cookie} that was added
+     * for {@code uri}. Returns the removed entry, or null if there was none.
+     * The caller must hold the write lock.
+     */
+    private Entry removeEntry(URI uri, HttpCookie cookie) {
+        List<Entry> entries = uriToEntries.get(uri);
+        if (entries == null) {
+            return null;
+        }
+        for (Entry entry : entries) {
+            if (entry.cookie.equals(cookie)) {
+                removeEntry(entry);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes {@code entry} from both indices. The caller must hold the write
+     * lock.
+     */
+    private void removeEntry(Entry entry) {
+        if (!remove(uriToEntries, entry.uri, entry)) {
+            return; // already removed, such as by a concurrent lookup of expired cookies
+        }
+        if (entry.domain != null) {
+            remove(domainToEntries, entry.domain, entry);
+        }
+        size--;
+    }
+
+    /**
+     * Removes expired cookies found by a lookup that held only the read lock.
+     */
+    private void removeExpired(List<Entry> expired) {
+        if (expired == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (Entry entry : expired) {
+                if (entry.cookie.hasExpired()) {
+                    removeEntry(entry);
                 }
             }
+        } finally {
+            lock.writeLock().unlock();
         }
-        return Collections.unmodifiableList(result);
     }
 
-    public synchronized List<URI> getURIs() {
-        List<URI> result = new ArrayList<URI>(map.keySet());
-        result.remove(null); // sigh
-        return Collections.unmodifiableList(result);
+    /**
+     * Removes expired cookies, or else the least recently used cookie, until
+     * this store is no larger than its maximum size. The caller must hold the
+     * write lock.
+     */
+    private void evict() {
+        while (size > maxSize) {
+            Entry eldest = null;
+            outer:
+            for (List<Entry> entries : uriToEntries.values()) {
+                for (Entry entry : entries) {
+                    if (entry.cookie.hasExpired()) {
+                        eldest = entry;
+                        break outer;
+                    }
+                    // compare differences, since nanoTime may wrap
+                    if (eldest == null || entry.lastUsedNanos - eldest.lastUsedNanos < 0) {
+                        eldest = entry;
+                    }
+                }
+            }
+            removeEntry(eldest);
+        }
     }
 
-    public synchronized boolean remove(URI uri, HttpCookie cookie) {
-        if (cookie == null) {
-            throw new NullPointerException("cookie == null");
+    private static <K> void put(Map<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            map.put(key, entries);
         }
+        entries.add(entry);
+    }
 
-        List<HttpCookie> cookies = map.get(cookiesUri(uri));
-        if (cookies != null) {
-            return cookies.remove(cookie);
-        } else {
+    /**
+     * Removes {@code entry} from the list of {@code key}, dropping the list
+     * once it is empty. Returns true if the entry was found.
+     */
+    private static <K> boolean remove(Map<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
             return false;
         }
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext(); ) {
+            if (i.next() == entry) {
+                i.remove();
+                if (entries.isEmpty()) {
+                    map.remove(key);
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
-    public synchronized boolean removeAll() {
-        boolean result = !map.isEmpty();
-        map.clear();
-        return result;
+    private static List<Entry> addTo(List<Entry> list, Entry entry) {
+        if (list == null) {
+            list = new ArrayList<Entry>();
+        }
+        list.add(entry);
+        return list;
     }
 }
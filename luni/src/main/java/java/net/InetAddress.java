@@ -31,7 +31,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import libcore.io.ErrnoException;
 import libcore.io.GaiException;
@@ -125,7 +132,14 @@ import static libcore.io.OsConstants.*;
  */
 public class InetAddress implements Serializable {
     /** Our Java-side DNS cache. */
-    private static final AddressCache addressCache = new AddressCache();
+    private static final AddressCache addressCache = AddressCache.newFromSystemProperties();
+
+    /** Resolves host names that aren't in {@link #addressCache}. */
+    private static final AddressCache.Resolver RESOLVER = new AddressCache.Resolver() {
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return lookupHostByNameUncached(host);
+        }
+    };
 
     private static final long serialVersionUID = 3286316764910316507L;
 
@@ -383,17 +397,14 @@ public class InetAddress implements Serializable {
      */
     private static InetAddress[] lookupHostByName(String host) throws UnknownHostException {
         BlockGuard.getThreadPolicy().onNetwork();
-        // Do we have a result cached?
-        Object cachedResult = addressCache.get(host);
-        if (cachedResult != null) {
-            if (cachedResult instanceof InetAddress[]) {
-                // A cached positive result.
-                return (InetAddress[]) cachedResult;
-            } else {
-                // A cached negative result.
-                throw new UnknownHostException((String) cachedResult);
-            }
-        }
+        return addressCache.lookup(host, RESOLVER);
+    }
+
+    /**
+     * Resolves a hostname to its IP addresses without consulting the cache.
+     */
+    private static InetAddress[] lookupHostByNameUncached(String host)
+            throws UnknownHostException {
         try {
             StructAddrinfo hints = new StructAddrinfo();
             hints.ai_flags = AI_ADDRCONFIG;
@@ -407,7 +418,6 @@ public class InetAddress implements Serializable {
             for (InetAddress address : addresses) {
                 address.hostName = host;
             }
-            addressCache.put(host, addresses);
             return addresses;
         } catch (GaiException gaiException) {
             // If the failure appears to have been a lack of INTERNET permission, throw a clear
@@ -420,7 +430,6 @@ public class InetAddress implements Serializable {
             }
             // Otherwise, throw an UnknownHostException.
             String detailMessage = "Unable to resolve host \"" + host + "\": " + Libcore.os.gai_strerror(gaiException.error);
-            addressCache.putUnknownHost(host, detailMessage);
             throw gaiException.rethrowAsUnknownHostException(detailMessage);
         }
     }
@@ -434,6 +443,59 @@ public class InetAddress implements Serializable {
         addressCache.clear();
     }
 
+    /**
+     * Returns a future for the IP addresses of {@code host}, as they would be
+     * returned by {@link #getAllByName}. Literal IP addresses and host names
+     * with a fresh DNS cache entry are resolved immediately by the calling
+     * thread. Other host names are resolved by a pool of at most {@code
+     * networkaddress.resolver.threads} threads, 4 by default, so callers need
+     * not dedicate a thread to each lookup and may bound how long they wait.
+     *
+     * <p>The future's {@code get} method throws an {@code ExecutionException}
+     * caused by an {@code UnknownHostException} if the lookup fails.
+     * @hide
+     */
+    public static Future<InetAddress[]> getAllByNameAsync(final String host) {
+        FutureTask<InetAddress[]> task = new FutureTask<InetAddress[]>(
+                new Callable<InetAddress[]>() {
+                    public InetAddress[] call() throws UnknownHostException {
+                        return getAllByName(host);
+                    }
+                });
+        if (host == null || host.isEmpty() || parseNumericAddressNoThrow(host) != null
+                || addressCache.get(host) != null) {
+            task.run();
+        } else {
+            ResolverPool.INSTANCE.execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * The threads that run asynchronous lookups, created when first needed.
+     * Idle threads exit, so an unused pool costs nothing.
+     */
+    private static class ResolverPool {
+        static final ThreadPoolExecutor INSTANCE = newResolverPool();
+
+        private static ThreadPoolExecutor newResolverPool() {
+            // a bad value must not make this class fail to initialize
+            int threads = (int) AddressCache.getLongProperty("networkaddress.resolver.threads",
+                    4, 1, Integer.MAX_VALUE);
+            ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "InetAddress resolver");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            result.allowCoreThreadTimeOut(true);
+            return result;
+        }
+    }
+
     private static InetAddress getHostByAddrImpl(InetAddress address) throws UnknownHostException {
         BlockGuard.getThreadPolicy().onNetwork();
         try {
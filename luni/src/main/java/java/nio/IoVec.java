@@ -20,6 +20,7 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import libcore.io.Libcore;
 import libcore.io.ErrnoException;
+import static libcore.io.OsConstants.*;
 
 /**
  * Used to implement java.nio read(ByteBuffer[])/write(ByteBuffer[]) operations as POSIX readv(2)
@@ -28,6 +29,12 @@ import libcore.io.ErrnoException;
 final class IoVec {
     enum Direction { READV, WRITEV };
 
+    /**
+     * The kernel rejects readv(2)/writev(2) calls with more than IOV_MAX buffers. Larger arrays
+     * are transferred in part, which the scattering and gathering channel contracts allow.
+     */
+    private static final int IOV_MAX = 1024;
+
     private final ByteBuffer[] byteBuffers;
     private final int offset;
     private final int bufferCount;
@@ -41,11 +48,11 @@ final class IoVec {
     IoVec(ByteBuffer[] byteBuffers, int offset, int bufferCount, Direction direction) {
         this.byteBuffers = byteBuffers;
         this.offset = offset;
-        this.bufferCount = bufferCount;
+        this.bufferCount = Math.min(bufferCount, IOV_MAX);
         this.direction = direction;
-        this.ioBuffers = new Object[bufferCount];
-        this.offsets = new int[bufferCount];
-        this.byteCounts = new int[bufferCount];
+        this.ioBuffers = new Object[this.bufferCount];
+        this.offsets = new int[this.bufferCount];
+        this.byteCounts = new int[this.bufferCount];
     }
 
     int init() {
@@ -81,10 +88,39 @@ final class IoVec {
                 return Libcore.os.writev(fd, ioBuffers, offsets, byteCounts);
             }
         } catch (ErrnoException errnoException) {
+            if (errnoException.errno == EAGAIN || errnoException.errno == EWOULDBLOCK) {
+                // A non-blocking channel had nothing to read or no room to write.
+                return 0;
+            }
             throw errnoException.rethrowAsIOException();
         }
     }
 
+    /**
+     * Like {@link #doTransfer}, but for a connected socket. This uses recvmsg(2) or sendmsg(2),
+     * so that the call is woken by another thread closing the socket, StrictMode sees network
+     * rather than disk I/O, and failures are reported as {@code SocketException}s.
+     */
+    int doSocketTransfer(FileDescriptor fd) throws IOException {
+        try {
+            if (direction == Direction.READV) {
+                int result = Libcore.os.recvmsg(fd, ioBuffers, offsets, byteCounts, 0);
+                if (result == 0) {
+                    result = -1;
+                }
+                return result;
+            } else {
+                return Libcore.os.sendmsg(fd, ioBuffers, offsets, byteCounts, 0);
+            }
+        } catch (ErrnoException errnoException) {
+            if (errnoException.errno == EAGAIN || errnoException.errno == EWOULDBLOCK) {
+                // A non-blocking channel had nothing to read or no room to write.
+                return 0;
+            }
+            throw errnoException.rethrowAsSocketException();
+        }
+    }
+
     void didTransfer(int byteCount) {
         for (int i = 0; byteCount > 0 && i < bufferCount; ++i) {
             ByteBuffer b = byteBuffers[i + offset];
@@ -92,7 +128,7 @@ final class IoVec {
                 b.position(b.limit());
                 byteCount -= byteCounts[i];
             } else {
-                b.position((direction == Direction.WRITEV ? b.position() : 0) + byteCount);
+                b.position(b.position() + byteCount);
                 byteCount = 0;
             }
         }
@@ -37,6 +37,13 @@ final class SelectionKeyImpl extends AbstractSelectionKey {
 
     private SelectorImpl selector;
 
+    /*
+     * The slot and events this key is registered with in the selector's epoll
+     * instance. Only used by epoll selectors, and guarded by the selector.
+     */
+    int epollSlot = -1;
+    int epollEvents;
+
     public SelectionKeyImpl(AbstractSelectableChannel channel, int operations,
             Object attachment, SelectorImpl selector) {
         this.channel = channel;
@@ -72,6 +79,7 @@ final class SelectionKeyImpl extends AbstractSelectionKey {
         }
         synchronized (selector.keysLock) {
             interestOps = operations;
+            selector.interestOpsChanged(this);
         }
         return this;
     }
@@ -44,10 +44,18 @@ import libcore.util.EmptyArray;
 import static libcore.io.OsConstants.*;
 
 /*
- * Default implementation of java.nio.channels.Selector
+ * Default implementation of java.nio.channels.Selector. This either polls all
+ * of its keys on every select, or registers them with an epoll instance so
+ * that each select only costs as much as the number of ready keys. See
+ * SelectorProviderImpl for how the mechanism is chosen.
  */
 final class SelectorImpl extends AbstractSelector {
 
+    /** The epoll data value of the wakeup pipe. Keys use non-negative slots. */
+    private static final int WAKEUP_SLOT = -1;
+
+    private static final int MAX_EPOLL_EVENTS = 256;
+
     /**
      * Used to synchronize when a key's interest ops change.
      */
@@ -80,7 +88,28 @@ final class SelectorImpl extends AbstractSelector {
 
     private final UnsafeArrayList<StructPollfd> pollFds = new UnsafeArrayList<StructPollfd>(StructPollfd.class, 8);
 
-    public SelectorImpl(SelectorProvider selectorProvider) throws IOException {
+    /** The epoll instance, or null if this selector uses poll(2). */
+    private final FileDescriptor epollFd;
+
+    /**
+     * Keys whose interest set must be applied to the epoll instance before the
+     * next select. Guarded by keysLock.
+     */
+    private final Set<SelectionKeyImpl> pendingEpollChanges = new HashSet<SelectionKeyImpl>();
+
+    /*
+     * Keys registered with the epoll instance, indexed by the slot that is
+     * passed to the kernel as the event's data. Freed slots are reused.
+     */
+    private SelectionKeyImpl[] epollKeys = new SelectionKeyImpl[8];
+    private int[] freeEpollSlots = new int[8];
+    private int freeEpollSlotCount;
+    private int epollSlotCount;
+
+    private final int[] readyEvents;
+    private final int[] readySlots;
+
+    public SelectorImpl(SelectorProvider selectorProvider, boolean useEpoll) throws IOException {
         super(selectorProvider);
 
         /*
@@ -93,13 +122,33 @@ final class SelectorImpl extends AbstractSelector {
             wakeupIn = pipeFds[0];
             wakeupOut = pipeFds[1];
             IoUtils.setBlocking(wakeupIn, false);
-            pollFds.add(new StructPollfd());
-            setPollFd(0, wakeupIn, POLLIN, null);
+            if (useEpoll) {
+                epollFd = createEpoll(wakeupIn);
+                readyEvents = new int[MAX_EPOLL_EVENTS];
+                readySlots = new int[MAX_EPOLL_EVENTS];
+            } else {
+                epollFd = null;
+                readyEvents = null;
+                readySlots = null;
+                pollFds.add(new StructPollfd());
+                setPollFd(0, wakeupIn, POLLIN, null);
+            }
         } catch (ErrnoException errnoException) {
             throw errnoException.rethrowAsIOException();
         }
     }
 
+    private static FileDescriptor createEpoll(FileDescriptor wakeupIn) throws ErrnoException {
+        FileDescriptor result = Libcore.os.epoll_create(MAX_EPOLL_EVENTS); // the size is only a hint
+        try {
+            Libcore.os.epoll_ctl(result, EPOLL_CTL_ADD, wakeupIn, EPOLLIN, WAKEUP_SLOT);
+            return result;
+        } catch (ErrnoException e) {
+            IoUtils.closeQuietly(result);
+            throw e;
+        }
+    }
+
     @Override protected void implCloseSelector() throws IOException {
         wakeup();
         synchronized (this) {
@@ -107,6 +156,9 @@ final class SelectorImpl extends AbstractSelector {
                 synchronized (selectedKeys) {
                     IoUtils.close(wakeupIn);
                     IoUtils.close(wakeupOut);
+                    if (epollFd != null) {
+                        IoUtils.close(epollFd);
+                    }
                     doCancel();
                     for (SelectionKey sk : mutableKeys) {
                         deregister((AbstractSelectionKey) sk);
@@ -126,7 +178,13 @@ final class SelectorImpl extends AbstractSelector {
                 SelectionKeyImpl selectionKey = new SelectionKeyImpl(channel, operations,
                         attachment, this);
                 mutableKeys.add(selectionKey);
-                ensurePollFdsCapacity();
+                if (epollFd != null) {
+                    synchronized (keysLock) {
+                        pendingEpollChanges.add(selectionKey);
+                    }
+                } else {
+                    ensurePollFdsCapacity();
+                }
                 return selectionKey;
             }
         }
@@ -168,7 +226,11 @@ final class SelectorImpl extends AbstractSelector {
                     doCancel();
                     boolean isBlock = (timeout != 0);
                     synchronized (keysLock) {
-                        preparePollFds();
+                        if (epollFd != null) {
+                            applyEpollChanges();
+                        } else {
+                            preparePollFds();
+                        }
                     }
                     int rc = -1;
                     try {
@@ -176,7 +238,12 @@ final class SelectorImpl extends AbstractSelector {
                             begin();
                         }
                         try {
-                            rc = Libcore.os.poll(pollFds.array(), (int) timeout);
+                            if (epollFd != null) {
+                                rc = Libcore.os.epoll_wait(epollFd, readyEvents, readySlots,
+                                        (int) timeout);
+                            } else {
+                                rc = Libcore.os.poll(pollFds.array(), (int) timeout);
+                            }
                         } catch (ErrnoException errnoException) {
                             if (errnoException.errno != EINTR) {
                                 throw errnoException.rethrowAsIOException();
@@ -188,7 +255,10 @@ final class SelectorImpl extends AbstractSelector {
                         }
                     }
 
-                    int readyCount = (rc > 0) ? processPollFds() : 0;
+                    int readyCount = 0;
+                    if (rc > 0) {
+                        readyCount = (epollFd != null) ? processEpollEvents(rc) : processPollFds();
+                    }
                     readyCount -= doCancel();
                     return readyCount;
                 }
@@ -232,10 +302,7 @@ final class SelectorImpl extends AbstractSelector {
      */
     private int processPollFds() throws IOException {
         if (pollFds.get(0).revents == POLLIN) {
-            // Read bytes from the wakeup pipe until the pipe is empty.
-            byte[] buffer = new byte[8];
-            while (IoBridge.read(wakeupIn, buffer, 0, 1) > 0) {
-            }
+            drainWakeupPipe();
         }
 
         int readyKeyCount = 0;
@@ -253,32 +320,171 @@ final class SelectorImpl extends AbstractSelector {
             pollFd.fd = null;
             pollFd.userData = null;
 
-            int ops = key.interestOpsNoCheck();
-            int selectedOp = 0;
-            if ((pollFd.revents & POLLIN) != 0) {
-                selectedOp = ops & (OP_ACCEPT | OP_READ);
-            } else if ((pollFd.revents & POLLOUT) != 0) {
-                if (key.isConnected()) {
-                    selectedOp = ops & OP_WRITE;
-                } else {
-                    selectedOp = ops & OP_CONNECT;
-                }
+            if (selectKey(key, (pollFd.revents & POLLIN) != 0, (pollFd.revents & POLLOUT) != 0)) {
+                ++readyKeyCount;
+            }
+        }
+
+        return readyKeyCount;
+    }
+
+    /**
+     * Updates the key ready ops and selected key set from the first {@code
+     * count} events returned by epoll_wait.
+     */
+    private int processEpollEvents(int count) throws IOException {
+        int readyKeyCount = 0;
+        for (int i = 0; i < count; ++i) {
+            int slot = readySlots[i];
+            if (slot == WAKEUP_SLOT) {
+                drainWakeupPipe();
+                continue;
+            }
+            SelectionKeyImpl key = epollKeys[slot];
+            if (key == null) {
+                continue; // the key was cancelled after epoll_wait returned
             }
+            int events = readyEvents[i];
+            if (selectKey(key, (events & EPOLLIN) != 0, (events & EPOLLOUT) != 0)) {
+                ++readyKeyCount;
+            }
+        }
+        return readyKeyCount;
+    }
 
-            if (selectedOp != 0) {
-                boolean wasSelected = mutableSelectedKeys.contains(key);
-                if (wasSelected && key.readyOps() != selectedOp) {
-                    key.setReadyOps(key.readyOps() | selectedOp);
-                    ++readyKeyCount;
-                } else if (!wasSelected) {
-                    key.setReadyOps(selectedOp);
-                    mutableSelectedKeys.add(key);
-                    ++readyKeyCount;
+    /**
+     * Adds {@code key} to the selected key set if it is interested in the
+     * readiness reported for its channel. Returns true if the key's ready set
+     * was updated.
+     */
+    private boolean selectKey(SelectionKeyImpl key, boolean readable, boolean writable) {
+        int ops = key.interestOpsNoCheck();
+        int selectedOp = 0;
+        if (readable) {
+            selectedOp = ops & (OP_ACCEPT | OP_READ);
+        } else if (writable) {
+            if (key.isConnected()) {
+                selectedOp = ops & OP_WRITE;
+            } else {
+                selectedOp = ops & OP_CONNECT;
+            }
+        }
+
+        if (selectedOp != 0) {
+            boolean wasSelected = mutableSelectedKeys.contains(key);
+            if (wasSelected && key.readyOps() != selectedOp) {
+                key.setReadyOps(key.readyOps() | selectedOp);
+                return true;
+            } else if (!wasSelected) {
+                key.setReadyOps(selectedOp);
+                mutableSelectedKeys.add(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drainWakeupPipe() throws IOException {
+        // Read bytes from the wakeup pipe until the pipe is empty.
+        byte[] buffer = new byte[8];
+        while (IoBridge.read(wakeupIn, buffer, 0, 1) > 0) {
+        }
+    }
+
+    /**
+     * Called with keysLock held when the interest set of {@code key} changes.
+     */
+    void interestOpsChanged(SelectionKeyImpl key) {
+        if (epollFd != null) {
+            pendingEpollChanges.add(key);
+        }
+    }
+
+    /**
+     * Brings the epoll instance up to date with the interest sets of keys
+     * that were registered or changed since the last select. Unlike poll,
+     * the cost is proportional to the number of changes rather than the
+     * number of keys. Callers must hold keysLock.
+     */
+    private void applyEpollChanges() throws IOException {
+        for (Iterator<SelectionKeyImpl> it = pendingEpollChanges.iterator(); it.hasNext(); ) {
+            SelectionKeyImpl key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue; // doCancel() will remove it
+            }
+            int interestOps = key.interestOpsNoCheck();
+            int events = 0;
+            if (((OP_ACCEPT | OP_READ) & interestOps) != 0) {
+                events |= EPOLLIN;
+            }
+            if (((OP_CONNECT | OP_WRITE) & interestOps) != 0) {
+                events |= EPOLLOUT;
+            }
+            FileDescriptor fd = ((FileDescriptorChannel) key.channel()).getFD();
+            try {
+                if (key.epollSlot == -1) {
+                    if (events != 0) {
+                        int slot = allocateEpollSlot(key);
+                        try {
+                            Libcore.os.epoll_ctl(epollFd, EPOLL_CTL_ADD, fd, events, slot);
+                        } catch (ErrnoException errnoException) {
+                            releaseEpollSlot(slot);
+                            throw errnoException;
+                        }
+                        key.epollSlot = slot;
+                        key.epollEvents = events;
+                    }
+                } else if (events == 0) {
+                    // Unlike poll, epoll reports errors and hangups for fds with no interest.
+                    removeFromEpoll(key, fd);
+                } else if (events != key.epollEvents) {
+                    Libcore.os.epoll_ctl(epollFd, EPOLL_CTL_MOD, fd, events, key.epollSlot);
+                    key.epollEvents = events;
+                }
+            } catch (ErrnoException errnoException) {
+                // Like poll, quietly skip channels whose fd has already been closed.
+                if (errnoException.errno != EBADF) {
+                    throw errnoException.rethrowAsIOException();
                 }
             }
         }
+    }
 
-        return readyKeyCount;
+    private void removeFromEpoll(SelectionKeyImpl key, FileDescriptor fd) {
+        try {
+            Libcore.os.epoll_ctl(epollFd, EPOLL_CTL_DEL, fd, 0, 0);
+        } catch (ErrnoException ignored) {
+            // The fd was already closed, which removed it from the epoll instance.
+        }
+        releaseEpollSlot(key.epollSlot);
+        key.epollSlot = -1;
+        key.epollEvents = 0;
+    }
+
+    private int allocateEpollSlot(SelectionKeyImpl key) {
+        int slot;
+        if (freeEpollSlotCount > 0) {
+            slot = freeEpollSlots[--freeEpollSlotCount];
+        } else {
+            if (epollSlotCount == epollKeys.length) {
+                epollKeys = Arrays.copyOf(epollKeys, epollSlotCount * 2);
+            }
+            slot = epollSlotCount++;
+        }
+        epollKeys[slot] = key;
+        return slot;
+    }
+
+    private void releaseEpollSlot(int slot) {
+        if (slot == -1) {
+            return;
+        }
+        epollKeys[slot] = null;
+        if (freeEpollSlotCount == freeEpollSlots.length) {
+            freeEpollSlots = Arrays.copyOf(freeEpollSlots, freeEpollSlotCount * 2);
+        }
+        freeEpollSlots[freeEpollSlotCount++] = slot;
     }
 
     @Override public synchronized Set<SelectionKey> selectedKeys() {
@@ -298,6 +504,9 @@ final class SelectorImpl extends AbstractSelector {
         synchronized (cancelledKeys) {
             if (cancelledKeys.size() > 0) {
                 for (SelectionKey currentKey : cancelledKeys) {
+                    if (epollFd != null) {
+                        cancelEpollKey((SelectionKeyImpl) currentKey);
+                    }
                     mutableKeys.remove(currentKey);
                     deregister((AbstractSelectionKey) currentKey);
                     if (mutableSelectedKeys.remove(currentKey)) {
@@ -311,6 +520,15 @@ final class SelectorImpl extends AbstractSelector {
         return deselected;
     }
 
+    private void cancelEpollKey(SelectionKeyImpl key) {
+        synchronized (keysLock) {
+            pendingEpollChanges.remove(key);
+        }
+        if (key.epollSlot != -1) {
+            removeFromEpoll(key, ((FileDescriptorChannel) key.channel()).getFD());
+        }
+    }
+
     @Override public Selector wakeup() {
         try {
             Libcore.os.write(wakeupOut, new byte[] { 1 }, 0, 1);
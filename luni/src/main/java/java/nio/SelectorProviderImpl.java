@@ -27,8 +27,14 @@ import java.nio.channels.spi.SelectorProvider;
 
 /**
  * @hide for java.nio.channels.spi.SelectorProvider only.
+ *
+ * <p>Selectors poll all of their keys on every select by default. Set the
+ * system property {@code java.nio.channels.epoll} to true to back selectors
+ * with epoll(7) instead, which is much cheaper for selectors with many keys.
  */
 public final class SelectorProviderImpl extends SelectorProvider {
+    private static final boolean USE_EPOLL = Boolean.getBoolean("java.nio.channels.epoll");
+
     public DatagramChannel openDatagramChannel() throws IOException {
         return new DatagramChannelImpl(this);
     }
@@ -38,7 +44,15 @@ public final class SelectorProviderImpl extends SelectorProvider {
     }
 
     public AbstractSelector openSelector() throws IOException {
-        return new SelectorImpl(this);
+        return new SelectorImpl(this, USE_EPOLL);
+    }
+
+    /**
+     * Returns a new selector that uses epoll(7) if {@code useEpoll} is true,
+     * or poll(2) otherwise, regardless of the system property.
+     */
+    public AbstractSelector openSelector(boolean useEpoll) throws IOException {
+        return new SelectorImpl(this, useEpoll);
     }
 
     public ServerSocketChannel openServerSocketChannel() throws IOException {
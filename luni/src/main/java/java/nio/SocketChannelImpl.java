@@ -280,28 +280,9 @@ class SocketChannelImpl extends SocketChannel implements FileDescriptorChannel {
     public long read(ByteBuffer[] targets, int offset, int length) throws IOException {
         Arrays.checkOffsetAndCount(targets.length, offset, length);
         checkOpenConnected();
-        int totalCount = FileChannelImpl.calculateTotalRemaining(targets, offset, length, true);
-        if (totalCount == 0) {
-            return 0;
-        }
-        byte[] readArray = new byte[totalCount];
-        ByteBuffer readBuffer = ByteBuffer.wrap(readArray);
-        int readCount;
-        // read data to readBuffer, and then transfer data from readBuffer to targets.
-        readCount = readImpl(readBuffer);
-        readBuffer.flip();
-        if (readCount > 0) {
-            int left = readCount;
-            int index = offset;
-            // transfer data from readArray to targets
-            while (left > 0) {
-                int putLength = Math.min(targets[index].remaining(), left);
-                targets[index].put(readArray, readCount - left, putLength);
-                index++;
-                left -= putLength;
-            }
+        synchronized (readLock) {
+            return transferIoVec(new IoVec(targets, offset, length, IoVec.Direction.READV));
         }
-        return readCount;
     }
 
     private int readImpl(ByteBuffer dst) throws IOException {
@@ -340,29 +321,35 @@ class SocketChannelImpl extends SocketChannel implements FileDescriptorChannel {
     public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
         Arrays.checkOffsetAndCount(sources.length, offset, length);
         checkOpenConnected();
-        int count = FileChannelImpl.calculateTotalRemaining(sources, offset, length, false);
-        if (count == 0) {
+        synchronized (writeLock) {
+            return transferIoVec(new IoVec(sources, offset, length, IoVec.Direction.WRITEV));
+        }
+    }
+
+    /**
+     * Reads into or writes from all of {@code ioVec}'s buffers with a single
+     * recvmsg(2) or sendmsg(2), avoiding a copy through an intermediate buffer.
+     * Callers must hold the read or write lock as appropriate.
+     */
+    private int transferIoVec(IoVec ioVec) throws IOException {
+        if (ioVec.init() == 0) {
             return 0;
         }
-        ByteBuffer writeBuf = ByteBuffer.allocate(count);
-        for (int val = offset; val < length + offset; val++) {
-            ByteBuffer source = sources[val];
-            int oldPosition = source.position();
-            writeBuf.put(source);
-            source.position(oldPosition);
-        }
-        writeBuf.flip();
-        int result = writeImpl(writeBuf);
-        int val = offset;
-        int written = result;
-        while (result > 0) {
-            ByteBuffer source = sources[val];
-            int gap = Math.min(result, source.remaining());
-            source.position(source.position() + gap);
-            val++;
-            result -= gap;
-        }
-        return written;
+        int transferCount = 0;
+        try {
+            if (isBlocking()) {
+                begin();
+            }
+            transferCount = ioVec.doSocketTransfer(fd);
+            if (transferCount > 0) {
+                ioVec.didTransfer(transferCount);
+            }
+        } finally {
+            if (isBlocking()) {
+                end(transferCount > 0);
+            }
+        }
+        return transferCount;
     }
 
     private int writeImpl(ByteBuffer src) throws IOException {
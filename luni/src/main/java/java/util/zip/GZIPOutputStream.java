@@ -19,6 +19,8 @@ package java.util.zip;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The {@code GZIPOutputStream} class is used to write data to a stream in the
@@ -46,6 +48,9 @@ public class GZIPOutputStream extends DeflaterOutputStream {
      */
     protected CRC32 crc = new CRC32();
 
+    /** Non-null if data is compressed on a ForkJoinPool. */
+    private final ParallelDeflate parallel;
+
     /**
      * Construct a new {@code GZIPOutputStream} to write data in GZIP format to
      * the underlying stream.
@@ -72,7 +77,25 @@ public class GZIPOutputStream extends DeflaterOutputStream {
      *             if an {@code IOException} occurs.
      */
     public GZIPOutputStream(OutputStream os, int size) throws IOException {
+        this(os, size, null);
+    }
+
+    /**
+     * Constructs a new {@code GZIPOutputStream} that compresses data on
+     * {@code pool}, in blocks of up to 128 KiB, and writes it to {@code os} in
+     * order. The result is an ordinary single-member GZIP stream, though
+     * slightly larger than one written serially because each block ends on a
+     * byte boundary.
+     *
+     * @hide
+     */
+    public GZIPOutputStream(OutputStream os, ForkJoinPool pool) throws IOException {
+        this(os, BUF_SIZE, new ParallelDeflate(pool));
+    }
+
+    private GZIPOutputStream(OutputStream os, int size, ParallelDeflate parallel) throws IOException {
         super(os, new Deflater(Deflater.DEFAULT_COMPRESSION, true), size);
+        this.parallel = parallel;
         writeShort(GZIPInputStream.GZIP_MAGIC);
         out.write(Deflater.DEFLATED);
         out.write(0); // flags
@@ -90,7 +113,16 @@ public class GZIPOutputStream extends DeflaterOutputStream {
      */
     @Override
     public void finish() throws IOException {
-        super.finish();
+        if (parallel != null) {
+            if (done) {
+                return;
+            }
+            parallel.finishStream();
+            parallel.drainAll(out);
+            done = true;
+        } else {
+            super.finish();
+        }
         writeLong(crc.getValue());
         writeLong(crc.tbytes);
     }
@@ -101,10 +133,29 @@ public class GZIPOutputStream extends DeflaterOutputStream {
      */
     @Override
     public void write(byte[] buffer, int off, int nbytes) throws IOException {
-        super.write(buffer, off, nbytes);
+        if (parallel != null) {
+            if (done) {
+                throw new IOException("attempt to write after finish");
+            }
+            Arrays.checkOffsetAndCount(buffer.length, off, nbytes);
+            parallel.write(out, buffer, off, nbytes);
+        } else {
+            super.write(buffer, off, nbytes);
+        }
         crc.update(buffer, off, nbytes);
     }
 
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (parallel != null) {
+                parallel.end();
+            }
+        }
+    }
+
     private long writeLong(long i) throws IOException {
         // Write out the long value as an unsigned int
         int unsigned = (int) i;
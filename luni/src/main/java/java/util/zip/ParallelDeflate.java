@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package java.util.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses raw deflate streams in fixed-size blocks on a {@code ForkJoinPool},
+ * in the style of pigz. Each block is compressed by its own {@code Deflater}
+ * primed with the last 32 KiB of the previous block as a preset dictionary, so
+ * little compression is lost at block boundaries. Every block but the last of a
+ * stream ends with a sync flush, so the compressed blocks concatenate into a
+ * single valid deflate stream.
+ *
+ * <p>Output is queued and written in order by {@link #drain}. Callers can also
+ * queue bytes that are already known, and markers that are run when the output
+ * reaches them. This is how ZipOutputStream interleaves headers and data
+ * descriptors with compressed entry data.
+ *
+ * <p>Instances are not thread safe; only the compression runs on the pool.
+ */
+final class ParallelDeflate {
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Run in order when {@link #drain} reaches it.
+     */
+    interface Marker {
+        /**
+         * Returns bytes to write at this point of the output, or null.
+         *
+         * @param compressedByteCount the number of compressed bytes written since
+         *     the previous marker.
+         */
+        byte[] reached(long compressedByteCount) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+    private final int maxPendingBlocks;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    /** Queued output: byte[] and Marker instances, and Future<byte[]> for compressed blocks. */
+    private final ArrayDeque<Object> output = new ArrayDeque<Object>();
+    private int pendingBlocks;
+    private volatile boolean ended;
+    private long compressedSinceMarker;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+
+    ParallelDeflate(ForkJoinPool pool) {
+        this.pool = pool;
+        // Keep every thread busy while the caller writes out the oldest block.
+        this.maxPendingBlocks = 2 * pool.getParallelism();
+    }
+
+    /**
+     * Sets the compression level of streams started after this call.
+     */
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Adds {@code byteCount} bytes of input to the current stream, writing
+     * queued output to {@code out} as {@link #drain} does.
+     */
+    void write(OutputStream out, byte[] buffer, int offset, int byteCount) throws IOException {
+        while (byteCount > 0) {
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+            }
+            int count = Math.min(byteCount, BLOCK_SIZE - blockLength);
+            System.arraycopy(buffer, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            byteCount -= count;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+                drain(out);
+            }
+        }
+    }
+
+    /**
+     * Ends the current deflate stream. The next write starts a new stream.
+     */
+    void finishStream() {
+        submitBlock(true);
+        dictionary = null;
+    }
+
+    void enqueue(byte[] bytes) {
+        output.add(bytes);
+    }
+
+    void enqueue(Marker marker) {
+        output.add(marker);
+    }
+
+    /**
+     * Writes queued output to {@code out} in order until the next queued item
+     * is a compressed block and there are few enough blocks in flight. This
+     * bounds the memory held by queued output.
+     */
+    void drain(OutputStream out) throws IOException {
+        drain(out, maxPendingBlocks);
+    }
+
+    /**
+     * Writes all queued output to {@code out}, waiting for compressed blocks.
+     */
+    void drainAll(OutputStream out) throws IOException {
+        drain(out, 0);
+    }
+
+    private void drain(OutputStream out, int maxPendingBlocks) throws IOException {
+        while (!output.isEmpty()
+                && (pendingBlocks > maxPendingBlocks || !(output.peek() instanceof Future))) {
+            Object item = output.poll();
+            if (item instanceof Future) {
+                pendingBlocks--;
+                byte[] compressed = await(item);
+                out.write(compressed);
+                compressedSinceMarker += compressed.length;
+            } else if (item instanceof Marker) {
+                byte[] bytes = ((Marker) item).reached(compressedSinceMarker);
+                compressedSinceMarker = 0;
+                if (bytes != null) {
+                    out.write(bytes);
+                }
+            } else {
+                out.write((byte[]) item);
+            }
+        }
+    }
+
+    /**
+     * Discards queued output and releases the deflaters. Blocks that are still
+     * being compressed release their own deflaters when they're done.
+     */
+    void end() {
+        ended = true;
+        for (Object item : output) {
+            if (item instanceof Future) {
+                ((Future<?>) item).cancel(false);
+            }
+        }
+        output.clear();
+        pendingBlocks = 0;
+        endDeflaters();
+    }
+
+    private void endDeflaters() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private void submitBlock(final boolean last) {
+        final byte[] input = (block != null) ? block : new byte[0];
+        final int inputLength = blockLength;
+        final byte[] preset = dictionary;
+        final int blockLevel = level;
+        if (!last) {
+            int dictionaryLength = Math.min(DICTIONARY_SIZE, inputLength);
+            dictionary = Arrays.copyOfRange(input, inputLength - dictionaryLength, inputLength);
+        }
+        // The task owns the old block, so start a new one.
+        block = null;
+        blockLength = 0;
+
+        output.add(pool.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return compress(input, inputLength, preset, blockLevel, last);
+            }
+        }));
+        pendingBlocks++;
+    }
+
+    private byte[] compress(byte[] input, int inputLength, byte[] preset, int blockLevel,
+            boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(blockLevel, true);
+        }
+        try {
+            deflater.setLevel(blockLevel);
+            if (preset != null) {
+                deflater.setDictionary(preset);
+            }
+            deflater.setInput(input, 0, inputLength);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(inputLength / 2 + 64);
+            byte[] buffer = new byte[8192];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int byteCount = deflater.deflate(buffer);
+                    result.write(buffer, 0, byteCount);
+                }
+            } else {
+                // A sync flush is complete once the deflater doesn't fill the buffer.
+                int byteCount;
+                do {
+                    byteCount = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, byteCount);
+                } while (byteCount == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+            if (ended) {
+                endDeflaters();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] await(Object future) throws IOException {
+        try {
+            return ((Future<byte[]>) future).get();
+        } catch (InterruptedException e) {
+            InterruptedIOException interrupted = new InterruptedIOException();
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            throw new IOException("Parallel deflate failed", e.getCause());
+        }
+    }
+}
@@ -26,11 +26,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteOrder;
+import java.nio.charset.Charsets;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import libcore.io.BufferIterator;
+import libcore.io.ErrnoException;
 import libcore.io.HeapBufferIterator;
+import libcore.io.MemoryMappedFile;
 import libcore.io.Streams;
 
 /**
@@ -79,6 +86,15 @@ public class ZipFile implements ZipConstants {
      */
     public static final int OPEN_DELETE = 4;
 
+    /**
+     * If this system property is "true" when a file is opened, the archive is
+     * memory-mapped instead of being read through a shared RandomAccessFile.
+     * Opening only validates the central directory; entries are indexed on first
+     * lookup and entry data is read without locking. This is opt-in because a
+     * mapped file that is truncated while open faults the reading thread.
+     */
+    private static final String MMAP_PROPERTY = "java.util.zip.mmap";
+
     private final String fileName;
 
     private File fileToDeleteOnClose;
@@ -87,6 +103,12 @@ public class ZipFile implements ZipConstants {
 
     private final LinkedHashMap<String, ZipEntry> mEntries = new LinkedHashMap<String, ZipEntry>();
 
+    /** Non-null instead of mRaf if this archive is memory-mapped. mEntries is unused then. */
+    private Mapping mMapping;
+    private int mMappedCentralDirOffset;
+    private int mMappedEntryCount;
+    private volatile EntryIndex mMappedIndex;
+
     private final CloseGuard guard = CloseGuard.get();
 
     /**
@@ -127,9 +149,20 @@ public class ZipFile implements ZipConstants {
             fileToDeleteOnClose = null;
         }
 
-        mRaf = new RandomAccessFile(fileName, "r");
-
-        readCentralDir();
+        if (Boolean.getBoolean(MMAP_PROPERTY)) {
+            mMapping = Mapping.open(fileName);
+        }
+        if (mMapping != null) {
+            try {
+                readMappedCentralDir();
+            } catch (IOException e) {
+                mMapping.close();
+                throw e;
+            }
+        } else {
+            mRaf = new RandomAccessFile(fileName, "r");
+            readCentralDir();
+        }
         guard.open("close");
     }
 
@@ -168,11 +201,18 @@ public class ZipFile implements ZipConstants {
     public void close() throws IOException {
         guard.close();
         RandomAccessFile raf = mRaf;
+        Mapping mapping = mMapping;
 
-        if (raf != null) { // Only close initialized instances
-            synchronized(raf) {
-                mRaf = null;
-                raf.close();
+        if (raf != null || mapping != null) { // Only close initialized instances
+            if (raf != null) {
+                synchronized(raf) {
+                    mRaf = null;
+                    raf.close();
+                }
+            }
+            if (mapping != null) {
+                mMapping = null;
+                mapping.close();
             }
             if (fileToDeleteOnClose != null) {
                 fileToDeleteOnClose.delete();
@@ -182,11 +222,46 @@ public class ZipFile implements ZipConstants {
     }
 
     private void checkNotClosed() {
-        if (mRaf == null) {
+        if (mRaf == null && mMapping == null) {
             throw new IllegalStateException("Zip file closed");
         }
     }
 
+    /**
+     * Returns this file's mapping after registering the caller as a reader. Callers
+     * must {@link Mapping#release} it when they're done with the mapped memory.
+     */
+    private Mapping acquireMapping() {
+        Mapping mapping = mMapping;
+        if (mapping == null || !mapping.acquire()) {
+            throw new IllegalStateException("Zip file closed");
+        }
+        return mapping;
+    }
+
+    /**
+     * Returns the index of the mapped central directory, building it on first use.
+     */
+    private EntryIndex mappedIndex() {
+        EntryIndex index = mMappedIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = mMappedIndex;
+                if (index == null) {
+                    Mapping mapping = acquireMapping();
+                    try {
+                        index = EntryIndex.build(mapping.iterator(), mMappedCentralDirOffset,
+                                mMappedEntryCount);
+                    } finally {
+                        mapping.release();
+                    }
+                    mMappedIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * Returns an enumeration of the entries. The entries are listed in the
      * order in which they appear in the ZIP archive.
@@ -196,6 +271,30 @@ public class ZipFile implements ZipConstants {
      */
     public Enumeration<? extends ZipEntry> entries() {
         checkNotClosed();
+        if (mMapping != null) {
+            final EntryIndex index = mappedIndex();
+            return new Enumeration<ZipEntry>() {
+                private int next = 0;
+
+                public boolean hasMoreElements() {
+                    checkNotClosed();
+                    return next < index.size();
+                }
+
+                public ZipEntry nextElement() {
+                    checkNotClosed();
+                    if (next >= index.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    Mapping mapping = acquireMapping();
+                    try {
+                        return readMappedEntry(mapping, index.offsetAt(next++));
+                    } finally {
+                        mapping.release();
+                    }
+                }
+            };
+        }
         final Iterator<ZipEntry> iterator = mEntries.values().iterator();
 
         return new Enumeration<ZipEntry>() {
@@ -226,6 +325,10 @@ public class ZipFile implements ZipConstants {
             throw new NullPointerException("entryName == null");
         }
 
+        if (mMapping != null) {
+            return getMappedEntry(entryName);
+        }
+
         ZipEntry ze = mEntries.get(entryName);
         if (ze == null) {
             ze = mEntries.get(entryName + "/");
@@ -250,6 +353,10 @@ public class ZipFile implements ZipConstants {
             return null;
         }
 
+        if (mMapping != null) {
+            return getMappedInputStream(entry);
+        }
+
         // Create an InputStream at the right part of the file.
         RandomAccessFile raf = mRaf;
         synchronized (raf) {
@@ -291,9 +398,69 @@ public class ZipFile implements ZipConstants {
      */
     public int size() {
         checkNotClosed();
+        if (mMapping != null) {
+            return mappedIndex().size();
+        }
         return mEntries.size();
     }
 
+    private ZipEntry getMappedEntry(String entryName) {
+        EntryIndex index = mappedIndex();
+        Mapping mapping = acquireMapping();
+        try {
+            BufferIterator it = mapping.iterator();
+            int offset = index.find(it, entryName.getBytes(Charsets.UTF_8));
+            if (offset == -1) {
+                offset = index.find(it, (entryName + "/").getBytes(Charsets.UTF_8));
+            }
+            return (offset != -1) ? readMappedEntry(mapping, offset) : null;
+        } finally {
+            mapping.release();
+        }
+    }
+
+    private static ZipEntry readMappedEntry(Mapping mapping, int offset) {
+        try {
+            return new ZipEntry(new byte[CENHDR], new MappedStream(mapping, offset, mapping.size));
+        } catch (IOException e) {
+            // The central directory was validated when we opened the file, so we must have
+            // been closed while reading.
+            throw new IllegalStateException("Zip file closed", e);
+        }
+    }
+
+    private InputStream getMappedInputStream(ZipEntry entry) throws IOException {
+        Mapping mapping = acquireMapping();
+        long dataStart;
+        long dataEnd;
+        try {
+            // As in getInputStream, the local header's extra data length may differ from
+            // the central directory's, so we have to read it from the local header.
+            long localHeaderOffset = entry.mLocalHeaderRelOffset;
+            if (localHeaderOffset < 0 || localHeaderOffset > mapping.size - LOCHDR) {
+                throw new ZipException("Local header out of range: " + localHeaderOffset);
+            }
+            BufferIterator it = mapping.iterator();
+            it.seek((int) localHeaderOffset + 28);
+            int localExtraLength = it.readShort() & 0xffff;
+            dataStart = localHeaderOffset + LOCHDR + entry.nameLength + localExtraLength;
+            dataEnd = dataStart + entry.compressedSize;
+            if (dataEnd > mapping.size) {
+                throw new ZipException("Entry data out of range: " + entry.getName());
+            }
+        } finally {
+            mapping.release();
+        }
+
+        MappedStream stream = new MappedStream(mapping, (int) dataStart, (int) dataEnd);
+        if (entry.compressionMethod == ZipEntry.DEFLATED) {
+            int bufSize = Math.max(1024, (int)Math.min(entry.getSize(), 65535L));
+            return new ZipInflaterInputStream(stream, new Inflater(true), bufSize, entry);
+        } else {
+            return stream;
+        }
+    }
+
     /**
      * Find the central directory and read the contents.
      *
@@ -367,6 +534,66 @@ public class ZipFile implements ZipConstants {
         }
     }
 
+    /**
+     * Like readCentralDir, but for a memory-mapped archive. We walk the whole central
+     * directory here so that corrupt archives are rejected on open, and so that nothing
+     * later can read past the end of the mapping. Names aren't decoded and no ZipEntry
+     * objects are created until they're asked for.
+     */
+    private void readMappedCentralDir() throws IOException {
+        Mapping mapping = mMapping;
+        BufferIterator it = mapping.iterator();
+
+        int scanOffset = mapping.size - ENDHDR;
+        if (scanOffset < 0) {
+            throw new ZipException("File too short to be a zip file: " + mapping.size);
+        }
+        int stopOffset = Math.max(0, scanOffset - 65536);
+        while (true) {
+            it.seek(scanOffset);
+            if (it.readInt() == (int) ENDSIG) {
+                break;
+            }
+            scanOffset--;
+            if (scanOffset < stopOffset) {
+                throw new ZipException("EOCD not found; not a Zip archive?");
+            }
+        }
+
+        int diskNumber = it.readShort() & 0xffff;
+        int diskWithCentralDir = it.readShort() & 0xffff;
+        int numEntries = it.readShort() & 0xffff;
+        int totalNumEntries = it.readShort() & 0xffff;
+        it.skip(4); // Ignore centralDirSize.
+        int centralDirOffset = it.readInt();
+
+        if (numEntries != totalNumEntries || diskNumber != 0 || diskWithCentralDir != 0) {
+            throw new ZipException("spanned archives not supported");
+        }
+
+        int offset = centralDirOffset;
+        for (int i = 0; i < numEntries; ++i) {
+            if (offset < 0 || offset > mapping.size - CENHDR) {
+                throw new ZipException("Central Directory Entry out of range: " + offset);
+            }
+            it.seek(offset);
+            if (it.readInt() != (int) CENSIG) {
+                throw new ZipException("Central Directory Entry not found");
+            }
+            it.seek(offset + 28);
+            int nameLength = it.readShort() & 0xffff;
+            int extraLength = it.readShort() & 0xffff;
+            int commentLength = it.readShort() & 0xffff;
+            offset += CENHDR + nameLength + extraLength + commentLength;
+        }
+        if (offset > mapping.size) {
+            throw new ZipException("Central Directory Entry out of range: " + offset);
+        }
+
+        mMappedCentralDirOffset = centralDirOffset;
+        mMappedEntryCount = numEntries;
+    }
+
     /**
      * Wrap a stream around a RandomAccessFile.  The RandomAccessFile is shared
      * among all streams returned by getInputStream(), so we have to synchronize
@@ -421,6 +648,250 @@ public class ZipFile implements ZipConstants {
         }
     }
 
+    /**
+     * A read-only mapping of a whole archive. Readers bracket each access to the mapped
+     * memory with {@link #acquire} and {@link #release} so that closing the ZipFile can't
+     * unmap it out from under them; whoever is last out unmaps it.
+     */
+    static final class Mapping {
+        private final MemoryMappedFile file;
+        final int size;
+        private final AtomicInteger readers = new AtomicInteger();
+        private final AtomicBoolean unmapped = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private Mapping(MemoryMappedFile file) {
+            this.file = file;
+            this.size = (int) file.size();
+        }
+
+        /**
+         * Returns a mapping of the file at {@code path}, or null if it can't be mapped.
+         */
+        static Mapping open(String path) {
+            MemoryMappedFile file;
+            try {
+                file = MemoryMappedFile.mmapRO(path);
+            } catch (ErrnoException e) {
+                return null;
+            }
+            if (file.size() > Integer.MAX_VALUE) {
+                try {
+                    file.close();
+                } catch (ErrnoException ignored) {
+                }
+                return null;
+            }
+            return new Mapping(file);
+        }
+
+        BufferIterator iterator() {
+            return file.littleEndianIterator();
+        }
+
+        /**
+         * Returns false if this mapping has been closed, in which case the caller
+         * must not touch the mapped memory and must not call {@link #release}.
+         */
+        boolean acquire() {
+            readers.incrementAndGet();
+            if (closed) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            if (readers.decrementAndGet() == 0 && closed) {
+                unmap();
+            }
+        }
+
+        void close() {
+            closed = true;
+            if (readers.get() == 0) {
+                unmap();
+            }
+        }
+
+        private void unmap() {
+            if (unmapped.compareAndSet(false, true)) {
+                try {
+                    file.close();
+                } catch (ErrnoException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * An open-addressed hash index from entry names to central directory offsets,
+     * built directly from the mapped bytes. It costs a few ints per entry, rather
+     * than a map entry, a ZipEntry and two Strings.
+     */
+    static final class EntryIndex {
+        private final int[] hashes;
+        /** Central directory entry offsets plus one, so that zero marks an empty slot. */
+        private final int[] offsets;
+        /** Occupied slots in the order their names first appear in the archive. */
+        private final int[] order;
+        private final int size;
+
+        private EntryIndex(int[] hashes, int[] offsets, int[] order, int size) {
+            this.hashes = hashes;
+            this.offsets = offsets;
+            this.order = order;
+            this.size = size;
+        }
+
+        static EntryIndex build(BufferIterator it, int offset, int entryCount) {
+            int capacity = 2;
+            while (capacity < entryCount * 2) {
+                capacity <<= 1;
+            }
+            int mask = capacity - 1;
+            int[] hashes = new int[capacity];
+            int[] offsets = new int[capacity];
+            int[] order = new int[entryCount];
+            int size = 0;
+
+            byte[] name = new byte[64];
+            for (int i = 0; i < entryCount; ++i) {
+                it.seek(offset + 28);
+                int nameLength = it.readShort() & 0xffff;
+                int extraLength = it.readShort() & 0xffff;
+                int commentLength = it.readShort() & 0xffff;
+                if (name.length < nameLength) {
+                    name = new byte[nameLength];
+                }
+                it.seek(offset + CENHDR);
+                it.readByteArray(name, 0, nameLength);
+
+                int hash = hash(name, nameLength);
+                int slot = hash & mask;
+                while (offsets[slot] != 0) {
+                    if (hashes[slot] == hash && nameEquals(it, offsets[slot] - 1, name, nameLength)) {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (offsets[slot] == 0) {
+                    hashes[slot] = hash;
+                    order[size++] = slot;
+                }
+                // Later duplicates replace earlier entries, as they do in mEntries.
+                offsets[slot] = offset + 1;
+                offset += CENHDR + nameLength + extraLength + commentLength;
+            }
+            return new EntryIndex(hashes, offsets, order, size);
+        }
+
+        /**
+         * Returns the central directory offset of the entry named by the UTF-8
+         * bytes {@code name}, or -1 if there is no such entry.
+         */
+        int find(BufferIterator it, byte[] name) {
+            int hash = hash(name, name.length);
+            int mask = offsets.length - 1;
+            for (int slot = hash & mask; offsets[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && nameEquals(it, offsets[slot] - 1, name, name.length)) {
+                    return offsets[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Returns the central directory offset of the {@code index}'th distinct entry.
+         */
+        int offsetAt(int index) {
+            return offsets[order[index]] - 1;
+        }
+
+        private static int hash(byte[] name, int length) {
+            int h = 0;
+            for (int i = 0; i < length; ++i) {
+                h = 31 * h + name[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean nameEquals(BufferIterator it, int offset, byte[] name, int length) {
+            it.seek(offset + 28);
+            if ((it.readShort() & 0xffff) != length) {
+                return false;
+            }
+            it.seek(offset + CENHDR);
+            for (int i = 0; i < length; ++i) {
+                if (it.readByte() != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads a range of a mapped archive. Unlike RAFStream there's no shared file
+     * position, so concurrent streams don't contend on a lock.
+     */
+    static final class MappedStream extends InputStream {
+        private final Mapping mapping;
+        private final BufferIterator it;
+        private int offset;
+        private final int limit;
+
+        MappedStream(Mapping mapping, int offset, int limit) {
+            this.mapping = mapping;
+            this.it = mapping.iterator();
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override public int available() throws IOException {
+            return limit - offset;
+        }
+
+        @Override public int read() throws IOException {
+            return Streams.readSingleByte(this);
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            Arrays.checkOffsetAndCount(b.length, off, len);
+            if (len == 0) {
+                return 0;
+            }
+            if (offset >= limit) {
+                return -1;
+            }
+            len = Math.min(len, limit - offset);
+            if (!mapping.acquire()) {
+                throw new IOException("Zip file closed");
+            }
+            try {
+                it.seek(offset);
+                it.readByteArray(b, off, len);
+            } finally {
+                mapping.release();
+            }
+            offset += len;
+            return len;
+        }
+
+        @Override public long skip(long byteCount) throws IOException {
+            if (byteCount > limit - offset) {
+                byteCount = limit - offset;
+            }
+            offset += byteCount;
+            return byteCount;
+        }
+    }
+
     static class ZipInflaterInputStream extends InflaterInputStream {
 
         ZipEntry entry;
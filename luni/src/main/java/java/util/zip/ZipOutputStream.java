@@ -23,6 +23,7 @@ import java.io.OutputStream;
 import java.nio.charset.Charsets;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class provides an implementation of {@code FilterOutputStream} that
@@ -90,10 +91,13 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
 
     private final CRC32 crc = new CRC32();
 
-    private int offset = 0, curOffset = 0, nameLength;
+    private int offset = 0, nameLength;
 
     private byte[] nameBytes;
 
+    /** Non-null if deflated entries are compressed on a ForkJoinPool. */
+    private final ParallelDeflate parallel;
+
     /**
      * Constructs a new {@code ZipOutputStream} with the specified output
      * stream.
@@ -103,6 +107,24 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
      */
     public ZipOutputStream(OutputStream p1) {
         super(p1, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        this.parallel = null;
+    }
+
+    /**
+     * Constructs a new {@code ZipOutputStream} that deflates entries on {@code pool}.
+     * Entry data is compressed in blocks of up to 128 KiB, several blocks and
+     * entries at a time, and written to {@code os} in order. The result is an
+     * ordinary archive, though slightly larger than one written serially because
+     * each block ends on a byte boundary.
+     *
+     * <p>The sizes and CRC of a deflated entry are filled in when its data is
+     * written out, which may be after {@link #closeEntry} returns.
+     *
+     * @hide
+     */
+    public ZipOutputStream(OutputStream os, ForkJoinPool pool) {
+        super(os, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        this.parallel = new ParallelDeflate(pool);
     }
 
     /**
@@ -118,6 +140,9 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
         if (out != null) {
             finish();
             def.end();
+            if (parallel != null) {
+                parallel.end();
+            }
             out.close();
             out = null;
         }
@@ -135,6 +160,10 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
         if (currentEntry == null) {
             return;
         }
+        if (parallel != null && currentEntry.getMethod() == DEFLATED) {
+            closeParallelEntry();
+            return;
+        }
         if (currentEntry.getMethod() == DEFLATED) {
             super.finish();
         }
@@ -148,19 +177,67 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
                 throw new ZipException("Size mismatch");
             }
         }
-        curOffset = LOCHDR;
 
         // Write the DataDescriptor
         if (currentEntry.getMethod() != STORED) {
-            curOffset += EXTHDR;
             writeLong(out, EXTSIG);
             writeLong(out, currentEntry.crc = crc.getValue());
             writeLong(out, currentEntry.compressedSize = def.getTotalOut());
             writeLong(out, currentEntry.size = def.getTotalIn());
         }
+        if (currentEntry.getMethod() == DEFLATED) {
+            writeCentralDirectoryEntry(currentEntry, nameBytes, crc.getValue(),
+                    def.getTotalOut(), def.getTotalIn());
+        } else {
+            writeCentralDirectoryEntry(currentEntry, nameBytes, crc.getValue(),
+                    crc.tbytes, crc.tbytes);
+        }
+        nameBytes = null;
+        currentEntry = null;
+        crc.reset();
+        def.reset();
+        done = false;
+    }
+
+    /**
+     * Ends the current deflated entry in parallel mode. Its data descriptor and
+     * central directory entry are written once all of its blocks have been.
+     */
+    private void closeParallelEntry() throws IOException {
+        parallel.finishStream();
+        final ZipEntry entry = currentEntry;
+        final byte[] entryNameBytes = nameBytes;
+        final long crcValue = crc.getValue();
+        final long size = crc.tbytes;
+        parallel.enqueue(new ParallelDeflate.Marker() {
+            public byte[] reached(long compressedSize) throws IOException {
+                entry.crc = crcValue;
+                entry.compressedSize = compressedSize;
+                entry.size = size;
+                writeCentralDirectoryEntry(entry, entryNameBytes, crcValue, compressedSize, size);
+                ByteArrayOutputStream descriptor = new ByteArrayOutputStream(EXTHDR);
+                writeLong(descriptor, EXTSIG);
+                writeLong(descriptor, crcValue);
+                writeLong(descriptor, compressedSize);
+                writeLong(descriptor, size);
+                return descriptor.toByteArray();
+            }
+        });
+        parallel.drain(out);
+        nameBytes = null;
+        currentEntry = null;
+        crc.reset();
+    }
+
+    /**
+     * Adds {@code entry} to the central directory, and advances the offset of
+     * the next local header past the entry.
+     */
+    private void writeCentralDirectoryEntry(ZipEntry entry, byte[] nameBytes, long crcValue,
+            long compressedSize, long size) throws IOException {
         // Update the CentralDirectory
         // http://www.pkware.com/documents/casestudies/APPNOTE.TXT
-        int flags = currentEntry.getMethod() == STORED ? 0 : ZipFile.GPBF_DATA_DESCRIPTOR_FLAG;
+        int flags = entry.getMethod() == STORED ? 0 : ZipFile.GPBF_DATA_DESCRIPTOR_FLAG;
         // Since gingerbread, we always set the UTF-8 flag on individual files.
         // Some tools insist that the central directory also have the UTF-8 flag.
         // http://code.google.com/p/android/issues/detail?id=20214
@@ -169,25 +246,20 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
         writeShort(cDir, ZIPLocalHeaderVersionNeeded); // Version created
         writeShort(cDir, ZIPLocalHeaderVersionNeeded); // Version to extract
         writeShort(cDir, flags);
-        writeShort(cDir, currentEntry.getMethod());
-        writeShort(cDir, currentEntry.time);
-        writeShort(cDir, currentEntry.modDate);
-        writeLong(cDir, crc.getValue());
-        if (currentEntry.getMethod() == DEFLATED) {
-            curOffset += writeLong(cDir, def.getTotalOut());
-            writeLong(cDir, def.getTotalIn());
-        } else {
-            curOffset += writeLong(cDir, crc.tbytes);
-            writeLong(cDir, crc.tbytes);
-        }
-        curOffset += writeShort(cDir, nameLength);
-        if (currentEntry.extra != null) {
-            curOffset += writeShort(cDir, currentEntry.extra.length);
+        writeShort(cDir, entry.getMethod());
+        writeShort(cDir, entry.time);
+        writeShort(cDir, entry.modDate);
+        writeLong(cDir, crcValue);
+        writeLong(cDir, compressedSize);
+        writeLong(cDir, size);
+        writeShort(cDir, nameBytes.length);
+        if (entry.extra != null) {
+            writeShort(cDir, entry.extra.length);
         } else {
             writeShort(cDir, 0);
         }
         String c;
-        if ((c = currentEntry.getComment()) != null) {
+        if ((c = entry.getComment()) != null) {
             writeShort(cDir, c.length());
         } else {
             writeShort(cDir, 0);
@@ -197,18 +269,20 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
         writeLong(cDir, 0); // External File Attributes
         writeLong(cDir, offset);
         cDir.write(nameBytes);
-        nameBytes = null;
-        if (currentEntry.extra != null) {
-            cDir.write(currentEntry.extra);
+        if (entry.extra != null) {
+            cDir.write(entry.extra);
         }
-        offset += curOffset;
         if (c != null) {
             cDir.write(c.getBytes());
         }
-        currentEntry = null;
-        crc.reset();
-        def.reset();
-        done = false;
+
+        offset += LOCHDR + compressedSize + nameBytes.length;
+        if (entry.getMethod() != STORED) {
+            offset += EXTHDR;
+        }
+        if (entry.extra != null) {
+            offset += entry.extra.length;
+        }
     }
 
     /**
@@ -233,6 +307,9 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
         if (currentEntry != null) {
             closeEntry();
         }
+        if (parallel != null) {
+            parallel.drainAll(out);
+        }
         int cdirSize = cDir.size();
         // Write Central Dir End
         writeLong(cDir, ENDSIG);
@@ -301,45 +378,63 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
             currentEntry.setMethod(compressMethod);
         }
 
-        // Local file header.
-        // http://www.pkware.com/documents/casestudies/APPNOTE.TXT
-        int flags = currentEntry.getMethod() == STORED ? 0 : ZipFile.GPBF_DATA_DESCRIPTOR_FLAG;
-        // Java always outputs UTF-8 filenames. (Before Java 7, the RI didn't set this flag and used
-        // modified UTF-8. From Java 7, it sets this flag and uses normal UTF-8.)
-        flags |= ZipFile.GPBF_UTF8_FLAG;
-        writeLong(out, LOCSIG); // Entry header
-        writeShort(out, ZIPLocalHeaderVersionNeeded); // Extraction version
-        writeShort(out, flags);
-        writeShort(out, currentEntry.getMethod());
         if (currentEntry.getTime() == -1) {
             currentEntry.setTime(System.currentTimeMillis());
         }
-        writeShort(out, currentEntry.time);
-        writeShort(out, currentEntry.modDate);
-
         if (currentEntry.getMethod() == STORED) {
             if (currentEntry.size == -1) {
                 currentEntry.size = currentEntry.compressedSize;
             } else if (currentEntry.compressedSize == -1) {
                 currentEntry.compressedSize = currentEntry.size;
             }
-            writeLong(out, currentEntry.crc);
-            writeLong(out, currentEntry.size);
-            writeLong(out, currentEntry.size);
+        }
+
+        if (parallel == null) {
+            writeLocalHeader(out);
+        } else if (currentEntry.getMethod() == STORED) {
+            // Stored data is written straight through, so everything before it must be out first.
+            parallel.drainAll(out);
+            writeLocalHeader(out);
+        } else {
+            parallel.setLevel(compressLevel);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(LOCHDR + nameLength);
+            writeLocalHeader(header);
+            parallel.enqueue(header.toByteArray());
+        }
+    }
+
+    private void writeLocalHeader(OutputStream os) throws IOException {
+        // Local file header.
+        // http://www.pkware.com/documents/casestudies/APPNOTE.TXT
+        int flags = currentEntry.getMethod() == STORED ? 0 : ZipFile.GPBF_DATA_DESCRIPTOR_FLAG;
+        // Java always outputs UTF-8 filenames. (Before Java 7, the RI didn't set this flag and used
+        // modified UTF-8. From Java 7, it sets this flag and uses normal UTF-8.)
+        flags |= ZipFile.GPBF_UTF8_FLAG;
+        writeLong(os, LOCSIG); // Entry header
+        writeShort(os, ZIPLocalHeaderVersionNeeded); // Extraction version
+        writeShort(os, flags);
+        writeShort(os, currentEntry.getMethod());
+        writeShort(os, currentEntry.time);
+        writeShort(os, currentEntry.modDate);
+
+        if (currentEntry.getMethod() == STORED) {
+            writeLong(os, currentEntry.crc);
+            writeLong(os, currentEntry.size);
+            writeLong(os, currentEntry.size);
         } else {
-            writeLong(out, 0);
-            writeLong(out, 0);
-            writeLong(out, 0);
+            writeLong(os, 0);
+            writeLong(os, 0);
+            writeLong(os, 0);
         }
-        writeShort(out, nameLength);
+        writeShort(os, nameLength);
         if (currentEntry.extra != null) {
-            writeShort(out, currentEntry.extra.length);
+            writeShort(os, currentEntry.extra.length);
         } else {
-            writeShort(out, 0);
+            writeShort(os, 0);
         }
-        out.write(nameBytes);
+        os.write(nameBytes);
         if (currentEntry.extra != null) {
-            out.write(currentEntry.extra);
+            os.write(currentEntry.extra);
         }
     }
 
@@ -417,6 +512,8 @@ public class ZipOutputStream extends DeflaterOutputStream implements ZipConstant
 
         if (currentEntry.getMethod() == STORED) {
             out.write(buffer, offset, byteCount);
+        } else if (parallel != null) {
+            parallel.write(out, buffer, offset, byteCount);
         } else {
             super.write(buffer, offset, byteCount);
         }
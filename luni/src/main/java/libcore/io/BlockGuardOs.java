@@ -110,6 +110,14 @@ public class BlockGuardOs extends ForwardingOs {
         return os.open(path, flags, mode);
     }
 
+    @Override public int epoll_wait(FileDescriptor epfd, int[] events, int[] data, int timeoutMs) throws ErrnoException {
+        // As with poll, a zero timeout returns immediately and isn't subject to BlockGuard.
+        if (timeoutMs != 0) {
+            BlockGuard.getThreadPolicy().onNetwork();
+        }
+        return os.epoll_wait(epfd, events, data, timeoutMs);
+    }
+
     @Override public int poll(StructPollfd[] fds, int timeoutMs) throws ErrnoException {
         // Greater than 0 is a timeout in milliseconds and -1 means "block forever",
         // but 0 means "poll and return immediately", which shouldn't be subject to BlockGuard.
@@ -164,6 +172,16 @@ public class BlockGuardOs extends ForwardingOs {
         return os.recvfrom(fd, bytes, byteOffset, byteCount, flags, srcAddress);
     }
 
+    @Override public int recvmsg(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts, int flags) throws ErrnoException, SocketException {
+        BlockGuard.getThreadPolicy().onNetwork();
+        return os.recvmsg(fd, buffers, offsets, byteCounts, flags);
+    }
+
+    @Override public int sendmsg(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts, int flags) throws ErrnoException, SocketException {
+        BlockGuard.getThreadPolicy().onNetwork();
+        return os.sendmsg(fd, buffers, offsets, byteCounts, flags);
+    }
+
     @Override public int sendto(FileDescriptor fd, ByteBuffer buffer, int flags, InetAddress inetAddress, int port) throws ErrnoException, SocketException {
         BlockGuard.getThreadPolicy().onNetwork();
         return os.sendto(fd, buffer, flags, inetAddress, port);
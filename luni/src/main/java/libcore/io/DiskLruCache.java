@@ -16,8 +16,10 @@
 
 package libcore.io;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -38,10 +40,16 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -78,7 +86,10 @@ import java.util.concurrent.TimeUnit;
  *
  * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * removals after the call do not impact ongoing reads. Reads don't take the
+ * cache's lock, so threads reading different entries don't contend; the
+ * accesses are recorded in a queue and applied to the LRU order and the
+ * journal in batches.
  *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
@@ -89,8 +100,13 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String SNAPSHOT_FILE = "journal.snapshot";
+    static final String SNAPSHOT_FILE_TMP = "journal.snapshot.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final String VERSION_2 = "2";
+    static final int SNAPSHOT_MAGIC = 0x444c5243; // "DLRC"
+    static final int SNAPSHOT_VERSION = 1;
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
@@ -135,20 +151,71 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Journals of version 1 hold the cache's complete history. Journals of
+     * version 2 hold only the operations since the last compaction; the state
+     * at that point is in a binary file named "journal.snapshot" so that it can
+     * be loaded without parsing text. All values in the snapshot are
+     * big-endian:
+     *     int    0x444c5243, the snapshot magic
+     *     int    the snapshot version, currently 1
+     *     int    the application's version
+     *     int    the value count
+     *     int    the number of entries
+     * followed by the entries in LRU order, least recently used first:
+     *     short  the number of bytes in the key
+     *     byte[] the key, UTF-8 encoded
+     *     byte   1 if the entry was being edited, 0 otherwise
+     *     long[] the lengths of each of its values
+     *
+     * Version 1 journals are read and then immediately compacted to version 2.
+     * Compaction writes the new snapshot and journal to temporary files before
+     * renaming them into place. Replaying operations on a snapshot that
+     * already includes them yields the same entries, so a crash between the
+     * two renames is harmless.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File snapshotFile;
+    private final File snapshotFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile Writer journalWriter;
+
+    /** The entries in access order for eviction. Guarded by this. */
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    /**
+     * The same entries as lruEntries, for lookups that don't hold the cache's
+     * lock. Modified only while holding this.
+     */
+    private final ConcurrentHashMap<String, Entry> entries
+            = new ConcurrentHashMap<String, Entry>();
+
     private int redundantOpCount;
 
+    /**
+     * The number of reads to accumulate before the background thread applies
+     * them to the LRU order and appends them to the journal.
+     */
+    private static final int READ_BATCH_SIZE = 128;
+
+    /** Keys read by {@link #get} that haven't yet been applied to lruEntries. */
+    private final ConcurrentLinkedQueue<String> pendingReads = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+
+    /**
+     * Guards the files and published state of the entries whose keys hash to
+     * each stripe. Snapshots are opened with the read lock; commits and
+     * removals take the write lock while also holding this.
+     */
+    private final ReadWriteLock[] stripes = new ReadWriteLock[32];
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -165,6 +232,7 @@ public final class DiskLruCache implements Closeable {
                 if (journalWriter == null) {
                     return null; // closed
                 }
+                drainPendingReads();
                 trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
@@ -180,8 +248,13 @@ public final class DiskLruCache implements Closeable {
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+        this.snapshotFileTmp = new File(directory, SNAPSHOT_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
     }
 
     /**
@@ -207,9 +280,14 @@ public final class DiskLruCache implements Closeable {
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                boolean legacyJournal = cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true));
+                if (legacyJournal) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = new BufferedWriter(
+                            new FileWriter(cache.journalFile, true));
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
                 System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -225,7 +303,14 @@ public final class DiskLruCache implements Closeable {
         return cache;
     }
 
-    private void readJournal() throws IOException {
+    /**
+     * Reads the journal and, for version 2 journals, the snapshot it applies
+     * to.
+     *
+     * @return true if the journal is in the version 1 format and should be
+     *     compacted.
+     */
+    private boolean readJournal() throws IOException {
         StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile),
                 Charsets.US_ASCII);
         try {
@@ -235,7 +320,7 @@ public final class DiskLruCache implements Closeable {
             String valueCountString = reader.readLine();
             String blank = reader.readLine();
             if (!MAGIC.equals(magic)
-                    || !VERSION_1.equals(version)
+                    || !(VERSION_1.equals(version) || VERSION_2.equals(version))
                     || !Integer.toString(appVersion).equals(appVersionString)
                     || !Integer.toString(valueCount).equals(valueCountString)
                     || !"".equals(blank)) {
@@ -243,6 +328,11 @@ public final class DiskLruCache implements Closeable {
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
+            boolean legacyJournal = VERSION_1.equals(version);
+            if (!legacyJournal) {
+                readSnapshot();
+            }
+
             while (true) {
                 try {
                     readJournalLine(reader.readLine());
@@ -250,11 +340,91 @@ public final class DiskLruCache implements Closeable {
                     break;
                 }
             }
+            return legacyJournal;
         } finally {
             IoUtils.closeQuietly(reader);
         }
     }
 
+    /**
+     * Loads the entries from the memory-mapped snapshot file. The snapshot's
+     * structure is validated as it is read, because the mapped buffer itself
+     * isn't bounds checked.
+     */
+    private void readSnapshot() throws IOException {
+        MemoryMappedFile mappedFile;
+        try {
+            mappedFile = MemoryMappedFile.mmapRO(snapshotFile.getPath());
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+
+        try {
+            long size = mappedFile.size();
+            final int headerSize = 5 * SizeOf.INT;
+            if (size < headerSize || size > Integer.MAX_VALUE) {
+                throw new IOException("unexpected snapshot size: " + size);
+            }
+            BufferIterator it = mappedFile.bigEndianIterator();
+            int magic = it.readInt();
+            int version = it.readInt();
+            int snapshotAppVersion = it.readInt();
+            int snapshotValueCount = it.readInt();
+            int entryCount = it.readInt();
+            if (magic != SNAPSHOT_MAGIC
+                    || version != SNAPSHOT_VERSION
+                    || snapshotAppVersion != appVersion
+                    || snapshotValueCount != valueCount
+                    || entryCount < 0) {
+                throw new IOException("unexpected snapshot header: ["
+                        + magic + ", " + version + ", " + snapshotAppVersion + ", "
+                        + snapshotValueCount + ", " + entryCount + "]");
+            }
+
+            long remaining = size - headerSize;
+            byte[] keyBytes = new byte[64];
+            for (int e = 0; e < entryCount; e++) {
+                if (remaining < SizeOf.SHORT) {
+                    throw new IOException("truncated snapshot");
+                }
+                int keyLength = it.readShort() & 0xffff;
+                remaining -= SizeOf.SHORT;
+                if (remaining < keyLength + 1 + SizeOf.LONG * valueCount) {
+                    throw new IOException("truncated snapshot");
+                }
+                remaining -= keyLength + 1 + SizeOf.LONG * valueCount;
+
+                if (keyBytes.length < keyLength) {
+                    keyBytes = new byte[keyLength];
+                }
+                it.readByteArray(keyBytes, 0, keyLength);
+                String key = new String(keyBytes, 0, keyLength, Charsets.UTF_8);
+
+                Entry entry = new Entry(key);
+                if (it.readByte() != 0) {
+                    entry.currentEditor = new Editor(entry);
+                } else {
+                    entry.readable = true;
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    long high = it.readInt();
+                    long low = it.readInt() & 0xffffffffL;
+                    entry.lengths[i] = (high << 32) | low;
+                }
+                lruEntries.put(key, entry);
+                entries.put(key, entry);
+            }
+            if (remaining != 0) {
+                throw new IOException("unexpected data after snapshot entries");
+            }
+        } finally {
+            try {
+                mappedFile.close();
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -264,6 +434,7 @@ public final class DiskLruCache implements Closeable {
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
             lruEntries.remove(key);
+            entries.remove(key);
             return;
         }
 
@@ -271,6 +442,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            entries.put(key, entry);
         }
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
@@ -292,6 +464,7 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(snapshotFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -305,39 +478,59 @@ public final class DiskLruCache implements Closeable {
                     deleteIfExists(entry.getDirtyFile(t));
                 }
                 i.remove();
+                entries.remove(entry.key);
             }
         }
     }
 
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * Writes a snapshot of the current entries and starts a new, empty journal
+     * that applies to it. This replaces the current journal and snapshot if
+     * they exist.
      */
     private synchronized void rebuildJournal() throws IOException {
         if (journalWriter != null) {
+            drainPendingReads();
             journalWriter.close();
         }
 
+        DataOutputStream snapshot = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(snapshotFileTmp)));
+        try {
+            snapshot.writeInt(SNAPSHOT_MAGIC);
+            snapshot.writeInt(SNAPSHOT_VERSION);
+            snapshot.writeInt(appVersion);
+            snapshot.writeInt(valueCount);
+            snapshot.writeInt(lruEntries.size());
+            for (Entry entry : lruEntries.values()) {
+                byte[] keyBytes = entry.key.getBytes(Charsets.UTF_8);
+                if (keyBytes.length > 0xffff) {
+                    throw new IOException("key too long: " + entry.key);
+                }
+                snapshot.writeShort(keyBytes.length);
+                snapshot.write(keyBytes);
+                snapshot.writeByte(entry.currentEditor != null ? 1 : 0);
+                for (long length : entry.lengths) {
+                    snapshot.writeLong(length);
+                }
+            }
+        } finally {
+            snapshot.close();
+        }
+
         Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
         writer.write(MAGIC);
         writer.write("\n");
-        writer.write(VERSION_1);
+        writer.write(VERSION_2);
         writer.write("\n");
         writer.write(Integer.toString(appVersion));
         writer.write("\n");
         writer.write(Integer.toString(valueCount));
         writer.write("\n");
         writer.write("\n");
-
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            }
-        }
-
         writer.close();
+
+        snapshotFileTmp.renameTo(snapshotFile);
         journalFileTmp.renameTo(journalFile);
         journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
     }
@@ -356,41 +549,118 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     *
+     * <p>This method doesn't hold the cache's lock, so it may run concurrently
+     * with other reads and with edits of other entries.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
 
-        if (!entry.readable) {
-            return null;
+        InputStream[] ins = new InputStream[valueCount];
+        long[] lengths;
+        long sequenceNumber;
+        Lock lock = stripeFor(key).readLock();
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            lock.lock();
+            try {
+                if (entries.get(key) != entry) {
+                    continue; // the entry was replaced before we could lock it
+                }
+
+                if (!entry.readable) {
+                    return null;
+                }
+
+                /*
+                 * Open all streams eagerly to guarantee that we see a single
+                 * published snapshot. If we opened streams lazily then the
+                 * streams could come from different edits.
+                 */
+                try {
+                    for (int i = 0; i < valueCount; i++) {
+                        ins[i] = new FileInputStream(entry.getCleanFile(i));
+                    }
+                } catch (FileNotFoundException e) {
+                    // a file must have been deleted manually!
+                    for (InputStream in : ins) {
+                        IoUtils.closeQuietly(in);
+                    }
+                    return null;
+                }
+                lengths = entry.lengths.clone();
+                sequenceNumber = entry.sequenceNumber;
+                break;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
+        recordRead(key);
+        return new Snapshot(key, sequenceNumber, ins, lengths);
+    }
+
+    /**
+     * Moves the entry named {@code key} to the head of the LRU queue, as
+     * {@link #get} does, without opening its files. Returns false if the
+     * entry doesn't exist or is not currently readable.
+     */
+    public boolean touch(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+
+        Lock lock = stripeFor(key).readLock();
+        lock.lock();
         try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            Entry entry = entries.get(key);
+            if (entry == null || !entry.readable) {
+                return false;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+        } finally {
+            lock.unlock();
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+        recordRead(key);
+        return true;
+    }
+
+    private void recordRead(String key) {
+        // The LRU order and the journal are updated in batches on the background thread.
+        pendingReads.offer(key);
+        if (pendingReadCount.incrementAndGet() == READ_BATCH_SIZE) {
             executorService.submit(cleanupCallable);
         }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Moves the entries read since the last call to the head of the LRU queue
+     * and records the reads in the journal. Callers must hold this.
+     */
+    private void drainPendingReads() throws IOException {
+        int drained = 0;
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            drained++;
+            if (lruEntries.get(key) != null) {
+                redundantOpCount++;
+                journalWriter.append(READ + ' ' + key + '\n');
+            }
+        }
+        if (drained > 0) {
+            pendingReadCount.addAndGet(-drained);
+        }
+    }
+
+    private ReadWriteLock stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (stripes.length - 1)];
     }
 
     /**
@@ -404,6 +674,7 @@ public final class DiskLruCache implements Closeable {
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
+        drainPendingReads();
         Entry entry = lruEntries.get(key);
         if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
                 && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
@@ -412,6 +683,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            entries.put(key, entry);
         } else if (entry.currentEditor != null) {
             return null; // another edit is in progress
         }
@@ -454,6 +726,7 @@ public final class DiskLruCache implements Closeable {
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
         }
+        drainPendingReads();
 
         // if this edit is creating the entry for the first time, every index must have a value
         if (success && !entry.readable) {
@@ -470,32 +743,44 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        // publish the new values atomically with respect to concurrent get() calls
+        Lock lock = stripeFor(entry.key).writeLock();
+        lock.lock();
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
                 }
             } else {
-                deleteIfExists(dirty);
+                lruEntries.remove(entry.key);
+                entries.remove(entry.key);
             }
+        } finally {
+            lock.unlock();
         }
 
         redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
+        if (entry.readable) {
             journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
         } else {
-            lruEntries.remove(entry.key);
             journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
 
@@ -523,18 +808,27 @@ public final class DiskLruCache implements Closeable {
     public synchronized boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
+        drainPendingReads();
         Entry entry = lruEntries.get(key);
         if (entry == null || entry.currentEditor != null) {
             return false;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+        Lock lock = stripeFor(key).writeLock();
+        lock.lock();
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size -= entry.lengths[i];
+                entry.lengths[i] = 0;
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
+            entry.readable = false;
+            entries.remove(key);
+        } finally {
+            lock.unlock();
         }
 
         redundantOpCount++;
@@ -566,6 +860,7 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
+        drainPendingReads();
         trimToSize();
         journalWriter.flush();
     }
@@ -577,6 +872,7 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
             return; // already closed
         }
+        drainPendingReads();
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
             if (entry.currentEditor != null) {
                 entry.currentEditor.abort();
@@ -622,11 +918,13 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
         }
 
         /**
@@ -652,6 +950,13 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
         @Override public void close() {
             for (InputStream in : ins) {
                 IoUtils.closeQuietly(in);
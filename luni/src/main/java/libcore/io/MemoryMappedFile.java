@@ -49,10 +49,13 @@ public final class MemoryMappedFile implements AutoCloseable {
      */
     public static MemoryMappedFile mmapRO(String path) throws ErrnoException {
         FileDescriptor fd = Libcore.os.open(path, O_RDONLY, 0);
-        long size = Libcore.os.fstat(fd).st_size;
-        long address = Libcore.os.mmap(0L, size, PROT_READ, MAP_SHARED, fd, 0);
-        Libcore.os.close(fd);
-        return new MemoryMappedFile(address, size);
+        try {
+            long size = Libcore.os.fstat(fd).st_size;
+            long address = Libcore.os.mmap(0L, size, PROT_READ, MAP_SHARED, fd, 0);
+            return new MemoryMappedFile(address, size);
+        } finally {
+            Libcore.os.close(fd);
+        }
     }
 
     /**
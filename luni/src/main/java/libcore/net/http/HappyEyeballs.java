@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import dalvik.system.SocketTagger;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import libcore.io.IoUtils;
+
+/**
+ * Connects to whichever of a host's addresses accepts a connection first, in
+ * the style of RFC 6555 "Happy Eyeballs". Addresses are tried alternating
+ * between IPv6 and IPv4, starting with the family of the first address. A new
+ * attempt starts whenever the previous one fails or has been pending for
+ * {@code attemptDelayMillis}, so an unreachable address family delays the
+ * connection by that much rather than by a full connect timeout.
+ *
+ * <p>Each attempt connects on a daemon thread of a shared pool. When an
+ * attempt succeeds, the sockets of all other attempts are closed, and the
+ * winning socket is re-tagged on the calling thread, since it was created
+ * and tagged on the pool thread.
+ */
+final class HappyEyeballs {
+
+    /** The delay RFC 6555 recommends between attempts, in milliseconds. */
+    static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final Executor CONNECT_EXECUTOR = newConnectExecutor();
+
+    private final Proxy proxy;
+    private final int port;
+    private final int connectTimeout;
+    private final long attemptDelayMillis;
+
+    /**
+     * @param proxy a SOCKS proxy to connect through, or null to connect
+     *     directly.
+     * @param connectTimeout the timeout of each attempt, in milliseconds, or 0
+     *     to wait indefinitely.
+     */
+    HappyEyeballs(Proxy proxy, int port, int connectTimeout, long attemptDelayMillis) {
+        this.proxy = proxy;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.attemptDelayMillis = attemptDelayMillis;
+    }
+
+    private static Executor newConnectExecutor() {
+        // attempts are short-lived, so grow on demand and let idle threads exit
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "HttpConnection connect");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Returns {@code addresses} reordered to alternate between address
+     * families, keeping the relative order within each family.
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length == 0) {
+            return addresses;
+        }
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsIpv6 ? first : second).add(address);
+        }
+        InetAddress[] result = new InetAddress[addresses.length];
+        for (int i = 0, f = 0, s = 0; i < result.length; i++) {
+            boolean takeFirst = (i % 2 == 0 || s == second.size()) && f < first.size();
+            result[i] = takeFirst ? first.get(f++) : second.get(s++);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a socket connected to one of {@code addresses}.
+     *
+     * @throws IOException the failure of the last attempt, if every attempt
+     *     fails. Unchecked failures are rethrown as they are.
+     */
+    public Socket connect(InetAddress[] addresses) throws IOException {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("addresses.length == 0");
+        } else if (addresses.length == 1) {
+            // nothing to race
+            Socket socket = newSocket();
+            try {
+                socket.connect(new InetSocketAddress(addresses[0], port), connectTimeout);
+            } catch (IOException e) {
+                IoUtils.closeQuietly(socket);
+                throw e;
+            }
+            return socket;
+        }
+
+        addresses = interleave(addresses);
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<Attempt>();
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        Socket result = null;
+        Throwable lastFailure = null;
+        try {
+            Attempt winner = null;
+            int pending = 0;
+            while (winner == null) {
+                Attempt attempt;
+                if (attempts.size() == addresses.length) {
+                    if (pending == 0) {
+                        throw rethrow(lastFailure);
+                    }
+                    attempt = completed.take();
+                } else if (pending == 0) {
+                    attempt = null;
+                } else {
+                    attempt = completed.poll(attemptDelayMillis, TimeUnit.MILLISECONDS);
+                }
+
+                if (attempt == null) {
+                    // start the next attempt: the previous one is slow or has failed
+                    Attempt next = new Attempt(newSocket(),
+                            addresses[attempts.size()], completed);
+                    attempts.add(next);
+                    pending++;
+                    CONNECT_EXECUTOR.execute(next);
+                } else {
+                    pending--;
+                    if (attempt.failure == null) {
+                        winner = attempt;
+                    } else {
+                        lastFailure = attempt.failure;
+                    }
+                }
+            }
+            // the socket was tagged on the pool thread; tag it for this thread instead
+            SocketTagger.get().tag(winner.socket);
+            result = winner.socket;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while connecting");
+        } finally {
+            // abort the connects still in progress and close the losing connections
+            for (Attempt attempt : attempts) {
+                if (attempt.socket != result) {
+                    IoUtils.closeQuietly(attempt.socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws {@code failure} if it is unchecked, or else returns it as an
+     * IOException to be thrown by the caller.
+     */
+    private static IOException rethrow(Throwable failure) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return new IOException(failure);
+    }
+
+    private Socket newSocket() {
+        return proxy != null ? new Socket(proxy) : new Socket();
+    }
+
+    private final class Attempt implements Runnable {
+        final Socket socket;
+        final InetAddress address;
+        final BlockingQueue<Attempt> completed;
+
+        /** Written before this attempt is added to {@code completed}. */
+        Throwable failure;
+
+        Attempt(Socket socket, InetAddress address, BlockingQueue<Attempt> completed) {
+            this.socket = socket;
+            this.address = address;
+            this.completed = completed;
+        }
+
+        public void run() {
+            try {
+                socket.connect(new InetSocketAddress(address, port), connectTimeout);
+            } catch (Throwable t) {
+                // any failure, so that connect() never waits for this attempt forever
+                failure = t;
+            } finally {
+                completed.add(this);
+            }
+        }
+    }
+}
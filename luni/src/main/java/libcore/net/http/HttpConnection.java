@@ -20,6 +20,7 @@ package libcore.net.http;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -28,9 +29,14 @@ import java.net.ProxySelector;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -57,37 +63,60 @@ final class HttpConnection {
     private InputStream sslInputStream;
     private OutputStream sslOutputStream;
     private boolean recycled = false;
+    private HttpPipeline pipeline;
 
     private HttpConnection(Address config, int connectTimeout) throws IOException {
         this.address = config;
 
         /*
-         * Try each of the host's addresses for best behavior in mixed IPv4/IPv6
+         * Race the host's addresses for best behavior in mixed IPv4/IPv6
          * environments. See http://b/2876927
-         * TODO: add a hidden method so that Socket.tryAllAddresses can does this for us
          */
-        Socket socketCandidate = null;
-        InetAddress[] addresses = InetAddress.getAllByName(config.socketHost);
-        for (int i = 0; i < addresses.length; i++) {
-            socketCandidate = (config.proxy != null && config.proxy.type() != Proxy.Type.HTTP)
-                    ? new Socket(config.proxy)
-                    : new Socket();
-            try {
-                socketCandidate.connect(
-                        new InetSocketAddress(addresses[i], config.socketPort), connectTimeout);
-                break;
-            } catch (IOException e) {
-                if (i == addresses.length - 1) {
-                    throw e;
-                }
+        InetAddress[] addresses = resolve(config.socketHost, connectTimeout);
+        Proxy socketProxy = (config.proxy != null && config.proxy.type() != Proxy.Type.HTTP)
+                ? config.proxy
+                : null;
+        this.socket = new HappyEyeballs(socketProxy, config.socketPort, connectTimeout,
+                HappyEyeballs.DEFAULT_ATTEMPT_DELAY_MILLIS).connect(addresses);
+    }
+
+    /**
+     * Returns the addresses of {@code host}, waiting at most {@code timeout}
+     * milliseconds for them to be resolved. Zero waits indefinitely.
+     */
+    private static InetAddress[] resolve(String host, int timeout) throws IOException {
+        Future<InetAddress[]> addresses = InetAddress.getAllByNameAsync(host);
+        try {
+            return timeout != 0
+                    ? addresses.get(timeout, TimeUnit.MILLISECONDS)
+                    : addresses.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new AssertionError(cause);
+        } catch (TimeoutException e) {
+            // the lookup continues, and its result will be cached for the next attempt
+            throw new SocketTimeoutException("failed to resolve " + host
+                    + " within " + timeout + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while resolving " + host);
         }
-
-        this.socket = socketCandidate;
     }
 
+    /**
+     * @param pipelinable true if the request to be sent on this connection may
+     *     share it with other pipelined requests to the same address.
+     */
     public static HttpConnection connect(URI uri, SSLSocketFactory sslSocketFactory,
-            Proxy proxy, boolean requiresTunnel, int connectTimeout) throws IOException {
+            Proxy proxy, boolean requiresTunnel, boolean pipelinable, int connectTimeout)
+            throws IOException {
         /*
          * Try an explicitly-specified proxy.
          */
@@ -95,7 +124,7 @@ final class HttpConnection {
             Address address = (proxy.type() == Proxy.Type.DIRECT)
                     ? new Address(uri, sslSocketFactory)
                     : new Address(uri, sslSocketFactory, proxy, requiresTunnel);
-            return HttpConnectionPool.INSTANCE.get(address, connectTimeout);
+            return HttpConnectionPool.INSTANCE.get(address, pipelinable, connectTimeout);
         }
 
         /*
@@ -114,7 +143,7 @@ final class HttpConnection {
                 try {
                     Address address = new Address(uri, sslSocketFactory,
                             selectedProxy, requiresTunnel);
-                    return HttpConnectionPool.INSTANCE.get(address, connectTimeout);
+                    return HttpConnectionPool.INSTANCE.get(address, pipelinable, connectTimeout);
                 } catch (IOException e) {
                     // failed to connect, tell it to the selector
                     selector.connectFailed(uri, selectedProxy.address(), e);
@@ -125,7 +154,8 @@ final class HttpConnection {
         /*
          * Try a direct connection. If this fails, this method will throw.
          */
-        return HttpConnectionPool.INSTANCE.get(new Address(uri, sslSocketFactory), connectTimeout);
+        return HttpConnectionPool.INSTANCE.get(new Address(uri, sslSocketFactory),
+                pipelinable, connectTimeout);
     }
 
     public void closeSocketAndStreams() {
@@ -245,6 +275,18 @@ final class HttpConnection {
         this.recycled = true;
     }
 
+    /**
+     * Returns the pipeline that orders the requests sharing this connection,
+     * or null if this connection is not pipelined.
+     */
+    public HttpPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(HttpPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
     /**
      * Returns true if this connection is eligible to be reused for another
      * request/response pair.
@@ -21,9 +21,14 @@ import dalvik.system.SocketTagger;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A pool of HTTP connections. This class exposes its tuning parameters as
@@ -31,52 +36,143 @@ import java.util.List;
  * <ul>
  *   <li>{@code http.keepAlive} true if HTTP connections should be pooled at
  *       all. Default is true.
- *   <li>{@code http.maxConnections} maximum number of connections to each URI.
- *       Default is 5.
+ *   <li>{@code http.maxConnections} maximum number of idle connections to
+ *       each URI. Default is 5.
+ *   <li>{@code http.keepAliveDuration} time in milliseconds to keep an idle
+ *       connection in the pool before closing it. Default is 5 minutes.
+ *   <li>{@code http.maxIdleConnections} maximum number of idle connections
+ *       across all URIs. When exceeded, the least recently used connection is
+ *       closed. Default is 20 times {@code http.maxConnections}.
+ *   <li>{@code http.pipelining} true if idempotent GET requests may be
+ *       pipelined on a connection that is already in use. Default is false.
+ *   <li>{@code http.maxPipelineDepth} maximum number of requests outstanding
+ *       on a single pipelined connection. Default is 4.
  * </ul>
  *
+ * <p>Each address has its own lock so that threads connecting to different
+ * hosts don't contend with each other. Idle connections are closed by a
+ * daemon reaper thread that runs only while the pool is non-empty.
+ *
  * <p>This class <i>doesn't</i> adjust its configuration as system properties
  * are changed. This assumes that the applications that set these parameters do
  * so before making HTTP connections, and that this class is initialized lazily.
  */
 final class HttpConnectionPool {
 
-    public static final HttpConnectionPool INSTANCE = new HttpConnectionPool();
+    private static final long DEFAULT_KEEP_ALIVE_DURATION_MILLIS = 5 * 60 * 1000;
+
+    public static final HttpConnectionPool INSTANCE = newFromSystemProperties();
 
     private final int maxConnections;
-    private final HashMap<HttpConnection.Address, List<HttpConnection>> connectionPool
-            = new HashMap<HttpConnection.Address, List<HttpConnection>>();
+    private final int maxIdleConnections;
+    private final long keepAliveDurationNanos;
+    private volatile int maxPipelineDepth;
+
+    private final ConcurrentHashMap<HttpConnection.Address, Route> routes
+            = new ConcurrentHashMap<HttpConnection.Address, Route>();
+
+    /** The number of idle connections across all routes. */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+    private final AtomicLong pipelinedCount = new AtomicLong();
 
-    private HttpConnectionPool() {
+    /** Guarded by this. True while the reaper thread is running. */
+    private boolean reaperRunning;
+
+    private final Runnable reaper = new Runnable() {
+        public void run() {
+            while (true) {
+                long waitNanos = cleanup(System.nanoTime());
+                synchronized (HttpConnectionPool.this) {
+                    if (waitNanos == -1) {
+                        if (idleCount.get() == 0) {
+                            reaperRunning = false;
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(HttpConnectionPool.this, waitNanos);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * @param maxPipelineDepth the maximum number of requests to pipeline on a
+     *     single connection, or 0 to disable pipelining.
+     */
+    HttpConnectionPool(int maxConnections, int maxIdleConnections,
+            long keepAliveDurationMillis, int maxPipelineDepth) {
+        this.maxConnections = maxConnections;
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveDurationNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveDurationMillis);
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    private static HttpConnectionPool newFromSystemProperties() {
         String keepAlive = System.getProperty("http.keepAlive");
         if (keepAlive != null && !Boolean.parseBoolean(keepAlive)) {
-            maxConnections = 0;
-            return;
+            return new HttpConnectionPool(0, 0, 0, 0);
         }
 
         String maxConnectionsString = System.getProperty("http.maxConnections");
-        this.maxConnections = maxConnectionsString != null
+        int maxConnections = maxConnectionsString != null
                 ? Integer.parseInt(maxConnectionsString)
                 : 5;
+
+        String maxIdleString = System.getProperty("http.maxIdleConnections");
+        int maxIdleConnections = maxIdleString != null
+                ? Integer.parseInt(maxIdleString)
+                : maxConnections * 20;
+
+        String keepAliveDurationString = System.getProperty("http.keepAliveDuration");
+        long keepAliveDurationMillis = keepAliveDurationString != null
+                ? Long.parseLong(keepAliveDurationString)
+                : DEFAULT_KEEP_ALIVE_DURATION_MILLIS;
+
+        int maxPipelineDepth = 0;
+        if (Boolean.parseBoolean(System.getProperty("http.pipelining"))) {
+            String maxPipelineDepthString = System.getProperty("http.maxPipelineDepth");
+            maxPipelineDepth = maxPipelineDepthString != null
+                    ? Integer.parseInt(maxPipelineDepthString)
+                    : 4;
+        }
+
+        return new HttpConnectionPool(maxConnections, maxIdleConnections,
+                keepAliveDurationMillis, maxPipelineDepth);
     }
 
-    public HttpConnection get(HttpConnection.Address address, int connectTimeout)
-            throws IOException {
-        // First try to reuse an existing HTTP connection.
-        synchronized (connectionPool) {
-            List<HttpConnection> connections = connectionPool.get(address);
-            while (connections != null) {
-                HttpConnection connection = connections.remove(connections.size() - 1);
-                if (connections.isEmpty()) {
-                    connectionPool.remove(address);
-                    connections = null;
-                }
-                if (connection.isEligibleForRecycling()) {
-                    // Since Socket is recycled, re-tag before using
-                    Socket socket = connection.getSocket();
-                    SocketTagger.get().tag(socket);
-                    return connection;
-                }
+    /**
+     * Returns a connection to {@code address}, reusing an idle connection if
+     * one is available.
+     *
+     * @param pipelinable true if the caller's request is an idempotent request
+     *     that may share a connection with other in-flight requests. Such
+     *     callers must release the connection with {@link #releasePipelined}.
+     */
+    public HttpConnection get(HttpConnection.Address address, boolean pipelinable,
+            int connectTimeout) throws IOException {
+        pipelinable &= maxPipelineDepth > 0;
+
+        HttpConnection result = takeIdle(address);
+        if (result != null) {
+            if (pipelinable) {
+                startPipeline(result);
+            }
+            return result;
+        }
+
+        if (pipelinable) {
+            result = joinPipeline(address);
+            if (result != null) {
+                return result;
             }
         }
 
@@ -84,7 +180,141 @@ final class HttpConnectionPool {
          * We couldn't find a reusable connection, so we need to create a new
          * connection. We're careful not to do so while holding a lock!
          */
-        return address.connect(connectTimeout);
+        missCount.incrementAndGet();
+        result = address.connect(connectTimeout);
+        if (pipelinable) {
+            startPipeline(result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the most recently used idle connection to {@code address}, or
+     * null if there is no such connection.
+     */
+    private HttpConnection takeIdle(HttpConnection.Address address) {
+        Route route = routes.get(address);
+        if (route != null) {
+            long now = System.nanoTime();
+            List<HttpConnection> stale = null;
+            HttpConnection result = null;
+            synchronized (route) {
+                IdleConnection idle;
+                while ((idle = route.idle.pollLast()) != null) {
+                    idleCount.decrementAndGet();
+                    if (idle.isExpired(now, keepAliveDurationNanos)
+                            || !idle.connection.isEligibleForRecycling()) {
+                        if (stale == null) {
+                            stale = new ArrayList<HttpConnection>();
+                        }
+                        stale.add(idle.connection);
+                        continue;
+                    }
+                    result = idle.connection;
+                    break;
+                }
+            }
+
+            // don't close streams while holding a lock!
+            if (stale != null) {
+                staleCount.addAndGet(stale.size());
+                for (HttpConnection connection : stale) {
+                    connection.closeSocketAndStreams();
+                }
+            }
+
+            if (result != null) {
+                // Since Socket is recycled, re-tag before using
+                Socket socket = result.getSocket();
+                SocketTagger.get().tag(socket);
+                hitCount.incrementAndGet();
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an in-use connection to {@code address} that has room for
+     * another pipelined request, or null if there is no such connection.
+     */
+    private HttpConnection joinPipeline(HttpConnection.Address address) {
+        Route route = routes.get(address);
+        if (route == null) {
+            return null;
+        }
+        synchronized (route) {
+            for (Iterator<HttpConnection> i = route.pipelined.iterator(); i.hasNext(); ) {
+                HttpConnection connection = i.next();
+                HttpPipeline pipeline = connection.getPipeline();
+                if (pipeline.isClosed()) {
+                    i.remove();
+                } else if (pipeline.isConfirmed() && pipeline.outstanding < maxPipelineDepth) {
+                    pipeline.outstanding++;
+                    connection.setRecycled();
+                    hitCount.incrementAndGet();
+                    pipelinedCount.incrementAndGet();
+                    return connection;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes {@code connection}, which the caller holds exclusively, available
+     * for other pipelined requests to join.
+     */
+    private void startPipeline(HttpConnection connection) {
+        HttpPipeline pipeline = new HttpPipeline();
+        pipeline.outstanding = 1;
+        connection.setPipeline(pipeline);
+        HttpConnection.Address address = connection.getAddress();
+        while (true) {
+            Route route = getOrCreateRoute(address);
+            synchronized (route) {
+                if (route.removed) {
+                    continue; // the reaper dropped this route; look it up again
+                }
+                route.pipelined.add(connection);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Releases one pipelined request's hold on {@code connection}. When the
+     * last request on a connection is released, the connection is either
+     * returned to the idle pool or closed.
+     *
+     * @param ticket the ticket that the request was written with, or -1 if
+     *     the request was never written.
+     */
+    public void releasePipelined(HttpConnection connection, int ticket, boolean reusable) {
+        HttpPipeline pipeline = connection.getPipeline();
+        if (ticket != -1 || !reusable) {
+            pipeline.advance(ticket, reusable);
+        }
+
+        boolean last;
+        Route route = routes.get(connection.getAddress());
+        synchronized (route) {
+            last = --pipeline.outstanding == 0;
+            if (last || pipeline.isClosed()) {
+                route.pipelined.remove(connection);
+            }
+            if (last) {
+                connection.setPipeline(null);
+            }
+        }
+
+        // Don't close streams while holding a lock! Nor while a response
+        // ahead of the failure is still being read from them.
+        if (pipeline.isClosed() && (last || pipeline.canClose())) {
+            connection.closeSocketAndStreams();
+        } else if (last) {
+            recycle(connection);
+        }
     }
 
     public void recycle(HttpConnection connection) {
@@ -98,23 +328,249 @@ final class HttpConnectionPool {
             return;
         }
 
-        if (maxConnections > 0 && connection.isEligibleForRecycling()) {
+        if (maxConnections > 0 && maxIdleConnections > 0
+                && connection.isEligibleForRecycling()) {
             HttpConnection.Address address = connection.getAddress();
-            synchronized (connectionPool) {
-                List<HttpConnection> connections = connectionPool.get(address);
-                if (connections == null) {
-                    connections = new ArrayList<HttpConnection>();
-                    connectionPool.put(address, connections);
+            boolean added = false;
+            while (true) {
+                Route route = getOrCreateRoute(address);
+                synchronized (route) {
+                    if (route.removed) {
+                        continue; // the reaper dropped this route; look it up again
+                    }
+                    if (route.idle.size() < maxConnections) {
+                        connection.setRecycled();
+                        route.idle.addLast(new IdleConnection(connection, System.nanoTime()));
+                        added = true;
+                    }
                 }
-                if (connections.size() < maxConnections) {
-                    connection.setRecycled();
-                    connections.add(connection);
-                    return; // keep the connection open
+                break;
+            }
+
+            if (added) {
+                if (idleCount.incrementAndGet() > maxIdleConnections) {
+                    evictOldest();
                 }
+                startReaperIfNecessary();
+                return; // keep the connection open
             }
         }
 
         // don't close streams while holding a lock!
         connection.closeSocketAndStreams();
     }
+
+    private Route getOrCreateRoute(HttpConnection.Address address) {
+        Route route = routes.get(address);
+        if (route == null) {
+            Route newRoute = new Route();
+            route = routes.putIfAbsent(address, newRoute);
+            if (route == null) {
+                route = newRoute;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Closes all idle connections in the pool.
+     */
+    public void evictAll() {
+        List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+        for (Route route : routes.values()) {
+            synchronized (route) {
+                for (IdleConnection idle : route.idle) {
+                    toClose.add(idle.connection);
+                }
+                idleCount.addAndGet(-route.idle.size());
+                route.idle.clear();
+            }
+        }
+        evictionCount.addAndGet(toClose.size());
+        for (HttpConnection connection : toClose) {
+            connection.closeSocketAndStreams();
+        }
+    }
+
+    /** For testing. */
+    void setMaxPipelineDepth(int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    /** For testing. */
+    int getMaxPipelineDepth() {
+        return maxPipelineDepth;
+    }
+
+    /**
+     * Returns the number of times a pooled connection was reused.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times a new connection had to be created because
+     * no pooled connection was available.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of idle connections closed because they exceeded the
+     * keep-alive duration or because the pool was full.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of pooled connections that were found to be expired
+     * or closed when they were checked out.
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    /**
+     * Returns the number of requests that were pipelined on a connection that
+     * was already in use. These are also counted as hits.
+     */
+    public long getPipelinedCount() {
+        return pipelinedCount.get();
+    }
+
+    /**
+     * Returns the number of idle connections in the pool.
+     */
+    public int getIdleConnectionCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Closes the least recently used idle connection across all routes.
+     */
+    private void evictOldest() {
+        while (idleCount.get() > maxIdleConnections) {
+            Route oldestRoute = null;
+            long oldestIdleAt = 0;
+            for (Route route : routes.values()) {
+                synchronized (route) {
+                    IdleConnection first = route.idle.peekFirst();
+                    if (first != null
+                            && (oldestRoute == null || first.idleAtNanos - oldestIdleAt < 0)) {
+                        oldestRoute = route;
+                        oldestIdleAt = first.idleAtNanos;
+                    }
+                }
+            }
+            if (oldestRoute == null) {
+                return;
+            }
+
+            HttpConnection evicted = null;
+            synchronized (oldestRoute) {
+                IdleConnection first = oldestRoute.idle.peekFirst();
+                if (first != null && first.idleAtNanos == oldestIdleAt) {
+                    oldestRoute.idle.removeFirst();
+                    idleCount.decrementAndGet();
+                    evicted = first.connection;
+                }
+            }
+            if (evicted != null) {
+                evictionCount.incrementAndGet();
+                evicted.closeSocketAndStreams();
+            }
+        }
+    }
+
+    /**
+     * Closes connections that have been idle longer than the keep-alive
+     * duration, and drops routes that have no idle connections.
+     *
+     * @return the number of nanoseconds until the next connection expires, or
+     *     -1 if the pool is empty.
+     */
+    long cleanup(long now) {
+        List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+        long nextExpiry = Long.MAX_VALUE;
+        boolean anyIdle = false;
+
+        for (Route route : routes.values()) {
+            synchronized (route) {
+                IdleConnection idle;
+                while ((idle = route.idle.peekFirst()) != null
+                        && idle.isExpired(now, keepAliveDurationNanos)) {
+                    route.idle.removeFirst();
+                    idleCount.decrementAndGet();
+                    toClose.add(idle.connection);
+                }
+                if (idle != null) {
+                    anyIdle = true;
+                    nextExpiry = Math.min(nextExpiry,
+                            idle.idleAtNanos + keepAliveDurationNanos - now);
+                }
+            }
+        }
+
+        // Remove empty routes. A concurrent recycle() may have just added to
+        // one, so only remove if it is still empty under its lock.
+        for (HttpConnection.Address address : routes.keySet()) {
+            Route route = routes.get(address);
+            if (route != null) {
+                synchronized (route) {
+                    if (route.idle.isEmpty() && route.pipelined.isEmpty()
+                            && routes.remove(address, route)) {
+                        route.removed = true;
+                    }
+                }
+            }
+        }
+
+        evictionCount.addAndGet(toClose.size());
+        for (HttpConnection connection : toClose) {
+            connection.closeSocketAndStreams();
+        }
+
+        return anyIdle ? Math.max(nextExpiry, 0) : -1;
+    }
+
+    private synchronized void startReaperIfNecessary() {
+        if (reaperRunning) {
+            return;
+        }
+        reaperRunning = true;
+        Thread thread = new Thread(reaper, "HttpConnectionPool reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The connections to a single address. Each route is its own lock.
+     */
+    private static final class Route {
+        /** Idle connections, oldest first. */
+        final ArrayDeque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+
+        /** In-use connections that may accept more pipelined requests. */
+        final List<HttpConnection> pipelined = new ArrayList<HttpConnection>();
+
+        /** True once this route has been removed from the pool's map. */
+        boolean removed;
+    }
+
+    private static final class IdleConnection {
+        final HttpConnection connection;
+        final long idleAtNanos;
+
+        IdleConnection(HttpConnection connection, long idleAtNanos) {
+            this.connection = connection;
+            this.idleAtNanos = idleAtNanos;
+        }
+
+        boolean isExpired(long now, long keepAliveDurationNanos) {
+            return now - idleAtNanos >= keepAliveDurationNanos;
+        }
+    }
 }
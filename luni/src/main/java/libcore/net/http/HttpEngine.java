@@ -39,7 +39,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 import javax.net.ssl.SSLSocketFactory;
 import libcore.io.IoUtils;
 import libcore.io.Streams;
@@ -126,6 +125,12 @@ public class HttpEngine {
     private OutputStream requestOut;
     private AbstractHttpOutputStream requestBodyOut;
 
+    /**
+     * The response body as it was transferred, either from the network or from
+     * the cache. This differs from responseBodyIn if the body is being
+     * transparently decompressed.
+     */
+    private InputStream responseTransferIn;
     private InputStream responseBodyIn;
 
     private final ResponseCache responseCache = ResponseCache.getDefault();
@@ -176,6 +181,18 @@ public class HttpEngine {
     /** True if the socket connection is no longer needed by this engine. */
     private boolean connectionReleased;
 
+    /**
+     * The position of this engine's request on a pipelined connection, or -1
+     * if the connection isn't pipelined or the request hasn't been written.
+     */
+    private int pipelineTicket = -1;
+
+    /**
+     * Releases this engine's pipelined connection if the engine is abandoned,
+     * or null if the connection isn't pipelined.
+     */
+    private PipelineGuard pipelineGuard;
+
     /**
      * @param requestHeaders the client's supplied request headers. This class
      *     creates a private copy that it can mutate.
@@ -309,12 +326,16 @@ public class HttpEngine {
     protected void connect() throws IOException {
         if (connection == null) {
             connection = openSocketConnection();
+            if (connection.getPipeline() != null) {
+                pipelineGuard = new PipelineGuard(connection);
+            }
         }
     }
 
     protected final HttpConnection openSocketConnection() throws IOException {
         HttpConnection result = HttpConnection.connect(uri, getSslSocketFactory(),
-                policy.getProxy(), requiresTunnel(), policy.getConnectTimeout());
+                policy.getProxy(), requiresTunnel(), isPipelinable(),
+                policy.getConnectTimeout());
         Proxy proxy = result.getAddress().getProxy();
         if (proxy != null) {
             policy.setProxy(proxy);
@@ -323,6 +344,19 @@ public class HttpEngine {
         return result;
     }
 
+    /**
+     * Returns true if this request may be pipelined behind other requests on
+     * the same connection. Only plain HTTP GETs qualify: they are idempotent,
+     * so they can be retried if the server closes the connection before
+     * answering them.
+     */
+    private boolean isPipelinable() {
+        return method == GET
+                && getSslSocketFactory() == null
+                && !requiresTunnel()
+                && !requestHeaders.hasConnectionClose();
+    }
+
     protected void initRequestBodyOut() throws IOException {
         int chunkLength = policy.getChunkLength();
         if (chunkLength > 0 || requestHeaders.isChunked()) {
@@ -479,7 +513,7 @@ public class HttpEngine {
      */
     public final void release(boolean reusable) {
         // If the response body comes from the cache, close it.
-        if (responseBodyIn == cachedResponseBody) {
+        if (responseTransferIn != null && responseTransferIn == cachedResponseBody) {
             IoUtils.closeQuietly(responseBodyIn);
         }
 
@@ -503,20 +537,28 @@ public class HttpEngine {
                 reusable = false;
             }
 
-            if (responseBodyIn instanceof UnknownLengthHttpInputStream) {
+            if (responseTransferIn instanceof UnknownLengthHttpInputStream) {
                 reusable = false;
             }
 
-            if (reusable && responseBodyIn != null) {
+            if (reusable && responseTransferIn != null) {
                 // We must discard the response body before the connection can be reused.
+                // Skip the transferred bytes directly; there's no need to decompress them.
                 try {
-                    Streams.skipAll(responseBodyIn);
+                    Streams.skipAll(responseTransferIn);
                 } catch (IOException e) {
                     reusable = false;
                 }
             }
 
-            if (!reusable) {
+            if (connection.getPipeline() != null) {
+                // Other engines may share this connection; the pool decides its fate.
+                if (pipelineGuard != null) {
+                    pipelineGuard.released = true;
+                }
+                HttpConnectionPool.INSTANCE.releasePipelined(connection, pipelineTicket, reusable);
+                connection = null;
+            } else if (!reusable) {
                 connection.closeSocketAndStreams();
                 connection = null;
             } else if (automaticallyReleaseConnectionToPool) {
@@ -527,6 +569,7 @@ public class HttpEngine {
     }
 
     private void initContentStream(InputStream transferStream) throws IOException {
+        responseTransferIn = transferStream;
         if (transparentGzip && responseHeaders.isContentEncodingGzip()) {
             /*
              * If the response was transparently gzipped, remove the gzip header field
@@ -538,7 +581,7 @@ public class HttpEngine {
              */
             responseHeaders.stripContentEncoding();
             responseHeaders.stripContentLength();
-            responseBodyIn = new GZIPInputStream(transferStream);
+            responseBodyIn = new TransparentGzipInputStream(transferStream, InflaterPool.INSTANCE);
         } else {
             responseBodyIn = transferStream;
         }
@@ -801,36 +844,55 @@ public class HttpEngine {
             return;
         }
 
-        if (sentRequestMillis == -1) {
-            int contentLength = requestBodyOut instanceof RetryableOutputStream
-                    ? ((RetryableOutputStream) requestBodyOut).contentLength()
-                    : -1;
-            writeRequestHeaders(contentLength);
-        }
-
-        if (requestBodyOut != null) {
-            requestBodyOut.close();
-            if (requestBodyOut instanceof RetryableOutputStream) {
-                ((RetryableOutputStream) requestBodyOut).writeToSocket(requestOut);
+        HttpPipeline pipeline = connection.getPipeline();
+        if (pipeline != null) {
+            try {
+                // Write and flush atomically so that requests go out in ticket order.
+                synchronized (pipeline.writeLock) {
+                    pipelineTicket = pipeline.takeTicket();
+                    if (pipelineGuard != null) {
+                        pipelineGuard.ticket = pipelineTicket;
+                    }
+                    flushRequest();
+                }
+                // Don't wait forever for a response that is ahead of ours.
+                int turnTimeout = policy.getReadTimeout() != 0
+                        ? policy.getReadTimeout()
+                        : policy.getConnectTimeout();
+                pipeline.awaitTurn(pipelineTicket, turnTimeout);
+                readResponseHeaders();
+            } catch (IOException e) {
+                // The requests queued behind this one can't be answered either.
+                pipeline.advance(pipelineTicket, false);
+                throw e;
             }
+        } else {
+            flushRequest();
+            readResponseHeaders();
         }
-
-        requestOut.flush();
-        requestOut = socketOut;
-
-        readResponseHeaders();
         responseHeaders.setLocalTimestamps(sentRequestMillis, System.currentTimeMillis());
 
+        // Only let other requests join once the server has shown it keeps connections alive.
+        if (pipeline != null && httpMinorVersion > 0 && !responseHeaders.hasConnectionClose()) {
+            pipeline.confirm();
+        }
+
         if (responseSource == ResponseSource.CONDITIONAL_CACHE) {
             if (cachedResponseHeaders.validate(responseHeaders)) {
                 release(true);
                 ResponseHeaders combinedHeaders = cachedResponseHeaders.combine(responseHeaders);
-                setResponse(combinedHeaders, cachedResponseBody);
+                /*
+                 * Update the cache before attaching the body: decompressing
+                 * strips the Content-Encoding and Content-Length headers, and
+                 * the cached body is still compressed.
+                 */
+                setResponse(combinedHeaders, null);
                 if (responseCache instanceof ExtendedResponseCache) {
                     ExtendedResponseCache httpResponseCache = (ExtendedResponseCache) responseCache;
                     httpResponseCache.trackConditionalCacheHit();
                     httpResponseCache.update(cacheResponse, getHttpConnectionToCache());
                 }
+                initContentStream(cachedResponseBody);
                 return;
             } else {
                 IoUtils.closeQuietly(cachedResponseBody);
@@ -843,4 +905,54 @@ public class HttpEngine {
 
         initContentStream(getTransferStream());
     }
+
+    /**
+     * Writes any request headers and body that haven't been sent yet and
+     * flushes them to the socket.
+     */
+    private void flushRequest() throws IOException {
+        if (sentRequestMillis == -1) {
+            int contentLength = requestBodyOut instanceof RetryableOutputStream
+                    ? ((RetryableOutputStream) requestBodyOut).contentLength()
+                    : -1;
+            writeRequestHeaders(contentLength);
+        }
+
+        if (requestBodyOut != null) {
+            requestBodyOut.close();
+            if (requestBodyOut instanceof RetryableOutputStream) {
+                ((RetryableOutputStream) requestBodyOut).writeToSocket(requestOut);
+            }
+        }
+
+        requestOut.flush();
+        requestOut = socketOut;
+    }
+
+    /**
+     * Releases a pipelined request's hold on its connection when its engine is
+     * garbage collected without being released, such as when an application
+     * abandons a response body without closing it. The requests queued behind
+     * it then fail and are retried on another connection rather than waiting
+     * for their turn forever. This must not refer to the engine.
+     */
+    private static final class PipelineGuard {
+        private final HttpConnection connection;
+        volatile int ticket = -1;
+        volatile boolean released;
+
+        PipelineGuard(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override protected void finalize() throws Throwable {
+            try {
+                if (!released) {
+                    HttpConnectionPool.INSTANCE.releasePipelined(connection, ticket, false);
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
 }
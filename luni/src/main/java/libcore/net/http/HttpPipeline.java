@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Orders the request/response pairs that share a pipelined {@link
+ * HttpConnection}. Each engine takes a ticket while it holds {@link
+ * #writeLock} and writes its request; responses are then read strictly in
+ * ticket order, so each engine waits in {@link #awaitTurn} until every earlier
+ * response has been consumed.
+ *
+ * <p>If any engine on the connection fails or sees a non-persistent
+ * response, the pipeline is closed to new requests, and that engine and every
+ * engine queued behind it fail with an {@code IOException}. Engines ahead of
+ * it keep reading their responses; the socket is only closed once they are
+ * done. Because pipelined connections are always marked as recycled, {@code
+ * HttpURLConnectionImpl} retries the failed requests on a new connection.
+ */
+final class HttpPipeline {
+    /**
+     * The number of engines that hold this connection. Guarded by the
+     * connection pool's lock for the connection's address.
+     */
+    int outstanding;
+
+    /**
+     * True once the server has returned a persistent HTTP/1.1 response on
+     * this connection. New requests only join a confirmed pipeline.
+     */
+    private volatile boolean confirmed;
+
+    private volatile boolean closed;
+
+    /**
+     * Held while taking a ticket and writing its request, so that requests go
+     * out in ticket order. This is not this object's monitor: a write blocked
+     * on a full send buffer must not keep the reader that would drain it from
+     * releasing its turn.
+     */
+    final Object writeLock = new Object();
+
+    /** Guarded by writeLock. */
+    private int nextTicket;
+
+    /** Guarded by this. The ticket whose response is next on the wire. */
+    private int readTurn;
+
+    /**
+     * Guarded by this. The earliest ticket that failed; it and all later
+     * tickets can't be answered on this connection.
+     */
+    private int failedTicket = Integer.MAX_VALUE;
+
+    public boolean isConfirmed() {
+        return confirmed;
+    }
+
+    public void confirm() {
+        confirmed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the ticket for a request about to be written. Callers must hold
+     * {@link #writeLock} until the request has been written and flushed.
+     */
+    public int takeTicket() throws IOException {
+        if (!Thread.holdsLock(writeLock)) {
+            throw new AssertionError();
+        }
+        if (closed) {
+            throw new IOException("pipelined connection closed");
+        }
+        return nextTicket++;
+    }
+
+    /**
+     * Blocks until all responses ahead of {@code ticket} have been read.
+     *
+     * @param timeoutMillis the maximum time to wait, or 0 to wait forever.
+     */
+    public synchronized void awaitTurn(int ticket, int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (ticket < failedTicket && readTurn != ticket) {
+            try {
+                if (timeoutMillis == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("timed out waiting for pipelined response");
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for pipelined response");
+            }
+        }
+        if (ticket >= failedTicket) {
+            throw new IOException("pipelined connection closed");
+        }
+    }
+
+    /**
+     * Releases {@code ticket}'s turn. If {@code reusable} is false or the
+     * response was released out of turn, the connection can no longer be
+     * trusted: the pipeline is closed and {@code ticket} and the tickets
+     * behind it fail. A ticket of -1 is a request that was never written, so
+     * it fails nobody.
+     */
+    public synchronized void advance(int ticket, boolean reusable) {
+        if (reusable && ticket == readTurn) {
+            readTurn++;
+        } else {
+            closed = true;
+            if (ticket != -1) {
+                failedTicket = Math.min(failedTicket, ticket);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns true if the pipeline is closed and no response ahead of the
+     * failed ticket is still being read, so the socket may be closed now
+     * rather than when the last engine releases it.
+     */
+    public synchronized boolean canClose() {
+        return closed && readTurn >= failedTicket;
+    }
+}
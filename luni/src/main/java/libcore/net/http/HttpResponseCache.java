@@ -45,6 +45,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
@@ -53,6 +54,7 @@ import libcore.io.Base64;
 import libcore.io.DiskLruCache;
 import libcore.io.IoUtils;
 import libcore.io.StrictLineReader;
+import libcore.util.WeightedLruCache;
 
 /**
  * Cache responses in a directory on the file system. Most clients should use
@@ -65,21 +67,66 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
     private static final int ENTRY_METADATA = 0;
     private static final int ENTRY_BODY = 1;
     private static final int ENTRY_COUNT = 2;
+    private static final int DEFAULT_MEMORY_CACHE_SIZE = 512 * 1024;
+    private static final int CERTIFICATE_SIZE_ESTIMATE = 2048;
 
     private final DiskLruCache cache;
 
+    /*
+     * Recently used entries are also held in memory: their parsed metadata
+     * and, if they are small enough, their bodies. This is null if the memory
+     * cache is disabled.
+     *
+     * Every write to the disk cache is bracketed by beginMemoryWrite() and
+     * endMemoryWrite(), which both advance the generation. An entry read from
+     * disk is only added to the memory cache if the generation hasn't changed
+     * since the read began and no write to its key is in flight. The
+     * generation and the writes in flight are guarded by 'memoryCache'.
+     */
+    private final WeightedLruCache<String, MemoryEntry> memoryCache;
+    private final int maxMemoryBodySize;
+    private final Map<String, Integer> memoryWritesInFlight = new HashMap<String, Integer>();
+    private long memoryCacheGeneration;
+
     /* read and write statistics, all guarded by 'this' */
     private int writeSuccessCount;
     private int writeAbortCount;
     private int networkCount;
     private int hitCount;
     private int requestCount;
+    private int memoryHitCount;
+    private int memoryMissCount;
 
     public HttpResponseCache(File directory, long maxSize) throws IOException {
+        this(directory, maxSize, DEFAULT_MEMORY_CACHE_SIZE);
+    }
+
+    /**
+     * @param memoryCacheSize the maximum number of bytes of response metadata
+     *     and small response bodies to hold in memory in front of the disk
+     *     cache, or 0 to read every response from disk.
+     */
+    public HttpResponseCache(File directory, long maxSize, int memoryCacheSize)
+            throws IOException {
+        if (memoryCacheSize < 0) {
+            throw new IllegalArgumentException("memoryCacheSize < 0");
+        }
         cache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize);
+        if (memoryCacheSize > 0) {
+            memoryCache = new WeightedLruCache<String, MemoryEntry>(memoryCacheSize) {
+                @Override protected int sizeOf(String key, MemoryEntry value) {
+                    return value.size;
+                }
+            };
+            maxMemoryBodySize = memoryCacheSize / 16;
+        } else {
+            memoryCache = null;
+            maxMemoryBodySize = 0;
+        }
     }
 
-    private String uriToKey(URI uri) {
+    /** Visible for testing. */
+    String uriToKey(URI uri) {
         try {
             MessageDigest messageDigest = MessageDigest.getInstance("MD5");
             byte[] md5bytes = messageDigest.digest(uri.toString().getBytes(Charsets.UTF_8));
@@ -92,27 +139,83 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
     @Override public CacheResponse get(URI uri, String requestMethod,
             Map<String, List<String>> requestHeaders) {
         String key = uriToKey(uri);
+        MemoryEntry memoryEntry = null;
+        long generation = 0;
+        if (memoryCache != null) {
+            synchronized (memoryCache) {
+                memoryEntry = memoryCache.get(key);
+                generation = memoryCacheGeneration;
+            }
+            trackMemoryLookup(memoryEntry != null);
+        }
+
+        if (memoryEntry != null && memoryEntry.body != null) {
+            // keep the disk entry's LRU position current, and notice if it was evicted
+            try {
+                if (!cache.touch(key)) {
+                    removeFromMemory(key, memoryEntry);
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            if (!memoryEntry.entry.matches(uri, requestMethod, requestHeaders)) {
+                return null;
+            }
+            return newCacheResponse(memoryEntry.entry, null, memoryEntry,
+                    new ByteArrayInputStream(memoryEntry.body));
+        }
+
         DiskLruCache.Snapshot snapshot;
         Entry entry;
         try {
             snapshot = cache.get(key);
             if (snapshot == null) {
+                if (memoryEntry != null) {
+                    removeFromMemory(key, memoryEntry); // the disk entry was evicted
+                }
                 return null;
             }
-            entry = new Entry(snapshot.getInputStream(ENTRY_METADATA));
+            if (memoryEntry != null && isMemoryCacheCurrent(generation)) {
+                // the snapshot was published no later than the entry in memory
+                entry = memoryEntry.entry;
+            } else {
+                entry = new Entry(snapshot.getInputStream(ENTRY_METADATA));
+            }
         } catch (IOException e) {
             // Give up because the cache cannot be read.
             return null;
         }
 
+        InputStream body = newBodyInputStream(snapshot);
+        if (memoryCache != null) {
+            long bodyLength = snapshot.getLength(ENTRY_BODY);
+            if (bodyLength == 0) {
+                putInMemory(key, generation, new MemoryEntry(entry, new byte[0]));
+            } else {
+                if (memoryEntry == null) {
+                    putInMemory(key, generation, new MemoryEntry(entry, null));
+                }
+                if (bodyLength <= maxMemoryBodySize) {
+                    body = new BodyCapturingInputStream(body, key, generation, entry,
+                            (int) bodyLength);
+                }
+            }
+        }
+
         if (!entry.matches(uri, requestMethod, requestHeaders)) {
             snapshot.close();
             return null;
         }
 
+        return newCacheResponse(entry, snapshot, null, body);
+    }
+
+    private CacheResponse newCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot,
+            MemoryEntry memoryEntry, InputStream body) {
         return entry.isHttps()
-                ? new EntrySecureCacheResponse(entry, snapshot)
-                : new EntryCacheResponse(entry, snapshot);
+                ? new EntrySecureCacheResponse(entry, snapshot, memoryEntry, body)
+                : new EntryCacheResponse(entry, snapshot, memoryEntry, body);
     }
 
     @Override public CacheRequest put(URI uri, URLConnection urlConnection) throws IOException {
@@ -127,10 +230,13 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
         if (requestMethod.equals(HttpEngine.POST)
                 || requestMethod.equals(HttpEngine.PUT)
                 || requestMethod.equals(HttpEngine.DELETE)) {
+            beginMemoryWrite(key);
             try {
                 cache.remove(key);
             } catch (IOException ignored) {
                 // The cache cannot be written.
+            } finally {
+                endMemoryWrite(key);
             }
             return null;
         } else if (!requestMethod.equals(HttpEngine.GET)) {
@@ -157,15 +263,18 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
                 response.getVaryFields());
         Entry entry = new Entry(uri, varyHeaders, httpConnection);
         DiskLruCache.Editor editor = null;
+        beginMemoryWrite(key);
         try {
             editor = cache.edit(key);
             if (editor == null) {
+                endMemoryWrite(key);
                 return null;
             }
             entry.writeTo(editor);
-            return new CacheRequestImpl(editor);
+            return new CacheRequestImpl(key, editor);
         } catch (IOException e) {
             abortQuietly(editor);
+            endMemoryWrite(key);
             return null;
         }
     }
@@ -183,10 +292,22 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
         RawHeaders varyHeaders = httpEngine.getRequestHeaders().getHeaders()
                 .getAll(response.getVaryFields());
         Entry entry = new Entry(uri, varyHeaders, httpConnection);
-        DiskLruCache.Snapshot snapshot = (conditionalCacheHit instanceof EntryCacheResponse)
-                ? ((EntryCacheResponse) conditionalCacheHit).snapshot
-                : ((EntrySecureCacheResponse) conditionalCacheHit).snapshot;
+        DiskLruCache.Snapshot snapshot;
+        MemoryEntry memoryEntry;
+        if (conditionalCacheHit instanceof EntryCacheResponse) {
+            snapshot = ((EntryCacheResponse) conditionalCacheHit).snapshot;
+            memoryEntry = ((EntryCacheResponse) conditionalCacheHit).memoryEntry;
+        } else {
+            snapshot = ((EntrySecureCacheResponse) conditionalCacheHit).snapshot;
+            memoryEntry = ((EntrySecureCacheResponse) conditionalCacheHit).memoryEntry;
+        }
+        String key = uriToKey(uri);
+        if (snapshot == null) {
+            updateFromMemory(key, entry, memoryEntry);
+            return;
+        }
         DiskLruCache.Editor editor = null;
+        beginMemoryWrite(key);
         try {
             editor = snapshot.edit(); // returns null if snapshot is not current
             if (editor != null) {
@@ -195,6 +316,45 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
             }
         } catch (IOException e) {
             abortQuietly(editor);
+        } finally {
+            endMemoryWrite(key);
+        }
+    }
+
+    /**
+     * Updates the stored metadata of a response that was served from memory.
+     * If the memory entry has since been replaced or invalidated this does
+     * nothing. The memory cache lock is held until the disk editor has been
+     * acquired so that no other write can begin in between.
+     */
+    private void updateFromMemory(String key, Entry entry, MemoryEntry memoryEntry) {
+        DiskLruCache.Editor editor;
+        synchronized (memoryCache) {
+            if (memoryCache.get(key) != memoryEntry) {
+                return;
+            }
+            beginMemoryWrite(key);
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                // edit through a snapshot so that an evicted entry isn't recreated without a body
+                snapshot = cache.get(key);
+                editor = (snapshot != null) ? snapshot.edit() : null;
+            } catch (IOException e) {
+                endMemoryWrite(key);
+                return;
+            } finally {
+                IoUtils.closeQuietly(snapshot);
+            }
+        }
+        try {
+            if (editor != null) {
+                entry.writeTo(editor);
+                editor.commit();
+            }
+        } catch (IOException e) {
+            abortQuietly(editor);
+        } finally {
+            endMemoryWrite(key);
         }
     }
 
@@ -260,13 +420,105 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
         return requestCount;
     }
 
+    private synchronized void trackMemoryLookup(boolean hit) {
+        if (hit) {
+            memoryHitCount++;
+        } else {
+            memoryMissCount++;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found the response's metadata in
+     * memory. Such lookups don't read the metadata from disk, and don't touch
+     * the disk at all if the response body was in memory too.
+     */
+    public synchronized int getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    /**
+     * Returns the number of lookups that had to read from the disk cache
+     * because the response wasn't in memory. This includes lookups for
+     * responses that aren't cached at all.
+     */
+    public synchronized int getMemoryMissCount() {
+        return memoryMissCount;
+    }
+
+    /**
+     * Invalidates the memory entry for {@code key} and prevents it from being
+     * repopulated until the matching call to {@link #endMemoryWrite}. Call
+     * this before the disk entry for {@code key} is edited or removed.
+     */
+    private void beginMemoryWrite(String key) {
+        if (memoryCache == null) {
+            return;
+        }
+        synchronized (memoryCache) {
+            Integer writes = memoryWritesInFlight.get(key);
+            memoryWritesInFlight.put(key, writes == null ? 1 : writes + 1);
+            memoryCacheGeneration++;
+            memoryCache.remove(key);
+        }
+    }
+
+    /**
+     * Invalidates the memory entry for {@code key} again, discarding anything
+     * that was read from disk while the write was in flight.
+     */
+    private void endMemoryWrite(String key) {
+        if (memoryCache == null) {
+            return;
+        }
+        synchronized (memoryCache) {
+            int writes = memoryWritesInFlight.get(key);
+            if (writes == 1) {
+                memoryWritesInFlight.remove(key);
+            } else {
+                memoryWritesInFlight.put(key, writes - 1);
+            }
+            memoryCacheGeneration++;
+            memoryCache.remove(key);
+        }
+    }
+
+    private boolean isMemoryCacheCurrent(long generation) {
+        synchronized (memoryCache) {
+            return generation == memoryCacheGeneration;
+        }
+    }
+
+    private void removeFromMemory(String key, MemoryEntry memoryEntry) {
+        synchronized (memoryCache) {
+            if (memoryCache.get(key) == memoryEntry) {
+                memoryCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Adds {@code memoryEntry}, whose disk read began at {@code generation},
+     * to the memory cache unless the disk cache has been written since.
+     */
+    private void putInMemory(String key, long generation, MemoryEntry memoryEntry) {
+        synchronized (memoryCache) {
+            if (generation == memoryCacheGeneration && !memoryWritesInFlight.containsKey(key)) {
+                memoryCache.put(key, memoryEntry);
+            }
+        }
+    }
+
     private final class CacheRequestImpl extends CacheRequest {
+        private final String key;
         private final DiskLruCache.Editor editor;
         private OutputStream cacheOut;
         private boolean done;
         private OutputStream body;
 
-        public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+        public CacheRequestImpl(final String key, final DiskLruCache.Editor editor)
+                throws IOException {
+            this.key = key;
             this.editor = editor;
             this.cacheOut = editor.newOutputStream(ENTRY_BODY);
             this.body = new FilterOutputStream(cacheOut) {
@@ -278,8 +530,12 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
                         done = true;
                         writeSuccessCount++;
                     }
-                    super.close();
-                    editor.commit();
+                    try {
+                        super.close();
+                        editor.commit();
+                    } finally {
+                        endMemoryWrite(key);
+                    }
                 }
 
                 @Override
@@ -303,6 +559,8 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
             try {
                 editor.abort();
             } catch (IOException ignored) {
+            } finally {
+                endMemoryWrite(key);
             }
         }
 
@@ -494,6 +752,36 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
             }
         }
 
+        /**
+         * Returns an estimate of the number of bytes of memory this entry
+         * retains.
+         */
+        public int estimateSize() {
+            int result = 64 + 2 * (uri.length() + requestMethod.length());
+            result += estimateSize(varyHeaders) + estimateSize(responseHeaders);
+            if (cipherSuite != null) {
+                result += 2 * cipherSuite.length();
+            }
+            if (peerCertificates != null) {
+                result += peerCertificates.length * CERTIFICATE_SIZE_ESTIMATE;
+            }
+            if (localCertificates != null) {
+                result += localCertificates.length * CERTIFICATE_SIZE_ESTIMATE;
+            }
+            return result;
+        }
+
+        private int estimateSize(RawHeaders headers) {
+            int result = 32;
+            if (headers.getStatusLine() != null) {
+                result += 2 * headers.getStatusLine().length();
+            }
+            for (int i = 0; i < headers.length(); i++) {
+                result += 32 + 2 * (headers.getFieldName(i).length() + headers.getValue(i).length());
+            }
+            return result;
+        }
+
         public boolean matches(URI uri, String requestMethod,
                 Map<String, List<String>> requestHeaders) {
             return this.uri.equals(uri.toString())
@@ -503,6 +791,82 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
         }
     }
 
+    /**
+     * A response held in memory. The size is computed once because entries
+     * in a {@link WeightedLruCache} must not change size.
+     */
+    private static final class MemoryEntry {
+        private final Entry entry;
+        private final byte[] body; // null if only the metadata is held in memory
+        private final int size;
+
+        MemoryEntry(Entry entry, byte[] body) {
+            this.entry = entry;
+            this.body = body;
+            this.size = entry.estimateSize() + (body != null ? body.length : 0);
+        }
+    }
+
+    /**
+     * Copies a response body as it is read from disk. Once all of it has been
+     * read, the body is added to the memory cache alongside its metadata.
+     */
+    private final class BodyCapturingInputStream extends FilterInputStream {
+        private final String key;
+        private final long generation;
+        private final Entry entry;
+        private byte[] body; // null once the capture is complete or abandoned
+        private int count;
+
+        BodyCapturingInputStream(InputStream in, String key, long generation, Entry entry,
+                int length) {
+            super(in);
+            this.key = key;
+            this.generation = generation;
+            this.entry = entry;
+            this.body = new byte[length];
+        }
+
+        @Override public int read() throws IOException {
+            int result = in.read();
+            if (result != -1 && body != null) {
+                body[count] = (byte) result;
+                captured(1);
+            }
+            return result;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = in.read(buffer, offset, length);
+            if (result > 0 && body != null) {
+                if (result > body.length - count) {
+                    body = null; // the file is longer than the snapshot said
+                } else {
+                    System.arraycopy(buffer, offset, body, count, result);
+                    captured(result);
+                }
+            }
+            return result;
+        }
+
+        @Override public long skip(long byteCount) throws IOException {
+            body = null; // skipped bytes can't be captured
+            return in.skip(byteCount);
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+
+        private void captured(int byteCount) {
+            count += byteCount;
+            if (count == body.length) {
+                putInMemory(key, generation, new MemoryEntry(entry, body));
+                body = null;
+            }
+        }
+    }
+
     /**
      * Returns an input stream that reads the body of a snapshot, closing the
      * snapshot when the stream is closed.
@@ -518,13 +882,16 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
 
     static class EntryCacheResponse extends CacheResponse {
         private final Entry entry;
-        private final DiskLruCache.Snapshot snapshot;
+        private final DiskLruCache.Snapshot snapshot; // null if served from memory
+        private final MemoryEntry memoryEntry; // non-null if served from memory
         private final InputStream in;
 
-        public EntryCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot) {
+        public EntryCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot,
+                MemoryEntry memoryEntry, InputStream in) {
             this.entry = entry;
             this.snapshot = snapshot;
-            this.in = newBodyInputStream(snapshot);
+            this.memoryEntry = memoryEntry;
+            this.in = in;
         }
 
         @Override public Map<String, List<String>> getHeaders() {
@@ -538,13 +905,16 @@ public final class HttpResponseCache extends ResponseCache implements ExtendedRe
 
     static class EntrySecureCacheResponse extends SecureCacheResponse {
         private final Entry entry;
-        private final DiskLruCache.Snapshot snapshot;
+        private final DiskLruCache.Snapshot snapshot; // null if served from memory
+        private final MemoryEntry memoryEntry; // non-null if served from memory
         private final InputStream in;
 
-        public EntrySecureCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot) {
+        public EntrySecureCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot,
+                MemoryEntry memoryEntry, InputStream in) {
             this.entry = entry;
             this.snapshot = snapshot;
-            this.in = newBodyInputStream(snapshot);
+            this.memoryEntry = memoryEntry;
+            this.in = in;
         }
 
         @Override public Map<String, List<String>> getHeaders() {
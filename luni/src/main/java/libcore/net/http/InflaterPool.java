@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of raw (header-less) inflaters for decoding compressed response
+ * bodies. Each inflater holds native zlib state that is only released by
+ * {@link Inflater#end} or a finalizer, so recycling them avoids both the
+ * allocation and the finalizer work for every compressed response.
+ */
+final class InflaterPool {
+    private static final int DEFAULT_MAX_SIZE = 8;
+
+    static final InflaterPool INSTANCE = new InflaterPool(DEFAULT_MAX_SIZE);
+
+    private final int maxSize;
+    private final ConcurrentLinkedQueue<Inflater> pool = new ConcurrentLinkedQueue<Inflater>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+
+    InflaterPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns an inflater for raw deflate data, creating one if the pool is
+     * empty. Callers should return it with {@link #recycle} when done.
+     */
+    public Inflater take() {
+        Inflater inflater = pool.poll();
+        if (inflater != null) {
+            size.decrementAndGet();
+            reuseCount.incrementAndGet();
+            return inflater;
+        }
+        createCount.incrementAndGet();
+        return new Inflater(true);
+    }
+
+    /**
+     * Resets {@code inflater} and returns it to the pool, or releases its
+     * native memory if the pool is full. The caller must not use {@code
+     * inflater} after calling this method.
+     */
+    public void recycle(Inflater inflater) {
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        pool.offer(inflater);
+    }
+
+    /**
+     * Returns the number of inflaters that were allocated because the pool
+     * was empty.
+     */
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    /**
+     * Returns the number of inflaters that were taken from the pool.
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * Returns the number of inflaters currently in the pool.
+     */
+    public int getIdleCount() {
+        return size.get();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import libcore.io.Memory;
+
+/**
+ * Decodes a gzipped response body that this client asked for on the
+ * application's behalf. Unlike {@link GZIPInputStream}, this borrows its
+ * inflater from an {@link InflaterPool} and returns it as soon as the gzip
+ * trailer has been verified, or when the stream is closed.
+ *
+ * <p>Only a single gzip member is decoded; anything following its trailer is
+ * ignored.
+ */
+final class TransparentGzipInputStream extends InputStream {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int BUFFER_SIZE = 2048;
+
+    /* totals over all transparently gzipped bodies that were read completely */
+    private static final AtomicLong compressedByteCount = new AtomicLong();
+    private static final AtomicLong decompressedByteCount = new AtomicLong();
+
+    private final InputStream in;
+    private final InflaterPool inflaterPool;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] singleByte = new byte[1];
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater; // null once returned to the pool
+    private int bufferLength;
+    private int headerLength;
+    private boolean eof;
+    private boolean closed;
+
+    TransparentGzipInputStream(InputStream in, InflaterPool inflaterPool) throws IOException {
+        this.in = in;
+        this.inflaterPool = inflaterPool;
+        readHeader();
+        this.inflater = inflaterPool.take();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(header, 0, header.length);
+        headerLength = HEADER_SIZE;
+        short magic = Memory.peekShort(header, 0, ByteOrder.LITTLE_ENDIAN);
+        if (magic != (short) GZIPInputStream.GZIP_MAGIC) {
+            throw new IOException(String.format("unknown format (magic number %x)", magic));
+        }
+        int flags = header[3];
+        boolean hcrc = (flags & FHCRC) != 0;
+        if (hcrc) {
+            crc.update(header, 0, header.length);
+        }
+        if ((flags & FEXTRA) != 0) {
+            readFully(header, 0, 2);
+            headerLength += 2;
+            if (hcrc) {
+                crc.update(header, 0, 2);
+            }
+            int length = Memory.peekShort(header, 0, ByteOrder.LITTLE_ENDIAN) & 0xffff;
+            while (length > 0) {
+                int result = in.read(buffer, 0, Math.min(length, buffer.length));
+                if (result == -1) {
+                    throw new EOFException();
+                }
+                if (hcrc) {
+                    crc.update(buffer, 0, result);
+                }
+                headerLength += result;
+                length -= result;
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            readZeroTerminated(hcrc);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            readZeroTerminated(hcrc);
+        }
+        if (hcrc) {
+            readFully(header, 0, 2);
+            headerLength += 2;
+            short crc16 = Memory.peekShort(header, 0, ByteOrder.LITTLE_ENDIAN);
+            if ((short) crc.getValue() != crc16) {
+                throw new IOException("CRC mismatch");
+            }
+            crc.reset();
+        }
+    }
+
+    @Override public int read() throws IOException {
+        return read(singleByte, 0, 1) != -1 ? singleByte[0] & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int offset, int byteCount) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        Arrays.checkOffsetAndCount(b.length, offset, byteCount);
+        if (eof) {
+            return -1;
+        }
+        if (byteCount == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (inflater.needsInput()) {
+                bufferLength = in.read(buffer, 0, buffer.length);
+                if (bufferLength == -1) {
+                    throw new EOFException();
+                }
+                inflater.setInput(buffer, 0, bufferLength);
+            }
+
+            int result;
+            try {
+                result = inflater.inflate(b, offset, byteCount);
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (result > 0) {
+                crc.update(b, offset, result);
+            }
+            if (inflater.finished()) {
+                readTrailer();
+            }
+            if (result > 0) {
+                return result;
+            } else if (eof) {
+                return -1;
+            } else if (inflater.needsDictionary()) {
+                throw new IOException("gzip data requires a preset dictionary");
+            }
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        int remaining = inflater.getRemaining();
+        int buffered = Math.min(remaining, TRAILER_SIZE);
+        System.arraycopy(buffer, bufferLength - remaining, trailer, 0, buffered);
+        readFully(trailer, buffered, TRAILER_SIZE - buffered);
+
+        long compressed = headerLength + inflater.getBytesRead() + TRAILER_SIZE;
+        long decompressed = inflater.getBytesWritten();
+        eof = true;
+        inflaterPool.recycle(inflater);
+        inflater = null;
+
+        if (Memory.peekInt(trailer, 0, ByteOrder.LITTLE_ENDIAN) != (int) crc.getValue()) {
+            throw new IOException("CRC mismatch");
+        }
+        if (Memory.peekInt(trailer, 4, ByteOrder.LITTLE_ENDIAN) != (int) decompressed) {
+            throw new IOException("Size mismatch");
+        }
+        compressedByteCount.addAndGet(compressed);
+        decompressedByteCount.addAndGet(decompressed);
+    }
+
+    @Override public int available() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        return eof ? 0 : 1;
+    }
+
+    @Override public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        eof = true;
+        if (inflater != null) {
+            inflaterPool.recycle(inflater);
+            inflater = null;
+        }
+        in.close();
+    }
+
+    private void readFully(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int result = in.read(b, offset, length);
+            if (result == -1) {
+                throw new EOFException();
+            }
+            offset += result;
+            length -= result;
+        }
+    }
+
+    private void readZeroTerminated(boolean hcrc) throws IOException {
+        int result;
+        while ((result = in.read()) > 0) {
+            headerLength++;
+            if (hcrc) {
+                crc.update(result);
+            }
+        }
+        if (result == -1) {
+            throw new EOFException();
+        }
+        headerLength++;
+        if (hcrc) {
+            crc.update(result);
+        }
+    }
+
+    /**
+     * Returns the number of gzipped bytes received for transparently
+     * decompressed response bodies, including gzip headers and trailers.
+     */
+    public static long getCompressedByteCount() {
+        return compressedByteCount.get();
+    }
+
+    /**
+     * Returns the number of bytes that transparently decompressed response
+     * bodies expanded to.
+     */
+    public static long getDecompressedByteCount() {
+        return decompressedByteCount.get();
+    }
+
+    /**
+     * Returns the number of bytes that transparent compression kept off the
+     * network. This is negative if compression made responses larger.
+     */
+    public static long getBytesSaved() {
+        return decompressedByteCount.get() - compressedByteCount.get();
+    }
+}
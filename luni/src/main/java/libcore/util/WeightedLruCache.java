@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache for libcore that is bounded by the total size
+ * of its entries rather than by their number. Subclasses define the size of
+ * each entry by overriding {@link #sizeOf}; the default size is 1, which makes
+ * this equivalent to {@link BasicLruCache}.
+ */
+public class WeightedLruCache<K, V> {
+    private final LinkedHashMap<K, V> map;
+    private final long maxSize;
+    private long size;
+
+    public WeightedLruCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. If a value
+     * was returned, it is moved to the head of the queue.
+     */
+    public synchronized final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * the queue. If the value is larger than the cache's maximum size it is
+     * not cached, but any previous value for {@code key} is still removed.
+     *
+     * @return the previous value mapped by {@code key}. Although that entry is
+     *     no longer cached, it has not been passed to {@link #entryEvicted}.
+     */
+    public synchronized final V put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        } else if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+
+        V previous;
+        int valueSize = safeSizeOf(key, value);
+        if (valueSize > maxSize) {
+            previous = map.remove(key);
+        } else {
+            previous = map.put(key, value);
+            size += valueSize;
+        }
+        if (previous != null) {
+            size -= safeSizeOf(key, previous);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}. It has not been passed
+     *     to {@link #entryEvicted}.
+     */
+    public synchronized final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous = map.remove(key);
+        if (previous != null) {
+            size -= safeSizeOf(key, previous);
+        }
+        return previous;
+    }
+
+    private void trimToSize(long maxSize) {
+        while (size > maxSize && !map.isEmpty()) {
+            Map.Entry<K, V> toEvict = map.eldest();
+
+            K key = toEvict.getKey();
+            V value = toEvict.getValue();
+            map.remove(key);
+            size -= safeSizeOf(key, value);
+
+            entryEvicted(key, value);
+        }
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units. An entry's size must not change while it is in the
+     * cache. The default implementation returns 1.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called for entries that have reached the tail of the least recently used
+     * queue and are removed. The default implementation does nothing.
+     */
+    protected void entryEvicted(K key, V value) {}
+
+    /**
+     * Returns the sum of the sizes of the entries in this cache.
+     */
+    public synchronized final long size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum sum of the sizes of the entries in this cache.
+     */
+    public final long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public synchronized final Map<K, V> snapshot() {
+        return new LinkedHashMap<K, V>(map);
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryEvicted} on each removed entry.
+     */
+    public synchronized final void evictAll() {
+        trimToSize(-1);
+    }
+}
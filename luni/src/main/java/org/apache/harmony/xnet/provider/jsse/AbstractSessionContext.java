@@ -23,21 +23,36 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSessionContext;
 import org.apache.harmony.security.provider.cert.X509CertImpl;
 
 /**
  * Supports SSL session caches.
+ *
+ * <p>Sessions are spread by ID over several segments, each with its own lock,
+ * so that lookups of different sessions rarely contend. When the cache is
+ * full, the oldest session across all segments is evicted. Each segment also
+ * orders its sessions by creation time, so that sessions that have outlived
+ * the session timeout are removed as soon as the segment is next used, without
+ * scanning the cache.
  */
 abstract class AbstractSessionContext implements SSLSessionContext {
 
+    /** The number of segments. A power of two. */
+    private static final int SEGMENT_COUNT = 16;
+
     volatile int maximumSize;
     volatile int timeout;
 
@@ -46,15 +61,73 @@ abstract class AbstractSessionContext implements SSLSessionContext {
     /** Identifies OpenSSL sessions. */
     static final int OPEN_SSL = 1;
 
-    private final Map<ByteArray, SSLSession> sessions
-            = new LinkedHashMap<ByteArray, SSLSession>() {
-        @Override
-        protected boolean removeEldestEntry(
-                Map.Entry<ByteArray, SSLSession> eldest) {
-            return maximumSize > 0 && size() > maximumSize;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    /** The number of sessions in all segments. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Orders sessions by when they were first added. */
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /** Held while evicting so that concurrent puts don't evict too much. */
+    private final Object evictionLock = new Object();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+
+    /**
+     * A cached session. Entries are immutable; replacing a session replaces
+     * its entry but keeps its sequence, and with it its age.
+     */
+    private static final class Entry {
+        final ByteArray key;
+        final SSLSession session;
+        final long sequence;
+
+        /** When the session's timeout starts, in milliseconds. */
+        final long createdMillis;
+
+        Entry(ByteArray key, SSLSession session, long sequence, long createdMillis) {
+            this.key = key;
+            this.session = session;
+            this.sequence = sequence;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    private static final Comparator<Entry> BY_CREATION_TIME = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            if (a.createdMillis != b.createdMillis) {
+                return a.createdMillis < b.createdMillis ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
         }
     };
 
+    /**
+     * Some of the cached sessions. Each segment is its own lock.
+     */
+    private static final class Segment {
+        /** Entries in the order they were first added. */
+        final LinkedHashMap<ByteArray, Entry> entries = new LinkedHashMap<ByteArray, Entry>();
+
+        /** The same entries ordered by creation time. */
+        final TreeSet<Entry> byCreationTime = new TreeSet<Entry>(BY_CREATION_TIME);
+
+        /** Removes {@code entry}, which must be in this segment. */
+        void remove(Entry entry) {
+            entries.remove(entry.key);
+            byCreationTime.remove(entry);
+        }
+
+        /** Returns the oldest entry, or null if this segment is empty. */
+        Entry eldest() {
+            return entries.isEmpty() ? null : entries.values().iterator().next();
+        }
+    }
+
     /**
      * Constructs a new session context.
      *
@@ -64,17 +137,38 @@ abstract class AbstractSessionContext implements SSLSessionContext {
     AbstractSessionContext(int maximumSize, int timeout) {
         this.maximumSize = maximumSize;
         this.timeout = timeout;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private Segment segmentFor(ByteArray key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (SEGMENT_COUNT - 1)];
     }
 
     /**
      * Returns the collection of sessions ordered from oldest to newest
      */
     private Iterator<SSLSession> sessionIterator() {
-        synchronized (sessions) {
-            SSLSession[] array = sessions.values().toArray(
-                    new SSLSession[sessions.size()]);
-            return Arrays.asList(array).iterator();
+        List<Entry> all = new ArrayList<Entry>(size.get());
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                all.addAll(segment.entries.values());
+            }
+        }
+        Collections.sort(all, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+            }
+        });
+        List<SSLSession> result = new ArrayList<SSLSession>(all.size());
+        for (Entry entry : all) {
+            result.add(entry.session);
         }
+        return result.iterator();
     }
 
     public final Enumeration getIds() {
@@ -115,19 +209,72 @@ abstract class AbstractSessionContext implements SSLSessionContext {
     }
 
     /**
-     * Makes sure cache size is < maximumSize.
+     * Makes sure cache size is < maximumSize. Removes the oldest sessions
+     * first.
      */
     protected void trimToSize() {
-        synchronized (sessions) {
-            int size = sessions.size();
-            if (size > maximumSize) {
-                int removals = size - maximumSize;
-                Iterator<SSLSession> i = sessions.values().iterator();
-                do {
-                    SSLSession session = i.next();
-                    i.remove();
-                    sessionRemoved(session);
-                } while (--removals > 0);
+        synchronized (evictionLock) {
+            while (maximumSize > 0 && size.get() > maximumSize) {
+                // the oldest session is the eldest of some segment
+                Segment eldestSegment = null;
+                Entry eldest = null;
+                for (Segment segment : segments) {
+                    synchronized (segment) {
+                        Entry entry = segment.eldest();
+                        if (entry != null && (eldest == null || entry.sequence < eldest.sequence)) {
+                            eldestSegment = segment;
+                            eldest = entry;
+                        }
+                    }
+                }
+                if (eldest == null) {
+                    return;
+                }
+                synchronized (eldestSegment) {
+                    if (eldestSegment.entries.get(eldest.key) != eldest) {
+                        continue; // removed or replaced concurrently; look again
+                    }
+                    eldestSegment.remove(eldest);
+                }
+                size.decrementAndGet();
+                evictionCount.incrementAndGet();
+                sessionRemoved(eldest.session);
+            }
+        }
+    }
+
+    /**
+     * Removes the sessions of {@code segment} whose timeout has passed. The
+     * session itself decides whether it is still valid.
+     */
+    private void expire(Segment segment, long nowMillis) {
+        int timeout = this.timeout;
+        if (timeout == 0) {
+            return;
+        }
+        long createdBefore = nowMillis - timeout * 1000L;
+        List<SSLSession> removed = null;
+        synchronized (segment) {
+            while (!segment.byCreationTime.isEmpty()) {
+                Entry entry = segment.byCreationTime.first();
+                if (entry.createdMillis >= createdBefore) {
+                    break;
+                }
+                segment.byCreationTime.remove(entry);
+                if (!entry.session.isValid()) {
+                    segment.entries.remove(entry.key);
+                    if (removed == null) {
+                        removed = new ArrayList<SSLSession>();
+                    }
+                    removed.add(entry.session);
+                }
+            }
+        }
+        if (removed != null) {
+            size.addAndGet(-removed.size());
+            expirationCount.addAndGet(removed.size());
+            for (SSLSession session : removed) {
+                sessionRemoved(session);
             }
         }
     }
@@ -139,17 +286,29 @@ abstract class AbstractSessionContext implements SSLSessionContext {
         }
         timeout = seconds;
 
-        synchronized (sessions) {
-            Iterator<SSLSession> i = sessions.values().iterator();
-            while (i.hasNext()) {
-                SSLSession session = i.next();
-                // SSLSession's know their context and consult the
-                // timeout as part of their validity condition.
-                if (!session.isValid()) {
-                    i.remove();
-                    sessionRemoved(session);
+        for (Segment segment : segments) {
+            List<SSLSession> removed = new ArrayList<SSLSession>();
+            synchronized (segment) {
+                Iterator<Entry> i = segment.entries.values().iterator();
+                // the timeout changed, so reindex the sessions that remain
+                segment.byCreationTime.clear();
+                while (i.hasNext()) {
+                    Entry entry = i.next();
+                    // SSLSession's know their context and consult the
+                    // timeout as part of their validity condition.
+                    if (!entry.session.isValid()) {
+                        i.remove();
+                        removed.add(entry.session);
+                    } else {
+                        segment.byCreationTime.add(entry);
+                    }
                 }
             }
+            size.addAndGet(-removed.size());
+            expirationCount.addAndGet(removed.size());
+            for (SSLSession session : removed) {
+                sessionRemoved(session);
+            }
         }
     }
 
@@ -174,6 +333,43 @@ abstract class AbstractSessionContext implements SSLSessionContext {
         }
     }
 
+    /**
+     * Returns the number of session lookups that found a valid session.
+     */
+    public final long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of session lookups that found no valid session and
+     * so required a full handshake.
+     */
+    public final long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of sessions removed because the cache was full.
+     */
+    public final long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of sessions removed because they timed out.
+     */
+    public final long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    /**
+     * Records the outcome of a session lookup for {@link #getHitCount} and
+     * {@link #getMissCount}.
+     */
+    final void recordLookup(boolean hit) {
+        (hit ? hitCount : missCount).incrementAndGet();
+    }
+
     /**
      * Converts the given session to bytes.
      *
@@ -258,12 +454,14 @@ abstract class AbstractSessionContext implements SSLSessionContext {
             throw new NullPointerException("sessionId == null");
         }
         ByteArray key = new ByteArray(sessionId);
-        SSLSession session;
-        synchronized (sessions) {
-            session = sessions.get(key);
+        Segment segment = segmentFor(key);
+        expire(segment, System.currentTimeMillis());
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(key);
         }
-        if (session != null && session.isValid()) {
-            return session;
+        if (entry != null && entry.session.isValid()) {
+            return entry.session;
         }
         return null;
     }
@@ -274,8 +472,29 @@ abstract class AbstractSessionContext implements SSLSessionContext {
             return;
         }
         ByteArray key = new ByteArray(id);
-        synchronized (sessions) {
-            sessions.put(key, session);
+        long now = System.currentTimeMillis();
+        // sessions from a persistent cache may be older than they are here
+        long createdMillis = (session instanceof OpenSSLSessionImpl)
+                ? session.getCreationTime()
+                : now;
+        Segment segment = segmentFor(key);
+        boolean added;
+        synchronized (segment) {
+            Entry old = segment.entries.get(key);
+            long sequence = old != null ? old.sequence : nextSequence.getAndIncrement();
+            if (old != null) {
+                segment.byCreationTime.remove(old);
+            }
+            Entry entry = new Entry(key, session, sequence, createdMillis);
+            segment.entries.put(key, entry);
+            segment.byCreationTime.add(entry);
+            added = (old == null);
+        }
+        if (added && size.incrementAndGet() > maximumSize && maximumSize > 0) {
+            trimToSize();
+        }
+        for (Segment s : segments) {
+            expire(s, now);
         }
     }
 
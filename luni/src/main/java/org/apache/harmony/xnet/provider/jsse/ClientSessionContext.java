@@ -55,7 +55,10 @@ public class ClientSessionContext extends AbstractSessionContext {
         }
         HostAndPort hostAndPortKey = new HostAndPort(host, port);
         synchronized (sessionsByHostAndPort) {
-            sessionsByHostAndPort.remove(hostAndPortKey);
+            // a newer session for the same host and port may have replaced it
+            if (sessionsByHostAndPort.get(hostAndPortKey) == session) {
+                sessionsByHostAndPort.remove(hostAndPortKey);
+            }
         }
     }
 
@@ -76,6 +79,7 @@ public class ClientSessionContext extends AbstractSessionContext {
             session = sessionsByHostAndPort.get(hostAndPortKey);
         }
         if (session != null && session.isValid()) {
+            recordLookup(true);
             return session;
         }
 
@@ -89,11 +93,13 @@ public class ClientSessionContext extends AbstractSessionContext {
                     synchronized (sessionsByHostAndPort) {
                         sessionsByHostAndPort.put(hostAndPortKey, session);
                     }
+                    recordLookup(true);
                     return session;
                 }
             }
         }
 
+        recordLookup(false);
         return null;
     }
 
@@ -16,19 +16,24 @@
 
 package org.apache.harmony.xnet.provider.jsse;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLSession;
 import libcore.io.IoUtils;
 
@@ -38,88 +43,123 @@ import libcore.io.IoUtils;
  */
 public class FileClientSessionCache {
 
-    public static final int MAX_SIZE = 12; // ~72k
+    /** The default maximum number of sessions in a cache. */
+    public static final int MAX_SIZE = 256;
+
+    /** The maximum total size of the session data in a cache. */
+    static final int MAX_BYTES = 1024 * 1024;
+
+    /** How long to wait after a put before writing, so puts are batched. */
+    static final long WRITE_DELAY_MILLIS = 1000;
+
+    /** The name of the file that holds all sessions of a cache. */
+    static final String STORE_FILE_NAME = "sessions";
+
+    private static final String STORE_TMP_FILE_NAME = "sessions.tmp";
+
+    /** Identifies the store file. "SSL" followed by the format version. */
+    private static final int MAGIC = 0x53534c01;
+
+    /** Writes the store files of all caches. */
+    private static final ScheduledExecutorService WRITER
+            = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FileClientSessionCache writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     private FileClientSessionCache() {}
 
     /**
-     * This cache creates one file per SSL session using "host.port" for
-     * the file name. Files are created or replaced when session data is put
-     * in the cache (see {@link #putSessionData}). Files are read on
-     * cache hits, but not on cache misses.
+     * This cache keeps the session data of up to {@code maxSize} hosts in
+     * memory, indexed by host and port, and persists it to a single store
+     * file in its directory. Lookups never touch the filesystem.
+     *
+     * <p>Puts are written in batches: the first put after a write schedules
+     * the next write {@link #WRITE_DELAY_MILLIS} later, and that write saves
+     * every session put in the meantime. Each write replaces the store file
+     * atomically by renaming a complete temporary file over it, so a crash
+     * leaves either the old sessions or the new ones.
      *
-     * <p>When the number of session files exceeds MAX_SIZE, we delete the
-     * least-recently-used file. We don't current persist the last access time,
-     * so the ordering actually ends up being least-recently-modified in some
-     * cases and even just "not accessed in this process" if the filesystem
-     * doesn't track last modified times.
+     * <p>When the cache holds more than {@code maxSize} sessions or more
+     * than {@link #MAX_BYTES} of session data, we drop the least recently
+     * used sessions. The store file keeps that order across restarts, as of
+     * the last write.
+     *
+     * <p>Older releases stored one file per session, named "host.port".
+     * Those files are imported, oldest first, and deleted when a cache is
+     * opened without a store file.
      */
     static class Impl implements SSLClientSessionCache {
 
         /** Directory to store session files in. */
         final File directory;
 
-        /**
-         * Map of name -> File. Keeps track of the order files were accessed in.
-         */
-        Map<String, File> accessOrder = newAccessOrder();
+        final int maxSize;
 
-        /** The number of files on disk. */
-        int size;
+        /** Session data by host and port, least recently used first. */
+        final LinkedHashMap<String, byte[]> sessions
+                = new LinkedHashMap<String, byte[]>(16, 0.75f, true /* access order */);
 
-        /**
-         * The initial set of files. We use this to defer adding information
-         * about all files to accessOrder until necessary.
-         */
-        String[] initialFiles;
+        /** The total length of the session data in {@code sessions}. */
+        int bytes;
+
+        /** True if {@code sessions} has changed since the last write. */
+        boolean dirty;
+
+        /** True if a write is scheduled but hasn't taken a snapshot yet. */
+        boolean writeScheduled;
+
+        /** Held while writing the store file, so writes don't interleave. */
+        private final Object writeLock = new Object();
+
+        private final Runnable writeTask = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
 
         /**
          * Constructs a new cache backed by the given directory.
          */
-        Impl(File directory) throws IOException {
+        Impl(File directory, int maxSize) throws IOException {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+            }
             boolean exists = directory.exists();
             if (exists && !directory.isDirectory()) {
                 throw new IOException(directory + " exists but is not a directory.");
             }
 
+            this.directory = directory;
+            this.maxSize = maxSize;
+
             if (exists) {
-                // Read and sort initial list of files. We defer adding
-                // information about these files to accessOrder until necessary
-                // (see indexFiles()). Sorting the list enables us to detect
-                // cache misses in getSessionData().
-                // Note: Sorting an array here was faster than creating a
-                // HashSet on Dalvik.
-                initialFiles = directory.list();
-                if (initialFiles == null) {
+                String[] names = directory.list();
+                if (names == null) {
                     // File.list() will return null in error cases without throwing IOException
                     // http://b/3363561
                     throw new IOException(directory + " exists but cannot list contents.");
                 }
-                Arrays.sort(initialFiles);
-                size = initialFiles.length;
+                File store = new File(directory, STORE_FILE_NAME);
+                if (store.exists()) {
+                    readStore(store);
+                }
+                importLegacyFiles(names);
             } else {
                 // Create directory.
                 if (!directory.mkdirs()) {
                     throw new IOException("Creation of " + directory + " directory failed.");
                 }
-                size = 0;
             }
-
-            this.directory = directory;
         }
 
         /**
-         * Creates a new access-ordered linked hash map.
+         * Gets the key for the given host and port.
          */
-        private static Map<String, File> newAccessOrder() {
-            return new LinkedHashMap<String, File>(
-                    MAX_SIZE, 0.75f, true /* access order */);
-        }
-
-        /**
-         * Gets the file name for the given host and port.
-         */
-        private static String fileName(String host, int port) {
+        private static String key(String host, int port) {
             if (host == null) {
                 throw new NullPointerException("host == null");
             }
@@ -127,55 +167,8 @@ public class FileClientSessionCache {
         }
 
         public synchronized byte[] getSessionData(String host, int port) {
-            /*
-             * Note: This method is only called when the in-memory cache
-             * in SSLSessionContext misses, so it would be unnecessarily
-             * redundant for this cache to store data in memory.
-             */
-
-            String name = fileName(host, port);
-            File file = accessOrder.get(name);
-
-            if (file == null) {
-                // File wasn't in access order. Check initialFiles...
-                if (initialFiles == null) {
-                    // All files are in accessOrder, so it doesn't exist.
-                    return null;
-                }
-
-                // Look in initialFiles.
-                if (Arrays.binarySearch(initialFiles, name) < 0) {
-                    // Not found.
-                    return null;
-                }
-
-                // The file is on disk but not in accessOrder yet.
-                file = new File(directory, name);
-                accessOrder.put(name, file);
-            }
-
-            FileInputStream in;
-            try {
-                in = new FileInputStream(file);
-            } catch (FileNotFoundException e) {
-                logReadError(host, file, e);
-                return null;
-            }
-            try {
-                int size = (int) file.length();
-                byte[] data = new byte[size];
-                new DataInputStream(in).readFully(data);
-                return data;
-            } catch (IOException e) {
-                logReadError(host, file, e);
-                return null;
-            } finally {
-                IoUtils.closeQuietly(in);
-            }
-        }
-
-        static void logReadError(String host, File file, Throwable t) {
-            System.logW("Error reading session data for " + host + " from " + file + ".", t);
+            byte[] data = sessions.get(key(host, port));
+            return data != null ? data.clone() : null;
         }
 
         public synchronized void putSessionData(SSLSession session,
@@ -185,116 +178,200 @@ public class FileClientSessionCache {
                 throw new NullPointerException("sessionData == null");
             }
 
-            String name = fileName(host, session.getPeerPort());
-            File file = new File(directory, name);
-
-            // Used to keep track of whether or not we're expanding the cache.
-            boolean existedBefore = file.exists();
-
-            FileOutputStream out;
-            try {
-                out = new FileOutputStream(file);
-            } catch (FileNotFoundException e) {
-                // We can't write to the file.
-                logWriteError(host, file, e);
-                return;
+            put(key(host, session.getPeerPort()), sessionData);
+            dirty = true;
+            if (!writeScheduled) {
+                writeScheduled = true;
+                WRITER.schedule(writeTask, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
             }
+        }
 
-            // If we expanded the cache (by creating a new file)...
-            if (!existedBefore) {
-                size++;
+        /**
+         * Adds {@code data} as the most recently used session and drops the
+         * least recently used sessions while the cache is too big.
+         */
+        private void put(String key, byte[] data) {
+            byte[] old = sessions.put(key, data);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += data.length;
 
-                // Delete an old file if necessary.
-                makeRoom();
+            Iterator<byte[]> i = sessions.values().iterator();
+            while (sessions.size() > maxSize || bytes > MAX_BYTES) {
+                bytes -= i.next().length;
+                i.remove();
             }
+        }
 
-            boolean writeSuccessful = false;
-            try {
-                out.write(sessionData);
-                writeSuccessful = true;
-            } catch (IOException e) {
-                logWriteError(host, file, e);
-            } finally {
-                boolean closeSuccessful = false;
+        /**
+         * Writes the sessions to the store file now if they have changed
+         * since the last write.
+         */
+        void flush() {
+            synchronized (writeLock) {
+                String[] keys;
+                byte[][] values;
+                synchronized (this) {
+                    writeScheduled = false;
+                    if (!dirty) {
+                        return;
+                    }
+                    dirty = false;
+                    /*
+                     * Copy the keys and values rather than the map's entries:
+                     * a put for the same host replaces an entry's value
+                     * in place, which must not happen while it is written.
+                     */
+                    keys = new String[sessions.size()];
+                    values = new byte[sessions.size()][];
+                    int i = 0;
+                    for (Map.Entry<String, byte[]> entry : sessions.entrySet()) {
+                        keys[i] = entry.getKey();
+                        values[i] = entry.getValue();
+                        i++;
+                    }
+                }
+
+                File tmp = new File(directory, STORE_TMP_FILE_NAME);
+                File store = new File(directory, STORE_FILE_NAME);
                 try {
-                    out.close();
-                    closeSuccessful = true;
+                    writeStore(tmp, keys, values);
+                    if (!tmp.renameTo(store)) {
+                        throw new IOException("Failed to rename " + tmp + " to " + store);
+                    }
                 } catch (IOException e) {
-                    logWriteError(host, file, e);
-                } finally {
-                    if (!writeSuccessful || !closeSuccessful) {
-                        // Storage failed. Clean up.
-                        delete(file);
-                    } else {
-                        // Success!
-                        accessOrder.put(name, file);
+                    logWriteError(store, e);
+                    tmp.delete();
+                    synchronized (this) {
+                        dirty = true; // try again with the next put
                     }
                 }
             }
         }
 
-        /**
-         * Deletes old files if necessary.
-         */
-        private void makeRoom() {
-            if (size <= MAX_SIZE) {
-                return;
+        private static void writeStore(File file, String[] keys, byte[][] values)
+                throws IOException {
+            FileOutputStream fileOut = new FileOutputStream(file);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeInt(keys.length);
+                // least recently used first, so reading restores the order
+                for (int i = 0; i < keys.length; i++) {
+                    out.writeUTF(keys[i]);
+                    out.writeInt(values[i].length);
+                    out.write(values[i]);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(fileOut);
             }
-
-            indexFiles();
-
-            // Delete LRUed files.
-            int removals = size - MAX_SIZE;
-            Iterator<File> i = accessOrder.values().iterator();
-            do {
-                delete(i.next());
-                i.remove();
-            } while (--removals > 0);
         }
 
         /**
-         * Lazily updates accessOrder to know about all files as opposed to
-         * just the files accessed since this process started.
+         * Reads the sessions of the store file. A corrupt store file is
+         * ignored, losing its sessions.
          */
-        private void indexFiles() {
-            String[] initialFiles = this.initialFiles;
-            if (initialFiles != null) {
-                this.initialFiles = null;
-
-                // Files on disk only, sorted by last modified time.
-                // TODO: Use last access time.
-                Set<CacheFile> diskOnly = new TreeSet<CacheFile>();
-                for (String name : initialFiles) {
-                    // If the file hasn't been accessed in this process...
-                    if (!accessOrder.containsKey(name)) {
-                        diskOnly.add(new CacheFile(directory, name));
+        private void readStore(File store) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(store)));
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Unexpected store file header");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_BYTES) {
+                        throw new IOException("Unexpected session length " + length);
                     }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    put(key, data);
                 }
+            } catch (IOException e) {
+                logReadError(store, e);
+                sessions.clear();
+                bytes = 0;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
 
-                if (!diskOnly.isEmpty()) {
-                    // Add files not accessed in this process to the beginning
-                    // of accessOrder.
-                    Map<String, File> newOrder = newAccessOrder();
-                    for (CacheFile cacheFile : diskOnly) {
-                        newOrder.put(cacheFile.name, cacheFile);
+        /**
+         * Imports and deletes the "host.port" files of older releases. The
+         * most recently modified files are imported last, so they are kept
+         * if there are too many.
+         */
+        private void importLegacyFiles(String[] names) {
+            Set<CacheFile> legacyFiles = new TreeSet<CacheFile>();
+            for (String name : names) {
+                if (isLegacyFileName(name)) {
+                    legacyFiles.add(new CacheFile(directory, name));
+                }
+            }
+            for (CacheFile file : legacyFiles) {
+                // sessions already in the store file are newer
+                if (!sessions.containsKey(file.name)) {
+                    byte[] data = readLegacyFile(file);
+                    if (data != null) {
+                        put(file.name, data);
+                        dirty = true;
                     }
-                    newOrder.putAll(accessOrder);
+                }
+                if (!file.delete()) {
+                    logWriteError(file, new IOException("Failed to delete " + file));
+                }
+            }
+            if (dirty) {
+                flush();
+            }
+        }
 
-                    this.accessOrder = newOrder;
+        /**
+         * Returns true if {@code name} is a "host.port" file name.
+         */
+        private static boolean isLegacyFileName(String name) {
+            int dot = name.lastIndexOf('.');
+            if (dot == -1 || dot == name.length() - 1) {
+                return false;
+            }
+            for (int i = dot + 1; i < name.length(); i++) {
+                if (!Character.isDigit(name.charAt(i))) {
+                    return false;
                 }
             }
+            return true;
         }
 
-        @SuppressWarnings("ThrowableInstanceNeverThrown")
-        private void delete(File file) {
-            if (!file.delete()) {
-                System.logW("Failed to delete " + file + ".", new IOException());
+        private static byte[] readLegacyFile(File file) {
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                long length = file.length();
+                if (length > MAX_BYTES) {
+                    return null;
+                }
+                byte[] data = new byte[(int) length];
+                new DataInputStream(in).readFully(data);
+                return data;
+            } catch (IOException e) {
+                logReadError(file, e);
+                return null;
+            } finally {
+                IoUtils.closeQuietly(in);
             }
-            size--;
         }
 
-        static void logWriteError(String host, File file, Throwable t) {
-            System.logW("Error writing session data for " + host + " to " + file + ".", t);
+        static void logReadError(File file, Throwable t) {
+            System.logW("Error reading session data from " + file + ".", t);
+        }
+
+        static void logWriteError(File file, Throwable t) {
+            System.logW("Error writing session data to " + file + ".", t);
         }
     }
 
@@ -316,11 +393,28 @@ public class FileClientSessionCache {
      * @throws IOException if the file exists and is not a directory or if
      *  creating the directories fails
      */
+    public static SSLClientSessionCache usingDirectory(File directory) throws IOException {
+        return usingDirectory(directory, MAX_SIZE);
+    }
+
+    /**
+     * Returns a cache backed by the given directory that holds up to
+     * {@code maxSize} sessions. Creates the directory (including parent
+     * directories) if necessary. This cache should have exclusive access to
+     * the given directory.
+     *
+     * @param directory to store files in
+     * @param maxSize the maximum number of sessions. Ignored if this process
+     *  already has a cache for the directory.
+     * @return a cache backed by the given directory
+     * @throws IOException if the file exists and is not a directory or if
+     *  creating the directories fails
+     */
     public static synchronized SSLClientSessionCache usingDirectory(
-            File directory) throws IOException {
+            File directory, int maxSize) throws IOException {
         FileClientSessionCache.Impl cache = caches.get(directory);
         if (cache == null) {
-            cache = new FileClientSessionCache.Impl(directory);
+            cache = new FileClientSessionCache.Impl(directory, maxSize);
             caches.put(directory, cache);
         }
         return cache;
@@ -331,7 +425,7 @@ public class FileClientSessionCache {
         caches.clear();
     }
 
-    /** A file containing a piece of cached data. */
+    /** A session file of an older release. */
     static class CacheFile extends File {
 
         final String name;
@@ -35,7 +35,7 @@ public class ServerSessionContext extends AbstractSessionContext {
         // TODO remove SSL_CTX session cache limit so we can manage it
         // SSL_CTX_sess_set_cache_size(sslCtxNativePointer, 0);
 
-        // TODO override trimToSize and removeEldestEntry to use
+        // TODO override trimToSize and sessionRemoved to use
         // SSL_CTX_sessions to remove from native cache
 
         // Set a trivial session id context. OpenSSL uses this to make
@@ -55,6 +55,7 @@ public class ServerSessionContext extends AbstractSessionContext {
     public SSLSession getSession(byte[] sessionId) {
         SSLSession session = super.getSession(sessionId);
         if (session != null) {
+            recordLookup(true);
             return session;
         }
 
@@ -65,11 +66,13 @@ public class ServerSessionContext extends AbstractSessionContext {
                 session = toSession(data, null, -1);
                 if (session != null && session.isValid()) {
                     super.putSession(session);
+                    recordLookup(true);
                     return session;
                 }
             }
         }
 
+        recordLookup(false);
         return null;
     }
 
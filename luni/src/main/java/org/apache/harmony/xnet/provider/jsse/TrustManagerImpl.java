@@ -23,6 +23,7 @@ import java.security.KeyStoreException;
 import java.security.cert.CertPath;
 import java.security.cert.CertPathValidator;
 import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.PKIXParameters;
@@ -32,8 +33,11 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.X509TrustManager;
 
 /**
@@ -42,10 +46,20 @@ import javax.net.ssl.X509TrustManager;
  * PKIX and CertificateFactory X509 implementations. This implementations should
  * be provided by some certification provider.
  *
+ * <p>Chains that pass validation are remembered, keyed by their
+ * certificate encodings and auth type, so that checking the same chain
+ * again skips signature verification. A remembered chain is validated
+ * again once one of its certificates expires, a certificate is deleted
+ * from a TrustedCertificateStore, or {@link #handleTrustStorageUpdate} is
+ * called.
+ *
  * @see javax.net.ssl.X509TrustManager
  */
 public final class TrustManagerImpl implements X509TrustManager {
 
+    /** The maximum number of validated chains to remember. */
+    private static final int MAX_VALIDATED_CHAINS = 64;
+
     /**
      * The AndroidCAStore if non-null, null otherwise.
      */
@@ -77,6 +91,24 @@ public final class TrustManagerImpl implements X509TrustManager {
     private final Exception err;
     private final CertificateFactory factory;
 
+    /**
+     * Chains that passed validation, least recently used first. Protect
+     * from concurrent access by holding a lock on validatedChains.
+     */
+    private final Map<ChainKey, ValidatedChain> validatedChains
+            = new LinkedHashMap<ChainKey, ValidatedChain>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(
+                Map.Entry<ChainKey, ValidatedChain> eldest) {
+            return size() > MAX_VALIDATED_CHAINS;
+        }
+    };
+
+    /** The number of calls to handleTrustStorageUpdate. */
+    private final AtomicLong trustStorageUpdateCount = new AtomicLong();
+
+    private final AtomicLong validationCacheHitCount = new AtomicLong();
+    private final AtomicLong validationCacheMissCount = new AtomicLong();
+
     /**
      * Creates X509TrustManager based on a keystore
      *
@@ -164,6 +196,10 @@ public final class TrustManagerImpl implements X509TrustManager {
     }
 
     public void handleTrustStorageUpdate() {
+        trustStorageUpdateCount.incrementAndGet();
+        synchronized (validatedChains) {
+            validatedChains.clear();
+        }
         if (acceptedIssuers == null) {
             trustedCertificateIndex.reset();
         } else {
@@ -171,6 +207,30 @@ public final class TrustManagerImpl implements X509TrustManager {
         }
     }
 
+    /**
+     * Returns the number of checks that found their chain already
+     * validated.
+     */
+    public long getValidationCacheHitCount() {
+        return validationCacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of checks that had to validate their chain.
+     */
+    public long getValidationCacheMissCount() {
+        return validationCacheMissCount.get();
+    }
+
+    /**
+     * Returns a value that changes whenever previously trusted
+     * certificates may have become untrusted. Both counts only grow, so
+     * their sum does too.
+     */
+    private long trustGeneration() {
+        return trustStorageUpdateCount.get() + TrustedCertificateStore.getDeletionCount();
+    }
+
     private void checkTrusted(X509Certificate[] chain, String authType)
             throws CertificateException {
         if (chain == null || chain.length == 0 || authType == null || authType.length() == 0) {
@@ -180,6 +240,15 @@ public final class TrustManagerImpl implements X509TrustManager {
             throw new CertificateException(err);
         }
 
+        // read before validating, so an update during validation isn't missed
+        long trustGeneration = trustGeneration();
+        ChainKey key = new ChainKey(chain, authType);
+        if (isValidated(key, trustGeneration)) {
+            validationCacheHitCount.incrementAndGet();
+            return;
+        }
+        validationCacheMissCount.incrementAndGet();
+
         Set<TrustAnchor> trustAnchors = new HashSet<TrustAnchor>();
         X509Certificate[] newChain = cleanupCertChainAndFindTrustAnchors(chain, trustAnchors);
         if (newChain.length == 0) {
@@ -206,6 +275,13 @@ public final class TrustManagerImpl implements X509TrustManager {
             for (int i = 1; i < newChain.length; i++) {
                 trustedCertificateIndex.index(newChain[i]);
             }
+            long notAfter = Long.MAX_VALUE;
+            for (X509Certificate cert : newChain) {
+                notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+            }
+            synchronized (validatedChains) {
+                validatedChains.put(key, new ValidatedChain(notAfter, trustGeneration));
+            }
         } catch (InvalidAlgorithmParameterException e) {
             throw new CertificateException(e);
         } catch (CertPathValidatorException e) {
@@ -213,6 +289,25 @@ public final class TrustManagerImpl implements X509TrustManager {
         }
     }
 
+    /**
+     * Returns true if the chain of {@code key} passed validation and is
+     * still valid now.
+     */
+    private boolean isValidated(ChainKey key, long trustGeneration) {
+        synchronized (validatedChains) {
+            ValidatedChain validated = validatedChains.get(key);
+            if (validated == null) {
+                return false;
+            }
+            if (validated.trustGeneration != trustGeneration
+                    || System.currentTimeMillis() > validated.notAfter) {
+                validatedChains.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
     /**
      * Clean up the certificate chain, returning a cleaned up chain,
      * which may be a new array instance if elements were removed.
@@ -333,4 +428,52 @@ public final class TrustManagerImpl implements X509TrustManager {
     @Override public X509Certificate[] getAcceptedIssuers() {
         return (acceptedIssuers != null) ? acceptedIssuers.clone() : acceptedIssuers(rootKeyStore);
     }
+
+    /**
+     * Identifies a chain by the encodings of its certificates, in order,
+     * and the auth type it was checked for.
+     */
+    private static final class ChainKey {
+        private final String authType;
+        private final byte[][] encodings;
+        private final int hashCode;
+
+        ChainKey(X509Certificate[] chain, String authType) throws CertificateEncodingException {
+            this.authType = authType;
+            this.encodings = new byte[chain.length][];
+            int hashCode = authType.hashCode();
+            for (int i = 0; i < chain.length; i++) {
+                encodings[i] = chain[i].getEncoded();
+                hashCode = hashCode * 31 + Arrays.hashCode(encodings[i]);
+            }
+            this.hashCode = hashCode;
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof ChainKey)) {
+                return false;
+            }
+            ChainKey other = (ChainKey) o;
+            return hashCode == other.hashCode
+                    && authType.equals(other.authType)
+                    && Arrays.deepEquals(encodings, other.encodings);
+        }
+    }
+
+    /** A chain that passed validation. */
+    private static final class ValidatedChain {
+        /** When the first certificate of the validated chain expires, in milliseconds. */
+        final long notAfter;
+        /** The trust generation when validation started. */
+        final long trustGeneration;
+
+        ValidatedChain(long notAfter, long trustGeneration) {
+            this.notAfter = notAfter;
+            this.trustGeneration = trustGeneration;
+        }
+    }
 }
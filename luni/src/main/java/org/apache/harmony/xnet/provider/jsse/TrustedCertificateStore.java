@@ -39,6 +39,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.security.auth.x500.X500Principal;
 import libcore.io.IoUtils;
 import libcore.util.Objects;
@@ -116,6 +117,13 @@ public final class TrustedCertificateStore {
         }
     }
 
+    /**
+     * The number of certificate deletions by any store in this
+     * process. Used by {@code TrustManagerImpl} to notice that
+     * certificates it validated may no longer be trusted.
+     */
+    private static final AtomicLong deletionCount = new AtomicLong();
+
     private final File systemDir;
     private final File addedDir;
     private final File deletedDir;
@@ -573,6 +581,15 @@ public final class TrustedCertificateStore {
      * delete CA certificates.
      */
     public void deleteCertificateEntry(String alias) throws IOException, CertificateException {
+        try {
+            deleteCertificateEntryInternal(alias);
+        } finally {
+            deletionCount.incrementAndGet();
+        }
+    }
+
+    private void deleteCertificateEntryInternal(String alias)
+            throws IOException, CertificateException {
         if (alias == null) {
             return;
         }
@@ -605,6 +622,14 @@ public final class TrustedCertificateStore {
         // non-existant user cert, nothing to delete
     }
 
+    /**
+     * Returns the number of certificate deletions by any store in
+     * this process.
+     */
+    static long getDeletionCount() {
+        return deletionCount.get();
+    }
+
     private void removeUnnecessaryTombstones(String alias) throws IOException {
         if (!isUser(alias)) {
             throw new AssertionError(alias);
@@ -28,6 +28,7 @@
 #include <poll.h>
 #include <signal.h>
 #include <stdlib.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
 #include <sys/mman.h>
 #include <sys/socket.h>
@@ -129,6 +130,13 @@ static void OsConstants_initConstants(JNIEnv* env, jclass c) {
     initConstant(env, c, "EOVERFLOW", EOVERFLOW);
     initConstant(env, c, "EPERM", EPERM);
     initConstant(env, c, "EPIPE", EPIPE);
+    initConstant(env, c, "EPOLLERR", EPOLLERR);
+    initConstant(env, c, "EPOLLHUP", EPOLLHUP);
+    initConstant(env, c, "EPOLLIN", EPOLLIN);
+    initConstant(env, c, "EPOLLOUT", EPOLLOUT);
+    initConstant(env, c, "EPOLL_CTL_ADD", EPOLL_CTL_ADD);
+    initConstant(env, c, "EPOLL_CTL_DEL", EPOLL_CTL_DEL);
+    initConstant(env, c, "EPOLL_CTL_MOD", EPOLL_CTL_MOD);
     initConstant(env, c, "EPROTO", EPROTO);
     initConstant(env, c, "EPROTONOSUPPORT", EPROTONOSUPPORT);
     initConstant(env, c, "EPROTOTYPE", EPROTOTYPE);
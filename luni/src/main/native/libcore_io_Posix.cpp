@@ -40,6 +40,7 @@
 #include <pwd.h>
 #include <signal.h>
 #include <stdlib.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
 #include <sys/mman.h>
 #include <sys/sendfile.h>
@@ -458,6 +459,56 @@ static jobjectArray Posix_environ(JNIEnv* env, jobject) {
     return toStringArray(env, environ);
 }
 
+static jobject Posix_epoll_create(JNIEnv* env, jobject, jint size) {
+    int fd = throwIfMinusOne(env, "epoll_create", TEMP_FAILURE_RETRY(epoll_create(size)));
+    return (fd != -1) ? jniCreateFileDescriptor(env, fd) : NULL;
+}
+
+static void Posix_epoll_ctl(JNIEnv* env, jobject, jobject javaEpfd, jint op, jobject javaFd, jint events, jint data) {
+    int epfd = jniGetFDFromFileDescriptor(env, javaEpfd);
+    int fd = jniGetFDFromFileDescriptor(env, javaFd);
+    epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = events;
+    event.data.u32 = data;
+    throwIfMinusOne(env, "epoll_ctl", TEMP_FAILURE_RETRY(epoll_ctl(epfd, op, fd, &event)));
+}
+
+static jint Posix_epoll_wait(JNIEnv* env, jobject, jobject javaEpfd, jintArray javaEvents, jintArray javaData, jint timeoutMs) {
+    size_t maxEvents = env->GetArrayLength(javaEvents);
+    size_t dataLength = env->GetArrayLength(javaData);
+    if (dataLength < maxEvents) {
+        maxEvents = dataLength;
+    }
+    if (maxEvents == 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "no room for events");
+        return -1;
+    }
+
+    // Don't pin the Java arrays while we block.
+    UniquePtr<epoll_event[]> results(new epoll_event[maxEvents]);
+    int epfd = jniGetFDFromFileDescriptor(env, javaEpfd);
+    int rc = epoll_wait(epfd, results.get(), maxEvents, timeoutMs);
+    if (rc == -1) {
+        throwErrnoException(env, "epoll_wait");
+        return -1;
+    }
+
+    ScopedIntArrayRW events(env, javaEvents);
+    if (events.get() == NULL) {
+        return -1;
+    }
+    ScopedIntArrayRW data(env, javaData);
+    if (data.get() == NULL) {
+        return -1;
+    }
+    for (int i = 0; i < rc; ++i) {
+        events[i] = results[i].events;
+        data[i] = results[i].data.u32;
+    }
+    return rc;
+}
+
 static void Posix_fchmod(JNIEnv* env, jobject, jobject javaFd, jint mode) {
     int fd = jniGetFDFromFileDescriptor(env, javaFd);
     throwIfMinusOne(env, "fchmod", TEMP_FAILURE_RETRY(fchmod(fd, mode)));
@@ -1007,6 +1058,18 @@ static jint Posix_recvfromBytes(JNIEnv* env, jobject, jobject javaFd, jobject ja
     return recvCount;
 }
 
+static jint Posix_recvmsg(JNIEnv* env, jobject, jobject javaFd, jobjectArray buffers, jintArray offsets, jintArray byteCounts, jint flags) {
+    IoVec<ScopedBytesRW> ioVec(env, env->GetArrayLength(buffers));
+    if (!ioVec.init(buffers, offsets, byteCounts)) {
+        return -1;
+    }
+    msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = ioVec.get();
+    msg.msg_iovlen = ioVec.size();
+    return NET_FAILURE_RETRY(env, ssize_t, recvmsg, javaFd, &msg, flags);
+}
+
 static void Posix_remove(JNIEnv* env, jobject, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
@@ -1045,6 +1108,18 @@ static jlong Posix_sendfile(JNIEnv* env, jobject, jobject javaOutFd, jobject jav
     return result;
 }
 
+static jint Posix_sendmsg(JNIEnv* env, jobject, jobject javaFd, jobjectArray buffers, jintArray offsets, jintArray byteCounts, jint flags) {
+    IoVec<ScopedBytesRO> ioVec(env, env->GetArrayLength(buffers));
+    if (!ioVec.init(buffers, offsets, byteCounts)) {
+        return -1;
+    }
+    msghdr msg;
+    memset(&msg, 0, sizeof(msg));
+    msg.msg_iov = ioVec.get();
+    msg.msg_iovlen = ioVec.size();
+    return NET_FAILURE_RETRY(env, ssize_t, sendmsg, javaFd, &msg, flags);
+}
+
 static jint Posix_sendtoBytes(JNIEnv* env, jobject, jobject javaFd, jobject javaBytes, jint byteOffset, jint byteCount, jint flags, jobject javaInetAddress, jint port) {
     ScopedBytesRO bytes(env, javaBytes);
     if (bytes.get() == NULL) {
@@ -1279,6 +1354,9 @@ static JNINativeMethod gMethods[] = {
     NATIVE_METHOD(Posix, dup, "(Ljava/io/FileDescriptor;)Ljava/io/FileDescriptor;"),
     NATIVE_METHOD(Posix, dup2, "(Ljava/io/FileDescriptor;I)Ljava/io/FileDescriptor;"),
     NATIVE_METHOD(Posix, environ, "()[Ljava/lang/String;"),
+    NATIVE_METHOD(Posix, epoll_create, "(I)Ljava/io/FileDescriptor;"),
+    NATIVE_METHOD(Posix, epoll_ctl, "(Ljava/io/FileDescriptor;ILjava/io/FileDescriptor;II)V"),
+    NATIVE_METHOD(Posix, epoll_wait, "(Ljava/io/FileDescriptor;[I[II)I"),
     NATIVE_METHOD(Posix, fchmod, "(Ljava/io/FileDescriptor;I)V"),
     NATIVE_METHOD(Posix, fchown, "(Ljava/io/FileDescriptor;II)V"),
     NATIVE_METHOD(Posix, fcntlVoid, "(Ljava/io/FileDescriptor;I)I"),
@@ -1332,9 +1410,11 @@ static JNINativeMethod gMethods[] = {
     NATIVE_METHOD(Posix, readBytes, "(Ljava/io/FileDescriptor;Ljava/lang/Object;II)I"),
     NATIVE_METHOD(Posix, readv, "(Ljava/io/FileDescriptor;[Ljava/lang/Object;[I[I)I"),
     NATIVE_METHOD(Posix, recvfromBytes, "(Ljava/io/FileDescriptor;Ljava/lang/Object;IIILjava/net/InetSocketAddress;)I"),
+    NATIVE_METHOD(Posix, recvmsg, "(Ljava/io/FileDescriptor;[Ljava/lang/Object;[I[II)I"),
     NATIVE_METHOD(Posix, remove, "(Ljava/lang/String;)V"),
     NATIVE_METHOD(Posix, rename, "(Ljava/lang/String;Ljava/lang/String;)V"),
     NATIVE_METHOD(Posix, sendfile, "(Ljava/io/FileDescriptor;Ljava/io/FileDescriptor;Llibcore/util/MutableLong;J)J"),
+    NATIVE_METHOD(Posix, sendmsg, "(Ljava/io/FileDescriptor;[Ljava/lang/Object;[I[II)I"),
     NATIVE_METHOD(Posix, sendtoBytes, "(Ljava/io/FileDescriptor;Ljava/lang/Object;IIILjava/net/InetAddress;I)I"),
     NATIVE_METHOD(Posix, setegid, "(I)V"),
     NATIVE_METHOD(Posix, seteuid, "(I)V"),
@@ -16,12 +16,18 @@
 
 package dalvik.system;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import libcore.io.Streams;
 import junit.framework.TestCase;
 
@@ -40,6 +46,8 @@ public class DexClassLoaderTest extends TestCase {
     private static final File DEX_FILE = new File(TMP_DIR, DEX_NAME);
     private static final File JAR2_FILE = new File(TMP_DIR, JAR2_NAME);
     private static final File DEX2_FILE = new File(TMP_DIR, DEX2_NAME);
+    /** a second copy of the first jar, to have duplicate class and resource names */
+    private static final File JAR_COPY_FILE = new File(TMP_DIR, "loading-test-copy.jar");
     private static final File OPTIMIZED_DIR = new File(TMP_DIR, "optimized");
 
     private static enum Configuration {
@@ -70,6 +78,7 @@ public class DexClassLoaderTest extends TestCase {
         copyResource(cl, DEX_NAME, DEX_FILE);
         copyResource(cl, JAR2_NAME, JAR2_FILE);
         copyResource(cl, DEX2_NAME, DEX2_FILE);
+        copyResource(cl, JAR_NAME, JAR_COPY_FILE);
 
         OPTIMIZED_DIR.mkdirs();
         File[] files = OPTIMIZED_DIR.listFiles();
@@ -123,6 +132,49 @@ public class DexClassLoaderTest extends TestCase {
             ClassLoader.getSystemClassLoader());
     }
 
+    /**
+     * Helper to construct an instance whose class path is the given
+     * files, in order.
+     */
+    private static DexClassLoader createInstance(File... files) {
+        StringBuilder path = new StringBuilder();
+        for (File file : files) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(file.getAbsolutePath());
+        }
+        return new DexClassLoader(path.toString(), OPTIMIZED_DIR.getAbsolutePath(), null,
+                ClassLoader.getSystemClassLoader());
+    }
+
+    private static DexPathList getPathList(BaseDexClassLoader loader) throws Exception {
+        Field field = BaseDexClassLoader.class.getDeclaredField("pathList");
+        field.setAccessible(true);
+        return (DexPathList) field.get(loader);
+    }
+
+    private static DexPathList.Element[] getElements(DexPathList pathList) throws Exception {
+        Field field = DexPathList.class.getDeclaredField("dexElements");
+        field.setAccessible(true);
+        return (DexPathList.Element[]) field.get(pathList);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, DexPathList.Element> getClassIndex(DexPathList pathList)
+            throws Exception {
+        Method method = DexPathList.class.getDeclaredMethod("getClassIndex");
+        method.setAccessible(true);
+        return (HashMap<String, DexPathList.Element>) method.invoke(pathList);
+    }
+
+    private static void setClassIndex(DexPathList pathList,
+            HashMap<String, DexPathList.Element> index) throws Exception {
+        Field field = DexPathList.class.getDeclaredField("classIndex");
+        field.setAccessible(true);
+        field.set(pathList, index);
+    }
+
     /**
      * Helper to construct an instance to test, using the jar file as
      * the source, and call a named no-argument static method on a
@@ -484,4 +536,139 @@ public class DexClassLoaderTest extends TestCase {
             Configuration.TWO_JAR, "test.TestMethods",
             "test_diff_getResourceAsStream");
     }
+
+    /*
+     * Tests of the indexed class and resource lookups, which are used
+     * when the class path has more than one dex or zip file.
+     */
+
+    public void test_twoJar_indexedFindClassInSecondElement() throws Exception {
+        DexPathList pathList = getPathList(createInstance(Configuration.TWO_JAR));
+        DexPathList.Element[] elements = getElements(pathList);
+        assertNotNull(pathList.findClass("test2.Target2"));
+        assertSame(elements[1], getClassIndex(pathList).get("test2.Target2"));
+    }
+
+    public void test_twoJar_indexedFindClassMiss() throws Exception {
+        DexPathList pathList = getPathList(createInstance(Configuration.TWO_JAR));
+        assertNull(pathList.findClass("test.DoesNotExist"));
+
+        /*
+         * With an empty index, a class that a linear search would find
+         * is not found: a miss doesn't ask the dex files.
+         */
+        setClassIndex(pathList, new HashMap<String, DexPathList.Element>());
+        assertNull(pathList.findClass("test.Test1"));
+    }
+
+    public void test_twoJar_indexedFindClassFallsBackToLinearSearch() throws Exception {
+        DexPathList pathList = getPathList(createInstance(Configuration.TWO_JAR));
+        DexPathList.Element[] elements = getElements(pathList);
+
+        // index the class to an element that can't load it
+        HashMap<String, DexPathList.Element> index = getClassIndex(pathList);
+        index.put("test.Test1", elements[1]);
+        assertNotNull(pathList.findClass("test.Test1"));
+    }
+
+    public void test_twoJar_indexedFindResourceOfDirectory() throws Exception {
+        DexPathList pathList = getPathList(createInstance(Configuration.TWO_JAR));
+        URL url = pathList.findResource("test2");
+        assertNotNull(url);
+        assertTrue(url.toString(), url.toString().contains(JAR2_NAME));
+        assertNotNull(pathList.findResource("test2/"));
+        assertNull(pathList.findResource("test3"));
+    }
+
+    public void test_indexedLookupsPreferFirstElement() throws Exception {
+        DexPathList pathList = getPathList(createInstance(JAR_FILE, JAR_COPY_FILE));
+        DexPathList.Element[] elements = getElements(pathList);
+        assertEquals(JAR_FILE.getAbsoluteFile(), elements[0].file);
+
+        assertNotNull(pathList.findClass("test.Test1"));
+        assertSame(elements[0], getClassIndex(pathList).get("test.Test1"));
+
+        URL url = pathList.findResource("test/Resource1.txt");
+        assertTrue(url.toString(), url.toString().contains(JAR_NAME + "!/"));
+    }
+
+    /*
+     * Tests of opening the files of a class path concurrently.
+     */
+
+    private static final String THREADS_PROPERTY = "dalvik.system.dexpath.threads";
+
+    /**
+     * Creates an instance whose class path is the given files, opening
+     * them on up to four threads.
+     */
+    private static DexClassLoader createInstanceConcurrently(File... files) {
+        String oldThreads = System.getProperty(THREADS_PROPERTY);
+        System.setProperty(THREADS_PROPERTY, "4");
+        try {
+            return createInstance(files);
+        } finally {
+            if (oldThreads != null) {
+                System.setProperty(THREADS_PROPERTY, oldThreads);
+            } else {
+                System.clearProperty(THREADS_PROPERTY);
+            }
+        }
+    }
+
+    public void test_concurrentOpenKeepsClassPathOrder() throws Exception {
+        DexClassLoader dcl = createInstanceConcurrently(JAR2_FILE, JAR_FILE, JAR_COPY_FILE);
+        DexPathList.Element[] elements = getElements(getPathList(dcl));
+        assertEquals(3, elements.length);
+        assertEquals(JAR2_FILE.getAbsoluteFile(), elements[0].file);
+        assertEquals(JAR_FILE.getAbsoluteFile(), elements[1].file);
+        assertEquals(JAR_COPY_FILE.getAbsoluteFile(), elements[2].file);
+        assertSame("blort", dcl.loadClass("test.Test1").getMethod("test").invoke(null));
+    }
+
+    public void test_concurrentOpenPropagatesRuntimeException() throws Exception {
+        final RuntimeException failure = new IllegalStateException();
+        BaseDexClassLoader.setLoadReporter(new BaseDexClassLoader.LoadReporter() {
+            public void reportLoad(File file, long elapsedNanos, boolean loaded) {
+                if (file.getName().equals(JAR2_NAME)) {
+                    throw failure;
+                }
+            }
+        });
+        try {
+            createInstanceConcurrently(JAR_FILE, JAR2_FILE);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertSame(failure, expected);
+        } finally {
+            BaseDexClassLoader.setLoadReporter(null);
+        }
+    }
+
+    public void test_concurrentOpenReportsEachFileOnce() throws Exception {
+        File notCode = new File(TMP_DIR, "not-code.txt");
+        FileOutputStream out = new FileOutputStream(notCode);
+        out.write("not a dex or zip file".getBytes("UTF-8"));
+        out.close();
+
+        final List<String> reports = Collections.synchronizedList(new ArrayList<String>());
+        BaseDexClassLoader.setLoadReporter(new BaseDexClassLoader.LoadReporter() {
+            public void reportLoad(File file, long elapsedNanos, boolean loaded) {
+                assertTrue(elapsedNanos >= 0);
+                reports.add(file.getName() + "=" + loaded);
+            }
+        });
+        try {
+            createInstanceConcurrently(JAR_FILE, notCode, JAR2_FILE);
+        } finally {
+            BaseDexClassLoader.setLoadReporter(null);
+            notCode.delete();
+        }
+
+        Collections.sort(reports);
+        assertEquals(3, reports.size());
+        assertEquals(JAR_NAME + "=true", reports.get(0));
+        assertEquals(JAR2_NAME + "=true", reports.get(1));
+        assertEquals("not-code.txt=false", reports.get(2));
+    }
 }
@@ -23,16 +23,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import junit.framework.TestCase;
 import static libcore.io.DiskLruCache.JOURNAL_FILE;
 import static libcore.io.DiskLruCache.MAGIC;
+import static libcore.io.DiskLruCache.SNAPSHOT_FILE;
 import static libcore.io.DiskLruCache.VERSION_1;
+import static libcore.io.DiskLruCache.VERSION_2;
 import tests.io.MockOs;
 
 public final class DiskLruCacheTest extends TestCase {
@@ -40,6 +46,7 @@ public final class DiskLruCacheTest extends TestCase {
     private String javaTmpDir;
     private File cacheDir;
     private File journalFile;
+    private File snapshotFile;
     private DiskLruCache cache;
     private final MockOs mockOs = new MockOs();
 
@@ -49,6 +56,7 @@ public final class DiskLruCacheTest extends TestCase {
         cacheDir = new File(javaTmpDir, "DiskLruCacheTest");
         cacheDir.mkdir();
         journalFile = new File(cacheDir, JOURNAL_FILE);
+        snapshotFile = new File(cacheDir, SNAPSHOT_FILE);
         for (File file : cacheDir.listFiles()) {
             file.delete();
         }
@@ -82,6 +90,20 @@ public final class DiskLruCacheTest extends TestCase {
         assertEquals("DE", snapshot.getString(1));
     }
 
+    public void testSnapshotLengths() throws Exception {
+        set("k1", "ABC", "DE");
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        set("k1", "FGHIJ", "K");
+        assertEquals(3, snapshot.getLength(0));
+        assertEquals(2, snapshot.getLength(1));
+        snapshot.close();
+
+        snapshot = cache.get("k1");
+        assertEquals(5, snapshot.getLength(0));
+        assertEquals(1, snapshot.getLength(1));
+        snapshot.close();
+    }
+
     public void testReadAndWriteEntryAcrossCacheOpenAndClose() throws Exception {
         DiskLruCache.Editor creator = cache.edit("k1");
         creator.set(0, "A");
@@ -476,6 +498,26 @@ public final class DiskLruCacheTest extends TestCase {
         assertValue("F", "f", "f");
     }
 
+    public void testTouchHonorsLru() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, 10);
+        set("A", "a", "a");
+        set("B", "b", "b");
+        set("C", "c", "c");
+        set("D", "d", "d");
+        set("E", "e", "e");
+        assertTrue(cache.touch("A")); // 'B' is now least recently used
+        assertFalse(cache.touch("Z"));
+
+        // causing the size to grow to 12 should evict 'B'
+        set("F", "f", "f");
+        cache.flush();
+        assertEquals(10, cache.size());
+        assertValue("A", "a", "a");
+        assertAbsent("B");
+        assertValue("C", "c", "c");
+    }
+
     public void testEvictionHonorsLruFromPreviousSession() throws Exception {
         set("A", "a", "a");
         set("B", "b", "b");
@@ -677,10 +719,165 @@ public final class DiskLruCacheTest extends TestCase {
         assertNull(snapshot.edit());
     }
 
+    public void testNewCacheHasEmptySnapshot() throws Exception {
+        assertTrue(snapshotFile.exists());
+        assertJournalEquals();
+    }
+
+    public void testLegacyJournalIsCompactedOnOpen() throws Exception {
+        cache.close();
+        writeFile(getCleanFile("k1", 0), "A");
+        writeFile(getCleanFile("k1", 1), "B");
+        writeFile(getCleanFile("k2", 0), "CC");
+        writeFile(getCleanFile("k2", 1), "D");
+        snapshotFile.delete();
+        createJournal("CLEAN k1 1 1", "CLEAN k2 2 1", "READ k1");
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertJournalEquals();
+        assertTrue(snapshotFile.exists());
+        assertEquals(5, cache.size());
+        assertValue("k1", "A", "B");
+        assertValue("k2", "CC", "D");
+    }
+
+    public void testSnapshotAndJournalAcrossCacheOpenAndClose() throws Exception {
+        cache.close();
+        writeFile(getCleanFile("k1", 0), "A");
+        writeFile(getCleanFile("k1", 1), "B");
+        writeFile(getCleanFile("k2", 0), "C");
+        writeFile(getCleanFile("k2", 1), "D");
+        createJournal("CLEAN k1 1 1", "CLEAN k2 1 1");
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        set("k3", "E", "F");
+        cache.close();
+        assertJournalEquals("DIRTY k3", "CLEAN k3 1 1");
+
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertEquals(6, cache.size());
+        assertValue("k1", "A", "B");
+        assertValue("k2", "C", "D");
+        assertValue("k3", "E", "F");
+    }
+
+    public void testSnapshotPreservesLruOrder() throws Exception {
+        cache.close();
+        for (String key : new String[] { "a", "b", "c" }) {
+            writeFile(getCleanFile(key, 0), key);
+            writeFile(getCleanFile(key, 1), key);
+        }
+        createJournal("CLEAN a 1 1", "CLEAN b 1 1", "CLEAN c 1 1", "READ a");
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        cache.close();
+
+        // 'b' is least recently used, then 'c'
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, 2);
+        cache.flush();
+        assertAbsent("b");
+        assertAbsent("c");
+        assertValue("a", "a", "a");
+    }
+
+    public void testOpenWithMissingSnapshotClearsDirectory() throws Exception {
+        set("k1", "A", "B");
+        cache.close();
+        generateSomeGarbageFiles();
+        snapshotFile.delete();
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertGarbageFilesAllDeleted();
+        assertNull(cache.get("k1"));
+    }
+
+    public void testOpenWithTruncatedSnapshotClearsDirectory() throws Exception {
+        cache.close();
+        writeFile(getCleanFile("k1", 0), "A");
+        writeFile(getCleanFile("k1", 1), "B");
+        createJournal("CLEAN k1 1 1");
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        cache.close();
+
+        generateSomeGarbageFiles();
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertGarbageFilesAllDeleted();
+        assertNull(cache.get("k1"));
+    }
+
+    public void testOpenWithInvalidSnapshotAppVersionClearsDirectory() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, appVersion + 1, 2, Integer.MAX_VALUE);
+        cache.close();
+        createJournalWithHeader(MAGIC, VERSION_2, "100", "2", "");
+        generateSomeGarbageFiles();
+        cache = DiskLruCache.open(cacheDir, appVersion, 2, Integer.MAX_VALUE);
+        assertGarbageFilesAllDeleted();
+    }
+
+    public void testReadsAreJournaledInBatches() throws Exception {
+        set("A", "a", "a");
+        set("B", "b", "b");
+        cache.get("A").close();
+        cache.get("B").close();
+        cache.get("A").close();
+        cache.close();
+        assertJournalEquals("DIRTY A", "CLEAN A 1 1", "DIRTY B", "CLEAN B 1 1",
+                "READ A", "READ B", "READ A");
+    }
+
+    public void testConcurrentReadsSeeConsistentSnapshots() throws Exception {
+        final int threadCount = 16;
+        for (int i = 0; i < threadCount; i++) {
+            set("k" + i, "v" + i, "v" + i);
+        }
+        set("shared", "0", "0");
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final String key = "k" + t;
+            final String expected = "v" + t;
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            DiskLruCache.Snapshot snapshot = cache.get(key);
+                            assertEquals(expected, snapshot.getString(0));
+                            assertEquals(expected, snapshot.getString(1));
+                            snapshot.close();
+
+                            // values of the shared entry are always committed together
+                            snapshot = cache.get("shared");
+                            if (snapshot != null) {
+                                assertEquals(snapshot.getString(0), snapshot.getString(1));
+                                snapshot.close();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        for (int i = 1; done.getCount() > 0; i++) {
+            set("shared", Integer.toString(i), Integer.toString(i));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        for (int i = 0; i < threadCount; i++) {
+            assertValue("k" + i, "v" + i, "v" + i);
+        }
+    }
+
     private void assertJournalEquals(String... expectedBodyLines) throws Exception {
         List<String> expectedLines = new ArrayList<String>();
         expectedLines.add(MAGIC);
-        expectedLines.add(VERSION_1);
+        expectedLines.add(VERSION_2);
         expectedLines.add("100");
         expectedLines.add("2");
         expectedLines.add("");
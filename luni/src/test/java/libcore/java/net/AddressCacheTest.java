@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.java.net;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests java.net.AddressCache, which is package-private, through reflection
+ * and a fake resolver.
+ */
+public final class AddressCacheTest extends TestCase {
+    private static final long FOREVER = -1;
+    private static final long SHORT_TTL_MILLIS = 1;
+    private static final long LONG_TTL_MILLIS = 60 * 1000;
+
+    private Class<?> resolverClass;
+    private Method lookupMethod;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        Class<?> cacheClass = Class.forName("java.net.AddressCache");
+        resolverClass = Class.forName("java.net.AddressCache$Resolver");
+        lookupMethod = cacheClass.getDeclaredMethod("lookup", String.class, resolverClass);
+        lookupMethod.setAccessible(true);
+    }
+
+    public void testConcurrentLookupsShareOneResolve() throws Exception {
+        final Object cache = newCache(16, LONG_TTL_MILLIS, LONG_TTL_MILLIS, 0);
+        final FakeResolver resolver = new FakeResolver();
+        resolver.gate = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<InetAddress[]>> futures = new ArrayList<Future<InetAddress[]>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<InetAddress[]>() {
+                    public InetAddress[] call() throws Exception {
+                        return lookup(cache, "h", resolver);
+                    }
+                }));
+            }
+            // hold the resolver until every other thread is waiting for its result
+            while (getCount(cache, "getCoalescedCount") < 7) {
+                Thread.sleep(10);
+            }
+            resolver.gate.countDown();
+
+            InetAddress[] first = futures.get(0).get();
+            for (Future<InetAddress[]> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, resolver.calls.get());
+        assertEquals(1, getCount(cache, "getMissCount"));
+    }
+
+    public void testStaleEntryIsServedThenRefreshed() throws Exception {
+        Object cache = newCache(16, SHORT_TTL_MILLIS, LONG_TTL_MILLIS, LONG_TTL_MILLIS);
+        FakeResolver resolver = new FakeResolver();
+        InetAddress[] a = addresses("h", 1);
+        InetAddress[] b = addresses("h", 2);
+        resolver.answers.add(a);
+        resolver.answers.add(b);
+
+        assertSame(a, lookup(cache, "h", resolver));
+        Thread.sleep(10);
+        assertSame(a, lookup(cache, "h", resolver));
+        assertEquals(1, getCount(cache, "getStaleHitCount"));
+
+        awaitLookupCount(cache, 2);
+        assertSame(b, lookup(cache, "h", resolver));
+    }
+
+    public void testFailedRefreshKeepsStaleEntry() throws Exception {
+        Object cache = newCache(16, SHORT_TTL_MILLIS, LONG_TTL_MILLIS, LONG_TTL_MILLIS);
+        FakeResolver resolver = new FakeResolver();
+        InetAddress[] a = addresses("h", 1);
+        resolver.answers.add(a);
+        resolver.answers.add(new UnknownHostException("h"));
+
+        assertSame(a, lookup(cache, "h", resolver));
+        Thread.sleep(10);
+        assertSame(a, lookup(cache, "h", resolver));
+
+        awaitLookupCount(cache, 2);
+        assertSame(a, lookup(cache, "h", resolver));
+        assertEquals(2, getCount(cache, "getStaleHitCount"));
+    }
+
+    public void testNegativeEntryOutlivesPositiveTtl() throws Exception {
+        Object cache = newCache(16, SHORT_TTL_MILLIS, LONG_TTL_MILLIS, 0);
+        FakeResolver resolver = new FakeResolver();
+        resolver.answers.add(new UnknownHostException("bad"));
+
+        assertUnknownHost(cache, "bad", resolver);
+        Thread.sleep(10);
+        assertUnknownHost(cache, "bad", resolver);
+        assertEquals(1, resolver.calls.get());
+    }
+
+    public void testNegativeEntryExpiresAfterNegativeTtl() throws Exception {
+        Object cache = newCache(16, FOREVER, SHORT_TTL_MILLIS, 0);
+        FakeResolver resolver = new FakeResolver();
+        resolver.answers.add(new UnknownHostException("bad"));
+        resolver.answers.add(new UnknownHostException("bad"));
+
+        assertUnknownHost(cache, "bad", resolver);
+        Thread.sleep(10);
+        assertUnknownHost(cache, "bad", resolver);
+        assertEquals(2, resolver.calls.get());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        Object cache = newCache(2, LONG_TTL_MILLIS, LONG_TTL_MILLIS, 0);
+        FakeResolver resolver = new FakeResolver();
+
+        lookup(cache, "a", resolver);
+        Thread.sleep(1);
+        lookup(cache, "b", resolver);
+        Thread.sleep(1);
+        lookup(cache, "a", resolver); // 'b' is now least recently used
+        Thread.sleep(1);
+        lookup(cache, "c", resolver);
+        assertEquals(3, resolver.calls.get());
+
+        lookup(cache, "a", resolver);
+        assertEquals(3, resolver.calls.get());
+        lookup(cache, "b", resolver);
+        assertEquals(4, resolver.calls.get());
+    }
+
+    public void testOtherFailuresAreNotCached() throws Exception {
+        Object cache = newCache(16, LONG_TTL_MILLIS, LONG_TTL_MILLIS, 0);
+        FakeResolver resolver = new FakeResolver();
+        InetAddress[] a = addresses("h", 1);
+        resolver.answers.add(new IllegalStateException());
+        resolver.answers.add(a);
+
+        try {
+            lookup(cache, "h", resolver);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertSame(a, lookup(cache, "h", resolver));
+        assertEquals(2, resolver.calls.get());
+    }
+
+    public void testBadSystemPropertiesFallBackToDefaults() throws Exception {
+        Method newFromSystemProperties = lookupMethod.getDeclaringClass()
+                .getDeclaredMethod("newFromSystemProperties");
+        newFromSystemProperties.setAccessible(true);
+        String[] names = {
+            "networkaddress.cache.size",
+            "networkaddress.cache.ttl",
+            "networkaddress.cache.negative.ttl",
+            "networkaddress.cache.stale.ttl",
+        };
+        String[] oldValues = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            oldValues[i] = System.getProperty(names[i]);
+        }
+        try {
+            System.setProperty("networkaddress.cache.size", "0");
+            System.setProperty("networkaddress.cache.ttl", "two");
+            System.setProperty("networkaddress.cache.negative.ttl", "");
+            System.setProperty("networkaddress.cache.stale.ttl", "-5");
+            Object cache = newFromSystemProperties.invoke(null);
+            assertTrue(cache.toString(), cache.toString().contains("maxEntries=16"));
+
+            // the default TTL still caches a lookup
+            FakeResolver resolver = new FakeResolver();
+            InetAddress[] a = lookup(cache, "h", resolver);
+            assertSame(a, lookup(cache, "h", resolver));
+            assertEquals(1, resolver.calls.get());
+        } finally {
+            for (int i = 0; i < names.length; i++) {
+                if (oldValues[i] != null) {
+                    System.setProperty(names[i], oldValues[i]);
+                } else {
+                    System.clearProperty(names[i]);
+                }
+            }
+        }
+    }
+
+    private Object newCache(int maxEntries, long ttlMillis, long negativeTtlMillis,
+            long staleMillis) throws Exception {
+        Class<?> cacheClass = lookupMethod.getDeclaringClass();
+        Constructor<?> constructor = cacheClass.getDeclaredConstructor(
+                int.class, long.class, long.class, long.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(maxEntries, ttlMillis, negativeTtlMillis, staleMillis);
+    }
+
+    private InetAddress[] lookup(Object cache, String hostname, FakeResolver resolver)
+            throws Exception {
+        Object proxy = Proxy.newProxyInstance(resolverClass.getClassLoader(),
+                new Class<?>[] { resolverClass }, resolver);
+        try {
+            return (InetAddress[]) lookupMethod.invoke(cache, hostname, proxy);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private void assertUnknownHost(Object cache, String hostname, FakeResolver resolver)
+            throws Exception {
+        try {
+            lookup(cache, hostname, resolver);
+            fail();
+        } catch (UnknownHostException expected) {
+            assertEquals(hostname, expected.getMessage());
+        }
+    }
+
+    private long getCount(Object cache, String getter) throws Exception {
+        Method method = cache.getClass().getDeclaredMethod(getter);
+        method.setAccessible(true);
+        return (Long) method.invoke(cache);
+    }
+
+    /** Waits for the background refresh to finish calling the resolver. */
+    private void awaitLookupCount(Object cache, long count) throws Exception {
+        while (getCount(cache, "getLookupCount") < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static InetAddress[] addresses(String hostname, int lastByte) throws Exception {
+        return new InetAddress[] {
+            InetAddress.getByAddress(hostname, new byte[] { 10, 0, 0, (byte) lastByte })
+        };
+    }
+
+    /**
+     * Answers resolve calls from a queue of addresses and exceptions, or with a
+     * fixed address once the queue is empty.
+     */
+    private static final class FakeResolver implements InvocationHandler {
+        final Queue<Object> answers = new ConcurrentLinkedQueue<Object>();
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().equals("resolve")) {
+                return method.invoke(this, args);
+            }
+            calls.incrementAndGet();
+            if (gate != null) {
+                gate.await();
+            }
+            Object answer = answers.poll();
+            if (answer instanceof Throwable) {
+                throw (Throwable) answer;
+            }
+            return answer != null ? answer : addresses((String) args[0], 1);
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -535,6 +536,67 @@ public class CookiesTest extends TestCase {
         assertEquals(Arrays.asList(new URI("http://a.com")), cookieStore.getURIs());
     }
 
+    public void testCookieStoreGetMatchesDomainSuffixes() throws URISyntaxException {
+        CookieStore cookieStore = new CookieManager().getCookieStore();
+        HttpCookie cookieA = new HttpCookie("a", "android");
+        cookieA.setDomain(".Android.com");
+        cookieStore.add(new URI("http://android.com/"), cookieA);
+        HttpCookie cookieB = new HttpCookie("b", "banana");
+        cookieB.setDomain("source.android.com");
+        cookieStore.add(new URI("http://source.android.com/"), cookieB);
+        HttpCookie cookieC = new HttpCookie("c", "cupcake");
+        cookieC.setDomain(".local");
+        cookieStore.add(new URI("http://localhost/"), cookieC);
+        HttpCookie cookieD = new HttpCookie("d", "donut");
+        cookieStore.add(new URI("http://google.com/"), cookieD);
+
+        assertEquals(Arrays.asList(cookieA),
+                cookieStore.get(new URI("http://www.android.com/")));
+        assertEquals(Arrays.asList(cookieA),
+                cookieStore.get(new URI("http://android.com/")));
+        assertEquals(new HashSet<HttpCookie>(Arrays.asList(cookieA, cookieB)),
+                new HashSet<HttpCookie>(cookieStore.get(new URI("https://SOURCE.android.com/a"))));
+        assertEquals(Arrays.asList(cookieC), cookieStore.get(new URI("http://printer/")));
+        assertEquals(Arrays.asList(cookieC), cookieStore.get(new URI("http://printer.local/")));
+        // cookies without a domain are only returned for the URI they were added for
+        assertEquals(Collections.<HttpCookie>emptyList(),
+                cookieStore.get(new URI("http://www.google.com/")));
+        assertEquals(Arrays.asList(cookieD), cookieStore.get(new URI("http://google.com")));
+    }
+
+    public void testCookieStoreGetRemovesExpiredCookies() throws URISyntaxException {
+        CookieStore cookieStore = new CookieManager().getCookieStore();
+        HttpCookie cookieA = new HttpCookie("a", "android");
+        cookieA.setDomain(".android.com");
+        cookieStore.add(new URI("http://android.com/"), cookieA);
+        cookieA.setMaxAge(0);
+        assertEquals(Collections.<HttpCookie>emptyList(),
+                cookieStore.get(new URI("http://www.android.com/")));
+        assertEquals(Collections.<URI>emptyList(), cookieStore.getURIs());
+        assertFalse(cookieStore.removeAll());
+    }
+
+    public void testCookieStoreEvictsLeastRecentlyUsed() throws URISyntaxException {
+        CookieStore cookieStore = new CookieManager().getCookieStore();
+        int maxSize = 3000;
+        for (int i = 0; i < maxSize; i++) {
+            HttpCookie cookie = new HttpCookie("c" + i, "value");
+            cookie.setDomain("host" + i + ".android.com");
+            cookieStore.add(new URI("http://host" + i + ".android.com/"), cookie);
+        }
+        assertEquals(maxSize, cookieStore.getCookies().size());
+
+        // using the first cookie makes the second the least recently used
+        assertEquals(1, cookieStore.get(new URI("http://host0.android.com/")).size());
+        cookieStore.add(new URI("http://android.com/"), new HttpCookie("new", "value"));
+        List<HttpCookie> cookies = cookieStore.getCookies();
+        assertEquals(maxSize, cookies.size());
+        assertEquals("c0", cookies.get(0).getName());
+        assertEquals("c2", cookies.get(1).getName());
+        assertEquals(Collections.<HttpCookie>emptyList(),
+                cookieStore.get(new URI("http://host1.android.com/")));
+    }
+
     private void assertContains(Collection<String> collection, String element) {
         for (String c : collection) {
             if (c != null && c.equalsIgnoreCase(element)) {
@@ -18,11 +18,17 @@ package libcore.java.nio.channels;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.SelectorProviderImpl;
 import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.Pipe;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import libcore.io.Libcore;
@@ -130,6 +136,109 @@ public class SelectorTest extends TestCase {
         }
     }
 
+    public void testPollSelectsOnlyReadyChannels() throws Exception {
+        assertSelectsOnlyReadyChannels(openSelector(false));
+    }
+
+    public void testEpollSelectsOnlyReadyChannels() throws Exception {
+        assertSelectsOnlyReadyChannels(openSelector(true));
+    }
+
+    private void assertSelectsOnlyReadyChannels(Selector selector) throws Exception {
+        List<Pipe> pipes = new ArrayList<Pipe>();
+        try {
+            List<SelectionKey> keys = new ArrayList<SelectionKey>();
+            for (int i = 0; i < 100; i++) {
+                Pipe pipe = Pipe.open();
+                pipes.add(pipe);
+                pipe.source().configureBlocking(false);
+                keys.add(pipe.source().register(selector, SelectionKey.OP_READ));
+            }
+            assertEquals(0, selector.selectNow());
+
+            pipes.get(3).sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+            pipes.get(97).sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+            assertEquals(2, selector.select(1000));
+            assertTrue(selector.selectedKeys().contains(keys.get(3)));
+            assertTrue(selector.selectedKeys().contains(keys.get(97)));
+            assertEquals(SelectionKey.OP_READ, keys.get(3).readyOps());
+        } finally {
+            selector.close();
+            for (Pipe pipe : pipes) {
+                pipe.source().close();
+                pipe.sink().close();
+            }
+        }
+    }
+
+    public void testEpollInterestOpsChangesApplyOnNextSelect() throws Exception {
+        Selector selector = openSelector(true);
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+            SelectionKey key = pipe.source().register(selector, 0);
+            assertEquals(0, selector.selectNow());
+
+            key.interestOps(SelectionKey.OP_READ);
+            assertEquals(1, selector.selectNow());
+            selector.selectedKeys().clear();
+
+            key.interestOps(0);
+            assertEquals(0, selector.selectNow());
+        } finally {
+            selector.close();
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    public void testEpollCancelledKeysAreNotSelected() throws Exception {
+        Selector selector = openSelector(true);
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+            SelectionKey key = pipe.source().register(selector, SelectionKey.OP_READ);
+            assertEquals(1, selector.selectNow());
+            selector.selectedKeys().clear();
+
+            key.cancel();
+            assertEquals(0, selector.selectNow());
+            assertFalse(selector.keys().contains(key));
+
+            // the channel can be registered again once the cancellation has been processed
+            pipe.source().register(selector, SelectionKey.OP_READ);
+            assertEquals(1, selector.selectNow());
+        } finally {
+            selector.close();
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    public void testEpollWakeup() throws Exception {
+        final Selector selector = openSelector(true);
+        try {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException ignored) {
+                    }
+                    selector.wakeup();
+                }
+            }).start();
+            assertEquals(0, selector.select());
+        } finally {
+            selector.close();
+        }
+    }
+
+    private Selector openSelector(boolean useEpoll) throws IOException {
+        return ((SelectorProviderImpl) SelectorProvider.provider()).openSelector(useEpoll);
+    }
+
     /**
      * We previously leaked a file descriptor for each selector instance created.
      *
@@ -16,9 +16,14 @@
 
 package libcore.java.nio.channels;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SocketChannelTest extends junit.framework.TestCase {
     public void test_read_intoReadOnlyByteArrays() throws Exception {
@@ -42,4 +47,99 @@ public class SocketChannelTest extends junit.framework.TestCase {
         } catch (IllegalArgumentException expected) {
         }
     }
+
+    public void test_gatheringWrite() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        SocketChannel sc = SocketChannel.open(ss.getLocalSocketAddress());
+        Socket peer = ss.accept();
+
+        ByteBuffer header = ByteBuffer.wrap("header:".getBytes("US-ASCII"));
+        ByteBuffer body = ByteBuffer.allocateDirect(4);
+        body.put("body".getBytes("US-ASCII")).flip();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        assertEquals(11, sc.write(new ByteBuffer[] { header, empty, body }));
+        assertFalse(header.hasRemaining());
+        assertFalse(body.hasRemaining());
+
+        byte[] received = new byte[11];
+        InputStream in = peer.getInputStream();
+        for (int count = 0; count < received.length; ) {
+            count += in.read(received, count, received.length - count);
+        }
+        assertEquals("header:body", new String(received, "US-ASCII"));
+
+        peer.close();
+        sc.close();
+        ss.close();
+    }
+
+    public void test_scatteringRead() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        SocketChannel sc = SocketChannel.open(ss.getLocalSocketAddress());
+        Socket peer = ss.accept();
+        OutputStream out = peer.getOutputStream();
+        out.write("abcdefg".getBytes("US-ASCII"));
+        out.flush();
+
+        // Reads must append at each buffer's position, not overwrite from the start.
+        ByteBuffer first = ByteBuffer.allocate(4);
+        first.put((byte) 'x');
+        ByteBuffer second = ByteBuffer.allocateDirect(8);
+        ByteBuffer[] targets = new ByteBuffer[] { first, second };
+        int count = 0;
+        while (count < 7) {
+            count += (int) sc.read(targets);
+        }
+        assertEquals(4, first.position());
+        assertEquals(4, second.position());
+        assertEquals("xabc", new String(first.array(), "US-ASCII"));
+        byte[] rest = new byte[4];
+        second.flip();
+        second.get(rest);
+        assertEquals("defg", new String(rest, "US-ASCII"));
+
+        peer.close();
+        assertEquals(-1, sc.read(targets));
+        sc.close();
+        ss.close();
+    }
+
+    public void test_scatteringReadNonBlockingWithNoData() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        SocketChannel sc = SocketChannel.open(ss.getLocalSocketAddress());
+        Socket peer = ss.accept();
+        sc.configureBlocking(false);
+        ByteBuffer[] targets = new ByteBuffer[] { ByteBuffer.allocate(4), ByteBuffer.allocate(4) };
+        assertEquals(0, sc.read(targets));
+        assertEquals(0, targets[0].position());
+        peer.close();
+        sc.close();
+        ss.close();
+    }
+
+    public void test_scatteringReadIsWokenByClose() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        final SocketChannel sc = SocketChannel.open(ss.getLocalSocketAddress());
+        Socket peer = ss.accept();
+        final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    sc.read(new ByteBuffer[] { ByteBuffer.allocate(4), ByteBuffer.allocate(4) });
+                } catch (Exception e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        reader.start();
+        // The peer never writes, so the reader stays blocked until the channel is closed.
+        Thread.sleep(200);
+        sc.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue(String.valueOf(thrown.get()),
+                thrown.get() instanceof AsynchronousCloseException);
+        peer.close();
+        ss.close();
+    }
 }
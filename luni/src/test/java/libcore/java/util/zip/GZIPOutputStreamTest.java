@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
@@ -40,6 +41,36 @@ public final class GZIPOutputStreamTest extends TestCase {
         assertTrue(Arrays.equals(data, GZIPInputStreamTest.gunzip(gzip(data))));
     }
 
+    public void testParallel() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // Span several blocks with data that compresses well, so that dictionaries matter.
+            byte[] data = new byte[1024 * 1024 + 17];
+            Random random = new Random(0);
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = (byte) ('a' + random.nextInt(8));
+            }
+            byte[] parallel = gzip(data, pool);
+            assertTrue(Arrays.equals(data, GZIPInputStreamTest.gunzip(parallel)));
+            assertTrue(parallel.length < data.length / 2);
+
+            assertEquals(0, GZIPInputStreamTest.gunzip(gzip(new byte[0], pool)).length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes, ForkJoinPool pool) throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        OutputStream gzippedOut = new GZIPOutputStream(bytesOut, pool);
+        // Write in odd-sized pieces so that writes straddle block boundaries.
+        for (int i = 0; i < bytes.length; i += 10000) {
+            gzippedOut.write(bytes, i, Math.min(10000, bytes.length - i));
+        }
+        gzippedOut.close();
+        return bytesOut.toByteArray();
+    }
+
     public static byte[] gzip(byte[] bytes) throws IOException {
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         OutputStream gzippedOut = new GZIPOutputStream(bytesOut);
@@ -22,14 +22,18 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Random;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import junit.framework.TestCase;
+import libcore.io.Streams;
 
 public final class ZipFileTest extends TestCase {
 
@@ -125,4 +129,103 @@ public final class ZipFileTest extends TestCase {
           out.close();
           return result;
       }
+
+    public void testMmapModeMatchesRandomAccessFileMode() throws IOException {
+        File f = createMixedZipFile(100);
+        List<String> expected = describe(f, false);
+        assertEquals(expected, describe(f, true));
+    }
+
+    public void testMmapModeStreamsFailAfterClose() throws IOException {
+        File f = createMixedZipFile(2);
+        System.setProperty("java.util.zip.mmap", "true");
+        try {
+            ZipFile zipFile = new ZipFile(f);
+            InputStream stored = zipFile.getInputStream(zipFile.getEntry("e0"));
+            zipFile.close();
+            try {
+                stored.read(new byte[4]);
+                fail();
+            } catch (IOException expected) {
+            }
+            try {
+                zipFile.getEntry("e0");
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            System.clearProperty("java.util.zip.mmap");
+        }
+    }
+
+    public void testMmapModeHugeZipFile() throws IOException {
+        int expectedEntryCount = 64*1024 - 1;
+        File f = createHugeZipFile(expectedEntryCount);
+        System.setProperty("java.util.zip.mmap", "true");
+        try {
+            ZipFile zipFile = new ZipFile(f);
+            assertEquals(expectedEntryCount, zipFile.size());
+            for (int i = 0; i < expectedEntryCount; ++i) {
+                assertNotNull(zipFile.getEntry(Integer.toHexString(i)));
+            }
+            zipFile.close();
+        } finally {
+            System.clearProperty("java.util.zip.mmap");
+        }
+    }
+
+    /**
+     * Lists the entries, contents and a few lookups of {@code f}, opened with or
+     * without memory-mapping.
+     */
+    private List<String> describe(File f, boolean mmap) throws IOException {
+        System.setProperty("java.util.zip.mmap", Boolean.toString(mmap));
+        try {
+            ZipFile zipFile = new ZipFile(f);
+            List<String> result = new ArrayList<String>();
+            result.add("size=" + zipFile.size());
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                InputStream in = zipFile.getInputStream(entry);
+                String data = new String(Streams.readFully(in), "US-ASCII");
+                result.add(entry.getName() + " " + entry.getMethod() + " " + entry.getSize()
+                        + " " + entry.getCrc() + " " + data);
+            }
+            result.add("e5=" + zipFile.getEntry("e5").getName());
+            result.add("e7=" + zipFile.getEntry("e7").getName()); // Directory lookups add a '/'.
+            result.add("missing=" + zipFile.getEntry("missing"));
+            zipFile.close();
+            return result;
+        } finally {
+            System.clearProperty("java.util.zip.mmap");
+        }
+    }
+
+    /**
+     * Creates an archive of alternating stored and deflated entries, with every
+     * seventh entry named like a directory.
+     */
+    private File createMixedZipFile(int count) throws IOException {
+        File result = File.createTempFile("ZipFileTest", "zip");
+        result.deleteOnExit();
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(result));
+        for (int i = 0; i < count; ++i) {
+            ZipEntry entry = new ZipEntry("e" + i + (i % 7 == 0 ? "/" : ""));
+            byte[] data = ("data" + i).getBytes("US-ASCII");
+            if (i % 2 == 0) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCompressedSize(data.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(data);
+            out.closeEntry();
+        }
+        out.close();
+        return result;
+    }
 }
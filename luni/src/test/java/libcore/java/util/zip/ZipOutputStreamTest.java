@@ -18,15 +18,22 @@ package libcore.java.util.zip;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import junit.framework.TestCase;
+import libcore.io.Streams;
 
 public final class ZipOutputStreamTest extends TestCase {
     public void testShortMessage() throws IOException {
@@ -48,6 +55,60 @@ public final class ZipOutputStreamTest extends TestCase {
         assertTrue(Arrays.equals(data, ZipInputStreamTest.unzip("r", zip("r", data))));
     }
 
+    public void testParallel() throws IOException {
+        // Mix small and multi-block deflated entries with stored ones, which have to
+        // wait for everything queued before them.
+        byte[][] contents = new byte[50][];
+        Random random = new Random(0);
+        for (int i = 0; i < contents.length; ++i) {
+            contents[i] = new byte[(i % 10 == 0) ? 300 * 1024 + i : i * 100];
+            for (int j = 0; j < contents[i].length; ++j) {
+                contents[i][j] = (byte) ('a' + random.nextInt(8));
+            }
+        }
+
+        File file = File.createTempFile("ZipOutputStreamTest", "zip");
+        file.deleteOnExit();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file), pool);
+        try {
+            for (int i = 0; i < contents.length; ++i) {
+                ZipEntry entry = new ZipEntry("e" + i);
+                if (i % 3 == 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(contents[i]);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(contents[i].length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(contents[i]);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+            pool.shutdown();
+        }
+
+        ZipFile zipFile = new ZipFile(file);
+        assertEquals(contents.length, zipFile.size());
+        for (int i = 0; i < contents.length; ++i) {
+            ZipEntry entry = zipFile.getEntry("e" + i);
+            assertEquals(contents[i].length, entry.getSize());
+            assertTrue(Arrays.equals(contents[i], Streams.readFully(zipFile.getInputStream(entry))));
+        }
+        zipFile.close();
+
+        // Streaming readers rely on the local headers and data descriptors instead.
+        ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+        for (int i = 0; i < contents.length; ++i) {
+            assertEquals("e" + i, in.getNextEntry().getName());
+            assertTrue(Arrays.equals(contents[i], Streams.readFullyNoClose(in)));
+        }
+        assertNull(in.getNextEntry());
+        in.close();
+    }
+
     public static byte[] zip(String name, byte[] bytes) throws IOException {
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         ZipOutputStream zippedOut = new ZipOutputStream(bytesOut);
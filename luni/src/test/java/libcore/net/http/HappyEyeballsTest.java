@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import dalvik.system.SocketTagger;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+public final class HappyEyeballsTest extends TestCase {
+    private InetAddress a1;
+    private InetAddress a2;
+    private InetAddress b1;
+    private InetAddress b2;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        a1 = InetAddress.getByName("10.0.0.1");
+        a2 = InetAddress.getByName("10.0.0.2");
+        b1 = InetAddress.getByName("fe80::1");
+        b2 = InetAddress.getByName("fe80::2");
+    }
+
+    public void testInterleaveAlternatesFamilies() throws Exception {
+        assertEquals(Arrays.asList(b1, a1, b2, a2), Arrays.asList(
+                HappyEyeballs.interleave(new InetAddress[] { b1, b2, a1, a2 })));
+        assertEquals(Arrays.asList(a1, b1, a2, b2), Arrays.asList(
+                HappyEyeballs.interleave(new InetAddress[] { a1, a2, b1, b2 })));
+        assertEquals(Arrays.asList(a1, b1, a2), Arrays.asList(
+                HappyEyeballs.interleave(new InetAddress[] { a1, a2, b1 })));
+        assertEquals(Arrays.asList(a1, a2), Arrays.asList(
+                HappyEyeballs.interleave(new InetAddress[] { a1, a2 })));
+    }
+
+    public void testConnect() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 50, localhost);
+        int closedPort = server.getLocalPort();
+        server.close();
+
+        // nothing listens on the port, so every attempt is refused
+        HappyEyeballs happyEyeballs = new HappyEyeballs(null, closedPort, 1000, 50);
+        try {
+            happyEyeballs.connect(new InetAddress[] { localhost, localhost });
+            fail();
+        } catch (IOException expected) {
+        }
+
+        server = new ServerSocket(0, 50, localhost);
+        try {
+            // the server only listens on 127.0.0.1, so 127.0.0.2 is refused
+            happyEyeballs = new HappyEyeballs(null, server.getLocalPort(), 10000, 50);
+            Socket socket = happyEyeballs.connect(
+                    new InetAddress[] { InetAddress.getByName("127.0.0.2"), localhost });
+            assertTrue(socket.isConnected());
+            assertEquals(localhost, socket.getInetAddress());
+            socket.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testConnectRethrowsUncheckedFailures() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        // every attempt fails with IllegalArgumentException for the invalid port
+        HappyEyeballs happyEyeballs = new HappyEyeballs(null, -1, 1000, 50);
+        try {
+            happyEyeballs.connect(new InetAddress[] { localhost, localhost });
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testWinnerIsTaggedOnCallingThread() throws Exception {
+        final List<Thread> taggingThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        SocketTagger oldTagger = SocketTagger.get();
+        SocketTagger.set(new SocketTagger() {
+            @Override public void tag(FileDescriptor socketDescriptor) {
+                taggingThreads.add(Thread.currentThread());
+            }
+            @Override public void untag(FileDescriptor socketDescriptor) {
+            }
+        });
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 50, localhost);
+        try {
+            HappyEyeballs happyEyeballs = new HappyEyeballs(null, server.getLocalPort(), 10000, 50);
+            Socket socket = happyEyeballs.connect(
+                    new InetAddress[] { InetAddress.getByName("127.0.0.2"), localhost });
+            assertSame(Thread.currentThread(), taggingThreads.get(taggingThreads.size() - 1));
+            socket.close();
+        } finally {
+            SocketTagger.set(oldTagger);
+            server.close();
+        }
+    }
+
+    public void testResolveAsync() throws Exception {
+        Future<InetAddress[]> numeric = InetAddress.getAllByNameAsync("127.0.0.1");
+        assertTrue(numeric.isDone());
+        assertEquals(Arrays.asList(InetAddress.getByName("127.0.0.1")),
+                Arrays.asList(numeric.get()));
+
+        try {
+            InetAddress.getAllByNameAsync("nonexistent.invalid").get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof UnknownHostException);
+        }
+    }
+}
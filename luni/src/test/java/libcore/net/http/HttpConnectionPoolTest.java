@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import junit.framework.TestCase;
+
+public final class HttpConnectionPoolTest extends TestCase {
+    private ServerSocket serverA;
+    private ServerSocket serverB;
+    private HttpConnection.Address addressA;
+    private HttpConnection.Address addressB;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        InetAddress localhost = InetAddress.getLocalHost();
+        serverA = new ServerSocket(0, 50, localhost);
+        serverB = new ServerSocket(0, 50, localhost);
+        addressA = new HttpConnection.Address(new URI("http://" + localhost.getHostName()
+                + ":" + serverA.getLocalPort() + "/"), null);
+        addressB = new HttpConnection.Address(new URI("http://" + localhost.getHostName()
+                + ":" + serverB.getLocalPort() + "/"), null);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        serverA.close();
+        serverB.close();
+        super.tearDown();
+    }
+
+    public void testRecycledConnectionIsReused() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 0);
+        HttpConnection connection = pool.get(addressA, false, 0);
+        assertEquals(1, pool.getMissCount());
+        pool.recycle(connection);
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        assertSame(connection, pool.get(addressA, false, 0));
+        assertTrue(connection.isRecycled());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getIdleConnectionCount());
+        connection.closeSocketAndStreams();
+    }
+
+    public void testConnectionsAreNotSharedAcrossAddresses() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 0);
+        HttpConnection connection = pool.get(addressA, false, 0);
+        pool.recycle(connection);
+
+        HttpConnection other = pool.get(addressB, false, 0);
+        assertNotSame(connection, other);
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        other.closeSocketAndStreams();
+        pool.evictAll();
+    }
+
+    public void testMaxConnectionsPerAddress() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(1, 10, 60 * 1000, 0);
+        HttpConnection a1 = pool.get(addressA, false, 0);
+        HttpConnection a2 = pool.get(addressA, false, 0);
+        pool.recycle(a1);
+        pool.recycle(a2);
+        assertEquals(1, pool.getIdleConnectionCount());
+        assertTrue(a2.getSocket().isClosed());
+        pool.evictAll();
+    }
+
+    public void testStaleConnectionIsNotReturned() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 0);
+        HttpConnection connection = pool.get(addressA, false, 0);
+        pool.recycle(connection);
+        connection.getSocket().close();
+
+        HttpConnection fresh = pool.get(addressA, false, 0);
+        assertNotSame(connection, fresh);
+        assertEquals(1, pool.getStaleCount());
+        assertEquals(0, pool.getHitCount());
+        fresh.closeSocketAndStreams();
+    }
+
+    public void testExpiredConnectionsAreEvicted() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 100, 0);
+        HttpConnection connection = pool.get(addressA, false, 0);
+        pool.recycle(connection);
+
+        assertTrue(pool.cleanup(System.nanoTime()) >= 0);
+        assertEquals(1, pool.getIdleConnectionCount());
+
+        assertEquals(-1, pool.cleanup(System.nanoTime() + 1000 * 1000 * 1000L));
+        assertEquals(0, pool.getIdleConnectionCount());
+        assertEquals(1, pool.getEvictionCount());
+        assertTrue(connection.getSocket().isClosed());
+    }
+
+    public void testReaperClosesExpiredConnections() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 100, 0);
+        HttpConnection connection = pool.get(addressA, false, 0);
+        pool.recycle(connection);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getIdleConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, pool.getIdleConnectionCount());
+        assertTrue(connection.getSocket().isClosed());
+    }
+
+    public void testMaxIdleConnectionsEvictsLeastRecentlyUsed() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 1, 60 * 1000, 0);
+        HttpConnection a = pool.get(addressA, false, 0);
+        HttpConnection b = pool.get(addressB, false, 0);
+        pool.recycle(a);
+        pool.recycle(b);
+
+        assertEquals(1, pool.getIdleConnectionCount());
+        assertEquals(1, pool.getEvictionCount());
+        assertTrue(a.getSocket().isClosed());
+        assertFalse(b.getSocket().isClosed());
+        assertSame(b, pool.get(addressB, false, 0));
+        b.closeSocketAndStreams();
+    }
+
+    public void testPipelinedRequestsShareConfirmedConnection() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 2);
+        HttpConnection leader = pool.get(addressA, true, 0);
+        HttpPipeline pipeline = leader.getPipeline();
+        assertNotNull(pipeline);
+
+        // Until the server proves it keeps connections alive, nobody may join.
+        HttpConnection other = pool.get(addressA, true, 0);
+        assertNotSame(leader, other);
+        pool.releasePipelined(other, -1, false);
+
+        pipeline.confirm();
+        HttpConnection follower = pool.get(addressA, true, 0);
+        assertSame(leader, follower);
+        assertTrue(follower.isRecycled());
+        assertEquals(1, pool.getPipelinedCount());
+
+        // The pipeline is full at depth 2.
+        HttpConnection third = pool.get(addressA, true, 0);
+        assertNotSame(leader, third);
+        pool.releasePipelined(third, -1, false);
+
+        pool.releasePipelined(leader, -1, true);
+        assertEquals(0, pool.getIdleConnectionCount());
+        pool.releasePipelined(follower, -1, true);
+        assertNull(leader.getPipeline());
+        assertEquals(1, pool.getIdleConnectionCount());
+        pool.evictAll();
+    }
+
+    public void testUnreusablePipelinedRequestClosesConnection() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 2);
+        HttpConnection leader = pool.get(addressA, true, 0);
+        HttpPipeline pipeline = leader.getPipeline();
+        pipeline.confirm();
+        HttpConnection follower = pool.get(addressA, true, 0);
+        assertSame(leader, follower);
+        int leaderTicket;
+        int followerTicket;
+        synchronized (pipeline.writeLock) {
+            leaderTicket = pipeline.takeTicket();
+            followerTicket = pipeline.takeTicket();
+        }
+
+        pool.releasePipelined(leader, leaderTicket, false);
+        assertTrue(pipeline.isClosed());
+        assertTrue(leader.getSocket().isClosed());
+        try {
+            pipeline.awaitTurn(followerTicket, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        HttpConnection fresh = pool.get(addressA, true, 0);
+        assertNotSame(leader, fresh);
+        pool.releasePipelined(follower, followerTicket, false);
+        pool.releasePipelined(fresh, -1, false);
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    public void testFailedFollowerWaitsForLeaderBeforeClosing() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(5, 10, 60 * 1000, 3);
+        HttpConnection leader = pool.get(addressA, true, 0);
+        HttpPipeline pipeline = leader.getPipeline();
+        pipeline.confirm();
+        HttpConnection follower = pool.get(addressA, true, 0);
+        HttpConnection last = pool.get(addressA, true, 0);
+        assertSame(leader, follower);
+        assertSame(leader, last);
+        int leaderTicket;
+        int followerTicket;
+        int lastTicket;
+        synchronized (pipeline.writeLock) {
+            leaderTicket = pipeline.takeTicket();
+            followerTicket = pipeline.takeTicket();
+            lastTicket = pipeline.takeTicket();
+        }
+        pipeline.awaitTurn(leaderTicket, 0);
+
+        // the follower gives up while the leader is still reading its response
+        pool.releasePipelined(follower, followerTicket, false);
+        assertTrue(pipeline.isClosed());
+        assertFalse(leader.getSocket().isClosed());
+        try {
+            pipeline.awaitTurn(lastTicket, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        pool.releasePipelined(leader, leaderTicket, true);
+        assertTrue(leader.getSocket().isClosed());
+        pool.releasePipelined(last, lastTicket, false);
+        assertEquals(0, pool.getIdleConnectionCount());
+    }
+
+    public void testPipelineTurnsAreTakenInTicketOrder() throws Exception {
+        final HttpPipeline pipeline = new HttpPipeline();
+        int first;
+        final int second;
+        synchronized (pipeline.writeLock) {
+            first = pipeline.takeTicket();
+            second = pipeline.takeTicket();
+        }
+        pipeline.awaitTurn(first, 0);
+        try {
+            pipeline.awaitTurn(second, 100);
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        pipeline.advance(first, true);
+        pipeline.awaitTurn(second, 0);
+    }
+
+    public void testInterruptedTurnKeepsInterruptStatus() throws Exception {
+        HttpPipeline pipeline = new HttpPipeline();
+        int second;
+        synchronized (pipeline.writeLock) {
+            pipeline.takeTicket();
+            second = pipeline.takeTicket();
+        }
+        Thread.currentThread().interrupt();
+        try {
+            pipeline.awaitTurn(second, 0);
+            fail();
+        } catch (InterruptedIOException expected) {
+        }
+        assertTrue(Thread.interrupted());
+    }
+}
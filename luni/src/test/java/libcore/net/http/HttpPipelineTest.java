@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import static com.google.mockwebserver.SocketPolicy.DISCONNECT_AT_END;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.TestCase;
+
+/**
+ * Pipelines requests through HttpURLConnection against a MockWebServer.
+ */
+public final class HttpPipelineTest extends TestCase {
+    private final MockWebServer server = new MockWebServer();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private int oldMaxPipelineDepth;
+
+    @Override protected void setUp() throws Exception {
+        super.setUp();
+        HttpConnectionPool.INSTANCE.evictAll();
+        oldMaxPipelineDepth = HttpConnectionPool.INSTANCE.getMaxPipelineDepth();
+        HttpConnectionPool.INSTANCE.setMaxPipelineDepth(2);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        HttpConnectionPool.INSTANCE.setMaxPipelineDepth(oldMaxPipelineDepth);
+        HttpConnectionPool.INSTANCE.evictAll();
+        executor.shutdown();
+        server.shutdown();
+        super.tearDown();
+    }
+
+    public void testPipelinedResponsesAreReadInOrder() throws Exception {
+        server.enqueue(new MockResponse().setBody("A"));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.play();
+
+        // the leader's response confirms that the server keeps connections alive
+        HttpURLConnection leader = (HttpURLConnection) server.getUrl("/a").openConnection();
+        assertEquals(200, leader.getResponseCode());
+
+        Future<String> follower = getAsync("/b");
+        // the server reads the second request once it arrives on the first connection
+        while (server.getRequestCount() < 2) {
+            Thread.sleep(10);
+        }
+        assertEquals("A", readAscii(leader));
+        assertEquals("B", follower.get());
+
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        RecordedRequest second = server.takeRequest();
+        assertEquals("GET /b HTTP/1.1", second.getRequestLine());
+        assertEquals(1, second.getSequenceNumber());
+    }
+
+    public void testFollowerIsRetriedWhenLeaderFails() throws Exception {
+        server.enqueue(new MockResponse().setBody("A").setSocketPolicy(DISCONNECT_AT_END));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.play();
+
+        HttpURLConnection leader = (HttpURLConnection) server.getUrl("/a").openConnection();
+        assertEquals(200, leader.getResponseCode());
+
+        long pipelinedCount = HttpConnectionPool.INSTANCE.getPipelinedCount();
+        Future<String> follower = getAsync("/b");
+        while (HttpConnectionPool.INSTANCE.getPipelinedCount() == pipelinedCount) {
+            Thread.sleep(10);
+        }
+        assertEquals("A", readAscii(leader));
+
+        // the server closed the pipelined connection, so the follower retries on a new one
+        assertEquals("B", follower.get());
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        RecordedRequest retried = server.takeRequest();
+        assertEquals("GET /b HTTP/1.1", retried.getRequestLine());
+        assertEquals(0, retried.getSequenceNumber());
+    }
+
+    public void testFollowerTimeoutDoesNotAbortSlowLeader() throws Exception {
+        String body = new String(new char[64 * 1024]).replace('\0', 'a');
+        server.enqueue(new MockResponse().setBody(body));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.play();
+
+        HttpURLConnection leader = (HttpURLConnection) server.getUrl("/a").openConnection();
+        assertEquals(200, leader.getResponseCode());
+        InputStream leaderIn = leader.getInputStream();
+        assertEquals('a', leaderIn.read());
+
+        // the leader holds its turn, so the follower times out waiting for it
+        long pipelinedCount = HttpConnectionPool.INSTANCE.getPipelinedCount();
+        Future<String> follower = executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                URLConnection connection = server.getUrl("/b").openConnection();
+                connection.setConnectTimeout(100);
+                return readAscii(connection);
+            }
+        });
+        assertEquals("B", follower.get());
+        assertEquals(pipelinedCount + 1, HttpConnectionPool.INSTANCE.getPipelinedCount());
+
+        // the follower's failure must not close the socket under the leader
+        assertEquals(body.substring(1), readAscii(leaderIn));
+    }
+
+    private Future<String> getAsync(final String path) {
+        return executor.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return readAscii(server.getUrl(path).openConnection());
+            }
+        });
+    }
+
+    private String readAscii(URLConnection connection) throws IOException {
+        return readAscii(connection.getInputStream());
+    }
+
+    private String readAscii(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        try {
+            StringBuilder result = new StringBuilder();
+            for (int c; (c = reader.read()) != -1; ) {
+                result.append((char) c);
+            }
+            return result.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
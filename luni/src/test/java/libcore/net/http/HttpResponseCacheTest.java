@@ -62,6 +62,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 import javax.net.ssl.HttpsURLConnection;
 import junit.framework.TestCase;
+import libcore.io.Streams;
 import libcore.javax.net.ssl.TestSSLContext;
 import tests.io.MockOs;
 
@@ -888,6 +889,29 @@ public final class HttpResponseCacheTest extends TestCase {
         assertEquals("ABCABCABC", readAscii(server.getUrl("/").openConnection()));
     }
 
+    public void testConditionalHitKeepsContentEncodingOfCachedBody() throws Exception {
+        byte[] gzipped = gzip("ABCABCABC".getBytes("UTF-8"));
+        server.enqueue(new MockResponse()
+                .addHeader("Last-Modified: " + formatDate(-2, TimeUnit.HOURS))
+                .addHeader("Expires: " + formatDate(-1, TimeUnit.HOURS))
+                .addHeader("Content-Encoding: gzip")
+                .setBody(gzipped));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+        server.play();
+
+        assertEquals("ABCABCABC", readAscii(server.getUrl("/").openConnection()));
+        assertEquals("ABCABCABC", readAscii(server.getUrl("/").openConnection()));
+
+        // the updated entry must still describe the compressed body
+        URLConnection connection = server.getUrl("/").openConnection();
+        connection.addRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals(Integer.toString(gzipped.length),
+                connection.getHeaderField("Content-Length"));
+        assertEquals(gzipped.length, Streams.readFully(connection.getInputStream()).length);
+    }
+
     public void testExpiresDateBeforeModifiedDate() throws Exception {
         assertConditionallyCached(new MockResponse()
                 .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
@@ -1650,6 +1674,140 @@ public final class HttpResponseCacheTest extends TestCase {
         assertEquals(2, server.getRequestCount());
     }
 
+    public void testStatisticsMemoryCacheHit() throws Exception {
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("A"));
+        server.play();
+
+        // cache miss; seed the disk cache
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals(0, cache.getMemoryHitCount());
+        assertEquals(1, cache.getMemoryMissCount());
+
+        // disk cache hit; seed the memory cache
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals(0, cache.getMemoryHitCount());
+        assertEquals(2, cache.getMemoryMissCount());
+
+        // memory cache hits
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals(2, cache.getMemoryHitCount());
+        assertEquals(2, cache.getMemoryMissCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    public void testMemoryCacheHoldsOnlyMetadataOfLargeBodies() throws Exception {
+        String body = new String(new char[1024 * 1024]).replace('\0', 'x');
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody(body));
+        server.play();
+
+        assertEquals(body, readAscii(server.getUrl("/").openConnection()));
+        assertEquals(body, readAscii(server.getUrl("/").openConnection()));
+        assertEquals(body, readAscii(server.getUrl("/").openConnection()));
+        assertEquals(1, cache.getMemoryHitCount());
+        assertEquals(2, cache.getMemoryMissCount());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    public void testPostInvalidatesMemoryCache() throws Exception {
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("A"));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.enqueue(new MockResponse().setBody("C"));
+        server.play();
+
+        URL url = server.getUrl("/");
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals(1, cache.getMemoryHitCount());
+
+        HttpURLConnection invalidate = (HttpURLConnection) url.openConnection();
+        invalidate.setRequestMethod("POST");
+        addRequestBodyIfNecessary("POST", invalidate);
+        assertEquals("B", readAscii(invalidate));
+
+        assertEquals("C", readAscii(url.openConnection()));
+        assertEquals(1, cache.getMemoryHitCount());
+    }
+
+    public void testConditionalHitFromMemoryUpdatesCache() throws Exception {
+        server.enqueue(new MockResponse()
+                .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("A"));
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=30")
+                .addHeader("Allow: GET, HEAD")
+                .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+        server.play();
+
+        // cache miss; seed the disk cache, then the memory cache
+        URL url = server.getUrl("/a");
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals("A", readAscii(url.openConnection()));
+
+        // conditional cache hit from memory; update the cache
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.addRequestProperty("Cache-Control", "max-age=0");
+        assertEquals("A", readAscii(connection));
+        assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+        assertEquals(1, cache.getMemoryHitCount());
+
+        // full cache hit
+        connection = (HttpURLConnection) url.openConnection();
+        assertEquals("A", readAscii(connection));
+        assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    public void testMemoryCacheHitNoticesDiskEviction() throws Exception {
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("A"));
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("B"));
+        server.play();
+
+        URL url = server.getUrl("/");
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals("A", readAscii(url.openConnection()));
+        assertEquals(1, cache.getMemoryHitCount());
+
+        // the memory entry must not outlive the disk entry it mirrors
+        assertTrue(cache.getCache().remove(cache.uriToKey(url.toURI())));
+        assertEquals("B", readAscii(url.openConnection()));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    public void testMemoryCacheDisabled() throws Exception {
+        String tmp = System.getProperty("java.io.tmpdir");
+        File cacheDir = new File(tmp, "HttpCache-" + UUID.randomUUID());
+        cache.getCache().delete();
+        cache = new HttpResponseCache(cacheDir, Integer.MAX_VALUE, 0);
+        ResponseCache.setDefault(cache);
+
+        server.enqueue(new MockResponse()
+                .addHeader("Cache-Control: max-age=60")
+                .setBody("A"));
+        server.play();
+
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals("A", readAscii(server.getUrl("/").openConnection()));
+        assertEquals(0, cache.getMemoryHitCount());
+        assertEquals(0, cache.getMemoryMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
     /**
      * @param delta the offset from the current date to use. Negative
      *     values yield dates in the past; positive values yield dates in the
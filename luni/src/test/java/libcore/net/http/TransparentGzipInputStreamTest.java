@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.net.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.TestCase;
+import libcore.io.Streams;
+
+public final class TransparentGzipInputStreamTest extends TestCase {
+    private final InflaterPool pool = new InflaterPool(2);
+
+    public void testDecode() throws Exception {
+        byte[] data = randomText(100000);
+        InputStream in = new TransparentGzipInputStream(
+                new ByteArrayInputStream(gzip(data)), pool);
+        assertTrue(Arrays.equals(data, Streams.readFully(in)));
+    }
+
+    public void testSingleByteReads() throws Exception {
+        byte[] data = "hello, world".getBytes("US-ASCII");
+        InputStream in = new TransparentGzipInputStream(
+                new ByteArrayInputStream(gzip(data)), pool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testInflaterIsRecycledAtEndOfStream() throws Exception {
+        byte[] gzipped = gzip(randomText(1000));
+        for (int i = 0; i < 5; i++) {
+            InputStream in = new TransparentGzipInputStream(
+                    new ByteArrayInputStream(gzipped), pool);
+            Streams.readFullyNoClose(in);
+        }
+        assertEquals(1, pool.getCreateCount());
+        assertEquals(4, pool.getReuseCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testInflaterIsRecycledOnClose() throws Exception {
+        byte[] data = randomText(100000);
+        InputStream in = new TransparentGzipInputStream(
+                new ByteArrayInputStream(gzip(data)), pool);
+        assertEquals(data[0], (byte) in.read());
+        in.close();
+        assertEquals(1, pool.getIdleCount());
+
+        // a recycled inflater must not carry state into the next stream
+        in = new TransparentGzipInputStream(new ByteArrayInputStream(gzip(data)), pool);
+        assertTrue(Arrays.equals(data, Streams.readFully(in)));
+        assertEquals(1, pool.getCreateCount());
+    }
+
+    public void testPoolIsBounded() throws Exception {
+        byte[] gzipped = gzip(randomText(1000));
+        InputStream a = new TransparentGzipInputStream(new ByteArrayInputStream(gzipped), pool);
+        InputStream b = new TransparentGzipInputStream(new ByteArrayInputStream(gzipped), pool);
+        InputStream c = new TransparentGzipInputStream(new ByteArrayInputStream(gzipped), pool);
+        a.close();
+        b.close();
+        c.close();
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    public void testCorruptTrailer() throws Exception {
+        byte[] gzipped = gzip(randomText(1000));
+        gzipped[gzipped.length - 5]++; // corrupt the CRC
+        InputStream in = new TransparentGzipInputStream(new ByteArrayInputStream(gzipped), pool);
+        try {
+            Streams.readFully(in);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    public void testTruncatedBody() throws Exception {
+        byte[] gzipped = gzip(randomText(1000));
+        InputStream in = new TransparentGzipInputStream(new ByteArrayInputStream(
+                Arrays.copyOf(gzipped, gzipped.length / 2)), pool);
+        try {
+            Streams.readFully(in);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testNotGzipped() throws Exception {
+        try {
+            new TransparentGzipInputStream(new ByteArrayInputStream(new byte[20]), pool);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testByteCounts() throws Exception {
+        byte[] data = new byte[10000];
+        byte[] gzipped = gzip(data);
+        long compressedBefore = TransparentGzipInputStream.getCompressedByteCount();
+        long decompressedBefore = TransparentGzipInputStream.getDecompressedByteCount();
+        Streams.readFully(new TransparentGzipInputStream(
+                new ByteArrayInputStream(gzipped), pool));
+        assertEquals(gzipped.length,
+                TransparentGzipInputStream.getCompressedByteCount() - compressedBefore);
+        assertEquals(data.length,
+                TransparentGzipInputStream.getDecompressedByteCount() - decompressedBefore);
+    }
+
+    private static byte[] randomText(int length) {
+        Random random = new Random(0);
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return result;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package libcore.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public final class WeightedLruCacheTest extends TestCase {
+
+    public void testConstructorDoesNotAllowZeroCacheSize() {
+        try {
+            new WeightedLruCache<String, String>(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testDefaultSizeIsOne() {
+        WeightedLruCache<String, String> cache = new WeightedLruCache<String, String>(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals(2, cache.size());
+        assertSnapshot(cache, "b", "B", "c", "C");
+    }
+
+    public void testEvictionBySize() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "AAAA");
+        cache.put("b", "BBBB");
+        assertEquals(8, cache.size());
+        assertEquals(Arrays.<String>asList(), evictionLog);
+
+        cache.put("c", "CCC");
+        assertEquals(Arrays.asList("a=AAAA"), evictionLog);
+        assertEquals(7, cache.size());
+        assertSnapshot(cache, "b", "BBBB", "c", "CCC");
+    }
+
+    public void testGetMovesToHead() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "AAAA");
+        cache.put("b", "BBBB");
+        assertEquals("AAAA", cache.get("a"));
+        cache.put("c", "CCC");
+        assertEquals(Arrays.asList("b=BBBB"), evictionLog);
+        assertSnapshot(cache, "a", "AAAA", "c", "CCC");
+    }
+
+    public void testReplacingValueAdjustsSize() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "AAAA");
+        assertEquals("AAAA", cache.put("a", "AA"));
+        assertEquals(2, cache.size());
+        assertEquals(Arrays.<String>asList(), evictionLog);
+    }
+
+    public void testOversizedValueIsNotCached() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "AAAA");
+        cache.put("b", "BBBB");
+        assertEquals("BBBB", cache.put("b", "BBBBBBBBBBB"));
+        assertNull(cache.get("b"));
+        assertEquals(4, cache.size());
+        assertEquals(Arrays.<String>asList(), evictionLog);
+        assertSnapshot(cache, "a", "AAAA");
+    }
+
+    public void testRemove() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "AAAA");
+        assertEquals("AAAA", cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(0, cache.size());
+        assertEquals(Arrays.<String>asList(), evictionLog);
+    }
+
+    public void testEvictAll() {
+        final List<String> evictionLog = new ArrayList<String>();
+        WeightedLruCache<String, String> cache = newLengthCache(10, evictionLog);
+
+        cache.put("a", "A");
+        cache.put("b", "BB");
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertSnapshot(cache);
+        assertEquals(Arrays.asList("a=A", "b=BB"), evictionLog);
+    }
+
+    public void testNegativeSizeIsRejected() {
+        WeightedLruCache<String, String> cache = new WeightedLruCache<String, String>(10) {
+            @Override protected int sizeOf(String key, String value) {
+                return -1;
+            }
+        };
+        try {
+            cache.put("a", "A");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private WeightedLruCache<String, String> newLengthCache(
+            int maxSize, final List<String> evictionLog) {
+        return new WeightedLruCache<String, String>(maxSize) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+            @Override protected void entryEvicted(String key, String value) {
+                evictionLog.add(key + "=" + value);
+            }
+        };
+    }
+
+    private <T> void assertSnapshot(WeightedLruCache<T, T> cache, T... keysAndValues) {
+        List<T> actualKeysAndValues = new ArrayList<T>();
+        for (Map.Entry<T, T> entry : cache.snapshot().entrySet()) {
+            actualKeysAndValues.add(entry.getKey());
+            actualKeysAndValues.add(entry.getValue());
+        }
+
+        // assert using lists because order is important for LRUs
+        assertEquals(Arrays.asList(keysAndValues), actualKeysAndValues);
+    }
+}
@@ -16,8 +16,10 @@
 
 package org.apache.harmony.xnet.provider.jsse;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import javax.net.ssl.SSLSession;
 import junit.framework.TestCase;
@@ -83,6 +85,43 @@ public final class ClientSessionContextTest extends TestCase {
         assertEquals(expected, sessions);
     }
 
+    public void testEvictsOldestSessions() {
+        ClientSessionContext context = new ClientSessionContext();
+        context.setSessionCacheSize(5);
+
+        // enough sessions to spread over the cache's segments
+        List<SSLSession> added = new ArrayList<SSLSession>();
+        for (int i = 0; i < 40; i++) {
+            ValidSSLSession session = new ValidSSLSession("session" + i);
+            added.add(session);
+            context.putSession(session);
+        }
+        // replacing a session doesn't make it any younger
+        context.putSession(added.get(37));
+
+        List<SSLSession> sessions = new ArrayList<SSLSession>();
+        Enumeration ids = context.getIds();
+        while (ids.hasMoreElements()) {
+            sessions.add(context.getSession((byte[]) ids.nextElement()));
+        }
+        assertEquals(added.subList(35, 40), sessions);
+        assertEquals(35, context.getEvictionCount());
+        assertEquals(5, context.size());
+    }
+
+    public void testHitAndMissCounts() {
+        ClientSessionContext context = new ClientSessionContext();
+        context.putSession(new ValidSSLSession("a"));
+
+        assertNotNull(context.getSession("a", 443));
+        assertNotNull(context.getSession("a", 443));
+        assertNull(context.getSession("a", 444));
+        assertNull(context.getSession("b", 443));
+
+        assertEquals(2, context.getHitCount());
+        assertEquals(2, context.getMissCount());
+    }
+
     static class ValidSSLSession extends FakeSSLSession {
         ValidSSLSession(String host) {
             super(host);
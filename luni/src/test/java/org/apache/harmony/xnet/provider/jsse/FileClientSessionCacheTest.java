@@ -17,19 +17,35 @@
 package org.apache.harmony.xnet.provider.jsse;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import junit.framework.TestCase;
+import libcore.io.IoUtils;
 import libcore.javax.net.ssl.FakeSSLSession;
 
 public class FileClientSessionCacheTest extends TestCase {
 
-    public void testMaxSize() throws IOException, InterruptedException {
+    private File newCacheDir(String name) throws IOException {
         String tmpDir = System.getProperty("java.io.tmpdir");
         if (tmpDir == null) {
             fail("Please set 'java.io.tmpdir' system property.");
         }
         File cacheDir = new File(tmpDir
-                + "/" + FileClientSessionCacheTest.class.getName() + "/cache");
+                + "/" + FileClientSessionCacheTest.class.getName() + "/" + name);
+        if (cacheDir.exists()) {
+            IoUtils.deleteContents(cacheDir);
+        }
+        return cacheDir;
+    }
+
+    @Override protected void tearDown() throws Exception {
+        FileClientSessionCache.reset();
+        super.tearDown();
+    }
+
+    public void testMaxSize() throws IOException, InterruptedException {
+        File cacheDir = newCacheDir("cache");
         final SSLClientSessionCache cache
                 = FileClientSessionCache.usingDirectory(cacheDir);
         Thread[] threads = new Thread[10];
@@ -51,6 +67,46 @@ public class FileClientSessionCacheTest extends TestCase {
         for (Thread thread : threads) {
             thread.join();
         }
-        assertEquals(FileClientSessionCache.MAX_SIZE, cacheDir.list().length);
+        FileClientSessionCache.Impl impl = (FileClientSessionCache.Impl) cache;
+        assertEquals(FileClientSessionCache.MAX_SIZE, impl.sessions.size());
+
+        // all sessions are in one file
+        impl.flush();
+        assertEquals(Arrays.asList(FileClientSessionCache.STORE_FILE_NAME),
+                Arrays.asList(cacheDir.list()));
+    }
+
+    public void testSessionsSurviveRestart() throws IOException {
+        File cacheDir = newCacheDir("restart");
+        FileClientSessionCache.Impl cache = (FileClientSessionCache.Impl)
+                FileClientSessionCache.usingDirectory(cacheDir, 2);
+        cache.putSessionData(new FakeSSLSession("a"), new byte[] { 1 });
+        cache.putSessionData(new FakeSSLSession("b"), new byte[] { 2 });
+        assertEquals(1, cache.getSessionData("a", 443)[0]); // b is now the eldest
+        cache.putSessionData(new FakeSSLSession("c"), new byte[] { 3 });
+        assertNull(cache.getSessionData("b", 443));
+        cache.flush();
+
+        FileClientSessionCache.reset();
+        cache = (FileClientSessionCache.Impl)
+                FileClientSessionCache.usingDirectory(cacheDir, 2);
+        assertEquals(Arrays.asList("a.443", "c.443"),
+                Arrays.asList(cache.sessions.keySet().toArray()));
+        assertEquals(3, cache.getSessionData("c", 443)[0]);
+        assertNull(cache.getSessionData("c", 444));
+    }
+
+    public void testImportsLegacyFiles() throws IOException {
+        File cacheDir = newCacheDir("legacy");
+        cacheDir.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(cacheDir, "a.443"));
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        SSLClientSessionCache cache = FileClientSessionCache.usingDirectory(cacheDir);
+        byte[] data = cache.getSessionData("a", 443);
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, data));
+        assertEquals(Arrays.asList(FileClientSessionCache.STORE_FILE_NAME),
+                Arrays.asList(cacheDir.list()));
     }
 }
@@ -63,6 +63,33 @@ public class TrustManagerImplTest extends TestCase {
         assertValid(chain1, tm);
     }
 
+    public void testValidationCache() throws Exception {
+        KeyStore.PrivateKeyEntry pke = TestKeyStore.getServer().getPrivateKey("RSA", "RSA");
+        X509Certificate[] chain3 = (X509Certificate[])pke.getCertificateChain();
+        X509Certificate root = chain3[2];
+        X509Certificate server = chain3[0];
+        X509Certificate[] chain1 =  new X509Certificate[] { server };
+
+        KeyStore keyStore = TestKeyStore.createKeyStore();
+        keyStore.setCertificateEntry("alias", root);
+        TrustManagerImpl tm = new TrustManagerImpl(keyStore);
+
+        // validated once, then remembered
+        assertValid(chain3, tm);
+        assertEquals(1, tm.getValidationCacheMissCount());
+        assertEquals(1, tm.getValidationCacheHitCount());
+
+        // failures aren't remembered
+        assertInvalid(chain1, tm);
+        assertEquals(3, tm.getValidationCacheMissCount());
+
+        // a trust storage update forgets validated chains
+        tm.handleTrustStorageUpdate();
+        assertValid(chain3, tm);
+        assertEquals(4, tm.getValidationCacheMissCount());
+        assertEquals(2, tm.getValidationCacheHitCount());
+    }
+
     private X509TrustManager trustManager(X509Certificate ca) throws Exception {
         KeyStore keyStore = TestKeyStore.createKeyStore();
         keyStore.setCertificateEntry("alias", ca);